@@ -0,0 +1,195 @@
+package com.yuwjoo.quickpass.benchmark;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 设备上的基准测试工具
+ * 每项测试先预热，再重复测量并按中位数和P90汇总。结果以JSON写入应用的外部文件目录，
+ * 用 adb pull /sdcard/Android/data/com.yuwjoo.quickpass/files/benchmark 取回后可与上一版本比较。
+ * 只有传入instrumentation参数 benchmark=true 时才运行，避免拖慢普通的设备测试
+ */
+public class BenchmarkHarness {
+    private static final String TAG = "BenchmarkHarness";
+    private static final String RESULT_DIRECTORY = "benchmark";
+    private static final String ARGUMENT_ENABLED = "benchmark";
+    private static final String ARGUMENT_LARGE_FILES = "benchmarkLargeFiles";
+
+    private final int warmupIterations;
+    private final int measuredIterations;
+    private final JSONArray results = new JSONArray();
+
+    /**
+     * 构造函数
+     *
+     * @param warmupIterations   预热次数，不计入结果
+     * @param measuredIterations 测量次数
+     */
+    public BenchmarkHarness(int warmupIterations, int measuredIterations) {
+        this.warmupIterations = warmupIterations;
+        this.measuredIterations = measuredIterations;
+    }
+
+    /**
+     * 是否启用了基准测试
+     */
+    public static boolean isEnabled() {
+        return Boolean.parseBoolean(getArguments().getString(ARGUMENT_ENABLED));
+    }
+
+    /**
+     * 是否包含1GB以上的文件，需要设备有足够的空闲空间
+     */
+    public static boolean includeLargeFiles() {
+        return Boolean.parseBoolean(getArguments().getString(ARGUMENT_LARGE_FILES));
+    }
+
+    private static Bundle getArguments() {
+        return InstrumentationRegistry.getArguments();
+    }
+
+    /**
+     * 测量一项任务
+     *
+     * @param name              测试名称
+     * @param params            测试参数，写入结果便于区分同名测试
+     * @param bytesPerIteration 每次执行传输的字节数，用于计算吞吐量，没有时传入0
+     * @param task              要测量的任务
+     * @return 测量结果
+     */
+    public Result measure(String name, Map<String, Object> params, long bytesPerIteration, Task task)
+            throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            task.run();
+        }
+        long[] nanos = new long[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            long start = System.nanoTime();
+            task.run();
+            nanos[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        Result result = new Result(name, params, bytesPerIteration, nanos);
+        results.put(result.toJson());
+        Log.i(TAG, result.toString());
+        return result;
+    }
+
+    /**
+     * 将全部结果写入JSON文件
+     *
+     * @param context 上下文
+     * @param suite   测试集名称，作为文件名
+     * @return 结果文件
+     */
+    public File writeResults(Context context, String suite) throws IOException, JSONException {
+        File base = context.getExternalFilesDir(null);
+        File directory = new File(base != null ? base : context.getFilesDir(), RESULT_DIRECTORY);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        JSONObject root = new JSONObject();
+        root.put("suite", suite);
+        root.put("device", Build.MANUFACTURER + " " + Build.MODEL);
+        root.put("sdk", Build.VERSION.SDK_INT);
+        root.put("timestamp", System.currentTimeMillis());
+        root.put("warmupIterations", warmupIterations);
+        root.put("measuredIterations", measuredIterations);
+        root.put("results", results);
+
+        File file = new File(directory, suite + ".json");
+        try (OutputStream output = new FileOutputStream(file)) {
+            output.write(root.toString(2).getBytes(StandardCharsets.UTF_8));
+        }
+        Log.i(TAG, "Results written to " + file);
+        return file;
+    }
+
+    /**
+     * 被测量的任务
+     */
+    public interface Task {
+        void run() throws Exception;
+    }
+
+    /**
+     * 一项测试的结果
+     */
+    public static class Result {
+        private final String name;
+        private final Map<String, Object> params;
+        private final long bytesPerIteration;
+        private final long[] nanos; // 已排序的每次耗时
+
+        Result(String name, Map<String, Object> params, long bytesPerIteration, long[] nanos) {
+            this.name = name;
+            this.params = params;
+            this.bytesPerIteration = bytesPerIteration;
+            this.nanos = nanos;
+        }
+
+        /**
+         * 获取耗时的中位数（纳秒）
+         */
+        public long getMedianNanos() {
+            return nanos[nanos.length / 2];
+        }
+
+        /**
+         * 获取耗时的P90（纳秒）
+         */
+        public long getP90Nanos() {
+            return nanos[Math.min(nanos.length - 1, (int) Math.ceil(nanos.length * 0.9) - 1)];
+        }
+
+        /**
+         * 按中位数耗时计算的吞吐量（字节/秒）
+         */
+        public long getBytesPerSecond() {
+            long median = getMedianNanos();
+            return median > 0 ? (long) (bytesPerIteration * 1e9 / median) : 0;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("params", new JSONObject(params));
+            json.put("bytesPerIteration", bytesPerIteration);
+            json.put("minNanos", nanos[0]);
+            json.put("medianNanos", getMedianNanos());
+            json.put("p90Nanos", getP90Nanos());
+            json.put("maxNanos", nanos[nanos.length - 1]);
+            json.put("bytesPerSecond", getBytesPerSecond());
+            JSONArray samples = new JSONArray();
+            for (long sample : nanos) {
+                samples.put(sample);
+            }
+            json.put("samplesNanos", samples);
+            return json;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s %s: median %.2f ms, p90 %.2f ms, %.1f MB/s",
+                    name, params, getMedianNanos() / 1e6, getP90Nanos() / 1e6,
+                    getBytesPerSecond() / (1024.0 * 1024));
+        }
+    }
+}
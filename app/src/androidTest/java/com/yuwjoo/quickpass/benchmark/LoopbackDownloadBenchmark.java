@@ -0,0 +1,218 @@
+package com.yuwjoo.quickpass.benchmark;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.yuwjoo.quickpass.server.FileShareHttpServer;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 回环下载基准测试
+ * 在设备上启动分享服务器，通过127.0.0.1下载不同大小的文件，测量服务器本身能达到的吞吐量，
+ * 排除Wi-Fi的影响。运行方式：
+ * ./gradlew :app:connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ * 加上 -Pandroid.testInstrumentationRunnerArguments.benchmarkLargeFiles=true 时包含1GB和4GB的文件
+ */
+@RunWith(AndroidJUnit4.class)
+public class LoopbackDownloadBenchmark {
+    private static final String TAG = "LoopbackDownloadBench";
+    private static final long KB = 1024;
+    private static final long MB = 1024 * KB;
+    private static final long GB = 1024 * MB;
+    private static final long[] SIZES = {KB, MB, 64 * MB, 512 * MB};
+    private static final long[] LARGE_SIZES = {GB, 4 * GB};
+    private static final int[] CLIENT_COUNTS = {1, 4, 16};
+    private static final long FAN_OUT_SIZE = 64 * MB; // 并发测试中每个客户端下载的文件大小
+    private static final int ZIP_ENTRIES = 32;
+    private static final long ZIP_ENTRY_SIZE = 4 * MB;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String BASE_URL = "http://127.0.0.1:" + FileShareHttpServer.PORT;
+
+    private static Context context;
+    private static File directory; // 测试文件目录
+    private static FileShareHttpServer server;
+    private static BenchmarkHarness harness;
+
+    @BeforeClass
+    public static void setUp() {
+        Assume.assumeTrue("Pass benchmark=true to run benchmarks", BenchmarkHarness.isEnabled());
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), "benchmark");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        server = new FileShareHttpServer(context);
+        server.start();
+        harness = new BenchmarkHarness(2, 5);
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        server.stop();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        harness.writeResults(context, "loopback-download");
+    }
+
+    /**
+     * 单个客户端按文件大小下载，走可定位文件的发送路径
+     */
+    @Test
+    public void downloadFile_bySize() throws Exception {
+        List<Long> sizes = new ArrayList<>();
+        for (long size : SIZES) {
+            sizes.add(size);
+        }
+        if (BenchmarkHarness.includeLargeFiles()) {
+            for (long size : LARGE_SIZES) {
+                sizes.add(size);
+            }
+        }
+        for (long size : sizes) {
+            if (directory.getUsableSpace() < size + 256 * MB) {
+                Log.w(TAG, "Skipping " + size + " bytes: not enough space");
+                continue;
+            }
+            File file = createFile("file-" + size + ".bin", size);
+            String id = server.addFile(Uri.fromFile(file));
+            String url = BASE_URL + "/downloadFile?id=" + id;
+            harness.measure("downloadFile", params("size", size), size, () -> download(url, size));
+            server.removeFile(id);
+            file.delete();
+        }
+    }
+
+    /**
+     * 多个客户端同时下载同一个文件，测量合计吞吐量
+     */
+    @Test
+    public void downloadFile_concurrentClients() throws Exception {
+        File file = createFile("fan-out.bin", FAN_OUT_SIZE);
+        String id = server.addFile(Uri.fromFile(file));
+        String url = BASE_URL + "/downloadFile?id=" + id;
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            for (int clients : CLIENT_COUNTS) {
+                harness.measure("downloadFile_concurrent", params("clients", clients),
+                        clients * FAN_OUT_SIZE, () -> {
+                            List<Future<Long>> downloads = new ArrayList<>();
+                            for (int i = 0; i < clients; i++) {
+                                downloads.add(executor.submit(() -> download(url, FAN_OUT_SIZE)));
+                            }
+                            for (Future<Long> download : downloads) {
+                                download.get();
+                            }
+                        });
+            }
+        } finally {
+            executor.shutdownNow();
+            server.removeFile(id);
+        }
+    }
+
+    /**
+     * 打包下载多个文件，走文件流读取和CRC32计算的路径
+     */
+    @Test
+    public void downloadSelection_zip() throws Exception {
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < ZIP_ENTRIES; i++) {
+            ids.add(server.addFile(Uri.fromFile(createFile("entry-" + i + ".bin", ZIP_ENTRY_SIZE))));
+        }
+        String url = BASE_URL + "/downloadSelection?ids=" + String.join(",", ids);
+        long length = download(url, -1);
+        try {
+            harness.measure("downloadSelection_zip", params("entries", ZIP_ENTRIES), length,
+                    () -> download(url, length));
+        } finally {
+            for (String id : ids) {
+                server.removeFile(id);
+            }
+        }
+    }
+
+    /**
+     * 下载并丢弃响应内容
+     *
+     * @param expected 预期的字节数，不检查时传入-1
+     * @return 读取的字节数
+     */
+    private static long download(String url, long expected) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            try (InputStream input = connection.getInputStream()) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    total += read;
+                }
+            }
+            if (expected >= 0) {
+                assertEquals(expected, total);
+            }
+            return total;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 创建测试文件
+     * 写入真实数据而不是稀疏文件，保证读取经过存储
+     */
+    private static File createFile(String name, long size) throws IOException {
+        File file = new File(directory, name);
+        byte[] chunk = new byte[(int) MB];
+        for (int i = 0; i < chunk.length; i++) {
+            chunk[i] = (byte) (i * 31);
+        }
+        try (OutputStream output = new FileOutputStream(file)) {
+            for (long written = 0; written < size; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        return file;
+    }
+
+    private static Map<String, Object> params(String key, Object value) {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put(key, value);
+        return Collections.unmodifiableMap(params);
+    }
+}
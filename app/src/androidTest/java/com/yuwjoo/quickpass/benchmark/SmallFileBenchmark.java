@@ -0,0 +1,229 @@
+package com.yuwjoo.quickpass.benchmark;
+
+import android.content.Context;
+import android.net.Uri;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.yuwjoo.quickpass.server.FileShareHttpServer;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 小文件下载基准测试
+ * 通过127.0.0.1依次下载500个4KB的文件，比较每个请求新建连接、复用持久连接和流水线发送请求时
+ * 每秒处理的请求数，衡量连接建立和每个请求的固定开销。运行方式：
+ * ./gradlew :app:connectedDebugAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true
+ */
+@RunWith(AndroidJUnit4.class)
+public class SmallFileBenchmark {
+    private static final String TAG = "SmallFileBenchmark";
+    private static final int FILE_COUNT = 500;
+    private static final int FILE_SIZE = 4 * 1024;
+    private static final String HOST = "127.0.0.1";
+    private static final String BASE_URL = "http://" + HOST + ":" + FileShareHttpServer.PORT;
+
+    private static Context context;
+    private static File directory; // 测试文件目录
+    private static FileShareHttpServer server;
+    private static BenchmarkHarness harness;
+    private static final List<String> ids = new ArrayList<>(); // 分享ID
+    private static final List<String> paths = new ArrayList<>(); // 每个文件的下载路径
+
+    @BeforeClass
+    public static void setUp() throws IOException {
+        Assume.assumeTrue("Pass benchmark=true to run benchmarks", BenchmarkHarness.isEnabled());
+        context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+        directory = new File(context.getCacheDir(), "benchmark-small");
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IllegalStateException("Cannot create " + directory);
+        }
+        server = new FileShareHttpServer(context);
+        server.start();
+        harness = new BenchmarkHarness(2, 5);
+
+        byte[] content = new byte[FILE_SIZE];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        for (int i = 0; i < FILE_COUNT; i++) {
+            File file = new File(directory, "small-" + i + ".bin");
+            try (OutputStream output = new FileOutputStream(file)) {
+                output.write(content);
+            }
+            String id = server.addFile(Uri.fromFile(file));
+            ids.add(id);
+            paths.add("/downloadFile?id=" + id);
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (server == null) {
+            return;
+        }
+        for (String id : ids) {
+            server.removeFile(id);
+        }
+        server.stop();
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        harness.writeResults(context, "small-file");
+    }
+
+    /**
+     * 每个请求新建一个连接，作为对照
+     */
+    @Test
+    public void downloadSmallFiles_connectionPerRequest() throws Exception {
+        measure("smallFiles_connectionPerRequest", () -> {
+            for (String path : paths) {
+                download(path, true);
+            }
+        });
+    }
+
+    /**
+     * 依次发送请求，由HttpURLConnection的连接池复用持久连接
+     */
+    @Test
+    public void downloadSmallFiles_keepAlive() throws Exception {
+        measure("smallFiles_keepAlive", () -> {
+            for (String path : paths) {
+                download(path, false);
+            }
+        });
+    }
+
+    /**
+     * 在一个连接上先发出全部请求再依次读取响应
+     */
+    @Test
+    public void downloadSmallFiles_pipelined() throws Exception {
+        StringBuilder requests = new StringBuilder();
+        for (String path : paths) {
+            requests.append("GET ").append(path).append(" HTTP/1.1\r\nHost: ").append(HOST).append("\r\n\r\n");
+        }
+        byte[] requestBytes = requests.toString().getBytes(StandardCharsets.US_ASCII);
+        measure("smallFiles_pipelined", () -> {
+            try (Socket socket = new Socket(HOST, FileShareHttpServer.PORT)) {
+                socket.setTcpNoDelay(true);
+                socket.getOutputStream().write(requestBytes);
+                socket.getOutputStream().flush();
+                InputStream input = new BufferedInputStream(socket.getInputStream());
+                for (int i = 0; i < FILE_COUNT; i++) {
+                    assertEquals(FILE_SIZE, readResponse(input));
+                }
+            }
+        });
+    }
+
+    /**
+     * 测量并记录每秒处理的请求数
+     */
+    private static void measure(String name, BenchmarkHarness.Task task) throws Exception {
+        Map<String, Object> params = new LinkedHashMap<>();
+        params.put("files", FILE_COUNT);
+        params.put("size", FILE_SIZE);
+        BenchmarkHarness.Result result = harness.measure(name, params, (long) FILE_COUNT * FILE_SIZE, task);
+        double requestsPerSecond = FILE_COUNT * 1e9 / Math.max(1, result.getMedianNanos());
+        Log.i(TAG, String.format(Locale.US, "%s: %.0f requests/s", name, requestsPerSecond));
+    }
+
+    /**
+     * 下载一个文件并丢弃内容
+     *
+     * @param close 是否要求服务器在响应后关闭连接
+     */
+    private static void download(String path, boolean close) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(BASE_URL + path).openConnection();
+        if (close) {
+            connection.setRequestProperty("Connection", "close");
+        }
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, connection.getResponseCode());
+            byte[] buffer = new byte[FILE_SIZE];
+            long total = 0;
+            try (InputStream input = connection.getInputStream()) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    total += read;
+                }
+            }
+            assertEquals(FILE_SIZE, total);
+        } finally {
+            if (close) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    /**
+     * 读取一个响应并跳过响应体
+     *
+     * @return 响应体的长度
+     */
+    private static long readResponse(InputStream input) throws IOException {
+        String statusLine = readLine(input);
+        assertTrue(statusLine, statusLine.startsWith("HTTP/1.1 200"));
+        long length = -1;
+        String line;
+        while (!(line = readLine(input)).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                length = Long.parseLong(line.substring(colon + 1).trim());
+            }
+        }
+        assertTrue("Missing Content-Length", length >= 0);
+        for (long skipped = 0; skipped < length; ) {
+            if (input.read() == -1) {
+                throw new IOException("Connection closed in response body");
+            }
+            skipped++;
+        }
+        return length;
+    }
+
+    private static String readLine(InputStream input) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = input.read()) != '\n') {
+            if (c == -1) {
+                throw new IOException("Connection closed in response headers");
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+}
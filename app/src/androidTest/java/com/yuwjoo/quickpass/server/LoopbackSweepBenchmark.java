@@ -0,0 +1,100 @@
+package com.yuwjoo.quickpass.server;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.yuwjoo.quickpass.benchmark.BenchmarkHarness;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 设备上的子网扫描基准测试
+ * 与JVM上的ProbeSweepBenchmark相同：扫描127.0.0.0/24，若干地址上有本地监听器模拟局域网中的设备，
+ * 用于比较设备与开发机上探测引擎的调度开销
+ */
+@RunWith(AndroidJUnit4.class)
+public class LoopbackSweepBenchmark {
+    private static final int TIMEOUT_MS = 300;
+    private static final int LISTENER_COUNT = 8;
+    private static final int[] WINDOWS = {32, 256};
+
+    private final List<ServerSocket> listeners = new ArrayList<>();
+    private final List<InetAddress> targets = new ArrayList<>();
+    private int port;
+
+    @Before
+    public void startListeners() throws IOException {
+        Assume.assumeTrue("Pass benchmark=true to run benchmarks", BenchmarkHarness.isEnabled());
+        for (int i = 1; i <= LISTENER_COUNT; i++) {
+            ServerSocket listener = new ServerSocket();
+            listener.setReuseAddress(true);
+            listener.bind(new InetSocketAddress(InetAddress.getByName("127.0.0." + (i * 30)), port), 128);
+            port = listener.getLocalPort();
+            listeners.add(listener);
+            Thread acceptor = new Thread(() -> drain(listener), "probe-listener-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (int i = 1; i <= 254; i++) {
+            targets.add(InetAddress.getByName("127.0.0." + i));
+        }
+    }
+
+    @After
+    public void stopListeners() throws IOException {
+        for (ServerSocket listener : listeners) {
+            listener.close();
+        }
+    }
+
+    @Test
+    public void sweep() throws Exception {
+        BenchmarkHarness harness = new BenchmarkHarness(3, 10);
+        for (int window : WINDOWS) {
+            Map<String, Object> params = Collections.singletonMap("window", window);
+            harness.measure("sweep", params, 0, () -> assertEquals(LISTENER_COUNT, sweep(window)));
+        }
+        harness.writeResults(InstrumentationRegistry.getInstrumentation().getTargetContext(), "loopback-sweep");
+    }
+
+    private int sweep(int window) throws IOException {
+        int[] reachable = new int[1];
+        new NioProbeEngine(port, TIMEOUT_MS, window).probe(targets, new NioProbeEngine.ProbeListener() {
+            @Override
+            public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                reachable[0]++;
+            }
+
+            @Override
+            public void onProbeFinished(int finished, int total) {
+            }
+        });
+        return reachable[0];
+    }
+
+    private static void drain(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try (Socket ignored = listener.accept()) {
+                // 探测只检查能否连接
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.yuwjoo.quickpass.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件读取基准测试
+ * 对比两种发送路径读取文件的开销：可定位的文件用FileChannel按位置读入复用的堆外缓冲区，
+ * 文件流用InputStream顺序读入堆内数组。文件在预热后位于页缓存中，测得的是系统调用和拷贝的开销。
+ * 更大的文件通过JMH参数指定，例如 -p size=4294967296
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileReadBenchmark {
+    private static final int DIRECT_BUFFER_SIZE = 256 * 1024; // 与FileTransfer的可定位文件读取大小一致
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024; // 与FileTransfer的文件流读取大小一致
+
+    @Param({"1024", "1048576", "67108864", "536870912"})
+    public long size;
+
+    private File file;
+    private FileInputStream channelInput;
+    private FileChannel channel;
+    private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(DIRECT_BUFFER_SIZE);
+    private final byte[] streamBuffer = new byte[STREAM_BUFFER_SIZE];
+
+    @Setup(Level.Trial)
+    public void createFile() throws IOException {
+        file = File.createTempFile("quickpass-read", ".bin");
+        file.deleteOnExit();
+        // 稀疏文件读出的内容是0，写入数据保证读取真正经过页缓存
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            byte[] chunk = new byte[1024 * 1024];
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (byte) i;
+            }
+            for (long written = 0; written < size; written += chunk.length) {
+                output.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+            }
+        }
+        channelInput = new FileInputStream(file);
+        channel = channelInput.getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() throws IOException {
+        channel.close();
+        channelInput.close();
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * 可定位文件的发送路径：按位置读取，不移动文件指针，缓冲区在各段之间复用
+     */
+    @Benchmark
+    public long channelRead() throws IOException {
+        long position = 0;
+        while (position < size) {
+            directBuffer.clear();
+            directBuffer.limit((int) Math.min(directBuffer.capacity(), size - position));
+            int read = channel.read(directBuffer, position);
+            if (read <= 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+            position += read;
+        }
+        return position;
+    }
+
+    /**
+     * 文件流的发送路径：每次传输重新打开文件流，顺序读入堆内数组
+     */
+    @Benchmark
+    public long streamCopy() throws IOException {
+        long total = 0;
+        try (InputStream input = new FileInputStream(file)) {
+            int read;
+            while ((read = input.read(streamBuffer)) != -1) {
+                total += read;
+            }
+        }
+        return total;
+    }
+}
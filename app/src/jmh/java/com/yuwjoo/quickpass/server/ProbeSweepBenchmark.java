@@ -0,0 +1,104 @@
+package com.yuwjoo.quickpass.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 子网扫描基准测试
+ * 用探测引擎扫描127.0.0.0/24，其中若干地址上有本地监听器模拟局域网中的设备，
+ * 其余地址立即拒绝连接。测得的是引擎本身的调度开销，不包含Wi-Fi上的往返和超时。
+ * 需要回环网段内的所有地址都可用（Linux默认如此）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ProbeSweepBenchmark {
+    private static final int TIMEOUT_MS = 300; // 与快速扫描模式相同量级的超时
+    private static final int LISTENER_COUNT = 8; // 模拟的设备数量
+
+    @Param({"32", "256"})
+    public int window;
+
+    private final List<ServerSocket> listeners = new ArrayList<>();
+    private final List<InetAddress> targets = new ArrayList<>();
+    private int port;
+
+    @Setup
+    public void startListeners() throws IOException {
+        for (int i = 1; i <= LISTENER_COUNT; i++) {
+            ServerSocket listener = new ServerSocket();
+            listener.setReuseAddress(true);
+            // 第一个监听器选择端口，其余设备在同一端口上监听
+            listener.bind(new InetSocketAddress(InetAddress.getByName("127.0.0." + (i * 30)), port), 128);
+            port = listener.getLocalPort();
+            listeners.add(listener);
+            Thread acceptor = new Thread(() -> drain(listener), "probe-listener-" + i);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+        for (int i = 1; i <= 254; i++) {
+            targets.add(InetAddress.getByName("127.0.0." + i));
+        }
+    }
+
+    /**
+     * 接受并立即关闭连接，避免等待队列被占满
+     */
+    private static void drain(ServerSocket listener) {
+        while (!listener.isClosed()) {
+            try (Socket ignored = listener.accept()) {
+                // 探测只检查能否连接
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    @TearDown
+    public void stopListeners() throws IOException {
+        for (ServerSocket listener : listeners) {
+            listener.close();
+        }
+    }
+
+    @Benchmark
+    public int sweep() throws IOException {
+        int[] reachable = new int[1];
+        new NioProbeEngine(port, TIMEOUT_MS, window).probe(targets, new NioProbeEngine.ProbeListener() {
+            @Override
+            public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                reachable[0]++;
+            }
+
+            @Override
+            public void onProbeFinished(int finished, int total) {
+            }
+        });
+        if (reachable[0] != LISTENER_COUNT) {
+            throw new IllegalStateException("Found " + reachable[0] + " of " + LISTENER_COUNT + " listeners");
+        }
+        return reachable[0];
+    }
+}
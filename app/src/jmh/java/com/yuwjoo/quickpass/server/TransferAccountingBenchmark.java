@@ -0,0 +1,99 @@
+package com.yuwjoo.quickpass.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调度与统计开销基准测试
+ * 多个客户端的下载同时进行时，测量调度器每一轮分配额度的CPU开销，
+ * 每次分配都经过与真实传输相同的统计调用，但不读取文件也不写套接字
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferAccountingBenchmark {
+    private static final int GRANT_SIZE = 64 * 1024; // 与文件流单次读取大小一致
+
+    @Param({"1", "16"})
+    public int clients;
+
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private TransferScheduler scheduler;
+
+    @Setup
+    public void setUp() {
+        scheduler = new TransferScheduler((runnable, delayMillis) -> tasks.addLast(runnable),
+                System::nanoTime, 64, 64);
+        // 不执行采样任务，只测量传输过程中的统计调用
+        TransferMetrics metrics = new TransferMetrics((runnable, delayMillis) -> {
+        }, System::nanoTime, () -> -1);
+        for (int i = 0; i < clients; i++) {
+            new EndlessTransfer(scheduler, metrics.begin("share-" + i, -1)).submit("10.0.0." + i);
+        }
+    }
+
+    /**
+     * 执行一轮调度，每轮最多分配4MB
+     */
+    @Benchmark
+    public int dispatchPass() {
+        tasks.pollFirst().run();
+        return tasks.size();
+    }
+
+    /**
+     * 永不结束的传输，套接字总是可写
+     */
+    private static class EndlessTransfer implements TransferScheduler.Transfer {
+        private final TransferScheduler scheduler;
+        private final TransferMetrics.Tracker tracker;
+        private TransferScheduler.Ticket ticket;
+
+        EndlessTransfer(TransferScheduler scheduler, TransferMetrics.Tracker tracker) {
+            this.scheduler = scheduler;
+            this.tracker = tracker;
+        }
+
+        void submit(String clientId) {
+            scheduler.submit(clientId, Long.MAX_VALUE, this);
+        }
+
+        @Override
+        public void onStart(TransferScheduler.Ticket ticket) {
+            this.ticket = ticket;
+            tracker.onWriteRequested();
+            scheduler.requestWrite(ticket);
+        }
+
+        @Override
+        public long onGrant(long budget) {
+            tracker.onGranted();
+            tracker.onReadStart();
+            long produced = Math.min(budget, GRANT_SIZE);
+            tracker.onRead(produced);
+            tracker.onWriteRequested();
+            scheduler.requestWrite(ticket);
+            return produced;
+        }
+
+        @Override
+        public void onRejected(int retryAfterSeconds) {
+            throw new IllegalStateException("Rejected");
+        }
+    }
+}
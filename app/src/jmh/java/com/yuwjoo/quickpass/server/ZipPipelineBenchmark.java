@@ -0,0 +1,114 @@
+package com.yuwjoo.quickpass.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * ZIP与哈希计算基准测试
+ * 打包下载时每段文件内容都要计算CRC32，ZIP头的生成与条目数量成正比；
+ * SHA-256用于衡量按内容生成校验值的开销。单段大小与ZipTransfer的读取大小一致
+ */
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZipPipelineBenchmark {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * 打包的条目
+     */
+    @State(Scope.Benchmark)
+    public static class Entries {
+        @Param({"10", "1000"})
+        public int entryCount;
+
+        final List<String> names = new ArrayList<>();
+        final List<Long> sizes = new ArrayList<>();
+        final List<Long> times = new ArrayList<>();
+
+        @Setup
+        public void setUp() {
+            for (int i = 0; i < entryCount; i++) {
+                names.add("IMG_" + i + ".jpg");
+                sizes.add(4L * 1024 * 1024);
+                times.add(1_700_000_000_000L + i * 1000L);
+            }
+        }
+    }
+
+    /**
+     * 一段文件内容和复用的校验器
+     */
+    @State(Scope.Thread)
+    public static class Chunk {
+        final byte[] data = new byte[CHUNK_SIZE];
+        final CRC32 crc = new CRC32();
+        MessageDigest sha256;
+
+        @Setup
+        public void setUp() throws NoSuchAlgorithmException {
+            new Random(42).nextBytes(data);
+            sha256 = MessageDigest.getInstance("SHA-256");
+        }
+    }
+
+    /**
+     * 生成全部ZIP头和结束记录
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void zipHeaders(Entries entries, Blackhole blackhole) {
+        ZipStreamWriter writer = new ZipStreamWriter(entries.names, entries.sizes, entries.times);
+        int count = entries.entryCount;
+        blackhole.consume(writer.computeLength());
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(writer.localHeader(i));
+            blackhole.consume(writer.dataDescriptor(i, 0, entries.sizes.get(i)));
+        }
+        for (int i = 0; i < count; i++) {
+            blackhole.consume(writer.centralHeader(i));
+        }
+        blackhole.consume(writer.endRecords());
+    }
+
+    /**
+     * 一段文件内容的CRC32，吞吐量乘以64KB即为字节速率
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public long crc32Chunk(Chunk chunk) {
+        chunk.crc.update(chunk.data, 0, chunk.data.length);
+        return chunk.crc.getValue();
+    }
+
+    /**
+     * 一段文件内容的SHA-256，吞吐量乘以64KB即为字节速率
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    public void sha256Chunk(Chunk chunk, Blackhole blackhole) {
+        chunk.sha256.update(chunk.data, 0, chunk.data.length);
+        blackhole.consume(chunk.sha256);
+    }
+}
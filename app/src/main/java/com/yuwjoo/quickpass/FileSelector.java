@@ -1,15 +1,20 @@
 package com.yuwjoo.quickpass;
 
 import android.app.Activity;
+import android.content.ClipData;
 import android.content.Intent;
 import android.net.Uri;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * 文件选择器类
- * 用于处理文件选择相关的逻辑
+ * 用于处理文件选择相关的逻辑，支持一次选择多个文件或整个目录
  */
 public class FileSelector {
     private static final int REQUEST_CODE_PICK_FILE = 1001;
+    private static final int REQUEST_CODE_PICK_DIRECTORY = 1003;
     private final Activity activity;
 
     /**
@@ -22,28 +27,86 @@ public class FileSelector {
 
     /**
      * 打开文件选择器
-     * 使用系统的Storage Access Framework来选择文件
+     * 使用系统的Storage Access Framework来选择文件，可以多选
      */
     public void openFilePicker() {
         Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
         intent.addCategory(Intent.CATEGORY_OPENABLE);
         intent.setType("*/*");
+        intent.putExtra(Intent.EXTRA_ALLOW_MULTIPLE, true);
         activity.startActivityForResult(intent, REQUEST_CODE_PICK_FILE);
     }
 
+    /**
+     * 打开目录选择器
+     * 选择的目录中的全部文件都会被分享
+     */
+    public void openDirectoryPicker() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+        intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        activity.startActivityForResult(intent, REQUEST_CODE_PICK_DIRECTORY);
+    }
+
     /**
      * 处理文件选择结果
      * @param requestCode 请求码
      * @param resultCode 结果码
      * @param data 返回的数据
-     * @return 选中文件的Uri，如果选择被取消则返回null
+     * @return 选择结果，如果选择被取消或不是本选择器的请求则返回null
      */
-    public Uri handleActivityResult(int requestCode, int resultCode, Intent data) {
-        if (requestCode == REQUEST_CODE_PICK_FILE && resultCode == Activity.RESULT_OK) {
-            if (data != null) {
-                return data.getData();
+    public Selection handleActivityResult(int requestCode, int resultCode, Intent data) {
+        if (resultCode != Activity.RESULT_OK || data == null) {
+            return null;
+        }
+        if (requestCode == REQUEST_CODE_PICK_DIRECTORY) {
+            return data.getData() != null ? new Selection(new ArrayList<>(), data.getData()) : null;
+        }
+        if (requestCode != REQUEST_CODE_PICK_FILE) {
+            return null;
+        }
+        // 多选时Uri在ClipData中，单选时在data中
+        List<Uri> uris = new ArrayList<>();
+        ClipData clipData = data.getClipData();
+        if (clipData != null) {
+            for (int i = 0; i < clipData.getItemCount(); i++) {
+                Uri uri = clipData.getItemAt(i).getUri();
+                if (uri != null) {
+                    uris.add(uri);
+                }
             }
+        } else if (data.getData() != null) {
+            uris.add(data.getData());
+        }
+        return uris.isEmpty() ? null : new Selection(uris, null);
+    }
+
+    /**
+     * 选择结果
+     * 选择文件时包含文件Uri列表，选择目录时包含目录Uri
+     */
+    public static final class Selection {
+        private final List<Uri> files;
+        private final Uri directory;
+
+        Selection(List<Uri> files, Uri directory) {
+            this.files = files;
+            this.directory = directory;
+        }
+
+        /**
+         * 获取选择的文件
+         * @return 文件Uri列表，选择目录时为空
+         */
+        public List<Uri> getFiles() {
+            return files;
+        }
+
+        /**
+         * 获取选择的目录
+         * @return 目录Uri，选择文件时返回null
+         */
+        public Uri getDirectory() {
+            return directory;
         }
-        return null;
     }
-}
\ No newline at end of file
+}
@@ -1,10 +1,11 @@
 package com.yuwjoo.quickpass;
 
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.content.ServiceConnection;
 import android.os.Bundle;
-import android.provider.OpenableColumns;
+import android.os.IBinder;
 import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
@@ -21,7 +22,11 @@ import com.yuwjoo.quickpass.adapter.DeviceAdapter;
 import com.yuwjoo.quickpass.adapter.FileAdapter;
 import com.yuwjoo.quickpass.model.FileItem;
 import com.yuwjoo.quickpass.server.DeviceScanner;
+import com.yuwjoo.quickpass.server.DiscoveryProtocol;
+import com.yuwjoo.quickpass.server.FileMetadata;
 import com.yuwjoo.quickpass.server.FileShareHttpServer;
+import com.yuwjoo.quickpass.server.ShareEntry;
+import com.yuwjoo.quickpass.service.FileShareService;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -32,21 +37,58 @@ import java.util.List;
  */
 public class FileShareActivity extends AppCompatActivity implements FileAdapter.OnFileRemovedListener, DeviceAdapter.OnDeviceClickListener {
 
-    private static final int REQUEST_CODE_PICK_FILE = 1001;
-
     private RecyclerView rvSelectedFiles;
     private RecyclerView rvDevices;
     private Button btnSelectFiles;
+    private Button btnSelectFolder;
     private Button btnScanDevices;
 
     private FileAdapter fileAdapter;
     private DeviceAdapter deviceAdapter;
-    private FileShareHttpServer fileShareHttpServer;
+    private FileShareHttpServer fileShareHttpServer; // 由前台服务持有，绑定成功后可用
+    private FileShareService fileShareService;
     private DeviceScanner deviceScanner;
+    private FileSelector fileSelector;
 
     private List<FileItem> selectedFiles;
     private List<String> discoveredDevices;
 
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            FileShareService.LocalBinder binder = (FileShareService.LocalBinder) service;
+            fileShareHttpServer = binder.getServer();
+            fileShareService = binder.getService();
+            // 上次的分享在后台恢复，恢复完成后重新加载列表
+            fileShareHttpServer.setOnSharesRestoredListener(() -> runOnUiThread(() -> {
+                if (!isDestroyed() && fileAdapter != null) {
+                    reloadFileList();
+                }
+            }));
+            setupFileList();
+            // 进度在服务器线程中回调，切换到主线程刷新列表
+            fileShareHttpServer.setOnTransferProgressListener(progress -> runOnUiThread(() -> {
+                if (fileAdapter != null) {
+                    fileAdapter.updateProgress(progress);
+                }
+            }));
+            // 过期的分享在回收线程中回调，切换到主线程从列表移除
+            fileShareHttpServer.setOnShareExpiredListener(entry -> runOnUiThread(() -> {
+                if (!isDestroyed() && fileAdapter != null) {
+                    fileAdapter.removeItem(entry.getId());
+                }
+            }));
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            fileShareHttpServer = null;
+            fileShareService = null;
+            btnSelectFiles.setEnabled(false);
+            btnSelectFolder.setEnabled(false);
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -64,15 +106,18 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
         selectedFiles = new ArrayList<>();
         discoveredDevices = new ArrayList<>();
 
-        // 初始化服务
-        fileShareHttpServer = new FileShareHttpServer(this);
-        fileShareHttpServer.start();
-        deviceScanner = new DeviceScanner(this);
-
         // 初始化视图
         initViews();
         setupRecyclerViews();
         setupListeners();
+
+        // 初始化服务，文件列表在绑定文件分享服务后设置
+        deviceScanner = new DeviceScanner(this);
+        fileSelector = new FileSelector(this);
+        btnSelectFiles.setEnabled(false);
+        btnSelectFolder.setEnabled(false);
+        FileShareService.start(this);
+        bindService(new Intent(this, FileShareService.class), serviceConnection, Context.BIND_AUTO_CREATE);
     }
 
     /**
@@ -82,6 +127,7 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
         rvSelectedFiles = findViewById(R.id.rvSelectedFiles);
         rvDevices = findViewById(R.id.rvDevices);
         btnSelectFiles = findViewById(R.id.btnSelectFiles);
+        btnSelectFolder = findViewById(R.id.btnSelectFolder);
         btnScanDevices = findViewById(R.id.btnScanDevices);
     }
 
@@ -89,10 +135,7 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
      * 设置RecyclerView
      */
     private void setupRecyclerViews() {
-        // 设置文件列表
-        fileAdapter = new FileAdapter(this, selectedFiles, fileShareHttpServer, this);
         rvSelectedFiles.setLayoutManager(new LinearLayoutManager(this));
-        rvSelectedFiles.setAdapter(fileAdapter);
 
         // 设置设备列表
         deviceAdapter = new DeviceAdapter(this, discoveredDevices, this);
@@ -100,27 +143,53 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
         rvDevices.setAdapter(deviceAdapter);
     }
 
+    /**
+     * 设置文件列表
+     * 服务器比活动存活得更久，重新创建活动时从服务器恢复已分享的文件
+     */
+    private void setupFileList() {
+        loadShareEntries();
+        fileAdapter = new FileAdapter(this, selectedFiles, fileShareHttpServer, this);
+        rvSelectedFiles.setAdapter(fileAdapter);
+        btnSelectFiles.setEnabled(true);
+        btnSelectFolder.setEnabled(true);
+    }
+
+    /**
+     * 重新加载文件列表
+     */
+    private void reloadFileList() {
+        if (fileShareHttpServer == null) {
+            return;
+        }
+        loadShareEntries();
+        fileAdapter.notifyDataSetChanged();
+    }
+
+    /**
+     * 从服务器读取已分享的文件
+     */
+    private void loadShareEntries() {
+        selectedFiles.clear();
+        for (ShareEntry entry : fileShareHttpServer.getShareEntries()) {
+            selectedFiles.add(toFileItem(entry));
+        }
+    }
+
     /**
      * 设置监听器
      */
     private void setupListeners() {
         // 选择文件按钮点击事件
-        btnSelectFiles.setOnClickListener(v -> openFilePicker());
+        btnSelectFiles.setOnClickListener(v -> fileSelector.openFilePicker());
+
+        // 选择文件夹按钮点击事件
+        btnSelectFolder.setOnClickListener(v -> fileSelector.openDirectoryPicker());
 
         // 扫描设备按钮点击事件
         btnScanDevices.setOnClickListener(v -> scanDevices());
     }
 
-    /**
-     * 打开文件选择器
-     */
-    private void openFilePicker() {
-        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
-        intent.addCategory(Intent.CATEGORY_OPENABLE);
-        intent.setType("*/*");
-        startActivityForResult(intent, REQUEST_CODE_PICK_FILE);
-    }
-
     /**
      * 扫描内网设备
      */
@@ -128,20 +197,40 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
         btnScanDevices.setEnabled(false);
         btnScanDevices.setText(getString(R.string.scanning));
 
-        deviceScanner.scanDevices(devices -> {
-            runOnUiThread(() -> {
-                discoveredDevices.clear();
-                discoveredDevices.addAll(devices);
-                deviceAdapter.notifyDataSetChanged();
-                btnScanDevices.setEnabled(true);
-                btnScanDevices.setText(getString(R.string.scan_devices));
-
-                if (devices.isEmpty()) {
-                    Toast.makeText(FileShareActivity.this, getString(R.string.no_devices_found), Toast.LENGTH_SHORT).show();
-                } else {
-                    Toast.makeText(FileShareActivity.this, getString(R.string.devices_found, devices.size()), Toast.LENGTH_SHORT).show();
-                }
-            });
+        deviceScanner.scanDevices(new DeviceScanner.ScanListener() {
+            @Override
+            public void onDeviceFound(String device) {
+                runOnUiThread(() -> deviceAdapter.addDevice(device));
+            }
+
+            @Override
+            public void onDeviceLost(String device) {
+                runOnUiThread(() -> deviceAdapter.removeDevice(device));
+            }
+
+            @Override
+            public void onScanProgress(int completed, int total) {
+                runOnUiThread(() -> {
+                    // 扫描结束后可能还有进度回调排在后面
+                    if (!btnScanDevices.isEnabled()) {
+                        btnScanDevices.setText(getString(R.string.scanning_progress, completed * 100 / total));
+                    }
+                });
+            }
+
+            @Override
+            public void onScanComplete(List<String> devices) {
+                runOnUiThread(() -> {
+                    btnScanDevices.setEnabled(true);
+                    btnScanDevices.setText(getString(R.string.scan_devices));
+
+                    if (devices.isEmpty()) {
+                        Toast.makeText(FileShareActivity.this, getString(R.string.no_devices_found), Toast.LENGTH_SHORT).show();
+                    } else {
+                        Toast.makeText(FileShareActivity.this, getString(R.string.devices_found, devices.size()), Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
         });
     }
 
@@ -151,76 +240,54 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        if (requestCode == REQUEST_CODE_PICK_FILE && resultCode == RESULT_OK) {
-            if (data != null) {
-                Uri uri = data.getData();
-                if (uri != null) {
-                    // 获取文件信息
-                    String fileName = getFileName(uri);
-                    long fileSize = getFileSize(uri);
-
-                    // 创建文件项
-                    FileItem fileItem = new FileItem(fileName, fileSize, uri);
-
-                    // 添加到服务器
-                    String fileId = fileShareHttpServer.addFile(uri);
-                    fileItem.setShareId(fileId);
-
-                    // 添加到列表
-                    selectedFiles.add(fileItem);
-                    fileAdapter.notifyItemInserted(selectedFiles.size() - 1);
-                }
-            }
+        FileSelector.Selection selection = fileSelector.handleActivityResult(requestCode, resultCode, data);
+        if (selection == null || fileShareHttpServer == null) {
+            return;
         }
-    }
-
-    /**
-     * 获取文件名
-     * @param uri 文件URI
-     * @return 文件名
-     */
-    private String getFileName(Uri uri) {
-        String result = null;
-        if (uri.getScheme().equals("content")) {
-            try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-                if (cursor != null && cursor.moveToFirst()) {
-                    int nameIndex = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
-                    if (nameIndex != -1) {
-                        result = cursor.getString(nameIndex);
-                    }
+        // 服务器在后台解析元数据，每批文件一次性插入列表
+        int[] sessionOnly = new int[1]; // 重启后不会保留的分享数，只在导入线程中访问
+        FileShareHttpServer.OnFilesAddedListener listener = (entries, finished) -> {
+            List<FileItem> items = new ArrayList<>(entries.size());
+            for (ShareEntry entry : entries) {
+                items.add(toFileItem(entry));
+                if (!entry.isPersistent()) {
+                    sessionOnly[0]++;
                 }
-            } catch (Exception e) {
-                e.printStackTrace();
             }
-        }
-        if (result == null) {
-            result = uri.getPath();
-            int cut = result.lastIndexOf('/');
-            if (cut != -1) {
-                result = result.substring(cut + 1);
+            int notKept = finished ? sessionOnly[0] : 0;
+            if (items.isEmpty() && notKept == 0) {
+                return;
             }
+            runOnUiThread(() -> {
+                if (isDestroyed() || fileAdapter == null) {
+                    return;
+                }
+                if (!items.isEmpty()) {
+                    fileAdapter.addItems(items);
+                }
+                if (notKept > 0) {
+                    Toast.makeText(this, getString(R.string.shares_not_kept, notKept), Toast.LENGTH_LONG).show();
+                }
+            });
+        };
+        if (selection.getDirectory() != null) {
+            fileShareHttpServer.addDirectory(selection.getDirectory(), listener);
+        } else {
+            fileShareHttpServer.addFiles(selection.getFiles(), listener);
         }
-        return result;
     }
 
     /**
-     * 获取文件大小
-     * @param uri 文件URI
-     * @return 文件大小（字节）
+     * 根据分享条目创建文件项
+     * @param entry 分享条目
+     * @return 文件项
      */
-    private long getFileSize(Uri uri) {
-        long size = 0;
-        try (Cursor cursor = getContentResolver().query(uri, null, null, null, null)) {
-            if (cursor != null && cursor.moveToFirst()) {
-                int sizeIndex = cursor.getColumnIndex(OpenableColumns.SIZE);
-                if (sizeIndex != -1) {
-                    size = cursor.getLong(sizeIndex);
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return size;
+    private static FileItem toFileItem(ShareEntry entry) {
+        FileMetadata metadata = entry.getMetadata();
+        FileItem fileItem = new FileItem(metadata.getName(), Math.max(0, metadata.getSize()), entry.getUri());
+        fileItem.setShareId(entry.getId());
+        fileItem.setDirectory(entry.isDirectory());
+        return fileItem;
     }
 
     /**
@@ -238,34 +305,38 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
      */
     @Override
     public void onDeviceClick(String deviceIp) {
-        if (selectedFiles.isEmpty()) {
+        if (selectedFiles.isEmpty() || fileShareHttpServer == null || fileShareService == null) {
             Toast.makeText(this, getString(R.string.no_files_selected), Toast.LENGTH_SHORT).show();
             return;
         }
 
-        // 显示分享进度提示
-        Toast.makeText(this, getString(R.string.sending_files, deviceIp), Toast.LENGTH_SHORT).show();
-        
-        // 创建分享链接列表
-        StringBuilder shareLinksBuilder = new StringBuilder();
+        List<ShareEntry> entries = new ArrayList<>();
         for (FileItem fileItem : selectedFiles) {
-            String shareLink = fileShareHttpServer.getShareLink(fileItem.getShareId());
-            if (shareLink != null) {
-                shareLinksBuilder.append(fileItem.getFileName())
-                        .append(": ")
-                        .append(shareLink)
-                        .append("\n");
+            ShareEntry entry = fileShareHttpServer.getShareEntry(fileItem.getShareId());
+            // 目录只能由对方浏览下载，不能上传
+            if (entry != null && !entry.isDirectory()) {
+                entries.add(entry);
             }
         }
-        
-        // 创建分享意图
-        Intent shareIntent = new Intent(Intent.ACTION_SEND);
-        shareIntent.setType("text/plain");
-        shareIntent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.share_file));
-        shareIntent.putExtra(Intent.EXTRA_TEXT, shareLinksBuilder.toString());
-        
-        // 启动分享活动
-        startActivity(Intent.createChooser(shareIntent, getString(R.string.share_file)));
+        if (entries.isEmpty()) {
+            Toast.makeText(this, getString(R.string.no_files_selected), Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        // 显示发送进度提示
+        Toast.makeText(this, getString(R.string.sending_files, deviceIp), Toast.LENGTH_SHORT).show();
+
+        // 由前台服务上传文件，离开页面后发送继续进行
+        DiscoveryProtocol.Announcement info = deviceScanner.getDeviceInfo(deviceIp);
+        int port = info != null ? info.getPort() : FileShareHttpServer.PORT;
+        fileShareService.sendFiles("http://" + deviceIp + ":" + port, entries, (sent, failed) -> {
+            if (isDestroyed()) {
+                return;
+            }
+            String message = failed == 0 ? getString(R.string.send_complete, sent)
+                    : getString(R.string.send_failed, failed);
+            Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
+        });
     }
 
     /**
@@ -274,9 +345,15 @@ public class FileShareActivity extends AppCompatActivity implements FileAdapter.
     @Override
     protected void onDestroy() {
         super.onDestroy();
+        // 只解绑服务，进行中的传输继续
         if (fileShareHttpServer != null) {
-            fileShareHttpServer.stop();
+            fileShareHttpServer.setOnTransferProgressListener(null);
+            fileShareHttpServer.setOnShareExpiredListener(null);
+            fileShareHttpServer.setOnSharesRestoredListener(null);
         }
+        unbindService(serviceConnection);
+        fileShareHttpServer = null;
+        fileShareService = null;
         if (deviceScanner != null) {
             deviceScanner.shutdown();
         }
@@ -1,11 +1,16 @@
 package com.yuwjoo.quickpass;
 
+import android.Manifest;
 import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.Build;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.widget.Button;
 import android.widget.EditText;
 import android.widget.Toast;
@@ -17,6 +22,11 @@ import androidx.core.view.ViewCompat;
 import androidx.core.view.WindowInsetsCompat;
 
 import com.yuwjoo.quickpass.server.FileShareHttpServer;
+import com.yuwjoo.quickpass.server.ShareEntry;
+import com.yuwjoo.quickpass.service.FileShareService;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * 主活动类
@@ -24,10 +34,24 @@ import com.yuwjoo.quickpass.server.FileShareHttpServer;
  */
 public class MainActivity extends AppCompatActivity {
 
+    private static final int REQUEST_CODE_NOTIFICATIONS = 1002;
+
     private FileSelector fileSelector;
-    private FileShareHttpServer fileShareHttpServer;
+    private FileShareHttpServer fileShareHttpServer; // 由前台服务持有，绑定成功后可用
     private EditText shareUrlEditText;
 
+    private final ServiceConnection serviceConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            fileShareHttpServer = ((FileShareService.LocalBinder) service).getServer();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            fileShareHttpServer = null;
+        }
+    };
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -44,9 +68,10 @@ public class MainActivity extends AppCompatActivity {
         // 初始化文件选择管理器
         fileSelector = new FileSelector(this);
 
-        // 初始化文件分享HTTP服务器
-        fileShareHttpServer = new FileShareHttpServer(this);
-        fileShareHttpServer.start();
+        // 启动并绑定文件分享服务，服务器在活动销毁后继续运行
+        requestNotificationPermission();
+        FileShareService.start(this);
+        bindService(new Intent(this, FileShareService.class), serviceConnection, Context.BIND_AUTO_CREATE);
 
         // 初始化UI组件
         shareUrlEditText = findViewById(R.id.shareUrlEditText);
@@ -67,24 +92,60 @@ public class MainActivity extends AppCompatActivity {
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
         super.onActivityResult(requestCode, resultCode, data);
-        Uri uri = fileSelector.handleActivityResult(requestCode, resultCode, data);
-        if (uri != null) {
-            // 添加文件到分享列表
-            String fileId = fileShareHttpServer.addFile(uri);
-            // 显示分享链接
-            shareUrlEditText.setText(fileShareHttpServer.getShareLink(fileId));
-            Toast.makeText(this, "分享链接已生成", Toast.LENGTH_SHORT).show();
+        FileSelector.Selection selection = fileSelector.handleActivityResult(requestCode, resultCode, data);
+        if (selection == null || fileShareHttpServer == null) {
+            return;
+        }
+        // 在后台添加文件到分享列表，全部添加后显示分享链接
+        FileShareHttpServer server = fileShareHttpServer;
+        List<ShareEntry> added = new ArrayList<>();
+        FileShareHttpServer.OnFilesAddedListener listener = (entries, finished) -> {
+            added.addAll(entries);
+            if (finished) {
+                runOnUiThread(() -> showShareLink(server, added));
+            }
+        };
+        if (selection.getDirectory() != null) {
+            server.addDirectory(selection.getDirectory(), listener);
+        } else {
+            server.addFiles(selection.getFiles(), listener);
+        }
+    }
+
+    /**
+     * 显示分享链接
+     * 只有一个文件时显示该文件的链接，多个文件时显示打包下载的链接
+     * @param server 文件分享服务器
+     * @param added 新添加的分享条目
+     */
+    private void showShareLink(FileShareHttpServer server, List<ShareEntry> added) {
+        if (isDestroyed() || added.isEmpty()) {
+            return;
         }
+        shareUrlEditText.setText(added.size() == 1
+                ? server.getShareLink(added.get(0).getId()) : server.getDownloadAllLink());
+        Toast.makeText(this, "分享链接已生成", Toast.LENGTH_SHORT).show();
     }
 
     /**
-     * 活动销毁时停止文件分享服务
+     * 活动销毁时解绑文件分享服务
+     * 服务继续运行，进行中的传输不受影响
      */
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (fileShareHttpServer != null) {
-            fileShareHttpServer.stop();
+        unbindService(serviceConnection);
+        fileShareHttpServer = null;
+    }
+
+    /**
+     * 请求通知权限
+     * Android 13及以上需要该权限才能显示前台服务通知
+     */
+    private void requestNotificationPermission() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU
+                && checkSelfPermission(Manifest.permission.POST_NOTIFICATIONS) != PackageManager.PERMISSION_GRANTED) {
+            requestPermissions(new String[]{Manifest.permission.POST_NOTIFICATIONS}, REQUEST_CODE_NOTIFICATIONS);
         }
     }
 
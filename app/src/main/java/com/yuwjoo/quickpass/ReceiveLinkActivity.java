@@ -0,0 +1,92 @@
+package com.yuwjoo.quickpass;
+
+import android.app.Activity;
+import android.app.AlertDialog;
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.Log;
+import android.widget.Toast;
+
+import com.yuwjoo.quickpass.server.LanAddress;
+import com.yuwjoo.quickpass.server.SegmentedDownloader;
+import com.yuwjoo.quickpass.service.FileShareService;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 分享链接接收活动
+ * 打开其他QuickPass设备的分享链接时启动。只接受局域网地址的链接，
+ * 先查询文件名，由用户确认对方地址和文件后交给前台服务分段下载到接收目录
+ */
+public class ReceiveLinkActivity extends Activity {
+    private static final String TAG = "ReceiveLinkActivity";
+    private static final ExecutorService executor = Executors.newCachedThreadPool(); // 在后台线程查询文件名
+
+    private AlertDialog dialog;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        Uri link = getIntent().getData();
+        if (link == null || !"http".equals(link.getScheme()) || !LanAddress.isLocal(link.getHost())) {
+            Log.w(TAG, "Rejected share link " + link);
+            Toast.makeText(this, R.string.receive_rejected, Toast.LENGTH_SHORT).show();
+            finish();
+            return;
+        }
+        String url = link.toString();
+        executor.execute(() -> {
+            try {
+                String fileName = SegmentedDownloader.queryFileName(url);
+                runOnUiThread(() -> confirm(link.getHost(), fileName, url));
+            } catch (IOException e) {
+                Log.e(TAG, "Error querying " + url, e);
+                runOnUiThread(() -> {
+                    Toast.makeText(this, R.string.receive_failed, Toast.LENGTH_SHORT).show();
+                    finish();
+                });
+            }
+        });
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (dialog != null) {
+            dialog.dismiss();
+        }
+    }
+
+    /**
+     * 请用户确认下载
+     * @param host 对方地址
+     * @param fileName 文件名，对方未给出时为null
+     * @param url 分享链接
+     */
+    private void confirm(String host, String fileName, String url) {
+        if (isFinishing() || isDestroyed()) {
+            return;
+        }
+        String name = fileName != null ? fileName : getString(R.string.unknown_file);
+        dialog = new AlertDialog.Builder(this)
+                .setTitle(R.string.receive_file)
+                .setMessage(getString(R.string.receive_confirm, name, host))
+                .setPositiveButton(R.string.download, (d, which) -> startDownload(host, url))
+                .setNegativeButton(android.R.string.cancel, null)
+                .setOnDismissListener(d -> finish())
+                .create();
+        dialog.show();
+    }
+
+    /**
+     * 交给前台服务下载，活动结束后下载继续进行，完成后由服务通知用户
+     * @param host 对方地址
+     * @param url 分享链接
+     */
+    private void startDownload(String host, String url) {
+        Toast.makeText(this, getString(R.string.receiving_file, host), Toast.LENGTH_SHORT).show();
+        FileShareService.receive(this, url);
+    }
+}
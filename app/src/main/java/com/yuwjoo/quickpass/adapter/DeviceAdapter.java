@@ -71,6 +71,32 @@ public class DeviceAdapter extends RecyclerView.Adapter<DeviceAdapter.DeviceView
         notifyDataSetChanged();
     }
 
+    /**
+     * 添加设备
+     * 设备已在列表中时不做处理
+     * @param deviceIp 设备IP地址
+     */
+    public void addDevice(String deviceIp) {
+        if (deviceIps.contains(deviceIp)) {
+            return;
+        }
+        deviceIps.add(deviceIp);
+        notifyItemInserted(deviceIps.size() - 1);
+    }
+
+    /**
+     * 移除设备
+     * @param deviceIp 设备IP地址
+     */
+    public void removeDevice(String deviceIp) {
+        int position = deviceIps.indexOf(deviceIp);
+        if (position == -1) {
+            return;
+        }
+        deviceIps.remove(position);
+        notifyItemRemoved(position);
+    }
+
     /**
      * 设备视图持有者
      */
@@ -13,6 +13,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.ProgressBar;
 import android.widget.TextView;
 import android.widget.Toast;
 
@@ -27,19 +28,24 @@ import com.journeyapps.barcodescanner.BarcodeEncoder;
 import com.yuwjoo.quickpass.R;
 import com.yuwjoo.quickpass.model.FileItem;
 import com.yuwjoo.quickpass.server.FileShareHttpServer;
+import com.yuwjoo.quickpass.server.TransferMetrics;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * 文件列表适配器
  * 用于在RecyclerView中显示选择的文件列表
  */
 public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder> {
+    private static final Object PAYLOAD_PROGRESS = new Object(); // 只刷新传输进度，不重新绑定整行
 
     private final List<FileItem> fileItems;
     private final Context context;
     private final FileShareHttpServer fileShareHttpServer;
     private final OnFileRemovedListener onFileRemovedListener;
+    private Map<String, TransferMetrics.ShareProgress> progressByShare = new HashMap<>(); // 有下载进行的分享
 
     /**
      * 构造函数
@@ -66,7 +72,9 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
     public void onBindViewHolder(@NonNull FileViewHolder holder, int position) {
         FileItem fileItem = fileItems.get(position);
         holder.tvFileName.setText(fileItem.getFileName());
-        holder.tvFileSize.setText(fileItem.getFormattedSize());
+        holder.tvFileSize.setText(fileItem.isDirectory()
+                ? context.getString(R.string.shared_folder) : fileItem.getFormattedSize());
+        bindProgress(holder, fileItem);
 
         // 设置删除按钮点击事件
         holder.btnDeleteFile.setOnClickListener(v -> {
@@ -97,11 +105,94 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
         });
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull FileViewHolder holder, int position, @NonNull List<Object> payloads) {
+        if (payloads.isEmpty()) {
+            onBindViewHolder(holder, position);
+        } else {
+            bindProgress(holder, fileItems.get(position));
+        }
+    }
+
     @Override
     public int getItemCount() {
         return fileItems.size();
     }
 
+    /**
+     * 在列表末尾添加一批文件项
+     * 只发出一次范围插入通知
+     * @param items 新的文件项
+     */
+    public void addItems(List<FileItem> items) {
+        int start = fileItems.size();
+        fileItems.addAll(items);
+        notifyItemRangeInserted(start, items.size());
+    }
+
+    /**
+     * 移除分享ID对应的文件项
+     * 分享被服务器自动移除后调用
+     * @param shareId 分享ID
+     */
+    public void removeItem(String shareId) {
+        for (int i = 0; i < fileItems.size(); i++) {
+            if (shareId.equals(fileItems.get(i).getShareId())) {
+                FileItem item = fileItems.remove(i);
+                progressByShare.remove(shareId);
+                notifyItemRemoved(i);
+                if (onFileRemovedListener != null) {
+                    onFileRemovedListener.onFileRemoved(item);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * 更新下载进度
+     * 只刷新进度有变化或下载刚结束的行
+     * @param progress 有下载进行的分享的进度
+     */
+    public void updateProgress(List<TransferMetrics.ShareProgress> progress) {
+        Map<String, TransferMetrics.ShareProgress> previous = progressByShare;
+        progressByShare = new HashMap<>();
+        for (TransferMetrics.ShareProgress shareProgress : progress) {
+            progressByShare.put(shareProgress.getShareId(), shareProgress);
+        }
+        for (int i = 0; i < fileItems.size(); i++) {
+            String shareId = fileItems.get(i).getShareId();
+            if (shareId != null && (progressByShare.containsKey(shareId) || previous.containsKey(shareId))) {
+                notifyItemChanged(i, PAYLOAD_PROGRESS);
+            }
+        }
+    }
+
+    /**
+     * 显示文件的下载进度和速度，没有下载时隐藏
+     * @param holder 视图持有者
+     * @param fileItem 文件项
+     */
+    private void bindProgress(FileViewHolder holder, FileItem fileItem) {
+        TransferMetrics.ShareProgress progress = fileItem.getShareId() != null
+                ? progressByShare.get(fileItem.getShareId()) : null;
+        if (progress == null) {
+            holder.pbTransfer.setVisibility(View.GONE);
+            holder.tvTransferStatus.setVisibility(View.GONE);
+            return;
+        }
+        long total = progress.getTotalBytes();
+        // 多个下载同时进行时显示合计进度，长度未知时显示不确定进度
+        holder.pbTransfer.setIndeterminate(total <= 0);
+        if (total > 0) {
+            holder.pbTransfer.setProgress((int) Math.min(100, progress.getBytesSent() * 100 / total));
+        }
+        holder.pbTransfer.setVisibility(View.VISIBLE);
+        holder.tvTransferStatus.setText(context.getString(R.string.transfer_status,
+                progress.getActiveTransfers(), FileItem.formatSize(progress.getBytesPerSecond())));
+        holder.tvTransferStatus.setVisibility(View.VISIBLE);
+    }
+
     /**
      * 显示分享对话框
      * @param fileItem 文件项
@@ -170,6 +261,8 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
         TextView tvFileSize;
         ImageButton btnShowQR;
         ImageButton btnDeleteFile;
+        ProgressBar pbTransfer;
+        TextView tvTransferStatus;
 
         FileViewHolder(@NonNull View itemView) {
             super(itemView);
@@ -177,6 +270,8 @@ public class FileAdapter extends RecyclerView.Adapter<FileAdapter.FileViewHolder
             tvFileSize = itemView.findViewById(R.id.tvFileSize);
             btnShowQR = itemView.findViewById(R.id.btnShowQR);
             btnDeleteFile = itemView.findViewById(R.id.btnDeleteFile);
+            pbTransfer = itemView.findViewById(R.id.pbTransfer);
+            tvTransferStatus = itemView.findViewById(R.id.tvTransferStatus);
         }
     }
 
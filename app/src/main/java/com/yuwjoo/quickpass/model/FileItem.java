@@ -11,6 +11,7 @@ public class FileItem {
     private long fileSize;
     private Uri fileUri;
     private String shareId;
+    private boolean directory;
 
     /**
      * 构造函数
@@ -88,19 +89,44 @@ public class FileItem {
         this.shareId = shareId;
     }
 
+    /**
+     * 是否为分享的目录
+     * @return 目录返回true
+     */
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    /**
+     * 设置是否为分享的目录
+     * @param directory 是否为目录
+     */
+    public void setDirectory(boolean directory) {
+        this.directory = directory;
+    }
+
     /**
      * 获取格式化的文件大小字符串
      * @return 格式化的文件大小（如：1.5 MB）
      */
     public String getFormattedSize() {
-        if (fileSize < 1024) {
-            return fileSize + " B";
-        } else if (fileSize < 1024 * 1024) {
-            return String.format("%.1f KB", fileSize / 1024.0);
-        } else if (fileSize < 1024 * 1024 * 1024) {
-            return String.format("%.1f MB", fileSize / (1024.0 * 1024));
+        return formatSize(fileSize);
+    }
+
+    /**
+     * 格式化字节数
+     * @param bytes 字节数
+     * @return 格式化的字符串（如：1.5 MB）
+     */
+    public static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format("%.1f KB", bytes / 1024.0);
+        } else if (bytes < 1024 * 1024 * 1024) {
+            return String.format("%.1f MB", bytes / (1024.0 * 1024));
         } else {
-            return String.format("%.1f GB", fileSize / (1024.0 * 1024 * 1024));
+            return String.format("%.1f GB", bytes / (1024.0 * 1024 * 1024));
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,118 @@
+package com.yuwjoo.quickpass.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 按大小分级的缓冲区池
+ * 容量为2的幂，从16KB到1MB分为若干级，申请时向上取整到最近的一级。
+ * 归还的缓冲区按级缓存复用，传输过程中不再分配新的缓冲区；缓存的总量有上限，超出时交给GC回收。
+ * 可以在任意线程调用
+ */
+class BufferPool {
+    static final int MIN_SIZE = 16 * 1024; // 最小一级
+    static final int MAX_SIZE = 1024 * 1024; // 最大一级
+    private static final int CLASS_COUNT = Integer.numberOfTrailingZeros(MAX_SIZE / MIN_SIZE) + 1;
+
+    private final boolean direct; // 是否为堆外缓冲区
+    private final long maxPooledBytes; // 缓存的总量上限
+    private final List<ArrayDeque<ByteBuffer>> free = new ArrayList<>(CLASS_COUNT); // 每一级空闲的缓冲区
+    private long pooledBytes;
+    private long allocations; // 新分配的次数
+    private long reuses; // 复用的次数
+
+    /**
+     * 构造函数
+     *
+     * @param direct         是否分配堆外缓冲区
+     * @param maxPooledBytes 缓存的总量上限（字节）
+     */
+    BufferPool(boolean direct, long maxPooledBytes) {
+        this.direct = direct;
+        this.maxPooledBytes = maxPooledBytes;
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            free.add(new ArrayDeque<>());
+        }
+    }
+
+    /**
+     * 计算容纳指定字节数的一级的容量
+     *
+     * @param size 字节数
+     * @return 该级的容量，超过最大一级时返回最大一级
+     */
+    static int classSize(int size) {
+        if (size <= MIN_SIZE) {
+            return MIN_SIZE;
+        }
+        if (size >= MAX_SIZE) {
+            return MAX_SIZE;
+        }
+        return Integer.highestOneBit(size - 1) << 1;
+    }
+
+    private static int classIndex(int capacity) {
+        return Integer.numberOfTrailingZeros(capacity / MIN_SIZE);
+    }
+
+    /**
+     * 申请缓冲区
+     *
+     * @param size 需要的字节数，超过最大一级时只分配最大一级
+     * @return 已清空的缓冲区，容量为size所在的一级
+     */
+    synchronized ByteBuffer acquire(int size) {
+        int capacity = classSize(size);
+        ByteBuffer buffer = free.get(classIndex(capacity)).pollFirst();
+        if (buffer != null) {
+            pooledBytes -= capacity;
+            reuses++;
+            buffer.clear();
+            return buffer;
+        }
+        allocations++;
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * 归还缓冲区
+     * 调用方必须确保缓冲区已不再被引用，包括已交给响应但尚未写入套接字的数据
+     *
+     * @param buffer 由本池分配的缓冲区，可以为null
+     */
+    synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        if (buffer.isDirect() != direct || capacity != classSize(capacity)
+                || pooledBytes + capacity > maxPooledBytes) {
+            return;
+        }
+        pooledBytes += capacity;
+        free.get(classIndex(capacity)).addFirst(buffer);
+    }
+
+    /**
+     * 获取新分配的次数
+     */
+    synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * 获取复用的次数
+     */
+    synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * 获取当前缓存的字节数
+     */
+    synchronized long getPooledBytes() {
+        return pooledBytes;
+    }
+}
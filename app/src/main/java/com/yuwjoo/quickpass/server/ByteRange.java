@@ -0,0 +1,130 @@
+package com.yuwjoo.quickpass.server;
+
+import java.util.Locale;
+
+/**
+ * 字节区间类
+ * 用于解析HTTP Range请求头，表示需要发送的文件区间
+ */
+public final class ByteRange {
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * 无法满足的区间（区间越界或多区间请求），应返回416
+     */
+    public static final ByteRange NOT_SATISFIABLE = new ByteRange(-1, -1);
+
+    private final long start; // 起始位置（包含）
+    private final long end; // 结束位置（包含）
+
+    private ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * 解析Range请求头
+     * 只支持单区间请求，多区间请求按无法满足处理
+     *
+     * @param header      Range请求头的值
+     * @param totalLength 文件总长度
+     * @return 解析出的区间；请求头不存在或格式错误时返回null（按完整文件响应）；无法满足时返回{@link #NOT_SATISFIABLE}
+     */
+    public static ByteRange parse(String header, long totalLength) {
+        if (header == null || totalLength < 0) {
+            return null;
+        }
+        String value = header.trim();
+        if (!value.toLowerCase(Locale.ROOT).startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        String spec = value.substring(BYTES_UNIT.length()).trim();
+        if (spec.indexOf(',') != -1) {
+            // 不支持multipart/byteranges响应
+            return NOT_SATISFIABLE;
+        }
+
+        int dash = spec.indexOf('-');
+        if (dash == -1) {
+            return null;
+        }
+        String first = spec.substring(0, dash).trim();
+        String last = spec.substring(dash + 1).trim();
+        try {
+            if (first.isEmpty()) {
+                // 后缀区间，例如 bytes=-500 表示最后500个字节
+                if (last.isEmpty()) {
+                    return null;
+                }
+                long suffixLength = Long.parseLong(last);
+                if (suffixLength <= 0 || totalLength == 0) {
+                    return NOT_SATISFIABLE;
+                }
+                return new ByteRange(Math.max(0, totalLength - suffixLength), totalLength - 1);
+            }
+
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            if (start >= totalLength) {
+                return NOT_SATISFIABLE;
+            }
+            return new ByteRange(start, Math.min(end, totalLength - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 判断请求是否开始一次新的下载
+     * 没有Range或从文件开头读取多于一个字节时视为新下载；探测长度用的bytes=0-0、
+     * 断点续传和分段下载中不从开头开始的分段都不算
+     *
+     * @param header Range请求头的值，可以为null
+     * @return 开始新的下载时返回true
+     */
+    public static boolean startsNewDownload(String header) {
+        ByteRange range = parse(header, Long.MAX_VALUE);
+        if (range == null) {
+            // 按完整文件响应
+            return true;
+        }
+        return range != NOT_SATISFIABLE && range.start == 0 && range.end > 0;
+    }
+
+    /**
+     * 获取起始位置
+     * @return 起始位置（包含）
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * 获取结束位置
+     * @return 结束位置（包含）
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * 获取区间长度
+     * @return 区间字节数
+     */
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * 生成Content-Range响应头的值
+     *
+     * @param totalLength 文件总长度
+     * @return 例如 bytes 0-499/1234
+     */
+    public String toContentRange(long totalLength) {
+        return "bytes " + start + "-" + end + "/" + totalLength;
+    }
+}
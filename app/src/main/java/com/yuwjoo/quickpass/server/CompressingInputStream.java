@@ -0,0 +1,158 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * 边读边压缩的文件流
+ * 从原始文件流读取内容，输出gzip或deflate（zlib格式）压缩后的数据，只使用固定大小的输入缓冲区，
+ * 内存占用与文件大小无关。可以同时把压缩结果写入{@link CompressionCache}，读到末尾时加入缓存
+ */
+class CompressingInputStream extends InputStream {
+    private static final int INPUT_SIZE = 64 * 1024; // 原始数据的读取缓冲区大小
+    private static final int LEVEL = 6; // 压缩级别，文本类文件的压缩率和速度较均衡
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0x03}; // 无文件名和时间，系统为Unix
+
+    private final InputStream in;
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] input = new byte[INPUT_SIZE];
+    private final CompressionCache.Writer cacheWriter; // 可以为null
+    private byte[] prefix; // 压缩数据之前待输出的gzip文件头
+    private byte[] suffix; // 压缩数据之后待输出的gzip文件尾
+    private int extraOffset; // 文件头或文件尾已输出的字节数
+    private boolean inputDone;
+    private boolean done;
+    private boolean closed;
+
+    /**
+     * 构造函数
+     *
+     * @param in          原始文件流，关闭时一同关闭
+     * @param encoding    {@link ContentEncoding#GZIP}或{@link ContentEncoding#DEFLATE}
+     * @param cacheWriter 缓存写入器，不缓存时为null
+     */
+    CompressingInputStream(InputStream in, String encoding, CompressionCache.Writer cacheWriter) {
+        this.in = in;
+        this.gzip = ContentEncoding.GZIP.equals(encoding);
+        // gzip自行输出文件头和文件尾，deflate使用带zlib头的格式
+        this.deflater = new Deflater(LEVEL, gzip);
+        this.cacheWriter = cacheWriter;
+        this.prefix = gzip ? GZIP_HEADER : null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        int read = read(one, 0, 1);
+        return read < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        int read = produce(b, off, len);
+        if (read > 0) {
+            if (cacheWriter != null) {
+                cacheWriter.write(b, off, read);
+            }
+        } else if (cacheWriter != null) {
+            cacheWriter.commit();
+        }
+        return read;
+    }
+
+    /**
+     * 生成下一段压缩数据
+     *
+     * @return 生成的字节数，全部输出后返回-1
+     */
+    private int produce(byte[] b, int off, int len) throws IOException {
+        if (prefix != null) {
+            return copyExtra(prefix, b, off, len, false);
+        }
+        while (!deflater.finished()) {
+            int count = deflater.deflate(b, off, len);
+            if (count > 0) {
+                return count;
+            }
+            if (deflater.needsInput()) {
+                if (inputDone) {
+                    deflater.finish();
+                    continue;
+                }
+                int read = in.read(input, 0, input.length);
+                if (read < 0) {
+                    inputDone = true;
+                    deflater.finish();
+                } else if (read > 0) {
+                    crc.update(input, 0, read);
+                    deflater.setInput(input, 0, read);
+                }
+            }
+        }
+        if (gzip && !done) {
+            if (suffix == null) {
+                suffix = trailer();
+                extraOffset = 0;
+            }
+            return copyExtra(suffix, b, off, len, true);
+        }
+        return -1;
+    }
+
+    /**
+     * 输出gzip文件头或文件尾
+     */
+    private int copyExtra(byte[] extra, byte[] b, int off, int len, boolean last) {
+        int count = Math.min(len, extra.length - extraOffset);
+        System.arraycopy(extra, extraOffset, b, off, count);
+        extraOffset += count;
+        if (extraOffset == extra.length) {
+            extraOffset = 0;
+            if (last) {
+                done = true;
+            } else {
+                prefix = null;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * 生成gzip文件尾：CRC32和原始长度，均为小端序
+     */
+    private byte[] trailer() {
+        long value = crc.getValue();
+        long size = deflater.getBytesRead();
+        byte[] trailer = new byte[8];
+        for (int i = 0; i < 4; i++) {
+            trailer[i] = (byte) (value >>> (8 * i));
+            trailer[4 + i] = (byte) (size >>> (8 * i));
+        }
+        return trailer;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        deflater.end();
+        // 未读到末尾时放弃缓存，已加入缓存时不做处理
+        if (cacheWriter != null) {
+            cacheWriter.abort();
+        }
+        in.close();
+    }
+}
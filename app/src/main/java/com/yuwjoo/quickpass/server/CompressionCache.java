@@ -0,0 +1,215 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 压缩结果缓存
+ * 同一文件版本被请求多次后，把边压缩边发送的结果同时写入缓存目录，之后的请求直接发送缓存文件，
+ * 不再重复压缩，并且可以给出Content-Length。
+ * 缓存按最近使用顺序淘汰，总大小不超过上限；键中包含文件的ETag，文件修改后旧的结果自然被淘汰。
+ * 可以在任意线程调用
+ */
+class CompressionCache {
+    private static final String TAG = "CompressionCache";
+    private static final int ADMIT_REQUESTS = 2; // 请求达到该次数后才缓存
+    private static final int MAX_TRACKED_KEYS = 256; // 记录请求次数的最大键数
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, File> files = new LinkedHashMap<>(16, 0.75f, true); // 按访问顺序排列
+    private final Set<String> writing = new HashSet<>(); // 正在写入的键
+    private final LinkedHashMap<String, Integer> requestCounts =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_TRACKED_KEYS;
+                }
+            };
+    private long totalBytes;
+
+    /**
+     * 构造函数
+     * 上次运行留下的缓存文件无法确认是否完整，全部删除
+     *
+     * @param directory 缓存目录
+     * @param maxBytes  缓存总大小上限
+     */
+    CompressionCache(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        File[] leftovers = directory.listFiles();
+        if (leftovers != null) {
+            for (File file : leftovers) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    /**
+     * 生成缓存键
+     *
+     * @param shareId  分享ID
+     * @param etag     文件当前版本的ETag
+     * @param encoding 压缩格式
+     * @return 缓存键，可以直接用作文件名
+     */
+    static String key(String shareId, String etag, String encoding) {
+        return (shareId + "-" + etag).replaceAll("[^0-9A-Za-z-]", "") + "." + encoding;
+    }
+
+    /**
+     * 查找缓存并记录一次请求
+     *
+     * @param key 缓存键
+     * @return 缓存文件，未缓存时返回null
+     */
+    synchronized File get(String key) {
+        Integer count = requestCounts.get(key);
+        requestCounts.put(key, count == null ? 1 : count + 1);
+        return files.get(key);
+    }
+
+    /**
+     * 为请求次数足够多的键开始写入缓存
+     *
+     * @param key 缓存键
+     * @return 缓存写入器；请求次数不足、已有缓存或正在写入时返回null
+     */
+    synchronized Writer openWriter(String key) {
+        Integer count = requestCounts.get(key);
+        if (count == null || count < ADMIT_REQUESTS || files.containsKey(key) || writing.contains(key)) {
+            return null;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return null;
+        }
+        File temp = new File(directory, key + TEMP_SUFFIX);
+        try {
+            Writer writer = new Writer(key, temp);
+            writing.add(key);
+            return writer;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot create cache file " + temp, e);
+            return null;
+        }
+    }
+
+    /**
+     * 获取缓存的总大小
+     */
+    synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    private synchronized void commit(String key, File temp) {
+        writing.remove(key);
+        File file = new File(directory, key);
+        long length = temp.length();
+        if (length > maxBytes || !temp.renameTo(file)) {
+            deleteFile(temp);
+            return;
+        }
+        files.put(key, file);
+        totalBytes += length;
+        // 淘汰最久未使用的结果，删除后正在发送该文件的传输仍可读完
+        Iterator<Map.Entry<String, File>> iterator = files.entrySet().iterator();
+        while (totalBytes > maxBytes && iterator.hasNext()) {
+            File eldest = iterator.next().getValue();
+            totalBytes -= eldest.length();
+            iterator.remove();
+            deleteFile(eldest);
+        }
+    }
+
+    private synchronized void abort(String key, File temp) {
+        writing.remove(key);
+        deleteFile(temp);
+    }
+
+    private static void deleteFile(File file) {
+        if (!file.delete()) {
+            Log.w(TAG, "Cannot delete " + file);
+        }
+    }
+
+    /**
+     * 缓存写入器
+     * 写完后调用{@link #commit()}加入缓存，中途失败或放弃时调用{@link #abort()}；
+     * 读取线程写入的同时服务器线程可能放弃写入，方法均已同步
+     */
+    final class Writer {
+        private final String key;
+        private final File temp;
+        private final OutputStream out;
+        private boolean finished;
+
+        private Writer(String key, File temp) throws IOException {
+            this.key = key;
+            this.temp = temp;
+            this.out = new FileOutputStream(temp);
+        }
+
+        /**
+         * 写入一段压缩结果，写入失败时放弃缓存
+         */
+        synchronized void write(byte[] data, int offset, int length) {
+            if (finished) {
+                return;
+            }
+            try {
+                out.write(data, offset, length);
+            } catch (IOException e) {
+                Log.w(TAG, "Error writing cache file " + temp, e);
+                abort();
+            }
+        }
+
+        /**
+         * 写入完成，加入缓存
+         */
+        synchronized void commit() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            if (close()) {
+                CompressionCache.this.commit(key, temp);
+            } else {
+                CompressionCache.this.abort(key, temp);
+            }
+        }
+
+        /**
+         * 放弃写入
+         */
+        synchronized void abort() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            close();
+            CompressionCache.this.abort(key, temp);
+        }
+
+        private boolean close() {
+            try {
+                out.close();
+                return true;
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing cache file " + temp, e);
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.yuwjoo.quickpass.server;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * 内容编码协商
+ * 根据Accept-Encoding请求头选择压缩格式，并按MIME类型和扩展名判断文件是否值得压缩：
+ * 文本类文件压缩效果好，图片、音视频和压缩包等已压缩的格式直接跳过
+ */
+final class ContentEncoding {
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    static final long MIN_COMPRESS_SIZE = 2 * 1024; // 小于该大小的文件不压缩
+
+    private static final Set<String> COMPRESSIBLE_TYPES = new HashSet<>(Arrays.asList(
+            "application/json", "application/xml", "application/javascript", "application/x-javascript",
+            "application/ecmascript", "application/x-sh", "application/x-ndjson", "application/x-yaml",
+            "application/yaml", "application/sql", "application/x-sql", "application/rtf", "application/x-tex",
+            "application/postscript", "application/x-subrip", "image/svg+xml", "image/bmp", "image/x-ms-bmp"));
+    private static final Set<String> TEXT_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "txt", "log", "csv", "tsv", "json", "jsonl", "ndjson", "xml", "html", "htm", "md", "yaml", "yml",
+            "ini", "conf", "cfg", "properties", "sql", "js", "css", "svg", "trace", "out"));
+    private static final Set<String> COMPRESSED_EXTENSIONS = new HashSet<>(Arrays.asList(
+            "gz", "tgz", "zip", "bz2", "xz", "zst", "7z", "rar", "br", "lz4", "lzma", "apk", "jar", "z"));
+
+    private ContentEncoding() {
+    }
+
+    /**
+     * 按Accept-Encoding请求头选择压缩格式
+     * 支持q值，权重相同时优先gzip
+     *
+     * @param acceptEncoding Accept-Encoding请求头，可以为null
+     * @return {@link #GZIP}或{@link #DEFLATE}，不接受压缩时返回null
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        float gzip = -1;
+        float deflate = -1;
+        float wildcard = -1;
+        for (String part : acceptEncoding.split(",")) {
+            String[] params = part.split(";");
+            String coding = params[0].trim().toLowerCase(Locale.ROOT);
+            float q = 1;
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=") || param.startsWith("Q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (coding.equals(GZIP) || coding.equals("x-gzip")) {
+                gzip = q;
+            } else if (coding.equals(DEFLATE)) {
+                deflate = q;
+            } else if (coding.equals("*")) {
+                wildcard = q;
+            }
+        }
+        // 未列出的格式按通配符的权重处理
+        if (gzip < 0) {
+            gzip = wildcard;
+        }
+        if (deflate < 0) {
+            deflate = wildcard;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    /**
+     * 判断文件是否值得压缩
+     *
+     * @param mimeType MIME类型，可以为null
+     * @param name     文件名，可以为null
+     * @param size     文件大小，未知时为负数
+     * @return 是否压缩
+     */
+    static boolean isCompressible(String mimeType, String name, long size) {
+        if (size >= 0 && size < MIN_COMPRESS_SIZE) {
+            return false;
+        }
+        String extension = getExtension(name);
+        if (COMPRESSED_EXTENSIONS.contains(extension)) {
+            return false;
+        }
+        if (mimeType != null) {
+            String type = mimeType.toLowerCase(Locale.ROOT);
+            int semicolon = type.indexOf(';');
+            if (semicolon != -1) {
+                type = type.substring(0, semicolon).trim();
+            }
+            if (type.startsWith("text/") || COMPRESSIBLE_TYPES.contains(type)
+                    || type.endsWith("+json") || type.endsWith("+xml")) {
+                return true;
+            }
+            if (!type.equals("application/octet-stream") && !type.isEmpty()) {
+                return false;
+            }
+        }
+        // 类型未知时按扩展名判断
+        return TEXT_EXTENSIONS.contains(extension);
+    }
+
+    private static String getExtension(String name) {
+        if (name == null) {
+            return "";
+        }
+        int dot = name.lastIndexOf('.');
+        return dot == -1 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,204 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 内容哈希存储
+ * 以Uri、大小和修改时间为键保存文件内容的SHA-256，持久化到文件，
+ * 再次分享未修改的文件时无需重新计算；超出数量上限时淘汰最久未使用的记录。
+ * 可以在任意线程调用
+ */
+class ContentHashStore {
+    private static final String TAG = "ContentHashStore";
+    private static final char SEPARATOR = '\t';
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final char[] BASE64_DIGITS =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final File file;
+    private final int maxEntries;
+    private final LinkedHashMap<String, String> hashes = new LinkedHashMap<>(16, 0.75f, true); // 按访问顺序排列
+    private boolean loaded;
+
+    /**
+     * 构造函数
+     *
+     * @param file       持久化文件
+     * @param maxEntries 最多保存的记录数
+     */
+    ContentHashStore(File file, int maxEntries) {
+        this.file = file;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * 生成记录的键
+     * 文件大小或修改时间变化后键随之变化，旧的记录不会被误用
+     *
+     * @param uri          文件Uri
+     * @param size         文件大小
+     * @param lastModified 修改时间（毫秒）
+     * @return 记录的键
+     */
+    static String key(String uri, long size, long lastModified) {
+        return size + ":" + lastModified + ":" + uri.replace(SEPARATOR, ' ').replace('\n', ' ');
+    }
+
+    /**
+     * 查找内容哈希
+     *
+     * @param key 记录的键
+     * @return 十六进制的SHA-256，没有记录时返回null
+     */
+    synchronized String get(String key) {
+        load();
+        return hashes.get(key);
+    }
+
+    /**
+     * 保存内容哈希并写入持久化文件
+     *
+     * @param key  记录的键
+     * @param hash 十六进制的SHA-256
+     */
+    synchronized void put(String key, String hash) {
+        load();
+        hashes.put(key, hash);
+        while (hashes.size() > maxEntries) {
+            hashes.remove(hashes.keySet().iterator().next());
+        }
+        save();
+    }
+
+    /**
+     * 首次使用时从持久化文件加载
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!file.isFile()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int separator = line.lastIndexOf(SEPARATOR);
+                if (separator > 0) {
+                    hashes.put(line.substring(0, separator), line.substring(separator + 1));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error loading " + file, e);
+        }
+    }
+
+    /**
+     * 先写入临时文件再替换，写入中断时不会损坏已有的记录
+     */
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, String> entry : hashes.entrySet()) {
+                writer.write(entry.getKey());
+                writer.write(SEPARATOR);
+                writer.write(entry.getValue());
+                writer.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error saving " + file, e);
+            temp.delete();
+            return;
+        }
+        if (!temp.renameTo(file)) {
+            Log.w(TAG, "Cannot replace " + file);
+            temp.delete();
+        }
+    }
+
+    /**
+     * 计算流的SHA-256，不关闭流
+     * 线程被中断时停止计算
+     *
+     * @param in     输入流
+     * @param buffer 读取用的缓冲数组
+     * @return 十六进制的SHA-256
+     * @throws IOException 读取失败或被中断
+     */
+    static String sha256(InputStream in, byte[] buffer) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            if (Thread.interrupted()) {
+                throw new InterruptedIOException("Hashing interrupted");
+            }
+            digest.update(buffer, 0, read);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * 转换为小写十六进制字符串
+     */
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    /**
+     * 转换为带填充的标准Base64字符串
+     * 用于Digest响应头，不依赖android.util.Base64
+     */
+    static String toBase64(byte[] bytes) {
+        StringBuilder out = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int remaining = bytes.length - i;
+            int chunk = (bytes[i] & 0xff) << 16
+                    | (remaining > 1 ? (bytes[i + 1] & 0xff) << 8 : 0)
+                    | (remaining > 2 ? bytes[i + 2] & 0xff : 0);
+            out.append(BASE64_DIGITS[chunk >> 18 & 0x3f]);
+            out.append(BASE64_DIGITS[chunk >> 12 & 0x3f]);
+            out.append(remaining > 1 ? BASE64_DIGITS[chunk >> 6 & 0x3f] : '=');
+            out.append(remaining > 2 ? BASE64_DIGITS[chunk & 0x3f] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * 将十六进制字符串转换为字节
+     */
+    static byte[] fromHex(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,61 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.UUID;
+
+/**
+ * 本机身份信息
+ * 设备ID在首次使用时生成并保存，之后保持不变，用于在IP变化后仍能识别同一台设备
+ */
+public final class DeviceIdentity {
+    private static final String TAG = "DeviceIdentity";
+    private static final String PREFS_NAME = "device_identity";
+    private static final String KEY_DEVICE_ID = "device_id";
+
+    private DeviceIdentity() {
+    }
+
+    /**
+     * 获取本机设备ID
+     * @param context 上下文
+     * @return 设备ID
+     */
+    public static synchronized String getDeviceId(Context context) {
+        SharedPreferences preferences = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        String deviceId = preferences.getString(KEY_DEVICE_ID, null);
+        if (deviceId == null) {
+            deviceId = UUID.randomUUID().toString();
+            preferences.edit().putString(KEY_DEVICE_ID, deviceId).apply();
+        }
+        return deviceId;
+    }
+
+    /**
+     * 获取本机设备名称
+     * @return 设备名称
+     */
+    public static String getDeviceName() {
+        return Build.MODEL;
+    }
+
+    /**
+     * 获取应用版本
+     * @param context 上下文
+     * @return 应用版本名称，无法获取时返回空字符串
+     */
+    public static String getAppVersion(Context context) {
+        try {
+            String versionName = context.getPackageManager()
+                    .getPackageInfo(context.getPackageName(), 0).versionName;
+            return versionName != null ? versionName : "";
+        } catch (PackageManager.NameNotFoundException e) {
+            Log.e(TAG, "Error reading app version", e);
+            return "";
+        }
+    }
+}
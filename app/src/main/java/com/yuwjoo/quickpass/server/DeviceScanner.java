@@ -5,29 +5,55 @@ import android.net.wifi.WifiManager;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.Socket;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * 设备扫描器类
- * 用于在局域网中扫描运行QuickPass服务的设备
+ * 用于在局域网中扫描运行QuickPass服务的设备。
+ * 每次扫描先探测设备表中的已知设备，同时通过UDP组播和广播发送发现查询，
+ * 都没有应答时再回退到对本机网段的非阻塞TCP扫描
  */
 public class DeviceScanner {
     private static final String TAG = "DeviceScanner";
     private static final int SCAN_PORT = 3400;
     private static final int TIMEOUT_MS = 500;
-    private static final int THREAD_POOL_SIZE = 20;
+    private static final int DEFAULT_PROBE_WINDOW = 512; // 默认同时进行的TCP探测数量，受进程文件描述符上限约束
+    private static final int DEFAULT_PREFIX_LENGTH = 24;
+    private static final int MIN_PREFIX_LENGTH = 20; // 最多探测/20网段，约4000个地址
+    private static final int DISCOVERY_WINDOW_MS = 600; // 等待发现应答的时间
+    private static final int QUERY_RETRY_INTERVAL_MS = 200; // 重发查询的间隔，弥补UDP丢包
+    private static final String BROADCAST_ADDRESS = "255.255.255.255";
 
     private final Context context;
     private final ExecutorService executorService;
-    private final List<String> discoveredDevices;
+    private final PeerTable peerTable; // 已知设备表
+    private final String deviceId; // 本机设备ID，用于忽略本机的应答
+    private final Set<String> lastDevices = new HashSet<>(); // 上一次扫描发现的设备，用于判断设备离线
+    private final Map<String, DiscoveryProtocol.Announcement> deviceInfos = new ConcurrentHashMap<>(); // 设备IP到通告内容
+    private volatile ScanMode scanMode = ScanMode.AUTO;
+    private volatile int probeWindow = DEFAULT_PROBE_WINDOW;
 
     /**
      * 构造函数
@@ -35,8 +61,9 @@ public class DeviceScanner {
      */
     public DeviceScanner(Context context) {
         this.context = context;
-        this.executorService = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        this.discoveredDevices = new ArrayList<>();
+        this.executorService = Executors.newCachedThreadPool();
+        this.peerTable = new PeerTable(context);
+        this.deviceId = DeviceIdentity.getDeviceId(context);
     }
 
     /**
@@ -59,61 +86,296 @@ public class DeviceScanner {
         }
     }
 
+    /**
+     * 设置扫描模式
+     * @param scanMode 扫描模式，默认为AUTO
+     */
+    public void setScanMode(ScanMode scanMode) {
+        this.scanMode = scanMode;
+    }
+
+    /**
+     * 设置TCP扫描的并发窗口
+     * @param probeWindow 同时进行的最大探测数量
+     */
+    public void setProbeWindow(int probeWindow) {
+        if (probeWindow <= 0) {
+            throw new IllegalArgumentException("probeWindow must be positive: " + probeWindow);
+        }
+        this.probeWindow = probeWindow;
+    }
+
+    /**
+     * 获取设备在最近一次扫描中通告的信息
+     * @param ipAddress 设备IP地址
+     * @return 通告内容，没有时返回null
+     */
+    public DiscoveryProtocol.Announcement getDeviceInfo(String ipAddress) {
+        return deviceInfos.get(ipAddress);
+    }
+
+    /**
+     * 获取设备表中的已知设备
+     * @return 按最近出现时间从新到旧排序的设备列表
+     */
+    public List<Peer> getKnownPeers() {
+        return peerTable.getPeers();
+    }
+
     /**
      * 扫描局域网内的设备
      * @param callback 扫描完成后的回调函数
      */
     public void scanDevices(ScanCallback callback) {
+        scanDevices(new ScanListener() {
+            @Override
+            public void onDeviceFound(String device) {
+            }
+
+            @Override
+            public void onDeviceLost(String device) {
+            }
+
+            @Override
+            public void onScanProgress(int completed, int total) {
+            }
+
+            @Override
+            public void onScanComplete(List<String> devices) {
+                callback.onScanComplete(devices);
+            }
+        });
+    }
+
+    /**
+     * 扫描局域网内的设备，发现设备时立即回调
+     * 所有回调都在扫描线程中调用
+     * @param listener 扫描监听器
+     */
+    public void scanDevices(ScanListener listener) {
+        ScanSession session = new ScanSession(listener);
         String currentIp = getCurrentIpAddress();
         if (currentIp == null) {
-            callback.onScanComplete(new ArrayList<>());
+            session.complete();
             return;
         }
 
         // 清除之前的扫描结果
-        discoveredDevices.clear();
+        deviceInfos.clear();
 
-        // 获取IP地址的前三段
-        String ipPrefix = currentIp.substring(0, currentIp.lastIndexOf(".") + 1);
-        List<Future<?>> futures = new ArrayList<>();
+        ScanMode mode = scanMode;
+        executorService.submit(() -> {
+            // 已知设备通常立即应答，与UDP发现并行探测
+            Future<?> revalidation = executorService.submit(() -> revalidateKnownPeers(currentIp, session));
+            if (mode != ScanMode.TCP_SWEEP) {
+                discoverByMulticast(currentIp, session);
+            }
+            try {
+                revalidation.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Error revalidating known peers", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (mode == ScanMode.TCP_SWEEP || (mode == ScanMode.AUTO && session.isEmpty())) {
+                // 没有设备应答，可能对方版本不支持发现协议或网络过滤了组播和广播
+                Log.i(TAG, "No discovery replies, sweeping subnet");
+                sweepSubnet(currentIp, session);
+            }
+            peerTable.save();
+            session.complete();
+        });
+    }
 
-        // 并发扫描1-254的IP地址
-        for (int i = 1; i <= 254; i++) {
-            final String targetIp = ipPrefix + i;
-            Future<?> future = executorService.submit(() -> scanAddress(targetIp));
-            futures.add(future);
+    /**
+     * 探测设备表中的已知设备
+     * 只需向少量地址各发一次身份请求，不必扫描整个网段
+     * @param currentIp 本机IP地址
+     * @param session 本次扫描
+     */
+    private void revalidateKnownPeers(String currentIp, ScanSession session) {
+        List<InetAddress> targets = new ArrayList<>();
+        for (Peer peer : peerTable.getPeers()) {
+            try {
+                InetAddress address = InetAddress.getByName(peer.getAddress());
+                if (!peer.getAddress().equals(currentIp) && !targets.contains(address)) {
+                    targets.add(address);
+                }
+            } catch (UnknownHostException e) {
+                Log.w(TAG, "Invalid peer address " + peer.getAddress());
+            }
         }
+        if (targets.isEmpty()) {
+            return;
+        }
+        try {
+            probeIdentity(targets, session, false);
+        } catch (IOException e) {
+            Log.e(TAG, "Error probing known peers", e);
+        }
+    }
 
-        // 等待所有扫描任务完成
-        executorService.submit(() -> {
-            try {
-                for (Future<?> future : futures) {
-                    future.get(TIMEOUT_MS + 100, TimeUnit.MILLISECONDS);
+    /**
+     * 连接目标地址并请求身份接口，只有返回合法身份信息的地址才算发现设备
+     * @param targets 目标地址
+     * @param session 本次扫描
+     * @param reportProgress 是否报告探测进度
+     */
+    private void probeIdentity(List<InetAddress> targets, ScanSession session, boolean reportProgress)
+            throws IOException {
+        NioProbeEngine engine = new NioProbeEngine(SCAN_PORT, TIMEOUT_MS, probeWindow,
+                address -> DiscoveryProtocol.encodeIdentityRequest(address.getHostAddress(), SCAN_PORT));
+        engine.probe(targets, new NioProbeEngine.ProbeListener() {
+            @Override
+            public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                DiscoveryProtocol.Announcement announcement =
+                        DiscoveryProtocol.decodeIdentityResponse(response, response.length);
+                if (announcement == null) {
+                    // 端口开放但不是QuickPass设备
+                    return;
+                }
+                String ipAddress = address.getHostAddress();
+                if (recordPeer(ipAddress, announcement, rttMillis)) {
+                    session.deviceFound(ipAddress);
+                }
+            }
+
+            @Override
+            public void onProbeFinished(int finished, int total) {
+                if (reportProgress) {
+                    session.listener.onScanProgress(finished, total);
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error waiting for scan completion", e);
             }
-            // 在主线程中调用回调
-            callback.onScanComplete(new ArrayList<>(discoveredDevices));
         });
     }
 
     /**
-     * 扫描单个IP地址
-     * @param ipAddress 要扫描的IP地址
+     * 记录发现的设备信息并更新设备表
+     * @param ipAddress 设备IP地址
+     * @param announcement 设备的通告内容
+     * @param rttMillis 往返时间（毫秒）
+     * @return 是其他设备时返回true，是本机时返回false
+     */
+    private boolean recordPeer(String ipAddress, DiscoveryProtocol.Announcement announcement, long rttMillis) {
+        if (announcement.getId().equals(deviceId)) {
+            return false;
+        }
+        deviceInfos.put(ipAddress, announcement);
+        if (!announcement.getId().isEmpty()) {
+            peerTable.update(Peer.fromAnnouncement(ipAddress, announcement, System.currentTimeMillis(), rttMillis));
+        }
+        return true;
+    }
+
+    /**
+     * 通过UDP组播和广播发送发现查询并收集应答
+     * 在发现窗口内定期重发查询，每轮查询计为一个进度单位
+     * @param currentIp 本机IP地址，本机的应答会被忽略
+     * @param session 本次扫描
+     */
+    private void discoverByMulticast(String currentIp, ScanSession session) {
+        int rounds = (DISCOVERY_WINDOW_MS + QUERY_RETRY_INTERVAL_MS - 1) / QUERY_RETRY_INTERVAL_MS;
+        int sentRounds = 0;
+        try (DatagramSocket socket = new DatagramSocket()) {
+            socket.setBroadcast(true);
+            byte[] query = DiscoveryProtocol.encodeQuery();
+            List<InetAddress> targets = new ArrayList<>();
+            targets.add(InetAddress.getByName(DiscoveryProtocol.MULTICAST_GROUP));
+            targets.add(InetAddress.getByName(BROADCAST_ADDRESS));
+
+            byte[] buffer = new byte[DiscoveryProtocol.MAX_PACKET_SIZE];
+            long deadline = System.currentTimeMillis() + DISCOVERY_WINDOW_MS;
+            long nextQuery = 0;
+            long lastQuery = 0;
+            long now;
+            while ((now = System.currentTimeMillis()) < deadline) {
+                if (now >= nextQuery) {
+                    if (sentRounds > 0) {
+                        session.listener.onScanProgress(sentRounds, rounds);
+                    }
+                    sendQuery(socket, query, targets);
+                    sentRounds++;
+                    lastQuery = now;
+                    nextQuery = now + QUERY_RETRY_INTERVAL_MS;
+                }
+                socket.setSoTimeout((int) Math.max(1, Math.min(deadline, nextQuery) - now));
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                try {
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    continue;
+                }
+                DiscoveryProtocol.Announcement announcement =
+                        DiscoveryProtocol.decodeAnnouncement(packet.getData(), packet.getLength());
+                String ipAddress = packet.getAddress().getHostAddress();
+                if (announcement == null || ipAddress.equals(currentIp)) {
+                    continue;
+                }
+                // 应答可能对应更早一轮的查询，往返时间只是近似值
+                if (recordPeer(ipAddress, announcement, System.currentTimeMillis() - lastQuery)) {
+                    session.deviceFound(ipAddress);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error during multicast discovery", e);
+        }
+        session.listener.onScanProgress(rounds, rounds);
+    }
+
+    /**
+     * 向所有目标地址发送查询报文
+     * 单个目标发送失败（例如网络不支持组播）不影响其他目标
      */
-    private void scanAddress(String ipAddress) {
+    private void sendQuery(DatagramSocket socket, byte[] query, List<InetAddress> targets) {
+        for (InetAddress target : targets) {
+            try {
+                socket.send(new DatagramPacket(query, query.length, target, DiscoveryProtocol.DISCOVERY_PORT));
+            } catch (IOException e) {
+                Log.w(TAG, "Error sending discovery query to " + target.getHostAddress(), e);
+            }
+        }
+    }
+
+    /**
+     * 用非阻塞TCP连接探测本机所在网段内的所有地址
+     * 所有探测在同一个线程中由Selector驱动，连接成功后请求身份接口确认对方是QuickPass设备
+     * @param currentIp 本机IP地址
+     * @param session 本次扫描
+     */
+    private void sweepSubnet(String currentIp, ScanSession session) {
         try {
-            Socket socket = new Socket();
-            socket.connect(new InetSocketAddress(ipAddress, SCAN_PORT), TIMEOUT_MS);
-            socket.close();
-            // 如果连接成功，说明该IP上有设备在运行指定端口的服务
-            synchronized (discoveredDevices) {
-                discoveredDevices.add(ipAddress);
+            Inet4Address address = (Inet4Address) InetAddress.getByName(currentIp);
+            Ipv4Subnet subnet = new Ipv4Subnet(address, getPrefixLength(address)).narrowTo(address, MIN_PREFIX_LENGTH);
+            List<InetAddress> targets = subnet.hosts();
+            targets.remove(address);
+            Log.i(TAG, "Sweeping " + targets.size() + " hosts in /" + subnet.getPrefixLength());
+
+            probeIdentity(targets, session, true);
+        } catch (IOException e) {
+            Log.e(TAG, "Error sweeping subnet", e);
+        }
+    }
+
+    /**
+     * 获取地址所在接口的网络前缀长度
+     * @param address 本机地址
+     * @return 前缀长度，无法获取时返回24
+     */
+    private int getPrefixLength(Inet4Address address) {
+        try {
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(address);
+            if (networkInterface != null) {
+                for (InterfaceAddress interfaceAddress : networkInterface.getInterfaceAddresses()) {
+                    if (address.equals(interfaceAddress.getAddress())) {
+                        return interfaceAddress.getNetworkPrefixLength();
+                    }
+                }
             }
-        } catch (IOException ignored) {
-            // 连接失败，说明该IP上没有运行服务
+        } catch (SocketException e) {
+            Log.w(TAG, "Error reading interface prefix length", e);
         }
+        return DEFAULT_PREFIX_LENGTH;
     }
 
     /**
@@ -130,6 +392,84 @@ public class DeviceScanner {
         }
     }
 
+    /**
+     * 扫描模式
+     */
+    public enum ScanMode {
+        /**
+         * 先进行UDP发现，没有设备应答时回退到TCP扫描
+         */
+        AUTO,
+        /**
+         * 仅进行UDP组播和广播发现
+         */
+        MULTICAST,
+        /**
+         * 仅对本机网段进行TCP扫描
+         */
+        TCP_SWEEP
+    }
+
+    /**
+     * 单次扫描的状态
+     * 汇总发现的设备并保证每台设备和扫描完成只回调一次
+     */
+    private final class ScanSession {
+        private final ScanListener listener;
+        private final Set<String> devices = new LinkedHashSet<>();
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        ScanSession(ScanListener listener) {
+            this.listener = listener;
+        }
+
+        /**
+         * 记录发现的设备，首次发现时回调
+         */
+        void deviceFound(String device) {
+            synchronized (devices) {
+                if (!devices.add(device)) {
+                    return;
+                }
+            }
+            listener.onDeviceFound(device);
+        }
+
+        boolean isEmpty() {
+            synchronized (devices) {
+                return devices.isEmpty();
+            }
+        }
+
+        /**
+         * 完成扫描
+         * 上一次扫描发现但本次未发现的设备视为离线
+         */
+        void complete() {
+            if (!completed.compareAndSet(false, true)) {
+                return;
+            }
+            List<String> result;
+            synchronized (devices) {
+                result = new ArrayList<>(devices);
+            }
+            List<String> lost = new ArrayList<>();
+            synchronized (lastDevices) {
+                for (String device : lastDevices) {
+                    if (!result.contains(device)) {
+                        lost.add(device);
+                    }
+                }
+                lastDevices.clear();
+                lastDevices.addAll(result);
+            }
+            for (String device : lost) {
+                listener.onDeviceLost(device);
+            }
+            listener.onScanComplete(result);
+        }
+    }
+
     /**
      * 扫描回调接口
      */
@@ -140,4 +480,30 @@ public class DeviceScanner {
          */
         void onScanComplete(List<String> devices);
     }
+
+    /**
+     * 扫描监听器接口
+     * 在扫描过程中逐个报告发现的设备，无需等待整个扫描结束
+     */
+    public interface ScanListener extends ScanCallback {
+        /**
+         * 发现设备时调用，每次扫描中同一设备只回调一次
+         * @param device 设备IP地址
+         */
+        void onDeviceFound(String device);
+
+        /**
+         * 上一次扫描发现的设备在本次扫描中未发现时调用，在扫描完成前回调
+         * @param device 设备IP地址
+         */
+        void onDeviceLost(String device);
+
+        /**
+         * 扫描进度变化时调用
+         * TCP扫描以已探测的地址数计，UDP发现以已完成的查询轮数计
+         * @param completed 已完成的数量
+         * @param total 总数量
+         */
+        void onScanProgress(int completed, int total);
+    }
 }
\ No newline at end of file
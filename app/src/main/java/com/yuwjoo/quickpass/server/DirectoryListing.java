@@ -0,0 +1,58 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.Closeable;
+
+/**
+ * 目录列表
+ * 按位置读取目录的子文档，实现可以只在读取时从内容提供者取出对应的行，不把整个目录读入内存。
+ * 只在列表线程中访问
+ */
+interface DirectoryListing extends Closeable {
+    /**
+     * 获取子文档数量
+     */
+    int getCount();
+
+    /**
+     * 移动到指定位置的子文档
+     *
+     * @param position 位置，从0开始
+     * @return 位置有效时返回true
+     */
+    boolean moveTo(int position);
+
+    /**
+     * 获取当前子文档的文档ID
+     */
+    String getDocumentId();
+
+    /**
+     * 获取当前子文档的名称
+     */
+    String getName();
+
+    /**
+     * 获取当前子文档的MIME类型
+     */
+    String getMimeType();
+
+    /**
+     * 获取当前子文档的大小
+     *
+     * @return 大小（字节），未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     */
+    long getSize();
+
+    /**
+     * 获取当前子文档的修改时间
+     *
+     * @return 修改时间（毫秒），未知时为{@link FileMetadata#UNKNOWN_TIME}
+     */
+    long getLastModified();
+
+    /**
+     * 关闭列表，不抛出异常
+     */
+    @Override
+    void close();
+}
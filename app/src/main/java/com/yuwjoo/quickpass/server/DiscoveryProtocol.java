@@ -0,0 +1,288 @@
+package com.yuwjoo.quickpass.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 局域网发现协议
+ * 扫描方通过UDP组播（兼容广播）发送查询报文，运行中的FileShareHttpServer回复通告报文，
+ * 通告中包含设备ID、名称、版本、HTTP端口、支持的功能和分享文件数量。
+ * 报文为UTF-8文本：第一行是协议版本和类型，之后每行一个key=value。
+ * HTTP服务的身份接口返回同样格式的通告，用于TCP扫描时确认对方确实是QuickPass设备
+ */
+public final class DiscoveryProtocol {
+    /**
+     * 发现协议使用的UDP端口
+     */
+    public static final int DISCOVERY_PORT = 3401;
+    /**
+     * 组播地址，使用本地管理范围内的地址
+     */
+    public static final String MULTICAST_GROUP = "239.255.34.1";
+    /**
+     * 报文最大长度
+     */
+    public static final int MAX_PACKET_SIZE = 1024;
+    /**
+     * HTTP身份接口路径
+     */
+    public static final String IDENTITY_PATH = "/identity";
+    /**
+     * 身份接口返回内容的MIME类型
+     */
+    public static final String IDENTITY_CONTENT_TYPE = "text/plain; charset=utf-8";
+
+    private static final String VERSION = "QUICKPASS/1";
+    private static final String TYPE_QUERY = "QUERY";
+    private static final String TYPE_ANNOUNCE = "ANNOUNCE";
+    private static final String KEY_ID = "id";
+    private static final String KEY_NAME = "name";
+    private static final String KEY_VERSION = "version";
+    private static final String KEY_PORT = "port";
+    private static final String KEY_CAPABILITIES = "caps";
+    private static final String KEY_SHARES = "shares";
+    private static final byte[] HEADER_END = {'\r', '\n', '\r', '\n'};
+
+    private DiscoveryProtocol() {
+    }
+
+    /**
+     * 生成查询报文
+     * @return 查询报文
+     */
+    public static byte[] encodeQuery() {
+        return (VERSION + " " + TYPE_QUERY + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 判断报文是否为查询报文
+     * @param data 报文数据
+     * @param length 报文长度
+     * @return 是查询报文返回true
+     */
+    public static boolean isQuery(byte[] data, int length) {
+        String[] lines = decodeLines(data, length);
+        return lines.length > 0 && lines[0].equals(VERSION + " " + TYPE_QUERY);
+    }
+
+    /**
+     * 生成通告报文
+     * @param announcement 通告内容
+     * @return 通告报文
+     */
+    public static byte[] encodeAnnouncement(Announcement announcement) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(VERSION).append(' ').append(TYPE_ANNOUNCE).append('\n');
+        appendField(builder, KEY_ID, announcement.getId());
+        appendField(builder, KEY_NAME, announcement.getName());
+        appendField(builder, KEY_VERSION, announcement.getVersion());
+        appendField(builder, KEY_PORT, String.valueOf(announcement.getPort()));
+        appendField(builder, KEY_CAPABILITIES, String.join(",", announcement.getCapabilities()));
+        appendField(builder, KEY_SHARES, String.valueOf(announcement.getShareCount()));
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 解析通告报文
+     * @param data 报文数据
+     * @param length 报文长度
+     * @return 通告内容，不是合法的通告报文时返回null
+     */
+    public static Announcement decodeAnnouncement(byte[] data, int length) {
+        String[] lines = decodeLines(data, length);
+        if (lines.length == 0 || !lines[0].equals(VERSION + " " + TYPE_ANNOUNCE)) {
+            return null;
+        }
+        String id = null;
+        String name = null;
+        String version = null;
+        int port = -1;
+        List<String> capabilities = Collections.emptyList();
+        int shareCount = 0;
+        try {
+            for (int i = 1; i < lines.length; i++) {
+                int separator = lines[i].indexOf('=');
+                if (separator == -1) {
+                    continue;
+                }
+                String key = lines[i].substring(0, separator);
+                String value = lines[i].substring(separator + 1);
+                switch (key) {
+                    case KEY_ID:
+                        id = value;
+                        break;
+                    case KEY_NAME:
+                        name = value;
+                        break;
+                    case KEY_VERSION:
+                        version = value;
+                        break;
+                    case KEY_PORT:
+                        port = Integer.parseInt(value);
+                        break;
+                    case KEY_CAPABILITIES:
+                        capabilities = value.isEmpty() ? Collections.emptyList() : Arrays.asList(value.split(","));
+                        break;
+                    case KEY_SHARES:
+                        shareCount = Integer.parseInt(value);
+                        break;
+                    default:
+                        // 忽略未知字段，便于以后扩展协议
+                        break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (port <= 0 || port > 0xFFFF) {
+            return null;
+        }
+        return new Announcement(id != null ? id : "", name != null ? name : "", version != null ? version : "",
+                port, capabilities, shareCount);
+    }
+
+    /**
+     * 生成身份接口的HTTP请求
+     * 请求要求服务端在响应后关闭连接，探测方读到连接结束即得到完整响应
+     * @param host 目标主机
+     * @param port 目标端口
+     * @return HTTP请求报文
+     */
+    public static byte[] encodeIdentityRequest(String host, int port) {
+        String request = "GET " + IDENTITY_PATH + " HTTP/1.1\r\n"
+                + "Host: " + host + ":" + port + "\r\n"
+                + "Connection: close\r\n"
+                + "\r\n";
+        return request.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 解析身份接口的HTTP响应
+     * @param data 响应数据
+     * @param length 响应长度
+     * @return 通告内容，响应不是200或内容不合法时返回null
+     */
+    public static Announcement decodeIdentityResponse(byte[] data, int length) {
+        int headerEnd = indexOf(data, length, HEADER_END);
+        if (headerEnd == -1) {
+            return null;
+        }
+        String statusLine = new String(data, 0, headerEnd, StandardCharsets.US_ASCII);
+        int lineEnd = statusLine.indexOf("\r\n");
+        if (lineEnd != -1) {
+            statusLine = statusLine.substring(0, lineEnd);
+        }
+        String[] parts = statusLine.split(" ");
+        if (parts.length < 2 || !parts[0].startsWith("HTTP/1.") || !parts[1].equals("200")) {
+            return null;
+        }
+        int bodyStart = headerEnd + HEADER_END.length;
+        byte[] body = Arrays.copyOfRange(data, bodyStart, Math.max(bodyStart, length));
+        return decodeAnnouncement(body, body.length);
+    }
+
+    private static int indexOf(byte[] data, int length, byte[] pattern) {
+        outer:
+        for (int i = 0; i + pattern.length <= length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static void appendField(StringBuilder builder, String key, String value) {
+        // 字段值不能包含换行
+        builder.append(key).append('=').append(value.replace('\n', ' ').replace('\r', ' ')).append('\n');
+    }
+
+    private static String[] decodeLines(byte[] data, int length) {
+        String text = new String(data, 0, Math.min(length, data.length), StandardCharsets.UTF_8);
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    /**
+     * 设备通告内容
+     */
+    public static final class Announcement {
+        private final String id;
+        private final String name;
+        private final String version;
+        private final int port;
+        private final List<String> capabilities;
+        private final int shareCount;
+
+        /**
+         * 构造函数
+         * @param id 设备ID，安装后保持不变
+         * @param name 设备名称
+         * @param version 应用版本
+         * @param port HTTP服务端口
+         * @param capabilities 支持的功能
+         * @param shareCount 分享文件数量
+         */
+        public Announcement(String id, String name, String version, int port, List<String> capabilities,
+                            int shareCount) {
+            this.id = id;
+            this.name = name;
+            this.version = version;
+            this.port = port;
+            this.capabilities = new ArrayList<>(capabilities);
+            this.shareCount = shareCount;
+        }
+
+        /**
+         * 获取设备ID
+         * @return 设备ID，旧版本的通告中没有时为空字符串
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * 获取应用版本
+         * @return 应用版本
+         */
+        public String getVersion() {
+            return version;
+        }
+
+        /**
+         * 获取设备名称
+         * @return 设备名称
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * 获取HTTP服务端口
+         * @return HTTP服务端口
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * 获取支持的功能
+         * @return 功能列表，例如range、zip
+         */
+        public List<String> getCapabilities() {
+            return Collections.unmodifiableList(capabilities);
+        }
+
+        /**
+         * 获取分享文件数量
+         * @return 分享文件数量
+         */
+        public int getShareCount() {
+            return shareCount;
+        }
+    }
+}
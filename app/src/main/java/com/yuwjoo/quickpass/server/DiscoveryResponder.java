@@ -0,0 +1,186 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.Enumeration;
+
+/**
+ * 发现协议应答器
+ * 在发现端口上监听组播和广播查询，并向查询方单播回复本机的通告；启动时主动组播一次通告
+ */
+public class DiscoveryResponder {
+    private static final String TAG = "DiscoveryResponder";
+
+    private final Context context;
+    private final AnnouncementProvider announcementProvider;
+    private MulticastSocket socket;
+    private Thread thread;
+    private WifiManager.MulticastLock multicastLock;
+
+    /**
+     * 构造函数
+     * @param context 上下文
+     * @param announcementProvider 提供当前通告内容，例如最新的分享文件数量
+     */
+    public DiscoveryResponder(Context context, AnnouncementProvider announcementProvider) {
+        this.context = context.getApplicationContext();
+        this.announcementProvider = announcementProvider;
+    }
+
+    /**
+     * 启动应答器
+     */
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            InetAddress group = InetAddress.getByName(DiscoveryProtocol.MULTICAST_GROUP);
+            socket = new MulticastSocket(DiscoveryProtocol.DISCOVERY_PORT);
+            // 在Wi-Fi接口上加入组播组，找不到时由系统选择接口
+            socket.joinGroup(new InetSocketAddress(group, DiscoveryProtocol.DISCOVERY_PORT), findWifiInterface());
+            acquireMulticastLock();
+
+            // 主动通告一次，让正在扫描的设备立即发现本机
+            byte[] announcement = DiscoveryProtocol.encodeAnnouncement(announcementProvider.getAnnouncement());
+            socket.send(new DatagramPacket(announcement, announcement.length, group, DiscoveryProtocol.DISCOVERY_PORT));
+        } catch (IOException e) {
+            Log.e(TAG, "Error starting discovery responder", e);
+            closeSocket();
+            return;
+        }
+
+        final MulticastSocket listeningSocket = socket;
+        thread = new Thread(() -> respondLoop(listeningSocket), TAG);
+        thread.setDaemon(true);
+        thread.start();
+        Log.i(TAG, "Discovery responder started on port " + DiscoveryProtocol.DISCOVERY_PORT);
+    }
+
+    /**
+     * 停止应答器
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+        closeSocket();
+        releaseMulticastLock();
+        Log.i(TAG, "Discovery responder stopped");
+    }
+
+    /**
+     * 接收查询并回复通告
+     */
+    private void respondLoop(MulticastSocket listeningSocket) {
+        byte[] buffer = new byte[DiscoveryProtocol.MAX_PACKET_SIZE];
+        while (!Thread.currentThread().isInterrupted()) {
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            try {
+                listeningSocket.receive(packet);
+                if (!DiscoveryProtocol.isQuery(packet.getData(), packet.getLength())) {
+                    continue;
+                }
+                byte[] reply = DiscoveryProtocol.encodeAnnouncement(announcementProvider.getAnnouncement());
+                listeningSocket.send(new DatagramPacket(reply, reply.length, packet.getAddress(), packet.getPort()));
+            } catch (SocketException e) {
+                // 套接字被关闭，应答器已停止
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Error answering discovery query", e);
+            }
+        }
+    }
+
+    /**
+     * 查找Wi-Fi网络接口
+     * 优先选择名称以wlan开头的接口，否则选择第一个已启用、支持组播且有IPv4地址的非回环接口
+     *
+     * @return 网络接口，找不到时返回null
+     */
+    private static NetworkInterface findWifiInterface() {
+        NetworkInterface fallback = null;
+        try {
+            Enumeration<NetworkInterface> interfaces = NetworkInterface.getNetworkInterfaces();
+            if (interfaces == null) {
+                return null;
+            }
+            for (NetworkInterface networkInterface : Collections.list(interfaces)) {
+                if (!networkInterface.isUp() || networkInterface.isLoopback() || !networkInterface.supportsMulticast()
+                        || !hasIpv4Address(networkInterface)) {
+                    continue;
+                }
+                if (networkInterface.getName().startsWith("wlan")) {
+                    return networkInterface;
+                }
+                if (fallback == null) {
+                    fallback = networkInterface;
+                }
+            }
+        } catch (SocketException e) {
+            Log.w(TAG, "Error listing network interfaces", e);
+        }
+        return fallback;
+    }
+
+    private static boolean hasIpv4Address(NetworkInterface networkInterface) {
+        for (InetAddress address : Collections.list(networkInterface.getInetAddresses())) {
+            if (address instanceof Inet4Address) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取组播锁
+     * 部分设备的Wi-Fi驱动默认过滤组播报文
+     */
+    private void acquireMulticastLock() {
+        WifiManager wifiManager = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            multicastLock = wifiManager.createMulticastLock(TAG);
+            multicastLock.setReferenceCounted(false);
+            multicastLock.acquire();
+        }
+    }
+
+    private void releaseMulticastLock() {
+        if (multicastLock != null) {
+            multicastLock.release();
+            multicastLock = null;
+        }
+    }
+
+    private void closeSocket() {
+        if (socket != null) {
+            socket.close();
+            socket = null;
+        }
+    }
+
+    /**
+     * 通告内容提供者接口
+     */
+    public interface AnnouncementProvider {
+        /**
+         * 获取本机当前的通告内容
+         * 在应答线程中调用
+         * @return 通告内容
+         */
+        DiscoveryProtocol.Announcement getAnnouncement();
+    }
+}
@@ -0,0 +1,144 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 文档变化监听器
+ * 每个内容提供者只注册一个监听其下全部Uri的观察者，收到通知后找出受影响的分享，
+ * 分享大量文件时不必为每个文件分别向系统注册
+ */
+class DocumentWatcher {
+    private static final String TAG = "DocumentWatcher";
+
+    private final ContentResolver resolver;
+    private final OnDocumentChangedListener listener;
+    private final Map<String, AuthorityObserver> observers = new HashMap<>(); // 以内容提供者的authority为键
+
+    /**
+     * 构造函数
+     *
+     * @param resolver 内容解析器
+     * @param listener 文档变化时在系统的通知线程中回调
+     */
+    DocumentWatcher(ContentResolver resolver, OnDocumentChangedListener listener) {
+        this.resolver = resolver;
+        this.listener = listener;
+    }
+
+    /**
+     * 开始监听分享的文档
+     * 同一内容提供者的第一个分享注册观察者，之后的分享只加入列表
+     *
+     * @param entry 分享条目
+     */
+    synchronized void watch(ShareEntry entry) {
+        Uri uri = entry.getUri();
+        String authority = uri.getAuthority();
+        if (!ContentResolver.SCHEME_CONTENT.equals(uri.getScheme()) || authority == null) {
+            return;
+        }
+        AuthorityObserver observer = observers.get(authority);
+        if (observer == null) {
+            observer = new AuthorityObserver();
+            try {
+                resolver.registerContentObserver(new Uri.Builder()
+                        .scheme(ContentResolver.SCHEME_CONTENT).authority(authority).build(), true, observer);
+            } catch (Exception e) {
+                Log.w(TAG, "Cannot observe " + authority, e);
+                return;
+            }
+            observers.put(authority, observer);
+        }
+        observer.entries.put(entry.getId(), entry);
+    }
+
+    /**
+     * 停止监听分享的文档，内容提供者没有其他分享时注销观察者
+     *
+     * @param entry 分享条目
+     */
+    synchronized void unwatch(ShareEntry entry) {
+        AuthorityObserver observer = observers.get(entry.getUri().getAuthority());
+        if (observer == null || !observer.entries.remove(entry.getId(), entry)) {
+            return;
+        }
+        if (observer.entries.isEmpty()) {
+            observers.remove(entry.getUri().getAuthority());
+            resolver.unregisterContentObserver(observer);
+        }
+    }
+
+    /**
+     * 注销全部观察者
+     */
+    synchronized void unwatchAll() {
+        Iterator<AuthorityObserver> iterator = observers.values().iterator();
+        while (iterator.hasNext()) {
+            resolver.unregisterContentObserver(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    /**
+     * 判断变化的Uri是否影响分享
+     * 通知的Uri与分享相同或是它的上级时视为受影响，通知未给出Uri时视为全部受影响
+     *
+     * @param changed 通知的Uri字符串，可以为null
+     * @param target  分享的Uri字符串
+     * @return 受影响时返回true
+     */
+    static boolean affects(String changed, String target) {
+        if (changed == null || target.equals(changed)) {
+            return true;
+        }
+        return target.startsWith(changed.endsWith("/") ? changed : changed + "/");
+    }
+
+    /**
+     * 一个内容提供者的观察者，记录该提供者下的分享
+     */
+    private final class AuthorityObserver extends ContentObserver {
+        final Map<String, ShareEntry> entries = new HashMap<>(); // 以分享ID为键，在外部类的锁内访问
+
+        AuthorityObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            List<ShareEntry> changed = new ArrayList<>();
+            String prefix = uri != null ? uri.toString() : null;
+            synchronized (DocumentWatcher.this) {
+                for (ShareEntry entry : entries.values()) {
+                    if (affects(prefix, entry.getUri().toString())) {
+                        changed.add(entry);
+                    }
+                }
+            }
+            for (ShareEntry entry : changed) {
+                listener.onDocumentChanged(entry);
+            }
+        }
+    }
+
+    /**
+     * 文档变化监听器接口
+     */
+    interface OnDocumentChangedListener {
+        /**
+         * 分享的文档发生变化
+         *
+         * @param entry 分享条目
+         */
+        void onDocumentChanged(ShareEntry entry);
+    }
+}
@@ -0,0 +1,255 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * 文件元数据类
+ * 不可变对象，添加分享时解析一次，请求处理时直接使用，无需再查询内容提供者
+ */
+public final class FileMetadata {
+    /**
+     * 修改时间未知
+     */
+    public static final long UNKNOWN_TIME = 0;
+
+    private final String name;
+    private final long size;
+    private final String mimeType;
+    private final long lastModified;
+    private final String contentHash;
+    private final String etag;
+    private final String statEtag;
+    private final String lastModifiedHeader;
+    private final String contentDisposition;
+    private final String[] fileHeaders;
+
+    /**
+     * 构造函数
+     * @param name 文件名
+     * @param size 文件大小（字节），未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     * @param mimeType MIME类型
+     * @param lastModified 修改时间（毫秒），未知时为{@link #UNKNOWN_TIME}
+     */
+    public FileMetadata(String name, long size, String mimeType, long lastModified) {
+        this(name, size, mimeType, lastModified, null);
+    }
+
+    /**
+     * 构造函数
+     * @param name 文件名
+     * @param size 文件大小（字节），未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     * @param mimeType MIME类型
+     * @param lastModified 修改时间（毫秒），未知时为{@link #UNKNOWN_TIME}
+     * @param contentHash 十六进制的内容SHA-256，未计算时为null
+     */
+    public FileMetadata(String name, long size, String mimeType, long lastModified, String contentHash) {
+        this.name = name;
+        this.size = size;
+        this.mimeType = mimeType;
+        this.lastModified = lastModified;
+        this.contentHash = contentHash;
+        this.statEtag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+        this.etag = contentHash != null ? "\"" + contentHash + "\"" : statEtag;
+        this.lastModifiedHeader = lastModified != UNKNOWN_TIME ? formatHttpDate(lastModified) : null;
+        this.contentDisposition = "attachment; filename*=UTF-8''" + encodeFileName(name);
+        this.fileHeaders = buildFileHeaders();
+    }
+
+    /**
+     * 生成发送文件时固定不变的响应头
+     * 元数据不可变，每个版本只生成一次，请求处理时直接写入
+     */
+    private String[] buildFileHeaders() {
+        List<String> headers = new ArrayList<>(10);
+        headers.add("Accept-Ranges");
+        headers.add("bytes");
+        headers.add("ETag");
+        headers.add(etag);
+        if (lastModifiedHeader != null) {
+            headers.add("Last-Modified");
+            headers.add(lastModifiedHeader);
+        }
+        if (contentHash != null) {
+            // 摘要针对完整文件，部分内容响应中同样有效，接收方可以据此校验
+            String digest = ContentHashStore.toBase64(ContentHashStore.fromHex(contentHash));
+            headers.add("Digest");
+            headers.add("sha-256=" + digest);
+            headers.add("Repr-Digest");
+            headers.add("sha-256=:" + digest + ":");
+        }
+        return headers.toArray(new String[0]);
+    }
+
+    /**
+     * 以新的大小和修改时间生成元数据，文件名和类型保持不变
+     *
+     * @param size         新的文件大小
+     * @param lastModified 新的修改时间（毫秒）
+     * @return 新的元数据
+     */
+    public FileMetadata withStat(long size, long lastModified) {
+        return new FileMetadata(name, size, mimeType, lastModified);
+    }
+
+    /**
+     * 以计算出的内容哈希生成元数据，其余字段保持不变
+     *
+     * @param contentHash 十六进制的内容SHA-256
+     * @return 新的元数据
+     */
+    public FileMetadata withContentHash(String contentHash) {
+        return new FileMetadata(name, size, mimeType, lastModified, contentHash);
+    }
+
+    /**
+     * 获取文件名
+     * @return 文件名
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取文件大小
+     * @return 文件大小（字节），未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * 获取MIME类型
+     * @return MIME类型
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * 获取修改时间
+     * @return 修改时间（毫秒），未知时为{@link #UNKNOWN_TIME}
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 获取内容哈希
+     * @return 十六进制的内容SHA-256，未计算时返回null
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * 获取ETag
+     * 已计算内容哈希时由哈希生成，内容相同的文件ETag相同；否则由修改时间和文件大小生成
+     * @return 带引号的强ETag
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * 判断ETag是否指向当前版本的文件
+     * 内容哈希算出之前发出的ETag由修改时间和文件大小生成，仍然有效
+     *
+     * @param tag 带引号的ETag
+     * @return 指向当前版本时返回true
+     */
+    public boolean isCurrentEtag(String tag) {
+        return etag.equals(tag) || statEtag.equals(tag);
+    }
+
+    /**
+     * 判断If-None-Match请求头是否与当前版本匹配
+     *
+     * @param ifNoneMatch If-None-Match请求头，可以为null
+     * @return 匹配时返回true，可以返回304
+     */
+    public boolean matchesIfNoneMatch(String ifNoneMatch) {
+        return matchesIfNoneMatch(ifNoneMatch, etag) || matchesIfNoneMatch(ifNoneMatch, statEtag);
+    }
+
+    /**
+     * 判断If-None-Match请求头是否包含指定的ETag
+     * 按弱比较规则，忽略W/前缀
+     *
+     * @param ifNoneMatch If-None-Match请求头，可以为null
+     * @param etag        带引号的ETag
+     * @return 包含时返回true
+     */
+    static boolean matchesIfNoneMatch(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String value : ifNoneMatch.split(",")) {
+            String tag = value.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 获取Last-Modified响应头的值
+     * @return HTTP日期，修改时间未知时返回null
+     */
+    public String getLastModifiedHeader() {
+        return lastModifiedHeader;
+    }
+
+    /**
+     * 获取Content-Disposition响应头的值
+     * @return 附件形式的响应头值
+     */
+    public String getContentDisposition() {
+        return contentDisposition;
+    }
+
+    /**
+     * 获取发送文件时固定不变的响应头
+     * 包括Accept-Ranges、ETag、Last-Modified和摘要，不包括随请求变化的Content-Length和Content-Range
+     * @return 按名称、值交替排列的数组，调用方不能修改
+     */
+    String[] getFileHeaders() {
+        return fileHeaders;
+    }
+
+    /**
+     * 格式化HTTP日期
+     *
+     * @param timeMillis 时间戳（毫秒）
+     * @return RFC 1123格式的日期字符串
+     */
+    static String formatHttpDate(long timeMillis) {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format.format(new Date(timeMillis));
+    }
+
+    /**
+     * 按RFC 5987对文件名进行百分号编码
+     *
+     * @param name 文件名
+     * @return 编码后的文件名
+     */
+    private static String encodeFileName(String name) {
+        try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            return name;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * 文件元数据解析器
+ * 使用只包含所需列的投影一次性查询文件名、大小、类型和修改时间；
+ * 分享的目录按需列出子文档，不预先遍历整个目录树
+ */
+public class FileMetadataResolver {
+    private static final String TAG = "FileMetadataResolver";
+    private static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    private static final String DEFAULT_FILE_NAME = "download";
+
+    // 文档Uri可以一次查出全部元数据
+    private static final String[] DOCUMENT_PROJECTION = {
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED
+    };
+    // 目录的子文档，额外查询文档ID用于生成链接
+    private static final String[] CHILD_PROJECTION = {
+            DocumentsContract.Document.COLUMN_DISPLAY_NAME,
+            DocumentsContract.Document.COLUMN_SIZE,
+            DocumentsContract.Document.COLUMN_MIME_TYPE,
+            DocumentsContract.Document.COLUMN_LAST_MODIFIED,
+            DocumentsContract.Document.COLUMN_DOCUMENT_ID
+    };
+    // 其他内容提供者只保证提供OpenableColumns
+    private static final String[] OPENABLE_PROJECTION = {
+            OpenableColumns.DISPLAY_NAME,
+            OpenableColumns.SIZE
+    };
+
+    private final Context context;
+
+    /**
+     * 构造函数
+     * @param context 上下文
+     */
+    public FileMetadataResolver(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 解析文件元数据
+     * 会访问内容提供者，不应在请求处理路径上调用。查询结果缺少大小或修改时间时不在这里打开文件，
+     * 由首次请求或计算哈希时打开文件后补全，批量添加时每个文件只需一次查询
+     *
+     * @param uri 文件Uri
+     * @return 文件元数据
+     */
+    public FileMetadata resolve(Uri uri) {
+        ContentResolver resolver = context.getContentResolver();
+        boolean isDocument = DocumentsContract.isDocumentUri(context, uri);
+        String name = null;
+        long size = ShareEntry.UNKNOWN_SIZE;
+        String mimeType = null;
+        long lastModified = FileMetadata.UNKNOWN_TIME;
+
+        if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+            String[] projection = isDocument ? DOCUMENT_PROJECTION : OPENABLE_PROJECTION;
+            try (Cursor cursor = resolver.query(uri, projection, null, null, null)) {
+                if (cursor != null && cursor.moveToFirst()) {
+                    name = cursor.getString(0);
+                    if (!cursor.isNull(1)) {
+                        size = cursor.getLong(1);
+                    }
+                    if (isDocument) {
+                        mimeType = cursor.getString(2);
+                        if (!cursor.isNull(3)) {
+                            lastModified = cursor.getLong(3);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Error querying file metadata", e);
+            }
+        }
+
+        if (mimeType == null) {
+            mimeType = resolver.getType(uri);
+        }
+        if (name == null) {
+            name = uri.getLastPathSegment();
+        }
+        return new FileMetadata(
+                name != null ? name : DEFAULT_FILE_NAME,
+                size,
+                mimeType != null ? mimeType : DEFAULT_MIME_TYPE,
+                lastModified);
+    }
+
+    /**
+     * 解析通过ACTION_OPEN_DOCUMENT_TREE选择的目录
+     *
+     * @param treeUri 目录Uri
+     * @return 目录的元数据，大小未知
+     */
+    public FileMetadata resolveDirectory(Uri treeUri) {
+        Uri rootUri = DocumentsContract.buildDocumentUriUsingTree(treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+        String name = null;
+        long lastModified = FileMetadata.UNKNOWN_TIME;
+        try (Cursor cursor = context.getContentResolver().query(rootUri, DOCUMENT_PROJECTION, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                name = cursor.getString(0);
+                if (!cursor.isNull(3)) {
+                    lastModified = cursor.getLong(3);
+                }
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Error querying directory metadata", e);
+        }
+        return new FileMetadata(name != null ? name : DEFAULT_FILE_NAME, ShareEntry.UNKNOWN_SIZE,
+                ListingPage.DIRECTORY_MIME_TYPE, lastModified);
+    }
+
+    /**
+     * 打开目录的子文档列表
+     * 只查询一次内容提供者，行数据按需从查询结果的窗口中读取；
+     * 会访问内容提供者，不应在界面线程或服务器线程调用
+     *
+     * @param treeUri    目录树Uri
+     * @param documentId 目录的文档ID，必须位于目录树中
+     * @return 子文档列表
+     * @throws IOException 查询失败
+     */
+    DirectoryListing openListing(Uri treeUri, String documentId) throws IOException {
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(treeUri, documentId);
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(childrenUri, CHILD_PROJECTION, null, null, null);
+        } catch (Exception e) {
+            // 文档不在目录树中时提供方抛出SecurityException
+            throw new IOException("Cannot list " + childrenUri, e);
+        }
+        if (cursor == null) {
+            throw new IOException("Cannot list " + childrenUri);
+        }
+        return new CursorListing(cursor);
+    }
+
+    /**
+     * 以查询结果实现的目录列表
+     */
+    private static final class CursorListing implements DirectoryListing {
+        private final Cursor cursor;
+
+        CursorListing(Cursor cursor) {
+            this.cursor = cursor;
+        }
+
+        @Override
+        public int getCount() {
+            return cursor.getCount();
+        }
+
+        @Override
+        public boolean moveTo(int position) {
+            return cursor.moveToPosition(position);
+        }
+
+        @Override
+        public String getDocumentId() {
+            return cursor.getString(4);
+        }
+
+        @Override
+        public String getName() {
+            String name = cursor.getString(0);
+            return name != null ? name : DEFAULT_FILE_NAME;
+        }
+
+        @Override
+        public String getMimeType() {
+            String mimeType = cursor.getString(2);
+            return mimeType != null ? mimeType : DEFAULT_MIME_TYPE;
+        }
+
+        @Override
+        public long getSize() {
+            return cursor.isNull(1) ? ShareEntry.UNKNOWN_SIZE : cursor.getLong(1);
+        }
+
+        @Override
+        public long getLastModified() {
+            return cursor.isNull(3) ? FileMetadata.UNKNOWN_TIME : cursor.getLong(3);
+        }
+
+        @Override
+        public void close() {
+            cursor.close();
+        }
+    }
+}
@@ -1,34 +1,151 @@
 package com.yuwjoo.quickpass.server;
 
+import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
+import android.content.Intent;
+import android.content.UriPermission;
 import android.net.Uri;
 import android.net.wifi.WifiManager;
+import android.os.Debug;
+import android.os.Environment;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
 import android.util.Log;
 
+import com.koushikdutta.async.AsyncNetworkSocket;
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
 import com.koushikdutta.async.http.Multimap;
-import com.koushikdutta.async.http.server.AsyncHttpServer;
 import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
 import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public class FileShareHttpServer {
     private static final String TAG = "FileShareHttpServer";
-    private static final int PORT = 3400; // 端口号
+    public static final int PORT = 3400; // 端口号
+    private static final String ZIP_FILE_NAME = "QuickPass.zip"; // 打包下载的文件名
+    private static final String RECEIVED_DIRECTORY = "received"; // 接收文件的保存目录名
+    private static final int MAX_ACTIVE_TRANSFERS = 16; // 同时进行的最大下载数
+    private static final int MAX_QUEUED_TRANSFERS = 32; // 最大排队下载数，超出时返回503
+    private static final String COMPRESSED_DIRECTORY = "compressed"; // 压缩结果缓存目录名
+    private static final long MAX_COMPRESSED_BYTES = 64L * 1024 * 1024; // 压缩结果缓存的总大小上限
+    private static final String CONTENT_HASH_FILE = "content_hashes"; // 内容哈希的持久化文件名
+    private static final int MAX_CONTENT_HASHES = 4096; // 最多保存的内容哈希记录数
+    private static final int IMPORT_BATCH_SIZE = 100; // 批量添加文件时每批回调的文件数
+    private static final long LISTING_TTL_SECONDS = 30; // 目录列表未被访问的最长保留时间
+    private static final int MAX_LISTINGS = 8; // 最多缓存的目录列表数
+    private static final String LISTING_CONTENT_TYPE = "application/json; charset=utf-8";
+    private static final String SHARE_STORE_FILE = "shares.log"; // 分享持久化日志的文件名
+    public static final int DEFAULT_KEEP_ALIVE_REQUESTS = 1000; // 每个持久连接默认最多处理的请求数
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS = 15; // 持久连接默认的空闲超时
+    private static final String METRICS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8"; // Prometheus文本格式
     private final Context context; // 当前上下文
-    private final AsyncHttpServer server = new AsyncHttpServer();
-    private final Map<String, Uri> shareFileMap = new HashMap<>();// 要分享的文件map
+    private final FileMetadataResolver metadataResolver; // 文件元数据解析器
+    private final KeepAliveHttpServer server;
+    private final ShareRegistry shareRegistry = new ShareRegistry(); // 要分享的文件注册表
+    private final DiscoveryResponder discoveryResponder; // 局域网发现应答器
+    private final String deviceId; // 本机设备ID
+    private final String appVersion; // 应用版本
+    private final UploadStore uploadStore; // 接收文件存储
+    private final UploadHandler uploadHandler; // 上传接口
+    private final TransferScheduler.EventLoop eventLoop =
+            (runnable, delayMillis) -> AsyncServer.getDefault().postDelayed(runnable, delayMillis); // 服务器线程
+    private final TransferScheduler transferScheduler = new TransferScheduler(
+            eventLoop, System::nanoTime, MAX_ACTIVE_TRANSFERS, MAX_QUEUED_TRANSFERS); // 下载调度器
+    private final TransferMetrics metrics = new TransferMetrics(
+            eventLoop, System::nanoTime, Debug::threadCpuTimeNanos); // 传输指标，CPU时间在服务器线程中读取
+    private final CompressionCache compressionCache; // 压缩结果缓存
+    private final ExecutorService readAheadExecutor = Executors.newCachedThreadPool(); // 预读线程池
+    private final StreamBuffers streamBuffers = new StreamBuffers(readAheadExecutor); // 响应流缓冲区池
+    private final ContentHashStore contentHashStore; // 内容哈希存储
+    private final ShareStore shareStore; // 分享持久化存储，只在导入线程中写入
+    private PersistedGrants persistedGrants; // 持久化权限的配额，首次使用时创建
+    private final DocumentWatcher documentWatcher; // 监听分享的文档变化
+    private final ExecutorService hashExecutor = Executors.newSingleThreadExecutor(); // 逐个计算内容哈希
+    private final ExecutorService importExecutor = Executors.newSingleThreadExecutor(); // 批量添加文件时解析元数据
+    private final ExecutorService listExecutor = Executors.newSingleThreadExecutor(); // 列出分享目录，查询内容提供者
+    private final ShareReaper shareReaper = new ShareReaper(System::currentTimeMillis, this::expireShare); // 移除过期的分享
+    private volatile OnShareExpiredListener onShareExpiredListener;
+    private volatile OnSharesRestoredListener onSharesRestoredListener;
+    private final ListingCache listingCache = new ListingCache(System::nanoTime,
+            TimeUnit.SECONDS.toNanos(LISTING_TTL_SECONDS), MAX_LISTINGS); // 只在列表线程中访问
 
     public FileShareHttpServer(Context context) {
+        this(context, DEFAULT_KEEP_ALIVE_REQUESTS, DEFAULT_KEEP_ALIVE_TIMEOUT_SECONDS);
+    }
+
+    /**
+     * 构造函数
+     * 下载大量小文件时连接复用决定吞吐量，可以按客户端数量调整持久连接的限制
+     *
+     * @param context                 上下文
+     * @param keepAliveRequests       每个持久连接最多处理的请求数
+     * @param keepAliveTimeoutSeconds 持久连接的空闲超时（秒）
+     */
+    public FileShareHttpServer(Context context, int keepAliveRequests, int keepAliveTimeoutSeconds) {
         this.context = context;
+        this.server = new KeepAliveHttpServer(keepAliveRequests, keepAliveTimeoutSeconds);
+        this.metadataResolver = new FileMetadataResolver(context);
+        this.discoveryResponder = new DiscoveryResponder(context, this::createAnnouncement);
+        this.deviceId = DeviceIdentity.getDeviceId(context);
+        this.appVersion = DeviceIdentity.getAppVersion(context);
+        this.uploadStore = new UploadStore(getReceivedDirectory(context));
+        this.uploadHandler = new UploadHandler(uploadStore, shareRegistry, metrics);
+        this.compressionCache = new CompressionCache(
+                new File(context.getCacheDir(), COMPRESSED_DIRECTORY), MAX_COMPRESSED_BYTES);
+        this.contentHashStore = new ContentHashStore(
+                new File(context.getFilesDir(), CONTENT_HASH_FILE), MAX_CONTENT_HASHES);
+        this.shareStore = new ShareStore(new File(context.getFilesDir(), SHARE_STORE_FILE));
+        this.documentWatcher = new DocumentWatcher(context.getContentResolver(), this::refreshMetadata);
+
+        shareRegistry.setOnShareDrainedListener(entry ->
+                Log.i(TAG, "Share drained: " + entry.getId()));
 
         server.get("/", this::handleRootRoute);
+        server.get(DiscoveryProtocol.IDENTITY_PATH, this::handleIdentity);
+        server.get("/metrics", this::handleMetrics);
+        server.get("/list", this::handleList);
         server.get("/downloadFile", this::handleDownloadFile);
+        server.addAction("HEAD", "/downloadFile", this::handleDownloadFile);
+        server.get("/downloadAll", this::handleDownloadAll);
+        server.get("/downloadSelection", this::handleDownloadSelection);
+        server.addAction("HEAD", "/downloadAll", this::handleDownloadAll);
+        server.addAction("HEAD", "/downloadSelection", this::handleDownloadSelection);
+        uploadHandler.register(server);
+    }
+
+    /**
+     * 获取接收文件的保存目录
+     * 使用应用专属目录，不需要存储权限；外部存储不可用时保存在内部存储
+     */
+    private static File getReceivedDirectory(Context context) {
+        File base = context.getExternalFilesDir(Environment.DIRECTORY_DOWNLOADS);
+        if (base == null) {
+            base = context.getFilesDir();
+        }
+        return new File(base, RECEIVED_DIRECTORY);
     }
 
     /**
@@ -42,52 +159,739 @@ public class FileShareHttpServer {
         response.send("QuickPass-Device");
     }
 
+    /**
+     * 处理身份接口
+     * 返回与发现协议通告相同格式的本机身份信息，扫描方用它确认对方是QuickPass设备
+     */
+    private void handleIdentity(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        response.send(DiscoveryProtocol.IDENTITY_CONTENT_TYPE,
+                DiscoveryProtocol.encodeAnnouncement(createAnnouncement()));
+    }
+
+    /**
+     * 处理指标接口
+     * 以Prometheus文本格式返回传输指标
+     */
+    private void handleMetrics(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        StringBuilder out = new StringBuilder(4096);
+        metrics.writePrometheus(out, transferScheduler.getActiveCount(), transferScheduler.getQueuedCount());
+        streamBuffers.writePrometheus(out);
+        response.send(METRICS_CONTENT_TYPE, out.toString());
+    }
+
     /**
      * 处理下载文件路由
+     * 支持Range/If-Range断点续传，返回206部分内容；
+     * 分享的目录中的文件通过doc参数指定文档ID
      */
     private void handleDownloadFile(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
         Multimap queryMultimap = request.getQuery();
         String fileId = queryMultimap.getString("id");
-        Uri fileUri = shareFileMap.get(fileId);
+        ShareEntry entry = shareRegistry.acquire(fileId);
 
-        if (fileUri != null) {
-            try {
-                // 获取文件名
-                String fileName = getFileNameFromUri(fileUri);
-                // 获取文件MIME类型
-                String mimeType = getMimeTypeFromUri(fileUri);
+        if (entry == null) {
+            // 文件不存在或已移除时返回404
+            sendShareNotFound(response);
+            return;
+        }
+        if (!countDownload(request, entry)) {
+            shareRegistry.release(entry);
+            metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+            response.code(404);
+            response.end();
+            return;
+        }
+        if (!entry.isDirectory()) {
+            sendEntry(request, response, entry, entry, server.holdConnection(request));
+            return;
+        }
+
+        String documentId = queryMultimap.getString("doc");
+        if (documentId == null) {
+            shareRegistry.release(entry);
+            metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+            response.code(404);
+            response.end();
+            return;
+        }
+        // 目录中的文件在列表线程中解析元数据，再回到服务器线程发送；
+        // 文档不在目录树中时提供方拒绝打开，返回404
+        Runnable hold = server.holdConnection(request);
+        try {
+            listExecutor.execute(() -> {
+                Uri uri = DocumentsContract.buildDocumentUriUsingTree(entry.getUri(), documentId);
+                ShareEntry child = new ShareEntry(entry.getId() + "/" + documentId, uri, metadataResolver.resolve(uri));
+                AsyncServer.getDefault().post(() -> sendEntry(request, response, child, entry, hold));
+            });
+        } catch (RejectedExecutionException e) {
+            shareRegistry.release(entry);
+            response.code(503);
+            response.end();
+            hold.run();
+        }
+    }
 
-                // 打开文件流
+    /**
+     * 发送一个文件
+     *
+     * @param request  HTTP请求
+     * @param response HTTP响应
+     * @param entry    要发送的文件
+     * @param owner    通过注册表获取的分享条目，传输结束后释放，传输指标记在它名下
+     * @param hold     响应结束后调用，见{@link KeepAliveHttpServer#holdConnection(AsyncHttpServerRequest)}
+     */
+    private void sendEntry(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                           ShareEntry entry, ShareEntry owner, Runnable hold) {
+        Uri fileUri = entry.getUri();
+        FileTransfer transfer;
+        try {
+            // 使用添加分享时缓存的元数据设置响应头
+            FileMetadata metadata = entry.getMetadata();
+            response.getHeaders().add("Content-Type", metadata.getMimeType());
+            response.getHeaders().add("Content-Disposition", metadata.getContentDisposition());
+
+            String encoding = chooseEncoding(request, response, metadata);
+            ParcelFileDescriptor fileDescriptor = encoding == null ? openSeekableFile(fileUri) : null;
+            if (encoding != null) {
+                // 可压缩的文件边读边压缩发送
+                transfer = sendCompressed(request, response, entry, encoding);
+            } else if (fileDescriptor != null) {
+                // 优先以可定位的文件描述符发送，支持断点续传
+                transfer = sendFileRange(request, response, entry, fileDescriptor);
+            } else {
+                // 无法定位的文件流只能完整发送
                 InputStream inputStream = context.getContentResolver().openInputStream(fileUri);
-                if (inputStream != null) {
-                    // 设置响应头
-                    response.getHeaders().add("Content-Type", mimeType);
-                    response.getHeaders().add("Content-Disposition", "attachment; filename*=UTF-8''" + fileName);
-                    // 发送文件内容
-                    response.sendStream(inputStream, inputStream.available());
-                    return;
+                if (inputStream == null) {
+                    throw new FileNotFoundException("Cannot open " + fileUri);
                 }
-            } catch (Exception e) {
-                Log.e(TAG, "Error sending file", e);
+                transfer = sendFileStream(request, response, inputStream, entry.getSize());
             }
+        } catch (Exception e) {
+            Log.e(TAG, "Error sending file", e);
+            shareRegistry.release(owner);
+            metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+            response.code(404);
+            response.end();
+            hold.run();
+            return;
+        }
+
+        if (transfer == null) {
+            // 响应已直接完成，无需传输文件内容
+            shareRegistry.release(owner);
+            hold.run();
+        } else {
+            transfer.setCompletedCallback(ex -> {
+                shareRegistry.release(owner);
+                hold.run();
+            });
+            transfer.schedule(transferScheduler, metrics, streamBuffers, getClientId(request), owner.getId());
         }
+    }
 
-        // 文件不存在或发生错误时返回404
-        response.code(404);
+    /**
+     * 响应找不到的分享
+     * 启动时恢复分享期间，请求的分享可能还没有恢复，返回503让请求方稍后重试；否则返回404
+     *
+     * @param response HTTP响应
+     */
+    private void sendShareNotFound(AsyncHttpServerResponse response) {
+        if (shareRegistry.isRestoring()) {
+            response.getHeaders().set("Retry-After", "1");
+            response.code(503);
+        } else {
+            metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+            response.code(404);
+        }
         response.end();
     }
 
+    /**
+     * 为一次新的下载计入下载次数
+     * 只计入完整文件或从开头开始的请求，HEAD请求、探测长度的bytes=0-0以及断点续传、分段下载的
+     * 后续分段不计入。下载次数用完后分享在一段时间内仍可访问，已开始的下载可以继续请求后续分段，
+     * 新的下载被拒绝
+     *
+     * @param request HTTP请求
+     * @param entry   通过注册表获取的分享条目
+     * @return 下载次数已用完时返回false
+     */
+    private boolean countDownload(AsyncHttpServerRequest request, ShareEntry entry) {
+        if (entry.getPolicy().getMaxDownloads() == 0 || !"GET".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+        if (!ByteRange.startsNewDownload(request.getHeaders().get("Range"))) {
+            return true;
+        }
+        if (!entry.tryCountDownload()) {
+            return false;
+        }
+        persist(entry);
+        if (entry.isDownloadQuotaExhausted()) {
+            shareReaper.schedule(entry);
+        }
+        return true;
+    }
+
+    /**
+     * 处理目录列表路由
+     * 按游标分页列出分享目录中的子文档，以分块传输编码边生成边发送JSON；
+     * 同一目录的列表短时间内复用，分页浏览时不重复枚举目录
+     */
+    private void handleList(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        Multimap query = request.getQuery();
+        String shareId = query.getString("id");
+        ShareEntry entry = shareRegistry.get(shareId);
+        if (entry == null) {
+            sendShareNotFound(response);
+            return;
+        }
+        if (entry.isRemoved() || !entry.isDirectory()) {
+            metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+            response.code(404);
+            response.end();
+            return;
+        }
+        entry.touch(System.currentTimeMillis());
+        int offset = ListingPage.parseCursor(query.getString("cursor"));
+        if (offset < 0) {
+            response.code(400);
+            response.end();
+            return;
+        }
+        int limit = ListingPage.parseLimit(query.getString("limit"));
+        String documentId = query.getString("doc");
+        String directoryId = documentId != null ? documentId : DocumentsContract.getTreeDocumentId(entry.getUri());
+
+        response.getHeaders().set("Content-Type", LISTING_CONTENT_TYPE);
+        response.getHeaders().set("Cache-Control", "no-cache");
+        Runnable hold = server.holdConnection(request);
+        try {
+            listExecutor.execute(() -> writeListing(response, entry, directoryId, offset, limit, hold));
+        } catch (RejectedExecutionException e) {
+            response.code(503);
+            response.end();
+            hold.run();
+        }
+    }
+
+    /**
+     * 输出一页目录列表，在列表线程中执行
+     * 每段JSON生成后交给服务器线程写出，写完后调用hold
+     */
+    private void writeListing(AsyncHttpServerResponse response, ShareEntry entry, String directoryId,
+                              int offset, int limit, Runnable hold) {
+        AsyncServer server = AsyncServer.getDefault();
+        DirectoryListing listing;
+        try {
+            listing = listingCache.get(ListingCache.key(entry.getId(), directoryId),
+                    () -> metadataResolver.openListing(entry.getUri(), directoryId));
+        } catch (IOException e) {
+            Log.w(TAG, "Error listing " + entry.getId(), e);
+            server.post(() -> {
+                metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+                response.code(404);
+                response.end();
+                hold.run();
+            });
+            return;
+        }
+        ListingPage.write(listing, entry.getId(), directoryId, offset, limit, chunk -> {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            server.post(() -> response.write(new ByteBufferList(bytes)));
+        });
+        server.post(() -> {
+            response.end();
+            hold.run();
+        });
+    }
+
+    /**
+     * 选择响应的压缩格式
+     * 只压缩可压缩类型的完整文件请求，断点续传的区间始终按原始内容计算
+     *
+     * @param request  HTTP请求
+     * @param response HTTP响应
+     * @param metadata 文件元数据
+     * @return 压缩格式，不压缩时返回null
+     */
+    private static String chooseEncoding(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                                         FileMetadata metadata) {
+        if (!ContentEncoding.isCompressible(metadata.getMimeType(), metadata.getName(), metadata.getSize())) {
+            return null;
+        }
+        response.getHeaders().set("Vary", "Accept-Encoding");
+        if (request.getHeaders().get("Range") != null) {
+            return null;
+        }
+        return ContentEncoding.negotiate(request.getHeaders().get("Accept-Encoding"));
+    }
+
+    /**
+     * 发送压缩后的完整文件
+     * 已缓存压缩结果时直接发送缓存文件并给出长度；否则边读边压缩，使用分块传输编码，
+     * 同一版本被请求多次后把压缩结果写入缓存
+     *
+     * @param request  HTTP请求
+     * @param response HTTP响应
+     * @param entry    分享条目
+     * @param encoding 压缩格式
+     * @return 需要启动的传输任务，响应已直接完成时返回null
+     */
+    private FileTransfer sendCompressed(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                                        ShareEntry entry, String encoding) throws IOException {
+        ParcelFileDescriptor fileDescriptor = openSeekableFile(entry.getUri());
+        FileMetadata metadata = fileDescriptor != null ? revalidate(entry, fileDescriptor) : entry.getMetadata();
+        String etag = metadata.getEtag();
+        // 压缩结果与原始内容是不同的表示，使用不同的ETag
+        String variantEtag = etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        response.getHeaders().set("ETag", variantEtag);
+        if (metadata.getLastModifiedHeader() != null) {
+            response.getHeaders().set("Last-Modified", metadata.getLastModifiedHeader());
+        }
+        if (FileMetadata.matchesIfNoneMatch(request.getHeaders().get("If-None-Match"), variantEtag)) {
+            if (fileDescriptor != null) {
+                fileDescriptor.close();
+            }
+            sendNotModified(response);
+            return null;
+        }
+        response.getHeaders().set("Content-Encoding", encoding);
+        response.getHeaders().set("Accept-Ranges", "none");
+        boolean head = "HEAD".equalsIgnoreCase(request.getMethod());
+
+        String key = CompressionCache.key(entry.getId(), etag, encoding);
+        File cached = compressionCache.get(key);
+        ParcelFileDescriptor cachedDescriptor = null;
+        if (cached != null) {
+            try {
+                cachedDescriptor = ParcelFileDescriptor.open(cached, ParcelFileDescriptor.MODE_READ_ONLY);
+            } catch (FileNotFoundException e) {
+                // 刚被淘汰，重新压缩
+                Log.i(TAG, "Compressed variant evicted: " + key);
+            }
+        }
+        if (fileDescriptor != null && (cachedDescriptor != null || head)) {
+            // 不需要读取原始文件
+            fileDescriptor.close();
+        }
+        if (cachedDescriptor != null) {
+            long length = cachedDescriptor.getStatSize();
+            response.getHeaders().set("Content-Length", String.valueOf(length));
+            if (head) {
+                cachedDescriptor.close();
+                response.writeHead();
+                response.end();
+                return null;
+            }
+            return FileTransfer.ofFile(cachedDescriptor, 0, length, response);
+        }
+        if (head) {
+            response.end();
+            return null;
+        }
+
+        InputStream inputStream = fileDescriptor != null
+                ? new ParcelFileDescriptor.AutoCloseInputStream(fileDescriptor)
+                : context.getContentResolver().openInputStream(entry.getUri());
+        if (inputStream == null) {
+            throw new FileNotFoundException("Cannot open " + entry.getUri());
+        }
+        CompressingInputStream compressed = new CompressingInputStream(inputStream, encoding,
+                compressionCache.openWriter(key));
+        return FileTransfer.ofStream(compressed, -1, response);
+    }
+
+    /**
+     * 处理打包下载全部文件路由
+     */
+    private void handleDownloadAll(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        List<String> ids = new ArrayList<>();
+        for (ShareEntry entry : shareRegistry.snapshot()) {
+            ids.add(entry.getId());
+        }
+        sendZip(request, response, ids);
+    }
+
+    /**
+     * 处理打包下载选中文件路由
+     * 文件ID通过ids参数传入，多个ID以逗号分隔
+     */
+    private void handleDownloadSelection(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        List<String> ids = new ArrayList<>();
+        List<String> values = request.getQuery().get("ids");
+        if (values != null) {
+            for (String value : values) {
+                for (String id : value.split(",")) {
+                    if (!id.trim().isEmpty()) {
+                        ids.add(id.trim());
+                    }
+                }
+            }
+        }
+        sendZip(request, response, ids);
+    }
+
+    /**
+     * 将多个分享文件打包为ZIP流式发送
+     * 文件大小均已知时发送预先计算的Content-Length
+     *
+     * @param request  HTTP请求
+     * @param response HTTP响应
+     * @param ids      文件ID列表，不存在的ID会被跳过
+     */
+    private void sendZip(AsyncHttpServerRequest request, AsyncHttpServerResponse response, List<String> ids) {
+        List<ShareEntry> entries = new ArrayList<>();
+        for (String id : ids) {
+            ShareEntry entry = shareRegistry.acquire(id);
+            if (entry != null && (entry.isDirectory() || !countDownload(request, entry))) {
+                // 目录的内容需要通过列表逐个下载；下载次数用完的文件跳过
+                shareRegistry.release(entry);
+            } else if (entry != null) {
+                entries.add(entry);
+            }
+        }
+        if (entries.isEmpty()) {
+            sendShareNotFound(response);
+            return;
+        }
+
+        ZipTransfer transfer = new ZipTransfer(context.getContentResolver(), entries, response);
+        long length = transfer.computeLength();
+        response.getHeaders().set("Content-Type", "application/zip");
+        response.getHeaders().set("Content-Disposition", "attachment; filename=\"" + ZIP_FILE_NAME + "\"");
+        response.getHeaders().set("Accept-Ranges", "none");
+        if (length >= 0) {
+            response.getHeaders().set("Content-Length", String.valueOf(length));
+        }
+
+        CompletedCallback releaseAll = ex -> {
+            for (ShareEntry entry : entries) {
+                shareRegistry.release(entry);
+            }
+        };
+        if ("HEAD".equalsIgnoreCase(request.getMethod())) {
+            releaseAll.onCompleted(null);
+            response.end();
+            return;
+        }
+        Runnable hold = server.holdConnection(request);
+        transfer.setCompletedCallback(ex -> {
+            releaseAll.onCompleted(ex);
+            hold.run();
+        });
+        transfer.schedule(transferScheduler, metrics, streamBuffers, getClientId(request), length);
+    }
+
+    /**
+     * 获取请求方的标识，调度器按它在客户端之间分配带宽
+     *
+     * @param request HTTP请求
+     * @return 客户端IP地址
+     */
+    private static String getClientId(AsyncHttpServerRequest request) {
+        AsyncSocket socket = request.getSocket();
+        if (socket instanceof AsyncNetworkSocket) {
+            InetSocketAddress address = ((AsyncNetworkSocket) socket).getRemoteAddress();
+            if (address != null && address.getAddress() != null) {
+                return address.getAddress().getHostAddress();
+            }
+        }
+        return "unknown";
+    }
+
+    /**
+     * 按Range请求头发送文件区间
+     *
+     * @param request        HTTP请求
+     * @param response       HTTP响应
+     * @param entry          分享条目
+     * @param fileDescriptor 可定位的文件描述符
+     * @return 需要启动的传输任务，响应已直接完成时返回null
+     */
+    private FileTransfer sendFileRange(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                                       ShareEntry entry, ParcelFileDescriptor fileDescriptor) throws IOException {
+        FileMetadata metadata = revalidate(entry, fileDescriptor);
+        long totalLength = metadata.getSize();
+        String lastModified = metadata.getLastModifiedHeader();
+
+        // 固定的响应头随元数据预先生成
+        String[] fileHeaders = metadata.getFileHeaders();
+        for (int i = 0; i < fileHeaders.length; i += 2) {
+            response.getHeaders().set(fileHeaders[i], fileHeaders[i + 1]);
+        }
+
+        // 接收方已有当前版本的文件
+        if (metadata.matchesIfNoneMatch(request.getHeaders().get("If-None-Match"))) {
+            fileDescriptor.close();
+            sendNotModified(response);
+            return null;
+        }
+
+        // If-Range与当前文件不匹配时忽略Range，重新发送完整文件
+        ByteRange range = null;
+        String ifRange = request.getHeaders().get("If-Range");
+        if (ifRange == null || metadata.isCurrentEtag(ifRange) || ifRange.equals(lastModified)) {
+            range = ByteRange.parse(request.getHeaders().get("Range"), totalLength);
+        }
+
+        if (range == ByteRange.NOT_SATISFIABLE) {
+            fileDescriptor.close();
+            metrics.recordError(TransferMetrics.ErrorCause.RANGE_NOT_SATISFIABLE);
+            response.getHeaders().set("Content-Range", "bytes */" + totalLength);
+            response.code(416);
+            response.end();
+            return null;
+        }
+
+        long start = 0;
+        long length = totalLength;
+        if (range != null) {
+            start = range.getStart();
+            length = range.getLength();
+            response.code(206);
+            response.getHeaders().set("Content-Range", range.toContentRange(totalLength));
+        }
+        response.getHeaders().set("Content-Length", String.valueOf(length));
+
+        if (length == 0 || "HEAD".equalsIgnoreCase(request.getMethod())) {
+            fileDescriptor.close();
+            response.writeHead();
+            response.end();
+            return null;
+        }
+        return FileTransfer.ofFile(fileDescriptor, start, length, response);
+    }
+
+    /**
+     * 用已打开文件的状态校验缓存的元数据
+     * fstat只是一次系统调用，不经过内容提供者；文件大小或修改时间变化时更新缓存
+     *
+     * @param entry          分享条目
+     * @param fileDescriptor 已打开的文件描述符
+     * @return 与文件当前状态一致的元数据
+     */
+    private FileMetadata revalidate(ShareEntry entry, ParcelFileDescriptor fileDescriptor) throws IOException {
+        StructStat stat;
+        try {
+            stat = Os.fstat(fileDescriptor.getFileDescriptor());
+        } catch (ErrnoException e) {
+            fileDescriptor.close();
+            throw new IOException(e);
+        }
+        FileMetadata metadata = entry.getMetadata();
+        if (!isSameVersion(metadata, stat)) {
+            metadata = metadata.withStat(stat.st_size, stat.st_mtime * 1000);
+            entry.setMetadata(metadata);
+            persist(entry);
+            scheduleHash(entry);
+        }
+        return metadata;
+    }
+
+    /**
+     * 判断文件状态是否与元数据一致
+     * 文件系统的修改时间只精确到秒
+     */
+    private static boolean isSameVersion(FileMetadata metadata, StructStat stat) {
+        return metadata.getSize() == stat.st_size && metadata.getLastModified() / 1000 == stat.st_mtime;
+    }
+
+    /**
+     * 返回304，接收方可以继续使用已有的文件
+     * 给出为0的Content-Length，避免没有响应体的304使用分块传输编码
+     *
+     * @param response HTTP响应，已设置ETag等响应头
+     */
+    private static void sendNotModified(AsyncHttpServerResponse response) {
+        response.code(304);
+        response.getHeaders().set("Content-Length", "0");
+        response.writeHead();
+        response.end();
+    }
+
+    /**
+     * 在后台计算分享文件的内容哈希
+     * 添加时未得到大小或修改时间的文件先读取文件状态补全元数据
+     *
+     * @param entry 分享条目
+     */
+    private void scheduleHash(ShareEntry entry) {
+        FileMetadata metadata = entry.getMetadata();
+        // 目录中的文件每次请求临时创建条目，不计算哈希
+        if (shareRegistry.get(entry.getId()) != entry || entry.isDirectory() || metadata.getContentHash() != null) {
+            return;
+        }
+        try {
+            hashExecutor.execute(() -> computeHash(entry, metadata));
+        } catch (RejectedExecutionException e) {
+            // 服务器已停止
+        }
+    }
+
+    /**
+     * 计算内容哈希并更新元数据，在哈希线程中执行
+     * 同一Uri、大小和修改时间的文件直接使用持久化的结果
+     *
+     * @param entry    分享条目
+     * @param metadata 开始计算时的元数据
+     */
+    private void computeHash(ShareEntry entry, FileMetadata metadata) {
+        if (entry.isRemoved() || entry.getMetadata() != metadata) {
+            return;
+        }
+        if (metadata.getSize() < 0 || metadata.getLastModified() == FileMetadata.UNKNOWN_TIME) {
+            // 只有大小和修改时间已知时才能判断持久化的结果是否仍然有效
+            metadata = statFile(entry, metadata);
+            if (metadata == null) {
+                return;
+            }
+        }
+        String key = ContentHashStore.key(entry.getUri().toString(), metadata.getSize(), metadata.getLastModified());
+        String hash = contentHashStore.get(key);
+        if (hash == null) {
+            hash = hashFile(entry.getUri(), metadata);
+            if (hash == null) {
+                return;
+            }
+            contentHashStore.put(key, hash);
+        }
+        if (entry.compareAndSetMetadata(metadata, metadata.withContentHash(hash))) {
+            Log.i(TAG, "Content hash ready: " + entry.getId());
+            persist(entry);
+        }
+    }
+
+    /**
+     * 读取文件状态补全元数据，在哈希线程中执行
+     *
+     * @param entry    分享条目
+     * @param metadata 添加时解析的元数据
+     * @return 补全后的元数据；无法读取、不是普通文件或元数据已被替换时返回null
+     */
+    private FileMetadata statFile(ShareEntry entry, FileMetadata metadata) {
+        try (ParcelFileDescriptor fileDescriptor = openSeekableFile(entry.getUri())) {
+            if (fileDescriptor == null) {
+                return null;
+            }
+            StructStat stat = Os.fstat(fileDescriptor.getFileDescriptor());
+            FileMetadata updated = metadata.withStat(stat.st_size, stat.st_mtime * 1000);
+            if (!entry.compareAndSetMetadata(metadata, updated)) {
+                return null;
+            }
+            persist(entry);
+            return updated;
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Error reading file stat " + entry.getUri(), e);
+            return null;
+        }
+    }
+
+    /**
+     * 读取文件计算SHA-256
+     *
+     * @param uri      文件Uri
+     * @param metadata 开始计算时的元数据
+     * @return 十六进制的SHA-256；无法读取或计算期间文件发生变化时返回null
+     */
+    private String hashFile(Uri uri, FileMetadata metadata) {
+        ByteBuffer buffer = streamBuffers.acquireHeap();
+        try (ParcelFileDescriptor fileDescriptor = openSeekableFile(uri)) {
+            if (fileDescriptor == null || !isSameVersion(metadata, Os.fstat(fileDescriptor.getFileDescriptor()))) {
+                return null;
+            }
+            String hash = ContentHashStore.sha256(
+                    new FileInputStream(fileDescriptor.getFileDescriptor()), buffer.array());
+            // 计算期间文件被修改时结果不可靠
+            return isSameVersion(metadata, Os.fstat(fileDescriptor.getFileDescriptor())) ? hash : null;
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Error hashing " + uri, e);
+            return null;
+        } finally {
+            streamBuffers.releaseHeap(buffer);
+        }
+    }
+
+    /**
+     * 按顺序发送完整的文件流
+     * 大小已知时发送Content-Length，未知时使用分块传输编码
+     *
+     * @param request     HTTP请求
+     * @param response    HTTP响应
+     * @param inputStream 文件流
+     * @param size        文件大小，未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     * @return 需要启动的传输任务，响应已直接完成时返回null
+     */
+    private FileTransfer sendFileStream(AsyncHttpServerRequest request, AsyncHttpServerResponse response,
+                                        InputStream inputStream, long size) throws IOException {
+        response.getHeaders().set("Accept-Ranges", "none");
+        if (size >= 0) {
+            response.getHeaders().set("Content-Length", String.valueOf(size));
+        }
+        if (size == 0 || "HEAD".equalsIgnoreCase(request.getMethod())) {
+            inputStream.close();
+            if (size == 0) {
+                response.writeHead();
+            }
+            response.end();
+            return null;
+        }
+        return FileTransfer.ofStream(inputStream, size, response);
+    }
+
+    /**
+     * 以只读方式打开可定位的文件描述符
+     *
+     * @param uri 文件Uri
+     * @return 文件描述符；提供方不支持或不是普通文件时返回null
+     */
+    private ParcelFileDescriptor openSeekableFile(Uri uri) {
+        try {
+            ParcelFileDescriptor fileDescriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+            if (fileDescriptor == null) {
+                return null;
+            }
+            // 管道等非普通文件无法定位，返回-1
+            if (fileDescriptor.getStatSize() < 0) {
+                fileDescriptor.close();
+                return null;
+            }
+            return fileDescriptor;
+        } catch (Exception e) {
+            Log.w(TAG, "File is not seekable: " + uri, e);
+            return null;
+        }
+    }
+
     /**
      * 启动HTTP服务器
      * 在指定端口上启动异步HTTP服务器
      */
     public void start() {
+        uploadStore.deleteStaleParts();
+        // 在导入线程中恢复上次的分享，恢复完成前查不到的分享返回503，不阻塞服务器线程
+        shareRegistry.beginRestoring();
+        importExecutor.execute(this::restoreShares);
+        shareReaper.start();
         try {
             server.listen(PORT);
+            server.startSweeping();
             Log.i(TAG, "HTTP server started on port " + PORT);
         } catch (Exception e) {
             Log.e(TAG, "Error starting server", e);
+            return;
         }
+        discoveryResponder.start();
+    }
+
+    /**
+     * 生成发现协议的通告内容
+     *
+     * @return 本机当前的通告内容
+     */
+    private DiscoveryProtocol.Announcement createAnnouncement() {
+        return new DiscoveryProtocol.Announcement(deviceId, DeviceIdentity.getDeviceName(), appVersion, PORT,
+                Arrays.asList("range", "zip", "upload", "sha256", "list"), shareRegistry.size());
     }
 
     /**
@@ -95,6 +899,16 @@ public class FileShareHttpServer {
      * 关闭服务器并释放资源
      */
     public void stop() {
+        discoveryResponder.stop();
+        shareReaper.stop();
+        uploadHandler.shutdown();
+        readAheadExecutor.shutdown();
+        hashExecutor.shutdownNow();
+        listExecutor.execute(listingCache::clear);
+        listExecutor.shutdown();
+        importExecutor.execute(shareStore::close);
+        importExecutor.shutdown();
+        documentWatcher.unwatchAll();
         try {
             server.stop();
             Log.i(TAG, "HTTP server stopped");
@@ -110,9 +924,235 @@ public class FileShareHttpServer {
      * @return 文件id
      */
     public String addFile(Uri uri) {
-        String id = UUID.randomUUID().toString();
-        shareFileMap.put(id, uri);
-        return id;
+        return addFile(uri, SharePolicy.UNLIMITED);
+    }
+
+    /**
+     * 添加文件到分享列表，到达有效期限制后自动移除
+     *
+     * @param uri    文件的Uri
+     * @param policy 有效期策略
+     * @return 文件id
+     */
+    public String addFile(Uri uri, SharePolicy policy) {
+        return addEntry(uri, metadataResolver.resolve(uri), policy).getId();
+    }
+
+    /**
+     * 在后台批量添加文件到分享列表
+     * 元数据在后台线程中解析，每解析完一批回调一次，添加大量文件时不阻塞界面线程
+     *
+     * @param uris     文件Uri列表
+     * @param listener 添加监听器，在后台线程中回调
+     */
+    public void addFiles(List<Uri> uris, OnFilesAddedListener listener) {
+        addFiles(uris, SharePolicy.UNLIMITED, listener);
+    }
+
+    /**
+     * 在后台批量添加文件到分享列表，每个文件分别按有效期策略过期
+     *
+     * @param uris     文件Uri列表
+     * @param policy   有效期策略
+     * @param listener 添加监听器，在后台线程中回调
+     */
+    public void addFiles(List<Uri> uris, SharePolicy policy, OnFilesAddedListener listener) {
+        importExecutor.execute(() -> {
+            ImportBatch batch = new ImportBatch(listener);
+            for (Uri uri : uris) {
+                batch.add(addEntry(uri, metadataResolver.resolve(uri), policy));
+            }
+            batch.finish();
+        });
+    }
+
+    /**
+     * 在后台添加目录到分享列表
+     * 整个目录作为一个分享，接收方通过/list按需分页浏览，不预先枚举目录中的文件
+     *
+     * @param treeUri  通过ACTION_OPEN_DOCUMENT_TREE选择的目录Uri
+     * @param listener 添加监听器，在后台线程中回调
+     */
+    public void addDirectory(Uri treeUri, OnFilesAddedListener listener) {
+        addDirectory(treeUri, SharePolicy.UNLIMITED, listener);
+    }
+
+    /**
+     * 在后台添加目录到分享列表，到达有效期限制后自动移除
+     * 下载次数按目录中每个文件的下载累计
+     *
+     * @param treeUri  通过ACTION_OPEN_DOCUMENT_TREE选择的目录Uri
+     * @param policy   有效期策略
+     * @param listener 添加监听器，在后台线程中回调
+     */
+    public void addDirectory(Uri treeUri, SharePolicy policy, OnFilesAddedListener listener) {
+        importExecutor.execute(() -> {
+            ImportBatch batch = new ImportBatch(listener);
+            batch.add(addEntry(treeUri, metadataResolver.resolveDirectory(treeUri), policy));
+            batch.finish();
+        });
+    }
+
+    /**
+     * 创建分享条目并加入注册表
+     *
+     * @param uri      文件Uri
+     * @param metadata 已解析的文件元数据
+     * @param policy   有效期策略
+     * @return 分享条目
+     */
+    private ShareEntry addEntry(Uri uri, FileMetadata metadata, SharePolicy policy) {
+        ShareEntry entry = new ShareEntry(UUID.randomUUID().toString(), uri, metadata, policy,
+                System.currentTimeMillis(), 0);
+        entry.setPersistent(holdPermission(uri));
+        documentWatcher.watch(entry);
+        shareRegistry.add(entry);
+        persist(entry);
+        shareReaper.schedule(entry);
+        scheduleHash(entry);
+        return entry;
+    }
+
+    /**
+     * 保留读取权限，进程重启后仍可访问
+     * 系统限制每个应用保留的权限数，超出后会丢弃最早的权限，因此配额用完后不再保留
+     *
+     * @param uri 文件或目录的Uri
+     * @return 重启后仍可访问时返回true
+     */
+    private boolean holdPermission(Uri uri) {
+        if (ContentResolver.SCHEME_FILE.equals(uri.getScheme())) {
+            // 文件路径不需要权限
+            return true;
+        }
+        PersistedGrants grants = getPersistedGrants();
+        String key = uri.toString();
+        if (grants.contains(key)) {
+            return true;
+        }
+        if (!grants.acquire(key)) {
+            Log.w(TAG, "Persisted permission limit reached, share is kept for this session: " + uri);
+            return false;
+        }
+        try {
+            context.getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+            return true;
+        } catch (SecurityException e) {
+            grants.release(key);
+            Log.w(TAG, "Permission is not persistable: " + uri);
+            return false;
+        }
+    }
+
+    /**
+     * 获取持久化权限的配额，首次调用时读取系统已保留的权限
+     *
+     * @return 持久化权限的配额
+     */
+    private synchronized PersistedGrants getPersistedGrants() {
+        if (persistedGrants == null) {
+            List<String> held = new ArrayList<>();
+            for (UriPermission permission : context.getContentResolver().getPersistedUriPermissions()) {
+                if (permission.isReadPermission()) {
+                    held.add(permission.getUri().toString());
+                }
+            }
+            persistedGrants = new PersistedGrants(PersistedGrants.systemCapacity(), held);
+        }
+        return persistedGrants;
+    }
+
+    /**
+     * 恢复上次运行保存的分享，在导入线程中执行
+     * 先只解析本地日志恢复注册表，之后再检查权限、监听变化，这些操作需要访问系统服务
+     */
+    private void restoreShares() {
+        List<ShareEntry> restored = new ArrayList<>();
+        try {
+            for (ShareStore.Record record : shareStore.load()) {
+                // 排在恢复之前的添加操作已经写入日志，不重复创建
+                if (shareRegistry.get(record.getId()) != null) {
+                    continue;
+                }
+                ShareEntry entry = new ShareEntry(record.getId(), Uri.parse(record.getUri()), record.getMetadata(),
+                        record.getPolicy(), record.getCreatedTime(), record.getDownloads());
+                shareRegistry.add(entry);
+                restored.add(entry);
+            }
+        } finally {
+            shareRegistry.finishRestoring();
+        }
+        try {
+            checkRestoredShares(restored);
+        } finally {
+            OnSharesRestoredListener listener = onSharesRestoredListener;
+            if (listener != null) {
+                listener.onSharesRestored();
+            }
+        }
+    }
+
+    /**
+     * 检查恢复的分享的权限，并开始监听变化、计算哈希和过期
+     *
+     * @param restored 恢复的分享条目
+     */
+    private void checkRestoredShares(List<ShareEntry> restored) {
+        if (restored.isEmpty()) {
+            return;
+        }
+        Log.i(TAG, "Restored " + restored.size() + " shares");
+
+        // 权限已失效的分享无法再读取，移除
+        PersistedGrants grants = getPersistedGrants();
+        for (ShareEntry entry : restored) {
+            Uri uri = entry.getUri();
+            if (!ContentResolver.SCHEME_FILE.equals(uri.getScheme()) && !grants.contains(uri.toString())) {
+                Log.i(TAG, "Permission lost, dropping share " + entry.getId());
+                removeFile(entry.getId());
+                continue;
+            }
+            documentWatcher.watch(entry);
+            // 停止期间已过期的分享由回收器立即移除
+            shareReaper.schedule(entry);
+            scheduleHash(entry);
+        }
+    }
+
+    /**
+     * 移除过期的分享，在回收线程中执行
+     *
+     * @param entry 过期的分享条目
+     */
+    private void expireShare(ShareEntry entry) {
+        if (shareRegistry.get(entry.getId()) != entry) {
+            return;
+        }
+        Log.i(TAG, "Share expired: " + entry.getId() + ", downloads " + entry.getDownloads());
+        removeFile(entry.getId());
+        OnShareExpiredListener listener = onShareExpiredListener;
+        if (listener != null) {
+            listener.onShareExpired(entry);
+        }
+    }
+
+    /**
+     * 在导入线程中保存分享的当前状态
+     *
+     * @param entry 分享条目
+     */
+    private void persist(ShareEntry entry) {
+        try {
+            importExecutor.execute(() -> {
+                // 已移除的分享不再写入，避免在移除标记之后复活；目录中临时创建的条目和只在本次运行有效的分享不保存
+                if (entry.isPersistent() && shareRegistry.get(entry.getId()) == entry) {
+                    shareStore.put(new ShareStore.Record(entry.getId(), entry.getUri().toString(),
+                            entry.getMetadata(), entry.getPolicy(), entry.getCreatedTime(), entry.getDownloads()));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 服务器已停止
+        }
     }
 
     /**
@@ -121,7 +1161,208 @@ public class FileShareHttpServer {
      * @param id 文件id
      */
     public void removeFile(String id) {
-        shareFileMap.remove(id);
+        ShareEntry entry = shareRegistry.remove(id);
+        if (entry == null) {
+            return;
+        }
+        documentWatcher.unwatch(entry);
+        try {
+            importExecutor.execute(() -> shareStore.remove(id));
+        } catch (RejectedExecutionException e) {
+            // 服务器已停止
+        }
+        // 同一文件没有其他分享时归还读取权限
+        for (ShareEntry other : shareRegistry.snapshot()) {
+            if (other.getUri().equals(entry.getUri())) {
+                return;
+            }
+        }
+        if (!entry.isPersistent() || ContentResolver.SCHEME_FILE.equals(entry.getUri().getScheme())) {
+            // 没有保留过权限
+            return;
+        }
+        try {
+            context.getContentResolver().releasePersistableUriPermission(entry.getUri(),
+                    Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // 权限已失效
+        }
+        getPersistedGrants().release(entry.getUri().toString());
+    }
+
+    /**
+     * 获取分享条目
+     *
+     * @param id 文件id
+     * @return 分享条目，不存在时返回null
+     */
+    public ShareEntry getShareEntry(String id) {
+        return shareRegistry.get(id);
+    }
+
+    /**
+     * 获取全部分享条目
+     *
+     * @return 按添加顺序排列的分享条目
+     */
+    public List<ShareEntry> getShareEntries() {
+        return shareRegistry.snapshot();
+    }
+
+    /**
+     * 获取进行中的传输总数
+     *
+     * @return 传输总数
+     */
+    public int getActiveTransferCount() {
+        return shareRegistry.getActiveTransfers();
+    }
+
+    /**
+     * 设置传输活动监听器
+     * 传输总数在0和非0之间变化时回调，可用于在传输期间保持设备唤醒
+     *
+     * @param listener 传输活动监听器
+     */
+    public void setOnTransferActivityListener(ShareRegistry.OnTransferActivityListener listener) {
+        shareRegistry.setOnTransferActivityListener(listener);
+    }
+
+    /**
+     * 设置下载限速
+     *
+     * @param globalBytesPerSecond        所有下载合计的限速（字节/秒），0表示不限
+     * @param perConnectionBytesPerSecond 单个连接的限速（字节/秒），0表示不限
+     */
+    public void setRateLimits(long globalBytesPerSecond, long perConnectionBytesPerSecond) {
+        transferScheduler.setRateLimits(globalBytesPerSecond, perConnectionBytesPerSecond);
+    }
+
+    /**
+     * 设置下载使用的缓冲区大小
+     * 单次写出的大小在最小值和最大值之间按各下载测得的发送速度自动调整
+     *
+     * @param readSize     单次从文件流读取的字节数，16KB到1MB
+     * @param minWriteSize 单次写出的最小字节数，不小于16KB
+     * @param maxWriteSize 单次写出的最大字节数，不超过1MB
+     */
+    public void setStreamBufferSizes(int readSize, int minWriteSize, int maxWriteSize) {
+        streamBuffers.setSizes(readSize, minWriteSize, maxWriteSize);
+    }
+
+    /**
+     * 设置下载的预读深度
+     * 较大的文件由预读线程提前读入若干个缓冲区，存储偶尔卡顿时不会中断发送
+     *
+     * @param depth 每个下载预读的缓冲区数，0表示可定位的文件不预读（文件流仍在预读线程中读取一个缓冲区），最大16
+     */
+    public void setReadAheadDepth(int depth) {
+        streamBuffers.setReadAheadDepth(depth);
+    }
+
+    /**
+     * 设置客户端的带宽权重
+     * 多个客户端同时下载时，带宽按权重比例分配
+     *
+     * @param clientAddress 客户端IP地址
+     * @param weight        权重，默认为1
+     */
+    public void setClientWeight(String clientAddress, int weight) {
+        AsyncServer.getDefault().post(() -> transferScheduler.setClientWeight(clientAddress, weight));
+    }
+
+    /**
+     * 设置传输进度监听器
+     * 有下载进行时每秒在服务器线程中回调一次各分享的进度和速度
+     *
+     * @param listener 传输进度监听器，传入null取消监听
+     */
+    public void setOnTransferProgressListener(TransferMetrics.OnProgressListener listener) {
+        metrics.setOnProgressListener(listener);
+    }
+
+    /**
+     * 获取传输指标
+     *
+     * @return 传输指标
+     */
+    public TransferMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置分享恢复监听器
+     * 启动时恢复上次的分享并检查完权限后在后台线程中回调一次，界面据此刷新分享列表
+     *
+     * @param listener 分享恢复监听器，传入null取消监听
+     */
+    public void setOnSharesRestoredListener(OnSharesRestoredListener listener) {
+        this.onSharesRestoredListener = listener;
+    }
+
+    /**
+     * 设置分享过期监听器
+     * 分享因有效期、下载次数或空闲超时被自动移除后在后台线程中回调
+     *
+     * @param listener 分享过期监听器，传入null取消监听
+     */
+    public void setOnShareExpiredListener(OnShareExpiredListener listener) {
+        this.onShareExpiredListener = listener;
+    }
+
+    /**
+     * 设置文件接收监听器
+     * 其他设备上传的文件保存完毕后回调
+     *
+     * @param listener 文件接收监听器
+     */
+    public void setOnFileReceivedListener(OnFileReceivedListener listener) {
+        uploadHandler.setOnFileReceivedListener(listener);
+    }
+
+    /**
+     * 通过其他设备的分享链接下载文件，保存到接收目录
+     * 对方支持Range请求时分段并行下载；阻塞直到下载完成，必须在后台线程调用
+     *
+     * @param url 分享链接，例如 http://192.168.1.5:3400/downloadFile?id=xxx
+     * @return 保存的文件
+     * @throws IOException 下载或保存失败
+     */
+    public File downloadFromPeer(String url) throws IOException {
+        File part = uploadStore.createPartFile();
+        SegmentedDownloader downloader = new SegmentedDownloader();
+        try {
+            downloader.download(url, part, null);
+            File file = uploadStore.commit(part, downloader.getFileName());
+            Log.i(TAG, "Downloaded " + file.getName() + " from " + url);
+            return file;
+        } catch (IOException e) {
+            if (part.exists() && !part.delete()) {
+                Log.w(TAG, "Cannot delete " + part);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 分享的文档发生变化，在导入线程中重新解析元数据
+     *
+     * @param entry 分享条目
+     */
+    private void refreshMetadata(ShareEntry entry) {
+        try {
+            importExecutor.execute(() -> {
+                if (shareRegistry.get(entry.getId()) != entry) {
+                    return;
+                }
+                entry.setMetadata(entry.isDirectory() ? metadataResolver.resolveDirectory(entry.getUri())
+                        : metadataResolver.resolve(entry.getUri()));
+                persist(entry);
+                scheduleHash(entry);
+            });
+        } catch (RejectedExecutionException e) {
+            // 服务器已停止
+        }
     }
 
     /**
@@ -153,44 +1394,92 @@ public class FileShareHttpServer {
      * @return 完整的文件下载链接
      */
     public String getShareLink(String fileId) {
-        if (!shareFileMap.containsKey(fileId)) {
+        ShareEntry entry = shareRegistry.get(fileId);
+        if (entry == null) {
             return null;
         }
-        return getServerAddress() + "/downloadFile?id=" + fileId;
+        // 目录链接到第一页列表
+        return getServerAddress() + (entry.isDirectory() ? "/list?id=" : "/downloadFile?id=") + fileId;
     }
 
     /**
-     * 从Uri获取文件MIME类型
+     * 获取打包下载全部文件的链接
      *
-     * @param uri 文件Uri
-     * @return MIME类型
+     * @return 打包下载链接
      */
-    private String getMimeTypeFromUri(Uri uri) {
-        String mimeType = context.getContentResolver().getType(uri);
-        return mimeType != null ? mimeType : "application/octet-stream";
+    public String getDownloadAllLink() {
+        return getServerAddress() + "/downloadAll";
     }
 
     /**
-     * 从Uri获取文件名
-     *
-     * @param uri 文件Uri
-     * @return 文件名
+     * 批量添加的文件，攒够一批后回调
      */
-    private String getFileNameFromUri(Uri uri) {
-        String fileName = null;
-        try {
-            Cursor cursor = context.getContentResolver().query(uri, null, null, null, null);
-            if (cursor != null && cursor.moveToFirst()) {
-                int nameIndex = cursor.getColumnIndex(android.provider.OpenableColumns.DISPLAY_NAME);
-                if (nameIndex != -1) {
-                    fileName = cursor.getString(nameIndex);
-                }
-                cursor.close();
+    private static final class ImportBatch {
+        private final OnFilesAddedListener listener;
+        private List<ShareEntry> entries = new ArrayList<>();
+
+        ImportBatch(OnFilesAddedListener listener) {
+            this.listener = listener;
+        }
+
+        void add(ShareEntry entry) {
+            entries.add(entry);
+            if (entries.size() >= IMPORT_BATCH_SIZE) {
+                listener.onFilesAdded(entries, false);
+                entries = new ArrayList<>();
             }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting file name", e);
         }
 
-        return fileName != null ? fileName : "download";
+        void finish() {
+            listener.onFilesAdded(entries, true);
+        }
+    }
+
+    /**
+     * 文件添加监听器接口
+     */
+    public interface OnFilesAddedListener {
+        /**
+         * 一批文件加入分享列表后调用，在后台线程中执行
+         *
+         * @param entries  本批加入的分享条目，最后一批可能为空
+         * @param finished 是否已全部添加
+         */
+        void onFilesAdded(List<ShareEntry> entries, boolean finished);
+    }
+
+    /**
+     * 分享恢复监听器接口
+     */
+    public interface OnSharesRestoredListener {
+        /**
+         * 恢复完成后调用，在后台线程中执行
+         * 调用前界面获取的分享列表可能不完整，应重新获取
+         */
+        void onSharesRestored();
+    }
+
+    /**
+     * 分享过期监听器接口
+     */
+    public interface OnShareExpiredListener {
+        /**
+         * 分享被自动移除后调用，在后台线程中执行
+         *
+         * @param entry 被移除的分享条目
+         */
+        void onShareExpired(ShareEntry entry);
+    }
+
+    /**
+     * 文件接收监听器接口
+     */
+    public interface OnFileReceivedListener {
+        /**
+         * 一个文件接收完整后调用，在服务器线程中执行
+         *
+         * @param file 保存的文件
+         */
+        void onFileReceived(File file);
     }
 }
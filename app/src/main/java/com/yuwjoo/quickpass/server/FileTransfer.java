@@ -0,0 +1,400 @@
+package com.yuwjoo.quickpass.server;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 文件传输任务
+ * 将文件内容写入HTTP响应：可定位的文件通过FileChannel按位置直接读入堆外缓冲区，
+ * 再由套接字写出，整个过程不经过Java堆拷贝，并支持断点续传；
+ * 不可定位的文件流按顺序读取，长度未知时由服务器使用分块传输编码。
+ * 缓冲区来自{@link StreamBuffers}的池，单次写出的大小随测得的发送速度调整；
+ * 较大的文件通过{@link ReadAheadPipeline}在预读线程中读取，存储卡顿和网络阻塞互不影响；
+ * 文件流的读取可能因内容提供者阻塞，无论大小都在预读线程中读取，不占用服务器线程。
+ * 每段数据的发送额度由{@link TransferScheduler}分配，读取和等待的时间计入{@link TransferMetrics}
+ */
+class FileTransfer implements WritableCallback, CompletedCallback, TransferScheduler.Transfer {
+    private static final String TAG = "FileTransfer";
+
+    private final FileChannel fileChannel; // 可定位文件的通道，文件流时为null
+    private final InputStream inputStream; // 文件流，可定位文件时为null
+    private final Closeable resource; // 传输结束后需要关闭的资源
+    private final AsyncHttpServerResponse response;
+    private final ByteBufferList pending = new ByteBufferList(); // 尚未交给响应的数据
+    private final boolean positional; // 是否按位置读取
+    private final long end; // 结束位置（不包含），长度未知时为Long.MAX_VALUE
+    private long position; // 下一次读取的位置
+    private boolean endOfStream; // 长度未知的文件流是否已读到末尾
+    private boolean finished;
+    private StreamBuffers buffers; // 缓冲区池
+    private ByteBuffer buffer; // 写出用的堆外缓冲区，数据全部写入套接字后才复用
+    private ReadAheadPipeline readAhead; // 预读管道，不预读时为null
+    private long readAheadPosition; // 预读线程下一次读取的位置，只在预读线程中访问
+    private boolean waitingForData; // 是否在等待预读线程读入数据
+    private CompletedCallback completedCallback; // 传输结束回调
+    private TransferScheduler scheduler;
+    private TransferScheduler.Ticket ticket; // 调度凭据，排队中或已开始时不为null
+    private TransferMetrics.Tracker tracker; // 传输统计
+
+    private FileTransfer(FileChannel fileChannel, InputStream inputStream, Closeable resource,
+                         long start, long length, AsyncHttpServerResponse response) {
+        this.fileChannel = fileChannel;
+        this.inputStream = inputStream;
+        this.resource = resource;
+        this.positional = fileChannel != null;
+        this.position = start;
+        this.end = length < 0 ? Long.MAX_VALUE : start + length;
+        this.response = response;
+    }
+
+    /**
+     * 创建可定位文件的传输任务
+     *
+     * @param fileDescriptor 文件描述符，传输结束后关闭
+     * @param start          起始位置
+     * @param length         需要发送的字节数
+     * @param response       HTTP响应
+     * @return 传输任务
+     */
+    static FileTransfer ofFile(ParcelFileDescriptor fileDescriptor, long start, long length,
+                               AsyncHttpServerResponse response) {
+        FileChannel channel = new FileInputStream(fileDescriptor.getFileDescriptor()).getChannel();
+        return new FileTransfer(channel, null, fileDescriptor, start, length, response);
+    }
+
+    /**
+     * 创建顺序读取的文件流传输任务
+     *
+     * @param inputStream 文件流，传输结束后关闭
+     * @param length      需要发送的字节数，未知时传入负数，读到流末尾为止
+     * @param response    HTTP响应
+     * @return 传输任务
+     */
+    static FileTransfer ofStream(InputStream inputStream, long length, AsyncHttpServerResponse response) {
+        return new FileTransfer(null, inputStream, inputStream, 0, length, response);
+    }
+
+    /**
+     * 设置传输结束回调
+     * 无论成功、出错还是连接被关闭，都只回调一次
+     *
+     * @param completedCallback 传输结束回调，成功时参数为null
+     */
+    void setCompletedCallback(CompletedCallback completedCallback) {
+        this.completedCallback = completedCallback;
+    }
+
+    /**
+     * 提交给调度器，获得名额后开始传输
+     * 必须在服务器线程中调用
+     *
+     * @param scheduler 传输调度器
+     * @param metrics   传输指标
+     * @param buffers   缓冲区池
+     * @param clientId  客户端标识
+     * @param shareId   分享ID
+     */
+    void schedule(TransferScheduler scheduler, TransferMetrics metrics, StreamBuffers buffers,
+                  String clientId, String shareId) {
+        this.scheduler = scheduler;
+        this.buffers = buffers;
+        this.tracker = metrics.begin(shareId, end == Long.MAX_VALUE ? -1 : end - position);
+        // 排队期间客户端断开时释放名额
+        response.setClosedCallback(this);
+        TransferScheduler.Ticket submitted = scheduler.submit(clientId, end - position, this);
+        if (ticket == null && !finished) {
+            ticket = submitted;
+        }
+    }
+
+    @Override
+    public void onStart(TransferScheduler.Ticket ticket) {
+        this.ticket = ticket;
+        if (!positional || buffers.shouldReadAhead(end == Long.MAX_VALUE ? -1 : end - position)) {
+            readAheadPosition = position;
+            AsyncServer server = response.getSocket().getServer();
+            readAhead = buffers.openReadAhead(this::readAheadChunk, tracker::getBytesPerSecond,
+                    () -> server.post(this::onReadable));
+        }
+        response.setWriteableCallback(this);
+        onWriteable();
+    }
+
+    /**
+     * 预读线程读入新数据后，在服务器线程中继续发送
+     */
+    private void onReadable() {
+        if (finished || !waitingForData) {
+            return;
+        }
+        waitingForData = false;
+        requestWrite();
+    }
+
+    @Override
+    public void onRejected(int retryAfterSeconds) {
+        if (finished) {
+            return;
+        }
+        tracker.finish(TransferMetrics.ErrorCause.BUSY);
+        finish(new IOException("Server busy"));
+        TransferScheduler.sendUnavailable(response, retryAfterSeconds);
+    }
+
+    /**
+     * 响应可写时写出剩余数据，全部写出后申请新的发送额度
+     */
+    @Override
+    public void onWriteable() {
+        if (finished || ticket == null || !ticket.isRunning()) {
+            return;
+        }
+        tracker.onSocketWritable();
+        if (pending.hasRemaining()) {
+            response.write(pending);
+        }
+        if (hasUnsentData()) {
+            tracker.onSocketBlocked();
+            return;
+        }
+        if (isDone()) {
+            complete();
+            return;
+        }
+        requestWrite();
+    }
+
+    /**
+     * 是否还有数据未写入套接字
+     * 分块传输编码时响应会暂存交给它的缓冲区，此时pending已清空但缓冲区仍有剩余，
+     * 要等响应写完后回调可写才能复用缓冲区
+     */
+    private boolean hasUnsentData() {
+        return pending.hasRemaining() || (buffer != null && buffer.hasRemaining())
+                || (readAhead != null && readAhead.isSending());
+    }
+
+    /**
+     * 是否已读取全部数据
+     */
+    private boolean isDone() {
+        return position >= end || endOfStream;
+    }
+
+    /**
+     * 申请下一段数据的发送额度
+     */
+    private void requestWrite() {
+        tracker.onWriteRequested();
+        scheduler.requestWrite(ticket);
+    }
+
+    /**
+     * 获得发送额度后读取并写出下一段数据
+     */
+    @Override
+    public long onGrant(long budget) {
+        if (finished) {
+            return 0;
+        }
+        tracker.onGranted();
+        try {
+            tracker.onReadStart();
+            long produced;
+            if (readAhead != null) {
+                produced = takeReadAhead(budget);
+            } else {
+                produced = readDirect(budget);
+            }
+            tracker.onRead(produced);
+            if (produced == 0) {
+                // 预读的数据已发完，等待预读线程
+                waitingForData = true;
+                return 0;
+            }
+            if (produced < 0) {
+                // 长度未知的文件流读到末尾即传输完成
+                complete();
+                return 0;
+            }
+            response.write(pending);
+            if (hasUnsentData()) {
+                tracker.onSocketBlocked();
+            } else if (isDone()) {
+                complete();
+            } else {
+                requestWrite();
+            }
+            return produced;
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading file", e);
+            tracker.finish(TransferMetrics.ErrorCause.READ_ERROR);
+            finish(e);
+            // 响应头已发出，只能关闭连接让客户端感知传输中断
+            response.getSocket().close();
+            return 0;
+        }
+    }
+
+    /**
+     * 准备写出用的缓冲区
+     * 只在上一段数据全部写入套接字后调用；写出大小跨越池的分级时换用对应一级的缓冲区
+     *
+     * @param size 本次写出的字节数
+     * @return 已清空的缓冲区
+     */
+    private ByteBuffer prepareBuffer(int size) {
+        // 清除已写完的缓冲区引用，避免同一个缓冲区在列表中出现两次
+        pending.recycle();
+        if (buffer == null || buffer.capacity() != BufferPool.classSize(size)) {
+            buffers.releaseDirect(buffer);
+            buffer = buffers.acquireDirect(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * 按位置将下一段文件内容读入堆外缓冲区
+     *
+     * @param budget 最多读取的字节数
+     * @return 读取的字节数
+     */
+    private int readDirect(long budget) throws IOException {
+        int size = buffers.writeSize(tracker.getBytesPerSecond());
+        int toRead = (int) Math.min(Math.min(size, end - position), budget);
+        ByteBuffer target = prepareBuffer(size);
+        target.limit(toRead);
+        int read = fileChannel.read(target, position);
+        if (read <= 0) {
+            throw new EOFException("Unexpected end of file at " + position);
+        }
+        position += read;
+        target.flip();
+        pending.add(target);
+        return read;
+    }
+
+    /**
+     * 从预读管道取出下一段数据
+     *
+     * @param budget 最多取出的字节数
+     * @return 取出的字节数，暂无数据时返回0，读到流末尾且长度未知时返回-1
+     */
+    private long takeReadAhead(long budget) throws IOException {
+        long taken = readAhead.take(budget, pending);
+        if (taken < 0) {
+            if (end != Long.MAX_VALUE) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            endOfStream = true;
+            return -1;
+        }
+        position += taken;
+        return taken;
+    }
+
+    /**
+     * 预读线程读取下一段数据
+     *
+     * @param target  目标缓冲区
+     * @param scratch 预读线程的临时数组
+     * @return 读取的字节数，读到末尾时返回-1
+     */
+    private int readAheadChunk(ByteBuffer target, byte[] scratch) throws IOException {
+        long remaining = end - readAheadPosition;
+        if (remaining <= 0) {
+            return -1;
+        }
+        if (target.remaining() > remaining) {
+            target.limit((int) (target.position() + remaining));
+        }
+        long start = System.nanoTime();
+        int read;
+        if (positional) {
+            read = fileChannel.read(target, readAheadPosition);
+        } else {
+            read = inputStream.read(scratch, 0, Math.min(scratch.length, target.remaining()));
+            if (read > 0) {
+                target.put(scratch, 0, read);
+            }
+        }
+        tracker.onReadAhead(System.nanoTime() - start);
+        if (read > 0) {
+            readAheadPosition += read;
+        }
+        return read;
+    }
+
+    /**
+     * 连接关闭时释放资源
+     */
+    @Override
+    public void onCompleted(Exception ex) {
+        if (ex != null) {
+            Log.i(TAG, "Transfer interrupted at " + position + ": " + ex.getMessage());
+        }
+        tracker.finish(TransferMetrics.ErrorCause.CLIENT_CLOSED);
+        finish(ex);
+    }
+
+    /**
+     * 全部数据写出后结束响应
+     */
+    private void complete() {
+        tracker.finish(null);
+        finish(null);
+        response.end();
+    }
+
+    /**
+     * 结束传输并关闭文件
+     *
+     * @param ex 传输异常，成功时为null
+     */
+    private void finish(Exception ex) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        response.setWriteableCallback(null);
+        response.setClosedCallback(null);
+        pending.recycle();
+        if (readAhead != null) {
+            readAhead.close();
+        }
+        // 连接异常关闭时缓冲区可能仍被响应引用，不放回池中
+        if (buffer != null && !buffer.hasRemaining()) {
+            buffers.releaseDirect(buffer);
+        }
+        buffer = null;
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            resource.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing file", e);
+        }
+        if (ticket != null) {
+            scheduler.finish(ticket);
+        }
+        if (completedCallback != null) {
+            completedCallback.onCompleted(ex);
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.yuwjoo.quickpass.server;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * IPv4子网
+ * 根据接口地址和前缀长度计算网段内可探测的主机地址
+ */
+final class Ipv4Subnet {
+    private final int network;
+    private final int prefixLength;
+
+    /**
+     * 构造函数
+     *
+     * @param address      网段内的任意地址
+     * @param prefixLength 前缀长度，0-32
+     */
+    Ipv4Subnet(Inet4Address address, int prefixLength) {
+        if (prefixLength < 0 || prefixLength > 32) {
+            throw new IllegalArgumentException("Invalid prefix length: " + prefixLength);
+        }
+        this.prefixLength = prefixLength;
+        this.network = toInt(address) & mask(prefixLength);
+    }
+
+    /**
+     * 获取前缀长度
+     * @return 前缀长度
+     */
+    int getPrefixLength() {
+        return prefixLength;
+    }
+
+    /**
+     * 将网段缩小到前缀长度不小于指定值，网段过大时只探测本机附近的地址
+     *
+     * @param address         网段内的地址，缩小后的网段包含该地址
+     * @param minPrefixLength 允许的最小前缀长度
+     * @return 缩小后的子网，不需要缩小时返回自身
+     */
+    Ipv4Subnet narrowTo(Inet4Address address, int minPrefixLength) {
+        return prefixLength >= minPrefixLength ? this : new Ipv4Subnet(address, minPrefixLength);
+    }
+
+    /**
+     * 获取网段内的主机地址
+     * 不包含网络地址和广播地址，/31和/32网段按RFC 3021包含全部地址
+     *
+     * @return 主机地址列表
+     */
+    List<InetAddress> hosts() {
+        long size = 1L << (32 - prefixLength);
+        long first = network & 0xFFFFFFFFL;
+        long last = first + size - 1;
+        if (size > 2) {
+            first++;
+            last--;
+        }
+        List<InetAddress> hosts = new ArrayList<>((int) (last - first + 1));
+        for (long host = first; host <= last; host++) {
+            hosts.add(fromInt((int) host));
+        }
+        return hosts;
+    }
+
+    private static int mask(int prefixLength) {
+        return prefixLength == 0 ? 0 : -1 << (32 - prefixLength);
+    }
+
+    private static int toInt(Inet4Address address) {
+        byte[] bytes = address.getAddress();
+        return (bytes[0] & 0xFF) << 24 | (bytes[1] & 0xFF) << 16 | (bytes[2] & 0xFF) << 8 | (bytes[3] & 0xFF);
+    }
+
+    private static InetAddress fromInt(int value) {
+        byte[] bytes = {(byte) (value >>> 24), (byte) (value >>> 16), (byte) (value >>> 8), (byte) value};
+        try {
+            return InetAddress.getByAddress(bytes);
+        } catch (UnknownHostException e) {
+            // 长度为4的地址不会出错
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.yuwjoo.quickpass.server;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.AsyncSocket;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.server.AsyncHttpServer;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.HttpServerRequestCallback;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 限制持久连接的HTTP服务器
+ * AndroidAsync在响应结束后继续在同一连接上按顺序解析下一个请求，流水线发送的请求也按顺序应答；
+ * 这里为每个路由记录连接上的请求数，在响应头中声明超时和剩余请求数，用完时改为Connection: close，
+ * 最后一个响应结束后由服务器关闭连接。没有响应进行中的连接空闲超时后关闭，避免大量小文件下载后连接堆积
+ */
+class KeepAliveHttpServer extends AsyncHttpServer {
+    private static final long MIN_SWEEP_INTERVAL_MS = 1000;
+    private static final long CLOSE_LINGER_MS = 1000; // 最后一个响应结束后等待数据发出再关闭连接
+    private static final Runnable NO_HOLD = () -> {
+    };
+
+    private final KeepAliveTracker tracker; // 只在服务器线程中访问
+    private final long sweepIntervalMs;
+    private volatile boolean sweeping;
+    private Hold currentHold; // 正在路由回调中处理的响应，只在服务器线程中访问
+
+    /**
+     * 构造函数
+     *
+     * @param maxRequests        每个连接最多处理的请求数
+     * @param idleTimeoutSeconds 连接空闲多久后关闭（秒）
+     */
+    KeepAliveHttpServer(int maxRequests, int idleTimeoutSeconds) {
+        this.tracker = new KeepAliveTracker(maxRequests, idleTimeoutSeconds);
+        this.sweepIntervalMs = Math.max(MIN_SWEEP_INTERVAL_MS, idleTimeoutSeconds * 1000L / 2);
+    }
+
+    @Override
+    public void get(String regex, HttpServerRequestCallback callback) {
+        super.get(regex, track(callback));
+    }
+
+    @Override
+    public void post(String regex, HttpServerRequestCallback callback) {
+        super.post(regex, track(callback));
+    }
+
+    @Override
+    public void addAction(String action, String regex, HttpServerRequestCallback callback) {
+        super.addAction(action, regex, track(callback));
+    }
+
+    /**
+     * 保持连接上的响应进行中，直到调用返回的回调
+     * 路由回调返回时响应默认已结束；在后台继续发送响应的路由应在回调中同步调用，
+     * 并在响应结束后调用返回的回调。返回的回调可以在任意线程调用，多次调用只生效一次
+     *
+     * @param request 正在处理的请求
+     * @return 响应结束时调用的回调
+     */
+    Runnable holdConnection(AsyncHttpServerRequest request) {
+        Hold hold = currentHold;
+        if (hold == null || hold.socket != request.getSocket()) {
+            return NO_HOLD;
+        }
+        hold.claimed = true;
+        return hold;
+    }
+
+    /**
+     * 开始定期关闭空闲连接，在开始监听后调用
+     */
+    void startSweeping() {
+        if (!sweeping) {
+            sweeping = true;
+            AsyncServer.getDefault().postDelayed(this::sweepIdle, sweepIntervalMs);
+        }
+    }
+
+    @Override
+    public void stop() {
+        sweeping = false;
+        super.stop();
+    }
+
+    /**
+     * get和post可能经由addAction注册，已包装的回调不重复包装
+     */
+    private HttpServerRequestCallback track(HttpServerRequestCallback callback) {
+        return callback instanceof TrackedCallback ? callback : new TrackedCallback(callback);
+    }
+
+    private void sweepIdle() {
+        if (!sweeping) {
+            return;
+        }
+        tracker.removeIf(connection -> !((AsyncSocket) connection).isOpen());
+        for (Object connection : tracker.removeIdle(System.nanoTime())) {
+            ((AsyncSocket) connection).close();
+        }
+        AsyncServer.getDefault().postDelayed(this::sweepIdle, sweepIntervalMs);
+    }
+
+    /**
+     * 响应结束，在服务器线程中调用
+     */
+    private void onResponseEnd(AsyncSocket socket) {
+        if (tracker.onResponseEnd(socket, System.nanoTime())) {
+            // 最后一个允许的响应已结束，等数据发出后关闭连接
+            AsyncServer.getDefault().postDelayed(() -> close(socket), CLOSE_LINGER_MS);
+        } else {
+            watchClose(socket);
+        }
+    }
+
+    private void close(AsyncSocket socket) {
+        tracker.remove(socket);
+        if (socket.isOpen()) {
+            socket.close();
+        }
+    }
+
+    /**
+     * 连接关闭时停止跟踪
+     * AndroidAsync可能在处理请求时替换关闭回调，每次请求和响应结束时检查一次
+     */
+    private void watchClose(AsyncSocket socket) {
+        CompletedCallback current = socket.getClosedCallback();
+        if (!(current instanceof CloseWatcher) && tracker.contains(socket)) {
+            socket.setClosedCallback(new CloseWatcher(socket, current));
+        }
+    }
+
+    /**
+     * 记录请求并设置连接相关的响应头，再交给路由处理
+     */
+    private final class TrackedCallback implements HttpServerRequestCallback {
+        private final HttpServerRequestCallback callback;
+
+        TrackedCallback(HttpServerRequestCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override
+        public void onRequest(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+            AsyncSocket socket = request.getSocket();
+            Hold hold = null;
+            if ("close".equalsIgnoreCase(request.getHeaders().get("Connection"))) {
+                // 客户端不复用连接，由AndroidAsync在响应后关闭
+                tracker.remove(socket);
+            } else {
+                int remaining = tracker.onRequest(socket, System.nanoTime());
+                if (remaining == KeepAliveTracker.OVER_LIMIT) {
+                    // 客户端忽略了Connection: close，不再响应
+                    close(socket);
+                    return;
+                }
+                if (remaining > 0) {
+                    response.getHeaders().set("Connection", "keep-alive");
+                    response.getHeaders().set("Keep-Alive", tracker.keepAliveHeader(remaining));
+                } else {
+                    response.getHeaders().set("Connection", "close");
+                }
+                watchClose(socket);
+                hold = new Hold(socket);
+            }
+            // 响应结束时可能同步处理同一连接上的下一个请求
+            Hold previous = currentHold;
+            currentHold = hold;
+            try {
+                callback.onRequest(request, response);
+            } finally {
+                currentHold = previous;
+                if (hold != null && !hold.claimed) {
+                    hold.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * 进行中的响应，结束时通知跟踪器
+     */
+    private final class Hold implements Runnable {
+        final AsyncSocket socket;
+        final AtomicBoolean released = new AtomicBoolean();
+        boolean claimed; // 路由是否在后台继续响应
+
+        Hold(AsyncSocket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            AsyncServer server = AsyncServer.getDefault();
+            if (server.isAffinityThread()) {
+                onResponseEnd(socket);
+            } else {
+                server.post(() -> onResponseEnd(socket));
+            }
+        }
+    }
+
+    /**
+     * 连接关闭时停止跟踪，再交给原来的关闭回调
+     */
+    private final class CloseWatcher implements CompletedCallback {
+        private final AsyncSocket socket;
+        private final CompletedCallback next;
+
+        CloseWatcher(AsyncSocket socket, CompletedCallback next) {
+            this.socket = socket;
+            this.next = next;
+        }
+
+        @Override
+        public void onCompleted(Exception ex) {
+            tracker.remove(socket);
+            if (next != null) {
+                next.onCompleted(ex);
+            }
+        }
+    }
+}
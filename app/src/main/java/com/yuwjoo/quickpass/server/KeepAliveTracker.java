@@ -0,0 +1,166 @@
+package com.yuwjoo.quickpass.server;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * 持久连接跟踪器
+ * 记录每个连接已处理的请求数、进行中的响应数和最后一次活动的时间，决定响应后是否保持连接，
+ * 并找出空闲超时的连接以便关闭。有响应进行中的连接不算空闲。只在服务器线程中访问
+ */
+class KeepAliveTracker {
+    /**
+     * {@link #onRequest(Object, long)}的返回值，表示连接已超过请求数限制，应直接关闭而不响应
+     */
+    static final int OVER_LIMIT = -1;
+
+    private final int maxRequests;
+    private final long idleTimeoutNanos;
+    private final String timeoutPrefix; // 预先生成的Keep-Alive响应头前缀
+    private final Map<Object, Connection> connections = new HashMap<>();
+
+    /**
+     * 构造函数
+     *
+     * @param maxRequests        每个连接最多处理的请求数
+     * @param idleTimeoutSeconds 连接空闲多久后关闭（秒）
+     */
+    KeepAliveTracker(int maxRequests, int idleTimeoutSeconds) {
+        if (maxRequests < 1 || idleTimeoutSeconds < 1) {
+            throw new IllegalArgumentException("Keep-alive limits must be positive");
+        }
+        this.maxRequests = maxRequests;
+        this.idleTimeoutNanos = idleTimeoutSeconds * 1_000_000_000L;
+        this.timeoutPrefix = "timeout=" + idleTimeoutSeconds + ", max=";
+    }
+
+    /**
+     * 记录连接上的一个新请求，响应结束后调用{@link #onResponseEnd(Object, long)}
+     *
+     * @param connection 连接，以对象身份区分
+     * @param now        当前时间（纳秒）
+     * @return 响应后还可以继续处理的请求数，0表示响应后应关闭连接，
+     * {@link #OVER_LIMIT}表示此前已经是最后一个请求，不应再响应
+     */
+    int onRequest(Object connection, long now) {
+        Connection state = connections.get(connection);
+        if (state == null) {
+            state = new Connection();
+            connections.put(connection, state);
+        }
+        state.lastActiveNanos = now;
+        if (state.requests >= maxRequests) {
+            return OVER_LIMIT;
+        }
+        state.requests++;
+        state.inFlight++;
+        return maxRequests - state.requests;
+    }
+
+    /**
+     * 记录连接上的一个响应已结束
+     *
+     * @param connection 连接
+     * @param now        当前时间（纳秒）
+     * @return 最后一个允许的响应已结束、应关闭连接时返回true
+     */
+    boolean onResponseEnd(Object connection, long now) {
+        Connection state = connections.get(connection);
+        if (state == null) {
+            return false;
+        }
+        if (state.inFlight > 0) {
+            state.inFlight--;
+        }
+        state.lastActiveNanos = now;
+        return state.inFlight == 0 && state.requests >= maxRequests;
+    }
+
+    /**
+     * 是否正在跟踪连接
+     *
+     * @param connection 连接
+     * @return 跟踪中返回true
+     */
+    boolean contains(Object connection) {
+        return connections.containsKey(connection);
+    }
+
+    /**
+     * 生成Keep-Alive响应头的值
+     *
+     * @param remaining {@link #onRequest(Object, long)}返回的剩余请求数
+     * @return 响应头的值
+     */
+    String keepAliveHeader(int remaining) {
+        return timeoutPrefix + remaining;
+    }
+
+    /**
+     * 移除并返回空闲超时的连接
+     * 只看没有响应进行中的连接，正在下载或浏览列表的连接不受影响
+     *
+     * @param now 当前时间（纳秒）
+     * @return 应关闭的连接
+     */
+    List<Object> removeIdle(long now) {
+        List<Object> idle = new ArrayList<>();
+        Iterator<Map.Entry<Object, Connection>> iterator = connections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Object, Connection> entry = iterator.next();
+            Connection state = entry.getValue();
+            if (state.inFlight == 0 && now - state.lastActiveNanos >= idleTimeoutNanos) {
+                idle.add(entry.getKey());
+                iterator.remove();
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * 移除已关闭的连接
+     *
+     * @param closed 判断连接是否已关闭
+     */
+    void removeIf(Predicate<Object> closed) {
+        connections.keySet().removeIf(closed);
+    }
+
+    /**
+     * 移除连接，例如连接已关闭
+     *
+     * @param connection 连接
+     */
+    void remove(Object connection) {
+        connections.remove(connection);
+    }
+
+    /**
+     * 获取跟踪中的连接数
+     */
+    int size() {
+        return connections.size();
+    }
+
+    /**
+     * 获取空闲超时
+     *
+     * @return 空闲超时（纳秒）
+     */
+    long getIdleTimeoutNanos() {
+        return idleTimeoutNanos;
+    }
+
+    /**
+     * 单个连接的状态
+     */
+    private static final class Connection {
+        int requests; // 已接受的请求数
+        int inFlight; // 进行中的响应数
+        long lastActiveNanos; // 最后一次请求或响应结束的时间
+    }
+}
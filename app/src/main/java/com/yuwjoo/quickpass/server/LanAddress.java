@@ -0,0 +1,54 @@
+package com.yuwjoo.quickpass.server;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * 局域网地址判断
+ * QuickPass设备之间通过局域网IP直接通信，对外部链接发起的请求只接受局域网内的地址。
+ * 只接受IP字面量，不解析域名，避免域名解析到任意地址
+ */
+public final class LanAddress {
+    private LanAddress() {
+    }
+
+    /**
+     * 判断主机是否为局域网地址
+     * 回环地址、私有地址（10/8、172.16/12、192.168/16）、链路本地地址以及IPv6唯一本地地址视为局域网地址
+     *
+     * @param host 主机，可以是带方括号的IPv6地址，可以为null
+     * @return 局域网地址返回true，域名或公网地址返回false
+     */
+    public static boolean isLocal(String host) {
+        if (host == null) {
+            return false;
+        }
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        if (!isIpLiteral(host)) {
+            return false;
+        }
+        InetAddress address;
+        try {
+            // IP字面量不会触发域名解析
+            address = InetAddress.getByName(host);
+        } catch (UnknownHostException e) {
+            return false;
+        }
+        if (address.isLoopbackAddress() || address.isSiteLocalAddress() || address.isLinkLocalAddress()) {
+            return true;
+        }
+        // IPv6唯一本地地址fc00::/7
+        return address instanceof Inet6Address && (address.getAddress()[0] & 0xFE) == 0xFC;
+    }
+
+    private static boolean isIpLiteral(String host) {
+        if (host.matches("\\d{1,3}(\\.\\d{1,3}){3}")) {
+            return true;
+        }
+        // IPv6地址至少包含两个冒号，可能带有%区域标识
+        return host.indexOf(':') != host.lastIndexOf(':') && host.matches("[0-9A-Fa-f:.]+(%[\\w.]+)?");
+    }
+}
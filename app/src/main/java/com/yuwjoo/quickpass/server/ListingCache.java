@@ -0,0 +1,123 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * 目录列表缓存
+ * 分页浏览同一目录时复用已打开的列表，不必每页重新枚举目录；
+ * 列表超过一段时间未被访问即关闭，缓存的列表数有上限，超出时关闭最久未使用的列表。
+ * 只在列表线程中访问
+ */
+class ListingCache {
+    private final LongSupplier nanoClock;
+    private final long ttlNanos;
+    private final int maxListings;
+    private final LinkedHashMap<String, Cached> listings = new LinkedHashMap<>(16, 0.75f, true); // 按访问顺序排列
+
+    /**
+     * 构造函数
+     *
+     * @param nanoClock   纳秒时钟
+     * @param ttlNanos    列表未被访问的最长保留时间
+     * @param maxListings 最多缓存的列表数
+     */
+    ListingCache(LongSupplier nanoClock, long ttlNanos, int maxListings) {
+        this.nanoClock = nanoClock;
+        this.ttlNanos = ttlNanos;
+        this.maxListings = maxListings;
+    }
+
+    /**
+     * 生成缓存键
+     *
+     * @param shareId    分享ID
+     * @param documentId 目录的文档ID
+     * @return 缓存键
+     */
+    static String key(String shareId, String documentId) {
+        return shareId + '\n' + documentId;
+    }
+
+    /**
+     * 获取目录列表，未缓存或已过期时重新打开
+     *
+     * @param key    缓存键
+     * @param loader 打开列表的方法
+     * @return 目录列表
+     * @throws IOException 打开失败
+     */
+    DirectoryListing get(String key, Loader loader) throws IOException {
+        long now = nanoClock.getAsLong();
+        expire(now);
+        Cached cached = listings.get(key);
+        if (cached == null) {
+            cached = new Cached(loader.load());
+            listings.put(key, cached);
+            Iterator<Cached> iterator = listings.values().iterator();
+            while (listings.size() > maxListings && iterator.hasNext()) {
+                iterator.next().listing.close();
+                iterator.remove();
+            }
+        }
+        cached.lastAccess = now;
+        return cached.listing;
+    }
+
+    /**
+     * 关闭并移除全部列表
+     */
+    void clear() {
+        for (Cached cached : listings.values()) {
+            cached.listing.close();
+        }
+        listings.clear();
+    }
+
+    /**
+     * 获取缓存的列表数
+     */
+    int size() {
+        return listings.size();
+    }
+
+    /**
+     * 关闭超时未访问的列表
+     * 按访问顺序排列，遇到未过期的列表即可停止
+     */
+    private void expire(long now) {
+        Iterator<Cached> iterator = listings.values().iterator();
+        while (iterator.hasNext()) {
+            Cached cached = iterator.next();
+            if (now - cached.lastAccess < ttlNanos) {
+                break;
+            }
+            cached.listing.close();
+            iterator.remove();
+        }
+    }
+
+    private static final class Cached {
+        final DirectoryListing listing;
+        long lastAccess;
+
+        Cached(DirectoryListing listing) {
+            this.listing = listing;
+        }
+    }
+
+    /**
+     * 列表加载接口
+     */
+    interface Loader {
+        /**
+         * 打开目录列表
+         *
+         * @return 目录列表
+         * @throws IOException 打开失败
+         */
+        DirectoryListing load() throws IOException;
+    }
+}
@@ -0,0 +1,161 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.function.Consumer;
+
+/**
+ * 目录列表分页
+ * 把目录列表的一页输出为JSON，输出攒够一定长度即交给发送方，整页不必先在内存中拼好。
+ * 游标是下一页第一项的位置，最后一页的next为null
+ */
+final class ListingPage {
+    static final int DEFAULT_LIMIT = 200; // 默认每页的项数
+    static final int MAX_LIMIT = 1000; // 每页最多的项数
+    static final String DIRECTORY_MIME_TYPE = "vnd.android.document/directory"; // 目录的MIME类型
+    private static final int FLUSH_SIZE = 16 * 1024; // 攒够该长度后发送一段
+
+    private ListingPage() {
+    }
+
+    /**
+     * 解析分页游标
+     *
+     * @param cursor 游标，第一页为null
+     * @return 起始位置，游标无效时返回-1
+     */
+    static int parseCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0;
+        }
+        try {
+            int offset = Integer.parseInt(cursor);
+            return offset >= 0 ? offset : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 解析每页的项数
+     *
+     * @param limit 请求的项数，可以为null
+     * @return 不超过上限的项数
+     */
+    static int parseLimit(String limit) {
+        if (limit == null) {
+            return DEFAULT_LIMIT;
+        }
+        try {
+            return Math.max(1, Math.min(MAX_LIMIT, Integer.parseInt(limit)));
+        } catch (NumberFormatException e) {
+            return DEFAULT_LIMIT;
+        }
+    }
+
+    /**
+     * 输出一页目录列表
+     * 子目录链接到下一级列表，文件链接到下载地址
+     *
+     * @param listing    目录列表
+     * @param shareId    分享ID
+     * @param documentId 目录的文档ID
+     * @param offset     起始位置
+     * @param limit      最多输出的项数
+     * @param sink       接收输出的JSON片段
+     */
+    static void write(DirectoryListing listing, String shareId, String documentId, int offset, int limit,
+                      Consumer<String> sink) {
+        int count = listing.getCount();
+        int end = (int) Math.min(count, (long) offset + limit);
+        StringBuilder out = new StringBuilder(FLUSH_SIZE + 1024);
+        out.append("{\"id\":");
+        appendString(out, shareId);
+        out.append(",\"doc\":");
+        appendString(out, documentId);
+        out.append(",\"total\":").append(count).append(",\"entries\":[");
+        for (int position = offset; position < end && listing.moveTo(position); position++) {
+            if (position > offset) {
+                out.append(',');
+            }
+            appendEntry(out, listing, shareId);
+            if (out.length() >= FLUSH_SIZE) {
+                sink.accept(out.toString());
+                out.setLength(0);
+            }
+        }
+        out.append("],\"next\":");
+        if (end < count) {
+            appendString(out, String.valueOf(end));
+        } else {
+            out.append("null");
+        }
+        out.append('}');
+        sink.accept(out.toString());
+    }
+
+    private static void appendEntry(StringBuilder out, DirectoryListing listing, String shareId) {
+        String documentId = listing.getDocumentId();
+        boolean directory = DIRECTORY_MIME_TYPE.equals(listing.getMimeType());
+        out.append("{\"name\":");
+        appendString(out, listing.getName());
+        out.append(",\"doc\":");
+        appendString(out, documentId);
+        out.append(",\"dir\":").append(directory);
+        if (!directory) {
+            out.append(",\"size\":").append(listing.getSize());
+            out.append(",\"type\":");
+            appendString(out, listing.getMimeType());
+        }
+        out.append(",\"modified\":").append(listing.getLastModified());
+        out.append(",\"href\":");
+        appendString(out, (directory ? "/list?id=" : "/downloadFile?id=") + encode(shareId) + "&doc=" + encode(documentId));
+        out.append('}');
+    }
+
+    /**
+     * 输出JSON字符串，null输出为null
+     */
+    static void appendString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            return value;
+        }
+    }
+}
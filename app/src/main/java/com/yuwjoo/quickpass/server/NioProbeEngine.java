@@ -0,0 +1,276 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * 非阻塞TCP探测引擎
+ * 在单个线程中用一个Selector驱动所有非阻塞SocketChannel的连接，
+ * 同时进行中的探测数量受并发窗口限制，每个探测有独立的截止时间。
+ * 设置了请求时，连接建立后在同一连接上发送请求并读取响应直到对方关闭连接，
+ * 只有在截止时间前收到响应的探测才算成功
+ */
+class NioProbeEngine {
+    private static final String TAG = "NioProbeEngine";
+    private static final int MAX_RESPONSE_SIZE = 4096; // 响应最大长度，超出部分不再读取
+
+    private final int port;
+    private final int timeoutMs;
+    private final int window;
+    private final Function<InetAddress, byte[]> requestFactory;
+
+    /**
+     * 构造函数
+     * 只检查端口能否连接
+     *
+     * @param port      探测的端口
+     * @param timeoutMs 单个探测的超时时间（毫秒）
+     * @param window    同时进行中的最大探测数量
+     */
+    NioProbeEngine(int port, int timeoutMs, int window) {
+        this(port, timeoutMs, window, null);
+    }
+
+    /**
+     * 构造函数
+     *
+     * @param port           探测的端口
+     * @param timeoutMs      单个探测的超时时间（毫秒），包含发送请求和读取响应的时间
+     * @param window         同时进行中的最大探测数量
+     * @param requestFactory 根据目标地址生成请求，为null时只检查端口能否连接
+     */
+    NioProbeEngine(int port, int timeoutMs, int window, Function<InetAddress, byte[]> requestFactory) {
+        if (window <= 0) {
+            throw new IllegalArgumentException("window must be positive: " + window);
+        }
+        this.port = port;
+        this.timeoutMs = timeoutMs;
+        this.window = window;
+        this.requestFactory = requestFactory;
+    }
+
+    /**
+     * 探测所有目标地址
+     * 阻塞直到所有探测结束或线程被中断，所有回调都在调用线程中执行
+     *
+     * @param targets  目标地址
+     * @param listener 探测监听器
+     */
+    void probe(List<InetAddress> targets, ProbeListener listener) throws IOException {
+        int total = targets.size();
+        int next = 0; // 下一个要发起连接的目标
+        int finished = 0;
+        int active = 0; // 进行中的探测数量，已结束的探测可能还留在队列中
+        // 所有探测的超时时间相同，按发起顺序排列即按截止时间排列
+        ArrayDeque<Probe> inFlight = new ArrayDeque<>();
+
+        try (Selector selector = Selector.open()) {
+            while (finished < total) {
+                if (Thread.currentThread().isInterrupted()) {
+                    Log.i(TAG, "Probe interrupted after " + finished + "/" + total);
+                    closeAll(inFlight);
+                    return;
+                }
+
+                // 填满并发窗口
+                while (next < total && active < window) {
+                    Probe probe = connect(selector, targets.get(next++));
+                    if (probe.done) {
+                        finished++;
+                        report(probe, listener, finished, total);
+                    } else {
+                        inFlight.add(probe);
+                        active++;
+                    }
+                }
+
+                long now = System.currentTimeMillis();
+                Probe oldest = inFlight.peek();
+                long wait = oldest == null ? 1 : Math.max(1, oldest.startTime + timeoutMs - now);
+                selector.select(wait);
+
+                // 处理就绪的连接
+                Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    Probe probe = (Probe) key.attachment();
+                    try {
+                        handleReady(key, probe);
+                    } catch (IOException e) {
+                        // 连接被拒绝、不可达或被重置
+                        probe.reachable = false;
+                        probe.close();
+                    }
+                    if (probe.done) {
+                        active--;
+                        finished++;
+                        report(probe, listener, finished, total);
+                    }
+                }
+
+                // 移除已结束的探测并使超时的探测失败
+                now = System.currentTimeMillis();
+                while (!inFlight.isEmpty()) {
+                    Probe probe = inFlight.peek();
+                    if (probe.done) {
+                        inFlight.poll();
+                    } else if (probe.startTime + timeoutMs <= now) {
+                        inFlight.poll();
+                        probe.close();
+                        active--;
+                        finished++;
+                        report(probe, listener, finished, total);
+                    } else {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 发起非阻塞连接
+     * 连接立即失败，或不需要发送请求且连接立即成功时，返回的探测已结束
+     */
+    private Probe connect(Selector selector, InetAddress address) {
+        Probe probe = new Probe(address, System.currentTimeMillis());
+        try {
+            probe.channel = SocketChannel.open();
+            probe.channel.configureBlocking(false);
+            SelectionKey key = probe.channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            if (probe.channel.connect(new InetSocketAddress(address, port))) {
+                onConnected(key, probe);
+            }
+        } catch (IOException e) {
+            probe.close();
+        }
+        return probe;
+    }
+
+    /**
+     * 处理就绪事件，推进探测状态
+     */
+    private void handleReady(SelectionKey key, Probe probe) throws IOException {
+        if (key.isConnectable()) {
+            if (probe.channel.finishConnect()) {
+                onConnected(key, probe);
+            }
+            return;
+        }
+        if (key.isWritable()) {
+            probe.channel.write(probe.request);
+            if (!probe.request.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            return;
+        }
+        if (key.isReadable()) {
+            int read = probe.channel.read(probe.response);
+            if (read == -1 || !probe.response.hasRemaining()) {
+                // 对方关闭连接或响应已达上限，响应读取完成
+                probe.reachable = true;
+                probe.close();
+            }
+        }
+    }
+
+    /**
+     * 连接建立后记录往返时间，需要时开始发送请求
+     */
+    private void onConnected(SelectionKey key, Probe probe) {
+        probe.rttMillis = System.currentTimeMillis() - probe.startTime;
+        if (requestFactory == null) {
+            probe.reachable = true;
+            probe.close();
+            return;
+        }
+        probe.request = ByteBuffer.wrap(requestFactory.apply(probe.address));
+        probe.response = ByteBuffer.allocate(MAX_RESPONSE_SIZE);
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private void report(Probe probe, ProbeListener listener, int finished, int total) {
+        if (probe.reachable) {
+            byte[] response = probe.response == null ? null
+                    : Arrays.copyOf(probe.response.array(), probe.response.position());
+            listener.onReachable(probe.address, probe.rttMillis, response);
+        }
+        listener.onProbeFinished(finished, total);
+    }
+
+    private void closeAll(ArrayDeque<Probe> inFlight) {
+        for (Probe probe : inFlight) {
+            probe.close();
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * 单个探测
+     */
+    private static final class Probe {
+        final InetAddress address;
+        final long startTime;
+        SocketChannel channel;
+        ByteBuffer request;
+        ByteBuffer response;
+        long rttMillis;
+        boolean reachable;
+        boolean done;
+
+        Probe(InetAddress address, long startTime) {
+            this.address = address;
+            this.startTime = startTime;
+        }
+
+        /**
+         * 关闭通道并标记为结束，通道关闭时对应的SelectionKey会被取消
+         */
+        void close() {
+            done = true;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // 探测结果已确定，关闭失败无需处理
+                }
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * 探测监听器接口
+     */
+    interface ProbeListener {
+        /**
+         * 目标端口可连接时调用，设置了请求时在完整读取响应后调用
+         *
+         * @param address   目标地址
+         * @param rttMillis 建立连接所用的时间（毫秒），近似于一次往返时间
+         * @param response  读取到的响应，没有设置请求时为null
+         */
+        void onReachable(InetAddress address, long rttMillis, byte[] response);
+
+        /**
+         * 每个探测结束时调用
+         *
+         * @param finished 已结束的探测数量
+         * @param total    探测总数
+         */
+        void onProbeFinished(int finished, int total);
+    }
+}
@@ -0,0 +1,139 @@
+package com.yuwjoo.quickpass.server;
+
+/**
+ * 已知的对端设备
+ * 记录设备最近一次出现的地址、时间和往返时间，用于下次扫描时优先探测
+ */
+public final class Peer {
+    private static final char SEPARATOR = '\t';
+
+    private final String id;
+    private final String address;
+    private final int port;
+    private final String name;
+    private final String version;
+    private final long lastSeen;
+    private final long rttMillis;
+
+    /**
+     * 构造函数
+     * @param id 设备ID
+     * @param address 最近一次出现的IP地址
+     * @param port HTTP服务端口
+     * @param name 设备名称
+     * @param version 应用版本
+     * @param lastSeen 最近一次出现的时间（毫秒时间戳）
+     * @param rttMillis 最近一次测得的往返时间（毫秒）
+     */
+    public Peer(String id, String address, int port, String name, String version, long lastSeen, long rttMillis) {
+        this.id = id;
+        this.address = address;
+        this.port = port;
+        this.name = name;
+        this.version = version;
+        this.lastSeen = lastSeen;
+        this.rttMillis = rttMillis;
+    }
+
+    /**
+     * 根据通告内容创建
+     * @param address 设备IP地址
+     * @param announcement 通告内容
+     * @param lastSeen 出现时间（毫秒时间戳）
+     * @param rttMillis 往返时间（毫秒）
+     * @return 对端设备
+     */
+    static Peer fromAnnouncement(String address, DiscoveryProtocol.Announcement announcement, long lastSeen,
+                                 long rttMillis) {
+        return new Peer(announcement.getId(), address, announcement.getPort(), announcement.getName(),
+                announcement.getVersion(), lastSeen, rttMillis);
+    }
+
+    /**
+     * 获取设备ID
+     * @return 设备ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 获取最近一次出现的IP地址
+     * @return IP地址
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * 获取HTTP服务端口
+     * @return HTTP服务端口
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * 获取设备名称
+     * @return 设备名称
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取应用版本
+     * @return 应用版本
+     */
+    public String getVersion() {
+        return version;
+    }
+
+    /**
+     * 获取最近一次出现的时间
+     * @return 毫秒时间戳
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * 获取最近一次测得的往返时间
+     * @return 往返时间（毫秒）
+     */
+    public long getRttMillis() {
+        return rttMillis;
+    }
+
+    /**
+     * 编码为持久化字符串
+     * @return 以制表符分隔的字段
+     */
+    String encode() {
+        return address + SEPARATOR + port + SEPARATOR + clean(name) + SEPARATOR + clean(version)
+                + SEPARATOR + lastSeen + SEPARATOR + rttMillis;
+    }
+
+    /**
+     * 解析持久化字符串
+     * @param id 设备ID
+     * @param value encode生成的字符串
+     * @return 对端设备，格式不合法时返回null
+     */
+    static Peer decode(String id, String value) {
+        String[] fields = value.split(String.valueOf(SEPARATOR), -1);
+        if (fields.length != 6) {
+            return null;
+        }
+        try {
+            return new Peer(id, fields[0], Integer.parseInt(fields[1]), fields[2], fields[3],
+                    Long.parseLong(fields[4]), Long.parseLong(fields[5]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String clean(String value) {
+        return value.replace(SEPARATOR, ' ');
+    }
+}
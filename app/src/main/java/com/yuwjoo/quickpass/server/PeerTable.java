@@ -0,0 +1,91 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 对端设备表
+ * 以设备ID为键保存扫描到的设备，持久化到SharedPreferences，长时间未出现的设备会被淘汰
+ */
+public class PeerTable {
+    private static final String PREFS_NAME = "peer_table";
+    private static final int MAX_PEERS = 64;
+    private static final long EXPIRE_MILLIS = 30L * 24 * 60 * 60 * 1000; // 30天未出现的设备不再保留
+
+    private final SharedPreferences preferences;
+    private final Map<String, Peer> peers = new HashMap<>();
+    private boolean loaded;
+
+    /**
+     * 构造函数
+     * @param context 上下文
+     */
+    public PeerTable(Context context) {
+        this.preferences = context.getApplicationContext().getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * 获取已知设备
+     * @return 按最近出现时间从新到旧排序的设备列表
+     */
+    public synchronized List<Peer> getPeers() {
+        load();
+        List<Peer> result = new ArrayList<>(peers.values());
+        result.sort((a, b) -> Long.compare(b.getLastSeen(), a.getLastSeen()));
+        return result;
+    }
+
+    /**
+     * 记录设备
+     * 同一设备ID的旧记录会被替换
+     * @param peer 设备
+     */
+    public synchronized void update(Peer peer) {
+        load();
+        peers.put(peer.getId(), peer);
+    }
+
+    /**
+     * 保存设备表
+     * 保存前淘汰过期设备，超出数量上限时淘汰最久未出现的设备
+     */
+    public synchronized void save() {
+        load();
+        long expireBefore = System.currentTimeMillis() - EXPIRE_MILLIS;
+        List<Peer> sorted = getPeers();
+        SharedPreferences.Editor editor = preferences.edit().clear();
+        peers.clear();
+        for (Peer peer : sorted) {
+            if (peers.size() >= MAX_PEERS || peer.getLastSeen() < expireBefore) {
+                break;
+            }
+            peers.put(peer.getId(), peer);
+            editor.putString(peer.getId(), peer.encode());
+        }
+        editor.apply();
+    }
+
+    /**
+     * 首次使用时从SharedPreferences加载
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            if (!(entry.getValue() instanceof String)) {
+                continue;
+            }
+            Peer peer = Peer.decode(entry.getKey(), (String) entry.getValue());
+            if (peer != null) {
+                peers.put(peer.getId(), peer);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.yuwjoo.quickpass.server;
+
+import android.os.Build;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 持久化读取权限的配额
+ * 系统为每个应用最多保留128个持久化Uri权限（Android 11起为512个），超出后会丢弃最早的权限，
+ * 已保存的分享在重启后因此失效。这里记录已保留的Uri，只有分到配额的分享才写入持久化存储，
+ * 其余分享只在本次运行中有效
+ */
+class PersistedGrants {
+    private final int capacity;
+    private final Set<String> held = new HashSet<>(); // 已保留权限的Uri
+
+    /**
+     * 构造函数
+     *
+     * @param capacity 最多保留的权限数
+     * @param held     已保留权限的Uri
+     */
+    PersistedGrants(int capacity, Collection<String> held) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.held.addAll(held);
+    }
+
+    /**
+     * 获取当前系统版本允许保留的权限数
+     *
+     * @return 最多保留的权限数
+     */
+    static int systemCapacity() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R ? 512 : 128;
+    }
+
+    /**
+     * 为Uri分配一个配额
+     *
+     * @param uri Uri
+     * @return 已保留或仍有配额时返回true，配额用完时返回false
+     */
+    synchronized boolean acquire(String uri) {
+        if (held.contains(uri)) {
+            return true;
+        }
+        if (held.size() >= capacity) {
+            return false;
+        }
+        held.add(uri);
+        return true;
+    }
+
+    /**
+     * 归还Uri的配额
+     *
+     * @param uri Uri
+     */
+    synchronized void release(String uri) {
+        held.remove(uri);
+    }
+
+    /**
+     * 是否已为Uri保留权限
+     *
+     * @param uri Uri
+     * @return 已保留时返回true
+     */
+    synchronized boolean contains(String uri) {
+        return held.contains(uri);
+    }
+
+    /**
+     * 获取已保留的权限数
+     */
+    synchronized int size() {
+        return held.size();
+    }
+}
@@ -0,0 +1,260 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import com.koushikdutta.async.ByteBufferList;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongSupplier;
+
+/**
+ * 预读管道
+ * 读取线程把文件内容读入有界的缓冲区环，服务器线程从环中取出写入响应，存储和网络各按自己的速度工作：
+ * 存储偶尔卡顿时由已读入的数据继续发送，网络阻塞时读取线程填满环后等待服务器线程归还缓冲区。
+ * 缓冲区来自{@link StreamBuffers}的池，每个管道最多同时持有depth个
+ */
+class ReadAheadPipeline {
+    private static final String TAG = "ReadAheadPipeline";
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // 数据结束或停止读取的标记
+
+    private final Source source;
+    private final StreamBuffers buffers;
+    private final int depth; // 缓冲区环的大小
+    private final LongSupplier linkSpeed; // 测得的发送速度，决定缓冲区大小
+    private final Runnable onReadable; // 服务器线程等待数据时，新数据就绪后在读取线程中回调
+    private final ArrayBlockingQueue<ByteBuffer> filled; // 已读入待发送的缓冲区
+    private final ArrayBlockingQueue<ByteBuffer> free; // 已发送可复用的缓冲区
+    private final AtomicBoolean waiting = new AtomicBoolean(); // 服务器线程是否在等待数据
+    private volatile boolean closed;
+    private volatile IOException failure; // 读取失败的原因
+    private ByteBuffer head; // 正在发送的缓冲区，只在服务器线程中访问
+    private int headLimit; // 正在发送的缓冲区的数据末尾
+    private boolean ended; // 是否已取完全部数据
+
+    /**
+     * 构造函数
+     *
+     * @param source     数据源，只在读取线程中调用
+     * @param buffers    缓冲区池
+     * @param depth      缓冲区环的大小，至少为1
+     * @param linkSpeed  测得的发送速度（字节/秒），未知时返回负数
+     * @param onReadable 数据就绪回调，在读取线程中执行
+     */
+    ReadAheadPipeline(Source source, StreamBuffers buffers, int depth, LongSupplier linkSpeed, Runnable onReadable) {
+        this.source = source;
+        this.buffers = buffers;
+        this.depth = depth;
+        this.linkSpeed = linkSpeed;
+        this.onReadable = onReadable;
+        // 另留一个位置给结束标记，放入时不会阻塞
+        this.filled = new ArrayBlockingQueue<>(depth + 1);
+        this.free = new ArrayBlockingQueue<>(depth + 1);
+    }
+
+    /**
+     * 启动读取线程
+     *
+     * @param executor 执行读取任务的线程池
+     */
+    void start(Executor executor) {
+        executor.execute(this::readLoop);
+    }
+
+    /**
+     * 读取线程的主循环
+     * 每个缓冲区读满后才交给服务器线程，服务器线程在等待时则立即交出已读到的数据
+     */
+    private void readLoop() {
+        int allocated = 0;
+        ByteBuffer scratch = buffers.acquireHeap();
+        try {
+            while (!closed) {
+                ByteBuffer buffer = allocated < depth ? null : free.take();
+                if (buffer == END) {
+                    break;
+                }
+                int size = buffers.writeSize(linkSpeed.getAsLong());
+                if (buffer == null || buffer.capacity() != BufferPool.classSize(size)) {
+                    buffers.releaseDirect(buffer);
+                    if (buffer == null) {
+                        allocated++;
+                    }
+                    buffer = buffers.acquireDirect(size);
+                }
+                buffer.clear();
+                buffer.limit(size);
+                boolean endOfData = false;
+                while (buffer.hasRemaining() && !closed) {
+                    if (source.read(buffer, scratch.array()) < 0) {
+                        endOfData = true;
+                        break;
+                    }
+                    if (waiting.get()) {
+                        break;
+                    }
+                }
+                buffer.flip();
+                if (buffer.hasRemaining()) {
+                    filled.add(buffer);
+                    signal();
+                } else {
+                    buffers.releaseDirect(buffer);
+                }
+                if (endOfData) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                failure = e;
+            }
+        } catch (RuntimeException e) {
+            // 服务器线程关闭数据源时，部分数据源会抛出运行时异常
+            if (!closed) {
+                Log.e(TAG, "Read-ahead failed", e);
+                failure = new IOException(e);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failure = new IOException("Read-ahead interrupted");
+        } finally {
+            buffers.releaseHeap(scratch);
+            filled.add(END);
+            signal();
+            if (closed) {
+                drain();
+            }
+        }
+    }
+
+    /**
+     * 服务器线程在等待数据时通知其继续
+     */
+    private void signal() {
+        if (waiting.getAndSet(false)) {
+            onReadable.run();
+        }
+    }
+
+    /**
+     * 取出下一段数据加入pending，必须在服务器线程中调用
+     * 上一次取出的数据全部写入套接字后才能再次调用
+     *
+     * @param budget  最多取出的字节数
+     * @param pending 待写出的数据
+     * @return 取出的字节数；暂无数据时返回0，数据就绪后回调onReadable；全部数据已取完时返回-1
+     * @throws IOException 读取线程读取失败
+     */
+    long take(long budget, ByteBufferList pending) throws IOException {
+        if (head != null) {
+            head.limit(headLimit);
+            if (!head.hasRemaining()) {
+                free.add(head);
+                head = null;
+            }
+        }
+        if (head == null) {
+            head = next();
+            if (head == null) {
+                if (!ended) {
+                    return 0;
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                return -1;
+            }
+            headLimit = head.limit();
+        }
+        // 按额度限制本次写出的长度，剩余部分留到下次
+        int count = (int) Math.min(head.remaining(), budget);
+        head.limit(head.position() + count);
+        // 清除已写完的缓冲区引用，避免同一个缓冲区在列表中出现两次
+        pending.recycle();
+        pending.add(head);
+        return count;
+    }
+
+    private ByteBuffer next() {
+        if (ended) {
+            return null;
+        }
+        ByteBuffer buffer = filled.poll();
+        if (buffer == null) {
+            waiting.set(true);
+            // 再检查一次，避免错过设置等待标记之前放入的数据
+            buffer = filled.poll();
+            if (buffer == null) {
+                return null;
+            }
+            waiting.set(false);
+        }
+        if (buffer == END) {
+            ended = true;
+            return null;
+        }
+        return buffer;
+    }
+
+    /**
+     * 取出的数据是否仍有部分未写入套接字
+     */
+    boolean isSending() {
+        return head != null && head.hasRemaining();
+    }
+
+    /**
+     * 停止读取并归还缓冲区，必须在服务器线程中调用
+     * 读取线程可能仍阻塞在数据源的读取中，关闭数据源后才会退出
+     */
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        // 仍被响应引用的缓冲区不放回池中
+        if (head != null && !head.hasRemaining()) {
+            buffers.releaseDirect(head);
+        }
+        head = null;
+        drain();
+        // 唤醒等待空闲缓冲区的读取线程
+        free.offer(END);
+    }
+
+    /**
+     * 归还队列中的缓冲区，服务器线程和读取线程都可能调用
+     */
+    private void drain() {
+        ByteBuffer buffer;
+        while ((buffer = filled.poll()) != null) {
+            if (buffer != END) {
+                buffers.releaseDirect(buffer);
+            }
+        }
+        while ((buffer = free.poll()) != null) {
+            if (buffer != END) {
+                buffers.releaseDirect(buffer);
+            }
+        }
+    }
+
+    /**
+     * 数据源接口
+     */
+    interface Source {
+        /**
+         * 在读取线程中读取数据
+         *
+         * @param target  目标缓冲区，最多读取target.remaining()字节
+         * @param scratch 读取线程专用的临时数组，需要先读入数组时使用
+         * @return 读取的字节数，已读到末尾时返回-1
+         * @throws IOException 读取失败
+         */
+        int read(ByteBuffer target, byte[] scratch) throws IOException;
+    }
+}
@@ -0,0 +1,709 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分段下载器
+ * 从其他QuickPass设备下载文件时，将文件拆分为多个字节区间，通过多个并行连接请求对方的/downloadFile，
+ * 并按位置写入预先分配好空间的目标文件。根据实测吞吐量逐步增加连接数；
+ * 每个分段独立重试和续传，空闲的连接会拆分最大的剩余分段，一个连接卡住不会拖慢整个文件
+ */
+public class SegmentedDownloader {
+    private static final String TAG = "SegmentedDownloader";
+    private static final int DEFAULT_MAX_CONNECTIONS = 8;
+    private static final int INITIAL_CONNECTIONS = 2;
+    private static final long MIN_SPLIT_SIZE = 1024 * 1024; // 拆分后每个分段的最小长度
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 10000; // 超过该时间没有数据视为连接卡住
+    private static final int MAX_RETRIES = 5; // 单个分段的最大连续重试次数
+    private static final long RETRY_DELAY_MS = 500;
+    private static final long SAMPLE_INTERVAL_MS = 1000; // 吞吐量采样间隔
+    private static final double GROWTH_THRESHOLD = 1.1; // 新增连接后吞吐量至少提升10%才继续增加
+    private static final int MAX_BUSY_RETRIES = 30; // 对方返回503时的最大等待次数
+    private static final long DEFAULT_BUSY_DELAY_MS = 1000; // 对方没有给出Retry-After时的等待时间
+    private static final long MAX_BUSY_DELAY_MS = 30000;
+
+    private final int maxConnections;
+    private final Object lock = new Object();
+    private final Deque<Segment> pendingSegments = new ArrayDeque<>(); // 等待下载的分段
+    private final List<Segment> activeSegments = new ArrayList<>(); // 正在下载的分段
+    private final List<HttpURLConnection> openConnections = new ArrayList<>();
+    private ExecutorService executor;
+    private FileChannel output;
+    private String url;
+    private String validator; // 用于If-Range的ETag，保证各分段来自同一版本的文件
+    private long downloadedBytes;
+    private int runningWorkers;
+    private IOException failure;
+    private volatile boolean cancelled;
+    private volatile String fileName; // 对方在Content-Disposition中给出的文件名
+
+    /**
+     * 构造函数
+     * 使用默认的最大连接数
+     */
+    public SegmentedDownloader() {
+        this(DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * 构造函数
+     * @param maxConnections 最大并行连接数
+     */
+    public SegmentedDownloader(int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * 下载文件
+     * 阻塞直到下载完成、失败或取消，必须在后台线程调用
+     *
+     * @param url         文件下载地址，例如 http://192.168.1.5:3400/downloadFile?id=xxx
+     * @param destination 目标文件
+     * @param listener    进度监听器，可以为null
+     * @throws IOException 下载失败或被取消时抛出，地址不是局域网地址时同样抛出
+     */
+    public void download(String url, File destination, ProgressListener listener) throws IOException {
+        requireLocal(url);
+        this.url = url;
+        cancelled = false;
+        failure = null;
+        downloadedBytes = 0;
+        fileName = null;
+
+        ProbeResult probe = null;
+        for (int attempt = 1; probe == null; attempt++) {
+            try {
+                probe = probe();
+            } catch (ServerBusyException e) {
+                awaitBusy(e, attempt);
+            }
+        }
+        try (RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+            output = file.getChannel();
+            if (probe.totalLength < 0 || !probe.acceptsRanges) {
+                // 对方不支持断点续传时只能单连接顺序下载，对方繁忙时从头重新下载
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        downloadSequential(probe.totalLength, listener);
+                        return;
+                    } catch (ServerBusyException e) {
+                        awaitBusy(e, attempt);
+                    }
+                }
+            }
+
+            // 预先分配目标文件空间，各分段按位置写入
+            file.setLength(probe.totalLength);
+            validator = probe.etag;
+            downloadSegmented(probe.totalLength, listener);
+        } finally {
+            output = null;
+        }
+    }
+
+    /**
+     * 获取对方给出的文件名
+     * @return 探测请求的Content-Disposition中的文件名，未给出时返回null
+     */
+    public String getFileName() {
+        return fileName;
+    }
+
+    /**
+     * 查询分享文件的文件名
+     * 发送HEAD请求，下载前向用户确认时使用；阻塞，必须在后台线程调用
+     *
+     * @param url 文件下载地址
+     * @return 文件名，对方未给出时返回null
+     * @throws IOException 请求失败或地址不是局域网地址时抛出
+     */
+    public static String queryFileName(String url) throws IOException {
+        requireLocal(url);
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        try {
+            connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            connection.setReadTimeout(READ_TIMEOUT_MS);
+            connection.setRequestMethod("HEAD");
+            int code = connection.getResponseCode();
+            if (code != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response " + code + " from " + url);
+            }
+            return parseFileName(connection.getHeaderField("Content-Disposition"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 确认地址指向局域网内的设备
+     */
+    private static void requireLocal(String url) throws IOException {
+        if (!LanAddress.isLocal(new URL(url).getHost())) {
+            throw new IOException("Not a local network address: " + url);
+        }
+    }
+
+    /**
+     * 取消下载
+     * 可以在任意线程调用，正在进行的连接会被断开
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (lock) {
+            for (HttpURLConnection connection : openConnections) {
+                connection.disconnect();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * 探测文件长度以及对方是否支持Range请求
+     */
+    private ProbeResult probe() throws IOException {
+        HttpURLConnection connection = openConnection();
+        try {
+            connection.setRequestProperty("Range", "bytes=0-0");
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_UNAVAILABLE) {
+                throw ServerBusyException.from(connection);
+            }
+            ProbeResult result = new ProbeResult();
+            result.etag = connection.getHeaderField("ETag");
+            fileName = parseFileName(connection.getHeaderField("Content-Disposition"));
+            if (code == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+                if (slash != -1 && !contentRange.endsWith("*")) {
+                    result.totalLength = Long.parseLong(contentRange.substring(slash + 1).trim());
+                    result.acceptsRanges = true;
+                }
+            } else if (code == HttpURLConnection.HTTP_OK) {
+                result.totalLength = connection.getContentLengthLong();
+            } else if (code == 416) {
+                // 空文件无法满足bytes=0-0，按普通下载处理
+                result.totalLength = 0;
+            } else {
+                throw new IOException("Unexpected response " + code + " from " + url);
+            }
+            return result;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 从Content-Disposition中解析文件名
+     * 优先使用RFC 6266的filename*参数，其次使用filename参数
+     *
+     * @param contentDisposition 响应头的值，可以为null
+     * @return 文件名，未给出时返回null
+     */
+    static String parseFileName(String contentDisposition) {
+        if (contentDisposition == null) {
+            return null;
+        }
+        String plain = null;
+        for (String parameter : contentDisposition.split(";")) {
+            int equals = parameter.indexOf('=');
+            if (equals == -1) {
+                continue;
+            }
+            String key = parameter.substring(0, equals).trim();
+            String value = parameter.substring(equals + 1).trim();
+            if (key.equalsIgnoreCase("filename*")) {
+                // 格式为 字符集'语言'编码后的文件名
+                int first = value.indexOf('\'');
+                int second = first != -1 ? value.indexOf('\'', first + 1) : -1;
+                String charset = first > 0 ? value.substring(0, first) : "UTF-8";
+                String encoded = second != -1 ? value.substring(second + 1) : value;
+                try {
+                    return URLDecoder.decode(encoded.replace("+", "%2B"), charset);
+                } catch (Exception e) {
+                    Log.w(TAG, "Malformed filename*: " + value);
+                }
+            } else if (key.equalsIgnoreCase("filename")) {
+                plain = value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")
+                        ? value.substring(1, value.length() - 1) : value;
+            }
+        }
+        return plain;
+    }
+
+    /**
+     * 单连接顺序下载
+     */
+    private void downloadSequential(long totalLength, ProgressListener listener) throws IOException {
+        HttpURLConnection connection = openConnection();
+        if (connection.getResponseCode() == HttpURLConnection.HTTP_UNAVAILABLE) {
+            ServerBusyException busy = ServerBusyException.from(connection);
+            connection.disconnect();
+            throw busy;
+        }
+        try (InputStream inputStream = connection.getInputStream()) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long position = 0;
+            long lastReport = System.currentTimeMillis();
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                if (cancelled) {
+                    throw new IOException("Download cancelled");
+                }
+                writeFully(ByteBuffer.wrap(buffer, 0, read), position);
+                position += read;
+                long now = System.currentTimeMillis();
+                if (listener != null && now - lastReport >= SAMPLE_INTERVAL_MS) {
+                    listener.onProgress(position, totalLength, 1);
+                    lastReport = now;
+                }
+            }
+            if (totalLength >= 0 && position != totalLength) {
+                throw new IOException("Connection closed at " + position + " of " + totalLength);
+            }
+            if (listener != null) {
+                listener.onProgress(position, position, 1);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 多连接分段下载
+     * 调用线程负责采样吞吐量并决定是否增加连接
+     */
+    private void downloadSegmented(long totalLength, ProgressListener listener) throws IOException {
+        executor = Executors.newCachedThreadPool();
+        try {
+            // 初始分段数取决于文件大小，小文件不拆分
+            int initial = (int) Math.max(1, Math.min(INITIAL_CONNECTIONS, totalLength / MIN_SPLIT_SIZE));
+            long segmentLength = totalLength / initial;
+            synchronized (lock) {
+                for (int i = 0; i < initial; i++) {
+                    long start = i * segmentLength;
+                    long end = i == initial - 1 ? totalLength : start + segmentLength;
+                    pendingSegments.add(new Segment(start, end));
+                }
+                for (int i = 0; i < initial; i++) {
+                    startWorker();
+                }
+            }
+
+            long lastBytes = 0;
+            double lastThroughput = 0;
+            boolean growing = true;
+            long lastSample = System.currentTimeMillis();
+            synchronized (lock) {
+                while (runningWorkers > 0 && failure == null && !cancelled) {
+                    lock.wait(SAMPLE_INTERVAL_MS);
+                    long now = System.currentTimeMillis();
+                    if (now - lastSample < SAMPLE_INTERVAL_MS) {
+                        continue;
+                    }
+                    double throughput = (downloadedBytes - lastBytes) * 1000.0 / (now - lastSample);
+                    lastBytes = downloadedBytes;
+                    lastSample = now;
+                    if (listener != null) {
+                        listener.onProgress(downloadedBytes, totalLength, runningWorkers);
+                    }
+
+                    // 爬山法：上一次增加连接带来了明显提升才继续增加
+                    if (growing && runningWorkers < maxConnections) {
+                        if (throughput >= lastThroughput * GROWTH_THRESHOLD) {
+                            startWorker();
+                        } else {
+                            growing = false;
+                            Log.i(TAG, "Throughput plateau at " + runningWorkers + " connections");
+                        }
+                    }
+                    lastThroughput = throughput;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            cancel();
+            throw new IOException("Download interrupted", e);
+        } finally {
+            if (failure != null || cancelled) {
+                // 出错或取消时断开其他连接，让工作线程尽快退出
+                synchronized (lock) {
+                    for (HttpURLConnection connection : openConnections) {
+                        connection.disconnect();
+                    }
+                }
+            }
+            executor.shutdownNow();
+            awaitWorkers();
+            executor = null;
+            synchronized (lock) {
+                pendingSegments.clear();
+                activeSegments.clear();
+            }
+        }
+
+        if (cancelled) {
+            throw new IOException("Download cancelled");
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        if (listener != null) {
+            listener.onProgress(totalLength, totalLength, 0);
+        }
+    }
+
+    /**
+     * 等待所有工作线程退出，避免在关闭文件后仍有写入
+     */
+    private void awaitWorkers() {
+        try {
+            if (!executor.awaitTermination(READ_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Workers did not exit in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 启动一个下载连接，调用时必须持有lock
+     */
+    private void startWorker() {
+        runningWorkers++;
+        executor.execute(this::runWorker);
+    }
+
+    /**
+     * 下载连接的主循环：不断领取分段直到没有可下载的内容
+     */
+    private void runWorker() {
+        try {
+            Segment segment;
+            while ((segment = nextSegment()) != null) {
+                downloadSegmentWithRetry(segment);
+                synchronized (lock) {
+                    activeSegments.remove(segment);
+                }
+            }
+        } catch (IOException e) {
+            synchronized (lock) {
+                if (failure == null && !cancelled) {
+                    failure = e;
+                }
+            }
+        } finally {
+            synchronized (lock) {
+                runningWorkers--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * 领取下一个分段
+     * 没有等待中的分段时拆分剩余最多的进行中分段
+     *
+     * @return 分段，全部完成时返回null
+     */
+    private Segment nextSegment() {
+        synchronized (lock) {
+            if (cancelled || failure != null) {
+                return null;
+            }
+            Segment segment = pendingSegments.poll();
+            if (segment == null) {
+                Segment largest = null;
+                for (Segment active : activeSegments) {
+                    if (largest == null || active.remaining() > largest.remaining()) {
+                        largest = active;
+                    }
+                }
+                segment = largest != null ? largest.split() : null;
+            }
+            if (segment != null) {
+                activeSegments.add(segment);
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * 下载单个分段，失败时从已完成的位置续传
+     */
+    private void downloadSegmentWithRetry(Segment segment) throws IOException {
+        int retries = 0;
+        int busyRetries = 0;
+        while (!segment.isComplete() && !cancelled) {
+            long before = segment.position();
+            try {
+                downloadSegment(segment);
+            } catch (FileChangedException e) {
+                throw e;
+            } catch (ServerBusyException e) {
+                // 对方下载名额已满，按Retry-After等待，不计入失败重试次数
+                awaitBusy(e, ++busyRetries);
+            } catch (IOException e) {
+                if (cancelled) {
+                    return;
+                }
+                // 有进展的失败不计入连续重试次数
+                retries = segment.position() > before ? 1 : retries + 1;
+                if (retries > MAX_RETRIES) {
+                    throw new IOException("Segment " + segment + " failed after " + MAX_RETRIES + " retries", e);
+                }
+                Log.w(TAG, "Segment " + segment + " interrupted, retry " + retries + ": " + e.getMessage());
+                try {
+                    Thread.sleep(RETRY_DELAY_MS * retries);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Download interrupted", interrupted);
+                }
+            }
+        }
+    }
+
+    /**
+     * 通过一个连接下载分段的剩余部分
+     */
+    private void downloadSegment(Segment segment) throws IOException {
+        HttpURLConnection connection = openConnection();
+        connection.setRequestProperty("Range", "bytes=" + segment.position() + "-" + (segment.end() - 1));
+        if (validator != null) {
+            connection.setRequestProperty("If-Range", validator);
+        }
+        synchronized (lock) {
+            openConnections.add(connection);
+        }
+        try {
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_UNAVAILABLE) {
+                throw ServerBusyException.from(connection);
+            }
+            if (code != HttpURLConnection.HTTP_PARTIAL) {
+                // If-Range不匹配时服务器返回完整文件，说明文件已被修改
+                throw new FileChangedException("Expected 206 but got " + code);
+            }
+            try (InputStream inputStream = connection.getInputStream()) {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while (!cancelled && (read = inputStream.read(buffer)) != -1) {
+                    // 分段可能被其他连接拆分，只写入仍属于本分段的部分
+                    int claimed = segment.claim(read);
+                    if (claimed > 0) {
+                        writeFully(ByteBuffer.wrap(buffer, 0, claimed), segment.position());
+                        segment.commit();
+                        synchronized (lock) {
+                            downloadedBytes += claimed;
+                        }
+                    }
+                    if (segment.isComplete()) {
+                        return;
+                    }
+                }
+            }
+            if (!segment.isComplete() && !cancelled) {
+                throw new IOException("Connection closed at " + segment.position());
+            }
+        } finally {
+            synchronized (lock) {
+                openConnections.remove(connection);
+            }
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 按位置写入完整的缓冲区
+     */
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += output.write(buffer, position);
+        }
+    }
+
+    private HttpURLConnection openConnection() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // 按字节区间下载时不能让连接层透明解压
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    /**
+     * 探测结果
+     */
+    private static class ProbeResult {
+        long totalLength = -1;
+        boolean acceptsRanges;
+        String etag;
+    }
+
+    /**
+     * 等待对方空闲
+     *
+     * @param e       对方返回的繁忙响应
+     * @param attempt 连续等待的次数
+     */
+    private void awaitBusy(ServerBusyException e, int attempt) throws IOException {
+        if (cancelled) {
+            throw new IOException("Download cancelled", e);
+        }
+        if (attempt > MAX_BUSY_RETRIES) {
+            throw new IOException("Server busy after " + MAX_BUSY_RETRIES + " retries", e);
+        }
+        Log.i(TAG, "Server busy, retry in " + e.retryAfterMillis + "ms");
+        try {
+            Thread.sleep(e.retryAfterMillis);
+        } catch (InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Download interrupted", interrupted);
+        }
+    }
+
+    /**
+     * 对方同时进行的传输已满，返回503
+     */
+    private static class ServerBusyException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long retryAfterMillis;
+
+        ServerBusyException(long retryAfterMillis) {
+            super("Server busy");
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * 根据Retry-After响应头创建
+         */
+        static ServerBusyException from(HttpURLConnection connection) {
+            long delay = DEFAULT_BUSY_DELAY_MS;
+            String retryAfter = connection.getHeaderField("Retry-After");
+            if (retryAfter != null) {
+                try {
+                    delay = Math.min(MAX_BUSY_DELAY_MS, Math.max(0, Long.parseLong(retryAfter.trim()) * 1000));
+                } catch (NumberFormatException ignored) {
+                    // HTTP日期格式的Retry-After使用默认等待时间
+                }
+            }
+            return new ServerBusyException(delay);
+        }
+    }
+
+    /**
+     * 文件在下载过程中被修改
+     * 已下载的分段与新版本不一致，不能重试
+     */
+    private static class FileChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        FileChangedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 下载分段
+     * 区间[position, end)，end可能因拆分而减小
+     */
+    static final class Segment {
+        private long position; // 已写入的位置
+        private long claimedEnd; // 已领取但尚未写入的位置
+        private long end; // 结束位置（不包含）
+
+        Segment(long start, long end) {
+            this.position = start;
+            this.claimedEnd = start;
+            this.end = end;
+        }
+
+        synchronized long position() {
+            return position;
+        }
+
+        synchronized long end() {
+            return end;
+        }
+
+        synchronized long remaining() {
+            return end - position;
+        }
+
+        synchronized boolean isComplete() {
+            return position >= end;
+        }
+
+        /**
+         * 领取即将写入的字节数
+         * @param length 读到的字节数
+         * @return 仍属于本分段的字节数
+         */
+        synchronized int claim(int length) {
+            int claimed = (int) Math.max(0, Math.min(length, end - position));
+            claimedEnd = position + claimed;
+            return claimed;
+        }
+
+        /**
+         * 确认已领取的字节已经写入
+         */
+        synchronized void commit() {
+            position = claimedEnd;
+        }
+
+        /**
+         * 将剩余部分拆成两半，后一半作为新分段返回
+         * @return 新分段，剩余部分太小时返回null
+         */
+        synchronized Segment split() {
+            long from = Math.max(position, claimedEnd);
+            long remaining = end - from;
+            if (remaining < MIN_SPLIT_SIZE * 2) {
+                return null;
+            }
+            long middle = from + remaining / 2;
+            Segment tail = new Segment(middle, end);
+            end = middle;
+            return tail;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "[" + position + ", " + end + ")";
+        }
+    }
+
+    /**
+     * 下载进度监听器接口
+     * 在下载线程中回调
+     */
+    public interface ProgressListener {
+        /**
+         * 下载进度更新
+         * @param downloadedBytes 已下载字节数
+         * @param totalBytes 文件总字节数，未知时为-1
+         * @param connections 当前连接数
+         */
+        void onProgress(long downloadedBytes, long totalBytes, int connections);
+    }
+}
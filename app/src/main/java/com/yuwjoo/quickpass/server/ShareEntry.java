@@ -0,0 +1,313 @@
+package com.yuwjoo.quickpass.server;
+
+import android.net.Uri;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 分享文件条目
+ * 保存分享文件的Uri以及添加时解析出的元数据，避免每次请求重复查询。
+ * 条目被移除后拒绝新的请求，正在进行的传输可以继续直到完成。
+ * 设置了有效期策略的条目记录添加时间、最后访问时间和下载次数，由回收器据此移除
+ */
+public class ShareEntry {
+    /**
+     * 文件大小未知
+     */
+    public static final long UNKNOWN_SIZE = -1;
+
+    /**
+     * 下载次数用完后保留分享的时间（毫秒），让已开始的下载继续请求后续分段
+     */
+    static final long EXHAUSTED_GRACE_MILLIS = 60_000;
+
+    private final String id;
+    private final Uri uri;
+    private volatile FileMetadata metadata;
+    private final AtomicInteger activeTransfers = new AtomicInteger(); // 进行中的传输数
+    private volatile boolean removed; // 是否已从分享列表移除
+    private final AtomicBoolean drained = new AtomicBoolean(); // 移除后传输是否已全部结束
+    private long sequence; // 加入注册表的顺序
+    private final SharePolicy policy; // 有效期策略
+    private final long createdTime; // 添加时间（毫秒）
+    private volatile long lastAccessTime; // 最后一次访问的时间（毫秒）
+    private final AtomicInteger downloads; // 已开始的下载次数
+    private volatile boolean persistent = true; // 是否保存到持久化存储，重启后恢复
+
+    /**
+     * 构造函数
+     * 创建不会自动过期的条目
+     * @param id 分享ID
+     * @param uri 文件Uri
+     * @param metadata 文件元数据
+     */
+    public ShareEntry(String id, Uri uri, FileMetadata metadata) {
+        this(id, uri, metadata, SharePolicy.UNLIMITED, System.currentTimeMillis(), 0);
+    }
+
+    /**
+     * 构造函数
+     * @param id 分享ID
+     * @param uri 文件Uri
+     * @param metadata 文件元数据
+     * @param policy 有效期策略
+     * @param createdTime 添加时间（毫秒），从持久化存储恢复时为原来的添加时间
+     * @param downloads 已开始的下载次数
+     */
+    public ShareEntry(String id, Uri uri, FileMetadata metadata, SharePolicy policy, long createdTime, int downloads) {
+        this.id = id;
+        this.uri = uri;
+        this.metadata = metadata;
+        this.policy = policy;
+        this.createdTime = createdTime;
+        this.lastAccessTime = System.currentTimeMillis();
+        this.downloads = new AtomicInteger(downloads);
+    }
+
+    /**
+     * 获取分享ID
+     * @return 分享ID
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * 获取文件Uri
+     * @return 文件Uri
+     */
+    public Uri getUri() {
+        return uri;
+    }
+
+    /**
+     * 获取文件元数据
+     * @return 文件元数据
+     */
+    public FileMetadata getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * 更新文件元数据
+     * 文档发生变化后由服务器调用
+     * @param metadata 新的文件元数据
+     */
+    synchronized void setMetadata(FileMetadata metadata) {
+        this.metadata = metadata;
+    }
+
+    /**
+     * 元数据未被其他线程更新时替换为新的元数据
+     * 后台计算完成后调用，计算期间文件发生变化时放弃结果
+     * @param expected 开始计算时的元数据
+     * @param metadata 新的元数据
+     * @return 替换成功返回true
+     */
+    synchronized boolean compareAndSetMetadata(FileMetadata expected, FileMetadata metadata) {
+        if (this.metadata != expected) {
+            return false;
+        }
+        this.metadata = metadata;
+        return true;
+    }
+
+    /**
+     * 获取加入注册表的顺序
+     * @return 顺序号，越小越早加入
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * 设置加入注册表的顺序
+     * 由注册表在添加时调用
+     * @param sequence 顺序号
+     */
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * 获取文件大小
+     * @return 文件大小（字节），未知时为{@link #UNKNOWN_SIZE}
+     */
+    public long getSize() {
+        return metadata.getSize();
+    }
+
+    /**
+     * 文件大小是否已知
+     * @return 已知返回true
+     */
+    public boolean hasKnownSize() {
+        return metadata.getSize() >= 0;
+    }
+
+    /**
+     * 是否为分享的目录
+     * 目录的内容通过列表接口浏览，不能直接下载
+     * @return 目录返回true
+     */
+    public boolean isDirectory() {
+        return ListingPage.DIRECTORY_MIME_TYPE.equals(metadata.getMimeType());
+    }
+
+    /**
+     * 获取进行中的传输数
+     * @return 进行中的传输数
+     */
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    /**
+     * 是否已从分享列表移除
+     * @return 已移除返回true
+     */
+    public boolean isRemoved() {
+        return removed;
+    }
+
+    /**
+     * 尝试开始一次传输
+     * @return 条目已移除时返回false
+     */
+    boolean tryAcquire() {
+        if (removed) {
+            return false;
+        }
+        activeTransfers.incrementAndGet();
+        // 与移除操作竞争时以移除为准
+        if (removed) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 结束一次传输
+     * @return 条目已移除且没有进行中的传输时返回true
+     */
+    boolean release() {
+        activeTransfers.decrementAndGet();
+        return tryMarkDrained();
+    }
+
+    /**
+     * 标记为已移除
+     * @return 没有进行中的传输时返回true
+     */
+    boolean markRemoved() {
+        removed = true;
+        return tryMarkDrained();
+    }
+
+    /**
+     * 移除后传输全部结束时标记为已排空，保证只成功一次
+     * @return 本次调用完成排空时返回true
+     */
+    private boolean tryMarkDrained() {
+        return removed && activeTransfers.get() == 0 && drained.compareAndSet(false, true);
+    }
+
+    /**
+     * 获取有效期策略
+     * @return 有效期策略
+     */
+    public SharePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * 获取添加时间
+     * @return 添加时间（毫秒）
+     */
+    public long getCreatedTime() {
+        return createdTime;
+    }
+
+    /**
+     * 获取已开始的下载次数
+     * @return 下载次数
+     */
+    public int getDownloads() {
+        return downloads.get();
+    }
+
+    /**
+     * 是否在重启后恢复
+     * 持久化权限的配额用完或无法保留权限时，分享只在本次运行中有效
+     * @return 重启后恢复返回true
+     */
+    public boolean isPersistent() {
+        return persistent;
+    }
+
+    /**
+     * 设置是否在重启后恢复
+     * @param persistent 重启后恢复时为true
+     */
+    void setPersistent(boolean persistent) {
+        this.persistent = persistent;
+    }
+
+    /**
+     * 记录一次访问，推迟空闲超时
+     * @param now 当前时间（毫秒）
+     */
+    void touch(long now) {
+        lastAccessTime = now;
+    }
+
+    /**
+     * 尝试计入一次下载
+     * @return 下载次数已用完时返回false
+     */
+    boolean tryCountDownload() {
+        int max = policy.getMaxDownloads();
+        while (true) {
+            int count = downloads.get();
+            if (max > 0 && count >= max) {
+                return false;
+            }
+            if (downloads.compareAndSet(count, count + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 下载次数是否已用完
+     * @return 已用完返回true
+     */
+    boolean isDownloadQuotaExhausted() {
+        int max = policy.getMaxDownloads();
+        return max > 0 && downloads.get() >= max;
+    }
+
+    /**
+     * 计算过期时间
+     * 有传输进行时视为正在访问，不会因空闲而过期；下载次数用完后在最后一次访问
+     * {@link #EXHAUSTED_GRACE_MILLIS}后过期
+     * @param now 当前时间（毫秒）
+     * @return 过期时间（毫秒），不会过期时返回{@link Long#MAX_VALUE}
+     */
+    long getExpiryTime(long now) {
+        long lastAccess = activeTransfers.get() > 0 ? now : lastAccessTime;
+        long expiry = Long.MAX_VALUE;
+        if (policy.getTtlMillis() > 0) {
+            expiry = createdTime + policy.getTtlMillis();
+        }
+        if (policy.getIdleTimeoutMillis() > 0) {
+            expiry = Math.min(expiry, lastAccess + policy.getIdleTimeoutMillis());
+        }
+        if (isDownloadQuotaExhausted()) {
+            expiry = Math.min(expiry, lastAccess + EXHAUSTED_GRACE_MILLIS);
+        }
+        return expiry;
+    }
+}
@@ -0,0 +1,63 @@
+package com.yuwjoo.quickpass.server;
+
+/**
+ * 分享的有效期策略
+ * 包括存活时间、最大下载次数和空闲超时，任一条件满足时分享被自动移除；值为0表示不限制
+ */
+public final class SharePolicy {
+    /**
+     * 不限制，分享一直保留到手动移除
+     */
+    public static final SharePolicy UNLIMITED = new SharePolicy(0, 0, 0);
+
+    private final long ttlMillis;
+    private final int maxDownloads;
+    private final long idleTimeoutMillis;
+
+    /**
+     * 构造函数
+     * @param ttlMillis 添加后的存活时间（毫秒），0表示不限制
+     * @param maxDownloads 最大下载次数，0表示不限制
+     * @param idleTimeoutMillis 没有访问后的保留时间（毫秒），0表示不限制
+     */
+    public SharePolicy(long ttlMillis, int maxDownloads, long idleTimeoutMillis) {
+        if (ttlMillis < 0 || maxDownloads < 0 || idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Negative share limit");
+        }
+        this.ttlMillis = ttlMillis;
+        this.maxDownloads = maxDownloads;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+    }
+
+    /**
+     * 获取存活时间
+     * @return 存活时间（毫秒），0表示不限制
+     */
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    /**
+     * 获取最大下载次数
+     * @return 最大下载次数，0表示不限制
+     */
+    public int getMaxDownloads() {
+        return maxDownloads;
+    }
+
+    /**
+     * 获取空闲超时
+     * @return 空闲超时（毫秒），0表示不限制
+     */
+    public long getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    /**
+     * 是否没有任何限制
+     * @return 不会自动过期时返回true
+     */
+    public boolean isUnlimited() {
+        return ttlMillis == 0 && maxDownloads == 0 && idleTimeoutMillis == 0;
+    }
+}
@@ -0,0 +1,134 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * 过期分享回收器
+ * 按过期时间把分享放入延迟队列，由后台线程在到期时取出，请求处理时不需要扫描注册表。
+ * 空闲超时被访问推迟时不更新队列，到期取出后重新计算过期时间，未过期则以新的时间重新入队
+ */
+class ShareReaper {
+    private static final String TAG = "ShareReaper";
+
+    private final LongSupplier clock;
+    private final OnShareExpiredListener listener;
+    private final DelayQueue<Expiry> queue = new DelayQueue<>();
+    private Thread thread;
+
+    /**
+     * 构造函数
+     * @param clock 当前时间（毫秒），与分享条目的添加时间使用同一时钟
+     * @param listener 分享过期时在回收线程中回调
+     */
+    ShareReaper(LongSupplier clock, OnShareExpiredListener listener) {
+        this.clock = clock;
+        this.listener = listener;
+    }
+
+    /**
+     * 启动回收线程
+     */
+    synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        thread = new Thread(this::reapLoop, TAG);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 停止回收线程，队列中的分享保留到下次启动
+     */
+    synchronized void stop() {
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * 按分享当前的过期时间加入队列
+     * 不会过期的分享忽略；同一分享可以重复加入，过期后只通知一次
+     * @param entry 已加入注册表的分享条目
+     */
+    void schedule(ShareEntry entry) {
+        long expiry = entry.getExpiryTime(clock.getAsLong());
+        if (expiry != Long.MAX_VALUE) {
+            queue.add(new Expiry(entry, expiry));
+        }
+    }
+
+    /**
+     * 获取队列中等待过期的数量
+     */
+    int size() {
+        return queue.size();
+    }
+
+    private void reapLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            Expiry expiry;
+            try {
+                expiry = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            ShareEntry entry = expiry.entry;
+            if (entry.isRemoved()) {
+                continue;
+            }
+            long now = clock.getAsLong();
+            long time = entry.getExpiryTime(now);
+            if (time > now) {
+                // 到期前被访问过，推迟到新的过期时间
+                queue.add(new Expiry(entry, time));
+                continue;
+            }
+            try {
+                listener.onShareExpired(entry);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error removing expired share " + entry.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * 队列中的一项
+     */
+    private final class Expiry implements Delayed {
+        private final ShareEntry entry;
+        private final long time; // 过期时间（毫秒）
+
+        Expiry(ShareEntry entry, long time) {
+            this.entry = entry;
+            this.time = time;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - clock.getAsLong(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(time, ((Expiry) other).time);
+        }
+    }
+
+    /**
+     * 分享过期监听器接口
+     */
+    interface OnShareExpiredListener {
+        /**
+         * 分享到达过期时间或下载次数用完时调用
+         * @param entry 过期的分享条目
+         */
+        void onShareExpired(ShareEntry entry);
+    }
+}
@@ -0,0 +1,215 @@
+package com.yuwjoo.quickpass.server;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 分享注册表
+ * 线程安全地保存分享条目：界面线程添加和移除分享，服务器线程并发读取。
+ * 移除的分享立即拒绝新的请求，进行中的传输结束后通知排空。
+ * 启动时从持久化存储恢复分享期间不阻塞任何线程，查询按已恢复的条目回答，
+ * 调用方可以通过{@link #isRestoring()}区分尚未恢复和不存在的分享
+ */
+public class ShareRegistry {
+    private final ConcurrentHashMap<String, ShareEntry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong(); // 添加顺序
+    private final AtomicInteger activeTransfers = new AtomicInteger(); // 所有分享进行中的传输总数
+    private volatile OnShareDrainedListener onShareDrainedListener;
+    private volatile OnTransferActivityListener onTransferActivityListener;
+    private volatile boolean restoring; // 是否正在恢复分享
+
+    /**
+     * 添加分享条目
+     * @param entry 分享条目
+     */
+    public void add(ShareEntry entry) {
+        entry.setSequence(sequence.incrementAndGet());
+        entries.put(entry.getId(), entry);
+    }
+
+    /**
+     * 开始恢复分享
+     * 调用{@link #finishRestoring()}之前{@link #isRestoring()}返回true
+     */
+    void beginRestoring() {
+        restoring = true;
+    }
+
+    /**
+     * 恢复完成
+     */
+    void finishRestoring() {
+        restoring = false;
+    }
+
+    /**
+     * 是否正在恢复分享
+     * 恢复期间查不到的分享可能稍后出现，应让请求方重试而不是返回不存在
+     * @return 正在恢复时返回true
+     */
+    public boolean isRestoring() {
+        return restoring;
+    }
+
+    /**
+     * 移除分享条目
+     * @param id 分享ID
+     * @return 被移除的条目，不存在时返回null
+     */
+    public ShareEntry remove(String id) {
+        ShareEntry entry = entries.remove(id);
+        if (entry != null && entry.markRemoved()) {
+            notifyDrained(entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 获取分享条目，不占用传输计数
+     * @param id 分享ID
+     * @return 分享条目，不存在时返回null
+     */
+    public ShareEntry get(String id) {
+        return id != null ? entries.get(id) : null;
+    }
+
+    /**
+     * 是否存在分享条目
+     * @param id 分享ID
+     * @return 存在返回true
+     */
+    public boolean contains(String id) {
+        return get(id) != null;
+    }
+
+    /**
+     * 为一次传输获取分享条目
+     * 成功后必须调用{@link #release(ShareEntry)}
+     * @param id 分享ID
+     * @return 分享条目，不存在或已移除时返回null
+     */
+    public ShareEntry acquire(String id) {
+        ShareEntry entry = get(id);
+        if (entry == null || !entry.tryAcquire()) {
+            return null;
+        }
+        entry.touch(System.currentTimeMillis());
+        beginTransfer();
+        return entry;
+    }
+
+    /**
+     * 结束一次传输
+     * @param entry 通过{@link #acquire(String)}获取的分享条目
+     */
+    public void release(ShareEntry entry) {
+        // 空闲时间从传输结束时开始计算
+        entry.touch(System.currentTimeMillis());
+        if (entry.release()) {
+            notifyDrained(entry);
+        }
+        endTransfer();
+    }
+
+    /**
+     * 记录一次不属于任何分享的传输，例如接收上传
+     * 结束后必须调用{@link #endTransfer()}
+     */
+    public void beginTransfer() {
+        if (activeTransfers.incrementAndGet() == 1) {
+            notifyTransferActivity();
+        }
+    }
+
+    /**
+     * 结束通过{@link #beginTransfer()}记录的传输
+     */
+    public void endTransfer() {
+        if (activeTransfers.decrementAndGet() == 0) {
+            notifyTransferActivity();
+        }
+    }
+
+    /**
+     * 获取所有分享进行中的传输总数
+     * @return 传输总数
+     */
+    public int getActiveTransfers() {
+        return activeTransfers.get();
+    }
+
+    /**
+     * 获取全部分享条目的快照
+     * @return 按添加顺序排列的分享条目列表
+     */
+    public List<ShareEntry> snapshot() {
+        List<ShareEntry> result = new ArrayList<>(entries.values());
+        result.sort(Comparator.comparingLong(ShareEntry::getSequence));
+        return result;
+    }
+
+    /**
+     * 获取分享条目数量
+     * @return 分享条目数量
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * 设置排空监听器
+     * @param onShareDrainedListener 排空监听器
+     */
+    public void setOnShareDrainedListener(OnShareDrainedListener onShareDrainedListener) {
+        this.onShareDrainedListener = onShareDrainedListener;
+    }
+
+    /**
+     * 设置传输活动监听器
+     * @param onTransferActivityListener 传输活动监听器
+     */
+    public void setOnTransferActivityListener(OnTransferActivityListener onTransferActivityListener) {
+        this.onTransferActivityListener = onTransferActivityListener;
+    }
+
+    private void notifyTransferActivity() {
+        OnTransferActivityListener listener = onTransferActivityListener;
+        if (listener != null) {
+            listener.onTransferActivityChanged(activeTransfers.get());
+        }
+    }
+
+    private void notifyDrained(ShareEntry entry) {
+        OnShareDrainedListener listener = onShareDrainedListener;
+        if (listener != null) {
+            listener.onShareDrained(entry);
+        }
+    }
+
+    /**
+     * 排空监听器接口
+     */
+    public interface OnShareDrainedListener {
+        /**
+         * 分享被移除且进行中的传输全部结束时调用，每个条目只调用一次
+         * @param entry 分享条目
+         */
+        void onShareDrained(ShareEntry entry);
+    }
+
+    /**
+     * 传输活动监听器接口
+     */
+    public interface OnTransferActivityListener {
+        /**
+         * 传输总数在0和非0之间变化时调用
+         * 可能在多个线程中调用，监听器应以传入的最新数量或{@link ShareRegistry#getActiveTransfers()}为准
+         * @param activeTransfers 当前的传输总数
+         */
+        void onTransferActivityChanged(int activeTransfers);
+    }
+}
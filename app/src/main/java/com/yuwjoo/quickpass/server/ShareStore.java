@@ -0,0 +1,285 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 分享持久化存储
+ * 以只追加的日志保存分享的ID、Uri、元数据和有效期：添加或更新写一行记录，移除写一行删除标记，
+ * 进程被系统杀死后重新启动时按日志恢复分享，链接保持有效。
+ * 日志中失效的行超过有效记录数后整体重写，重写时先写临时文件再替换。
+ * 可以在任意线程调用
+ */
+class ShareStore {
+    private static final String TAG = "ShareStore";
+    private static final char SEPARATOR = '\t';
+    private static final String PUT = "+";
+    private static final String REMOVE = "-";
+    private static final int FIELD_COUNT = 13; // 添加记录的字段数
+    private static final int MIN_COMPACT_LINES = 64; // 失效的行少于该数时不重写
+    private static final int HASH_LENGTH = 64; // 十六进制SHA-256的长度
+
+    private final File file;
+    private final LinkedHashMap<String, Record> records = new LinkedHashMap<>(); // 按添加顺序排列
+    private Writer writer;
+    private int lines; // 日志的行数
+    private boolean loaded;
+
+    /**
+     * 构造函数
+     *
+     * @param file 日志文件
+     */
+    ShareStore(File file) {
+        this.file = file;
+    }
+
+    /**
+     * 读取日志中的全部分享
+     * 只解析本地文件，不访问内容提供者
+     *
+     * @return 按添加顺序排列的分享记录
+     */
+    synchronized List<Record> load() {
+        if (!loaded) {
+            loaded = true;
+            // 上次写入中断时最后一行不完整，之后追加的记录会接在它后面，需要先重写
+            boolean truncated = read();
+            compact(truncated);
+        }
+        return new ArrayList<>(records.values());
+    }
+
+    /**
+     * 保存或更新分享
+     *
+     * @param record 分享记录
+     */
+    synchronized void put(Record record) {
+        load();
+        records.remove(record.getId());
+        records.put(record.getId(), record);
+        append(record.encode());
+    }
+
+    /**
+     * 移除分享
+     *
+     * @param id 分享ID
+     */
+    synchronized void remove(String id) {
+        load();
+        if (records.remove(id) != null) {
+            append(REMOVE + SEPARATOR + id);
+        }
+    }
+
+    /**
+     * 关闭日志文件
+     */
+    synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing " + file, e);
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * 读取日志
+     *
+     * @return 日志最后一行不完整时返回true
+     */
+    private boolean read() {
+        if (!file.isFile()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines++;
+                if (line.startsWith(REMOVE + SEPARATOR)) {
+                    records.remove(line.substring(2));
+                    continue;
+                }
+                // 写入中断留下的残缺行直接跳过
+                Record record = Record.decode(line);
+                if (record != null) {
+                    records.put(record.getId(), record);
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error reading " + file, e);
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            if (in.length() == 0) {
+                return false;
+            }
+            in.seek(in.length() - 1);
+            return in.read() != '\n';
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    private void append(String line) {
+        try {
+            if (writer == null) {
+                writer = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file, true), StandardCharsets.UTF_8));
+            }
+            writer.write(line);
+            writer.write('\n');
+            writer.flush();
+            lines++;
+        } catch (IOException e) {
+            Log.w(TAG, "Error writing " + file, e);
+            close();
+        }
+        compact(false);
+    }
+
+    /**
+     * 失效的行过多时重写日志，只保留有效记录
+     *
+     * @param force 是否无论失效的行数都重写
+     */
+    private void compact(boolean force) {
+        if (!force && lines - records.size() < Math.max(MIN_COMPACT_LINES, records.size())) {
+            return;
+        }
+        close();
+        File temp = new File(file.getPath() + ".tmp");
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            for (Record record : records.values()) {
+                out.write(record.encode());
+                out.write('\n');
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Error compacting " + file, e);
+            temp.delete();
+            return;
+        }
+        if (temp.renameTo(file)) {
+            lines = records.size();
+        } else {
+            Log.w(TAG, "Cannot replace " + file);
+            temp.delete();
+        }
+    }
+
+    /**
+     * 分享记录
+     */
+    static final class Record {
+        private final String id;
+        private final String uri;
+        private final FileMetadata metadata;
+        private final SharePolicy policy;
+        private final long createdTime;
+        private final int downloads;
+
+        /**
+         * 构造函数
+         *
+         * @param id          分享ID
+         * @param uri         文件Uri
+         * @param metadata    文件元数据
+         * @param policy      有效期策略
+         * @param createdTime 添加时间（毫秒）
+         * @param downloads   已开始的下载次数
+         */
+        Record(String id, String uri, FileMetadata metadata, SharePolicy policy, long createdTime, int downloads) {
+            this.id = id;
+            this.uri = uri;
+            this.metadata = metadata;
+            this.policy = policy;
+            this.createdTime = createdTime;
+            this.downloads = downloads;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getUri() {
+            return uri;
+        }
+
+        FileMetadata getMetadata() {
+            return metadata;
+        }
+
+        SharePolicy getPolicy() {
+            return policy;
+        }
+
+        long getCreatedTime() {
+            return createdTime;
+        }
+
+        int getDownloads() {
+            return downloads;
+        }
+
+        /**
+         * 编码为日志中的一行
+         */
+        String encode() {
+            String hash = metadata.getContentHash();
+            return PUT + SEPARATOR + clean(id) + SEPARATOR + clean(uri) + SEPARATOR + clean(metadata.getName())
+                    + SEPARATOR + metadata.getSize() + SEPARATOR + clean(metadata.getMimeType())
+                    + SEPARATOR + metadata.getLastModified() + SEPARATOR + (hash != null ? hash : "")
+                    + SEPARATOR + createdTime + SEPARATOR + policy.getTtlMillis() + SEPARATOR + policy.getMaxDownloads()
+                    + SEPARATOR + policy.getIdleTimeoutMillis() + SEPARATOR + downloads;
+        }
+
+        /**
+         * 从日志中的一行解码
+         *
+         * @param line encode生成的字符串
+         * @return 分享记录，格式不正确时返回null
+         */
+        static Record decode(String line) {
+            String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+            // 不完整的行字段数不足，或者哈希被截断
+            if (fields.length != FIELD_COUNT || !PUT.equals(fields[0])
+                    || !(fields[7].isEmpty() || fields[7].length() == HASH_LENGTH)) {
+                return null;
+            }
+            try {
+                FileMetadata metadata = new FileMetadata(fields[3], Long.parseLong(fields[4]), fields[5],
+                        Long.parseLong(fields[6]), fields[7].isEmpty() ? null : fields[7]);
+                SharePolicy policy = new SharePolicy(Long.parseLong(fields[9]), Integer.parseInt(fields[10]),
+                        Long.parseLong(fields[11]));
+                return new Record(fields[1], fields[2], metadata, policy, Long.parseLong(fields[8]),
+                        Integer.parseInt(fields[12]));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+
+        private static String clean(String value) {
+            return value.replace(SEPARATOR, ' ').replace('\n', ' ').replace('\r', ' ');
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.yuwjoo.quickpass.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.function.LongSupplier;
+
+/**
+ * 响应流缓冲区
+ * 所有下载共用的缓冲区池、缓冲区大小设置和预读线程池：
+ * 读取大小决定单次从文件流读取的字节数，读入池化的堆内缓冲区；
+ * 写出大小决定攒够多少数据后交给套接字一次写出，使用池化的堆外缓冲区，
+ * 在最小值和最大值之间按测得的链路速度调整为约{@link #TARGET_WRITE_MILLIS}毫秒的发送量，
+ * 快速链路用大块减少写操作次数，慢速链路用小块减少滞留的数据；
+ * 较大的文件由预读线程提前读入若干个缓冲区，预读深度可以设置。
+ * 传输稳定后缓冲区全部来自池中，不再分配新的缓冲区
+ */
+class StreamBuffers {
+    static final int TARGET_WRITE_MILLIS = 20; // 单次写出的目标发送时间
+    static final int DEFAULT_READ_SIZE = 64 * 1024;
+    static final int DEFAULT_MIN_WRITE_SIZE = 32 * 1024;
+    static final int DEFAULT_MAX_WRITE_SIZE = 1024 * 1024;
+    static final int INITIAL_WRITE_SIZE = 256 * 1024; // 测得速度之前使用的写出大小
+    static final int DEFAULT_READ_AHEAD_DEPTH = 4; // 每个下载预读的缓冲区数
+    static final int MAX_READ_AHEAD_DEPTH = 16;
+    static final long READ_AHEAD_MIN_LENGTH = 1024 * 1024; // 不小于该长度或长度未知的文件才预读
+    private static final long MAX_POOLED_BYTES = 16L * 1024 * 1024; // 每个池缓存的总量上限
+
+    private final Executor readAheadExecutor; // 预读线程池
+    private final BufferPool directPool = new BufferPool(true, MAX_POOLED_BYTES);
+    private final BufferPool heapPool = new BufferPool(false, MAX_POOLED_BYTES);
+    private volatile int readSize = DEFAULT_READ_SIZE;
+    private volatile int minWriteSize = DEFAULT_MIN_WRITE_SIZE;
+    private volatile int maxWriteSize = DEFAULT_MAX_WRITE_SIZE;
+    private volatile int readAheadDepth = DEFAULT_READ_AHEAD_DEPTH;
+
+    /**
+     * 构造函数
+     *
+     * @param readAheadExecutor 执行预读任务的线程池，每个预读的下载占用一个线程
+     */
+    StreamBuffers(Executor readAheadExecutor) {
+        this.readAheadExecutor = readAheadExecutor;
+    }
+
+    /**
+     * 设置缓冲区大小，对之后读取的数据生效
+     *
+     * @param readSize     单次从文件流读取的字节数
+     * @param minWriteSize 单次写出的最小字节数
+     * @param maxWriteSize 单次写出的最大字节数
+     */
+    void setSizes(int readSize, int minWriteSize, int maxWriteSize) {
+        if (readSize < BufferPool.MIN_SIZE || readSize > BufferPool.MAX_SIZE) {
+            throw new IllegalArgumentException("readSize out of range: " + readSize);
+        }
+        if (minWriteSize < BufferPool.MIN_SIZE || maxWriteSize > BufferPool.MAX_SIZE || minWriteSize > maxWriteSize) {
+            throw new IllegalArgumentException("Invalid write size range: " + minWriteSize + "-" + maxWriteSize);
+        }
+        this.readSize = readSize;
+        this.minWriteSize = minWriteSize;
+        this.maxWriteSize = maxWriteSize;
+    }
+
+    /**
+     * 设置预读深度，对之后开始的下载生效
+     *
+     * @param depth 每个下载预读的缓冲区数，0表示可定位的文件不预读
+     */
+    void setReadAheadDepth(int depth) {
+        if (depth < 0 || depth > MAX_READ_AHEAD_DEPTH) {
+            throw new IllegalArgumentException("Read-ahead depth out of range: " + depth);
+        }
+        this.readAheadDepth = depth;
+    }
+
+    /**
+     * 判断指定长度的可定位文件是否使用预读
+     * 文件流总是预读，不经过该判断
+     *
+     * @param length 数据长度，未知时为负数
+     * @return 是否使用预读
+     */
+    boolean shouldReadAhead(long length) {
+        return readAheadDepth > 0 && (length < 0 || length >= READ_AHEAD_MIN_LENGTH);
+    }
+
+    /**
+     * 创建并启动预读管道
+     *
+     * @param source     数据源，在预读线程中调用
+     * @param linkSpeed  测得的发送速度，未知时返回负数
+     * @param onReadable 数据就绪回调，在预读线程中执行
+     * @return 已启动的预读管道
+     */
+    ReadAheadPipeline openReadAhead(ReadAheadPipeline.Source source, LongSupplier linkSpeed, Runnable onReadable) {
+        ReadAheadPipeline pipeline = new ReadAheadPipeline(source, this, Math.max(1, readAheadDepth),
+                linkSpeed, onReadable);
+        pipeline.start(readAheadExecutor);
+        return pipeline;
+    }
+
+    /**
+     * 获取单次从文件流读取的字节数
+     */
+    int getReadSize() {
+        return readSize;
+    }
+
+    /**
+     * 按链路速度计算单次写出的字节数
+     *
+     * @param bytesPerSecond 测得的发送速度，未知时传入负数
+     * @return 写出大小，不超出最小值和最大值
+     */
+    int writeSize(long bytesPerSecond) {
+        long size = bytesPerSecond < 0 ? INITIAL_WRITE_SIZE : bytesPerSecond * TARGET_WRITE_MILLIS / 1000;
+        return (int) Math.max(minWriteSize, Math.min(maxWriteSize, size));
+    }
+
+    /**
+     * 申请写出用的堆外缓冲区
+     *
+     * @param size 需要的字节数
+     * @return 已清空的缓冲区，容量不小于size所在的一级
+     */
+    ByteBuffer acquireDirect(int size) {
+        return directPool.acquire(size);
+    }
+
+    /**
+     * 归还堆外缓冲区
+     * 只有缓冲区中的数据已全部写入套接字时才能归还
+     *
+     * @param buffer 缓冲区，可以为null
+     */
+    void releaseDirect(ByteBuffer buffer) {
+        directPool.release(buffer);
+    }
+
+    /**
+     * 申请读取文件流用的堆内缓冲区
+     *
+     * @return 容量为读取大小所在一级的缓冲区
+     */
+    ByteBuffer acquireHeap() {
+        return heapPool.acquire(readSize);
+    }
+
+    /**
+     * 归还堆内缓冲区
+     *
+     * @param buffer 缓冲区，可以为null
+     */
+    void releaseHeap(ByteBuffer buffer) {
+        heapPool.release(buffer);
+    }
+
+    /**
+     * 以Prometheus文本格式输出缓冲区池的指标
+     *
+     * @param out 输出
+     */
+    void writePrometheus(StringBuilder out) {
+        TransferMetrics.writeHeader(out, "quickpass_buffer_allocations_total", "counter",
+                "Stream buffers allocated because the pool was empty");
+        TransferMetrics.writeSample(out, "quickpass_buffer_allocations_total", "pool", "direct",
+                directPool.getAllocations());
+        TransferMetrics.writeSample(out, "quickpass_buffer_allocations_total", "pool", "heap",
+                heapPool.getAllocations());
+        TransferMetrics.writeHeader(out, "quickpass_buffer_reuses_total", "counter", "Stream buffers taken from the pool");
+        TransferMetrics.writeSample(out, "quickpass_buffer_reuses_total", "pool", "direct", directPool.getReuses());
+        TransferMetrics.writeSample(out, "quickpass_buffer_reuses_total", "pool", "heap", heapPool.getReuses());
+        TransferMetrics.writeHeader(out, "quickpass_buffer_pooled_bytes", "gauge", "Bytes held by idle pooled buffers");
+        TransferMetrics.writeSample(out, "quickpass_buffer_pooled_bytes", "pool", "direct", directPool.getPooledBytes());
+        TransferMetrics.writeSample(out, "quickpass_buffer_pooled_bytes", "pool", "heap", heapPool.getPooledBytes());
+    }
+}
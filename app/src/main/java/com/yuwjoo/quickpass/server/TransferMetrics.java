@@ -0,0 +1,616 @@
+package com.yuwjoo.quickpass.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * 传输指标
+ * 统计下载的字节数、吞吐量、首字节时间、错误原因和每个分享的下载次数，
+ * 并分别累计读取文件、等待套接字可写、等待调度额度的时间以及服务器线程的CPU时间：
+ * 读取时间占比高说明瓶颈在磁盘，CPU时间接近经过时间说明瓶颈在CPU，等待套接字的时间占比高说明瓶颈在Wi-Fi。
+ * 传输过程中只更新计数器和基本类型字段，不分配对象。
+ * 除计数器外的状态只在服务器线程中访问
+ */
+public class TransferMetrics {
+    private static final long SAMPLE_INTERVAL_MS = 1000; // 采样间隔
+    private static final double[] TTFB_BUCKETS = {0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10}; // 首字节时间直方图的上界（秒）
+
+    /**
+     * 传输失败的原因
+     */
+    public enum ErrorCause {
+        CLIENT_CLOSED("client_closed"), // 客户端断开连接
+        READ_ERROR("read_error"), // 读取文件出错
+        BUSY("busy"), // 服务器繁忙被拒绝
+        NOT_FOUND("not_found"), // 文件不存在或无法打开
+        RANGE_NOT_SATISFIABLE("range_not_satisfiable"), // 请求的区间无效
+        UPLOAD_FAILED("upload_failed"); // 接收上传失败
+
+        private final String label;
+
+        ErrorCause(String label) {
+            this.label = label;
+        }
+    }
+
+    private final TransferScheduler.EventLoop eventLoop;
+    private final LongSupplier nanoClock; // 单调时钟（纳秒）
+    private final LongSupplier cpuClock; // 服务器线程的CPU时间（纳秒）
+    private final long createdNanos;
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder transfersStarted = new LongAdder();
+    private final LongAdder transfersCompleted = new LongAdder();
+    private final LongAdder diskReadNanos = new LongAdder(); // 读取文件的时间
+    private final LongAdder socketWaitNanos = new LongAdder(); // 等待套接字可写的时间
+    private final LongAdder schedulerWaitNanos = new LongAdder(); // 等待发送额度的时间
+    private final LongAdder[] errors = new LongAdder[ErrorCause.values().length];
+    private final AtomicLongArray ttfbBuckets = new AtomicLongArray(TTFB_BUCKETS.length + 1); // 最后一个为+Inf
+    private final LongAdder ttfbNanos = new LongAdder();
+    private final Map<String, ShareCounter> shareCounters = new ConcurrentHashMap<>();
+    private final List<Tracker> trackers = new ArrayList<>(); // 进行中的传输
+    private volatile OnProgressListener onProgressListener;
+    private long busyNanos; // 有传输进行的累计时间
+    private long busySince; // 本次开始有传输的时间
+    private boolean sampling; // 采样任务是否已安排
+    private long lastSampleNanos;
+    private long lastSampleBytes;
+    private volatile long throughput; // 最近一个采样周期的吞吐量（字节/秒）
+
+    /**
+     * 构造函数
+     *
+     * @param eventLoop 服务器线程的事件循环，用于定时采样
+     * @param nanoClock 单调时钟（纳秒）
+     * @param cpuClock  服务器线程的CPU时间（纳秒），在服务器线程中调用
+     */
+    TransferMetrics(TransferScheduler.EventLoop eventLoop, LongSupplier nanoClock, LongSupplier cpuClock) {
+        this.eventLoop = eventLoop;
+        this.nanoClock = nanoClock;
+        this.cpuClock = cpuClock;
+        this.createdNanos = nanoClock.getAsLong();
+        for (int i = 0; i < errors.length; i++) {
+            errors[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * 开始统计一个下载
+     * 必须在服务器线程中调用
+     *
+     * @param shareId 分享ID，打包下载时为null
+     * @param length  需要发送的字节数，未知时为-1
+     * @return 传输统计
+     */
+    Tracker begin(String shareId, long length) {
+        long now = nanoClock.getAsLong();
+        Tracker tracker = new Tracker(this, now);
+        tracker.switchShare(shareId, length);
+        if (trackers.isEmpty()) {
+            busySince = now;
+        }
+        trackers.add(tracker);
+        transfersStarted.increment();
+        if (!sampling) {
+            sampling = true;
+            lastSampleNanos = now;
+            lastSampleBytes = bytesSent.sum();
+            eventLoop.postDelayed(this::sample, SAMPLE_INTERVAL_MS);
+        }
+        return tracker;
+    }
+
+    /**
+     * 记录未进入传输阶段的错误
+     *
+     * @param cause 错误原因
+     */
+    void recordError(ErrorCause cause) {
+        errors[cause.ordinal()].increment();
+    }
+
+    /**
+     * 记录接收上传写入的字节数，可以在任意线程调用
+     *
+     * @param bytes 字节数
+     */
+    void recordBytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /**
+     * 传输结束
+     */
+    private void onFinished(Tracker tracker, ErrorCause cause) {
+        if (cause == null) {
+            transfersCompleted.increment();
+        } else {
+            errors[cause.ordinal()].increment();
+        }
+        trackers.remove(tracker);
+        if (trackers.isEmpty()) {
+            busyNanos += nanoClock.getAsLong() - busySince;
+        }
+    }
+
+    private void recordFirstByte(long nanos) {
+        ttfbNanos.add(nanos);
+        double seconds = nanos / 1e9;
+        int bucket = 0;
+        while (bucket < TTFB_BUCKETS.length && seconds > TTFB_BUCKETS[bucket]) {
+            bucket++;
+        }
+        ttfbBuckets.incrementAndGet(bucket);
+    }
+
+    private ShareCounter getShareCounter(String shareId) {
+        return shareCounters.computeIfAbsent(shareId, id -> new ShareCounter());
+    }
+
+    /**
+     * 定时采样
+     * 计算最近一个周期的吞吐量和每个传输的速度并通知监听器；
+     * 没有进行中的传输时发送最后一次更新后停止
+     */
+    private void sample() {
+        long now = nanoClock.getAsLong();
+        long elapsed = Math.max(1, now - lastSampleNanos);
+        long sent = bytesSent.sum();
+        throughput = (sent - lastSampleBytes) * 1_000_000_000L / elapsed;
+        lastSampleNanos = now;
+        lastSampleBytes = sent;
+
+        Map<String, ShareProgress> progress = new LinkedHashMap<>();
+        for (Tracker tracker : trackers) {
+            long speed = (tracker.bytes - tracker.sampledBytes) * 1_000_000_000L / elapsed;
+            tracker.sampledBytes = tracker.bytes;
+            tracker.bytesPerSecond = speed;
+            if (tracker.shareId == null) {
+                continue;
+            }
+            ShareProgress share = progress.get(tracker.shareId);
+            if (share == null) {
+                share = new ShareProgress(tracker.shareId, getDownloadCount(tracker.shareId));
+                progress.put(tracker.shareId, share);
+            }
+            share.add(tracker.shareBytes, tracker.shareLength, speed);
+        }
+
+        OnProgressListener listener = onProgressListener;
+        if (listener != null) {
+            listener.onProgress(Collections.unmodifiableList(new ArrayList<>(progress.values())));
+        }
+        if (trackers.isEmpty()) {
+            sampling = false;
+        } else {
+            eventLoop.postDelayed(this::sample, SAMPLE_INTERVAL_MS);
+        }
+    }
+
+    /**
+     * 设置传输进度监听器
+     * 有下载进行时每秒在服务器线程中回调一次，全部结束后再回调一次空列表
+     *
+     * @param listener 传输进度监听器
+     */
+    public void setOnProgressListener(OnProgressListener listener) {
+        this.onProgressListener = listener;
+    }
+
+    /**
+     * 获取已发送的总字节数
+     *
+     * @return 字节数
+     */
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * 获取已接收上传的总字节数
+     *
+     * @return 字节数
+     */
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * 获取最近一个采样周期的吞吐量
+     *
+     * @return 吞吐量（字节/秒）
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
+    /**
+     * 获取平均吞吐量
+     * 只计算有下载进行的时间，空闲时间不拉低平均值。必须在服务器线程中调用
+     *
+     * @return 平均吞吐量（字节/秒）
+     */
+    public long getAverageThroughput() {
+        long busy = getBusyNanos();
+        return busy > 0 ? (long) (bytesSent.sum() * 1e9 / busy) : 0;
+    }
+
+    /**
+     * 获取指定原因的错误次数
+     *
+     * @param cause 错误原因
+     * @return 错误次数
+     */
+    public long getErrorCount(ErrorCause cause) {
+        return errors[cause.ordinal()].sum();
+    }
+
+    /**
+     * 获取分享的完整下载次数
+     *
+     * @param shareId 分享ID
+     * @return 下载次数
+     */
+    public long getDownloadCount(String shareId) {
+        ShareCounter counter = shareCounters.get(shareId);
+        return counter != null ? counter.downloads.sum() : 0;
+    }
+
+    private long getBusyNanos() {
+        return trackers.isEmpty() ? busyNanos : busyNanos + nanoClock.getAsLong() - busySince;
+    }
+
+    /**
+     * 以Prometheus文本格式输出全部指标
+     * 必须在服务器线程中调用
+     *
+     * @param out             输出
+     * @param activeTransfers 正在发送的下载数
+     * @param queuedTransfers 排队中的下载数
+     */
+    void writePrometheus(StringBuilder out, int activeTransfers, int queuedTransfers) {
+        writeHeader(out, "quickpass_bytes_sent_total", "counter", "Bytes sent to download clients");
+        writeSample(out, "quickpass_bytes_sent_total", null, null, bytesSent.sum());
+        writeHeader(out, "quickpass_bytes_received_total", "counter", "Bytes of pushed uploads written to disk");
+        writeSample(out, "quickpass_bytes_received_total", null, null, bytesReceived.sum());
+        writeHeader(out, "quickpass_transfers_started_total", "counter", "Downloads accepted by the server");
+        writeSample(out, "quickpass_transfers_started_total", null, null, transfersStarted.sum());
+        writeHeader(out, "quickpass_transfers_completed_total", "counter", "Downloads sent completely");
+        writeSample(out, "quickpass_transfers_completed_total", null, null, transfersCompleted.sum());
+        writeHeader(out, "quickpass_transfer_errors_total", "counter", "Failed requests by cause");
+        for (ErrorCause cause : ErrorCause.values()) {
+            writeSample(out, "quickpass_transfer_errors_total", "cause", cause.label, errors[cause.ordinal()].sum());
+        }
+
+        writeHeader(out, "quickpass_active_transfers", "gauge", "Downloads currently sending");
+        writeSample(out, "quickpass_active_transfers", null, null, activeTransfers);
+        writeHeader(out, "quickpass_queued_transfers", "gauge", "Downloads waiting for a slot");
+        writeSample(out, "quickpass_queued_transfers", null, null, queuedTransfers);
+        writeHeader(out, "quickpass_throughput_bytes_per_second", "gauge", "Throughput over the last sample");
+        writeSample(out, "quickpass_throughput_bytes_per_second", null, null, throughput);
+        writeHeader(out, "quickpass_average_throughput_bytes_per_second", "gauge",
+                "Average throughput while downloads were running");
+        writeSample(out, "quickpass_average_throughput_bytes_per_second", null, null, getAverageThroughput());
+
+        writeHeader(out, "quickpass_time_to_first_byte_seconds", "histogram",
+                "Time from request to the first body byte, including queueing");
+        long cumulative = 0;
+        for (int i = 0; i <= TTFB_BUCKETS.length; i++) {
+            cumulative += ttfbBuckets.get(i);
+            String le = i < TTFB_BUCKETS.length ? formatDouble(TTFB_BUCKETS[i]) : "+Inf";
+            writeSample(out, "quickpass_time_to_first_byte_seconds_bucket", "le", le, cumulative);
+        }
+        writeSeconds(out, "quickpass_time_to_first_byte_seconds_sum", ttfbNanos.sum());
+        writeSample(out, "quickpass_time_to_first_byte_seconds_count", null, null, cumulative);
+
+        writeHeader(out, "quickpass_uptime_seconds", "counter", "Time since the server started");
+        writeSeconds(out, "quickpass_uptime_seconds", nanoClock.getAsLong() - createdNanos);
+        writeHeader(out, "quickpass_busy_seconds_total", "counter", "Time with at least one download running");
+        writeSeconds(out, "quickpass_busy_seconds_total", getBusyNanos());
+        writeHeader(out, "quickpass_disk_read_seconds_total", "counter", "Time spent reading shared files");
+        writeSeconds(out, "quickpass_disk_read_seconds_total", diskReadNanos.sum());
+        writeHeader(out, "quickpass_socket_wait_seconds_total", "counter",
+                "Time downloads waited for the socket to drain, summed over downloads");
+        writeSeconds(out, "quickpass_socket_wait_seconds_total", socketWaitNanos.sum());
+        writeHeader(out, "quickpass_scheduler_wait_seconds_total", "counter",
+                "Time downloads waited for send budget, summed over downloads");
+        writeSeconds(out, "quickpass_scheduler_wait_seconds_total", schedulerWaitNanos.sum());
+        long cpuNanos = cpuClock.getAsLong();
+        if (cpuNanos >= 0) { // 系统不支持时为-1
+            writeHeader(out, "quickpass_server_thread_cpu_seconds_total", "counter", "CPU time of the server thread");
+            writeSeconds(out, "quickpass_server_thread_cpu_seconds_total", cpuNanos);
+        }
+
+        writeHeader(out, "quickpass_share_downloads_total", "counter", "Complete downloads per share");
+        for (Map.Entry<String, ShareCounter> entry : shareCounters.entrySet()) {
+            writeSample(out, "quickpass_share_downloads_total", "share", entry.getKey(),
+                    entry.getValue().downloads.sum());
+        }
+        writeHeader(out, "quickpass_share_bytes_sent_total", "counter", "Bytes sent per share");
+        for (Map.Entry<String, ShareCounter> entry : shareCounters.entrySet()) {
+            writeSample(out, "quickpass_share_bytes_sent_total", "share", entry.getKey(),
+                    entry.getValue().bytes.sum());
+        }
+    }
+
+    static void writeHeader(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    static void writeSample(StringBuilder out, String name, String label, String value, long sample) {
+        out.append(name);
+        if (label != null) {
+            out.append('{').append(label).append("=\"");
+            escapeLabel(out, value);
+            out.append("\"}");
+        }
+        out.append(' ').append(sample).append('\n');
+    }
+
+    private static void writeSeconds(StringBuilder out, String name, long nanos) {
+        out.append(name).append(' ').append(formatDouble(nanos / 1e9)).append('\n');
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.6f", value).replaceAll("0+$", "").replaceAll("\\.$", ".0");
+    }
+
+    /**
+     * 按Prometheus文本格式转义标签值
+     */
+    private static void escapeLabel(StringBuilder out, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                out.append('\\').append(c);
+            } else if (c == '\n') {
+                out.append("\\n");
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    /**
+     * 单个分享的累计计数
+     */
+    private static class ShareCounter {
+        final LongAdder downloads = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+    }
+
+    /**
+     * 单个下载的统计
+     * 每个下载创建一次，之后只更新基本类型字段。只在服务器线程中访问
+     */
+    static final class Tracker {
+        private final TransferMetrics metrics;
+        private final long startNanos;
+        private String shareId; // 当前发送的分享ID，可以为null
+        private ShareCounter shareCounter;
+        private long shareLength; // 当前分享需要发送的字节数，未知时为-1
+        private long shareBytes; // 当前分享已发送的字节数
+        private long bytes; // 已发送的总字节数
+        private long sampledBytes; // 上次采样时的总字节数
+        private volatile long bytesPerSecond = -1; // 上次采样测得的发送速度，尚未采样时为-1，预读线程也会读取
+        private long readStart;
+        private long socketBlockedSince = -1;
+        private long writeRequestedSince = -1;
+        private boolean firstByteRecorded;
+        private boolean finished;
+
+        private Tracker(TransferMetrics metrics, long startNanos) {
+            this.metrics = metrics;
+            this.startNanos = startNanos;
+        }
+
+        /**
+         * 切换当前发送的分享，打包下载逐个发送文件时调用
+         *
+         * @param shareId 分享ID，可以为null
+         * @param length  该分享需要发送的字节数，未知时为-1
+         */
+        void switchShare(String shareId, long length) {
+            this.shareId = shareId;
+            this.shareCounter = shareId != null ? metrics.getShareCounter(shareId) : null;
+            this.shareLength = length;
+            this.shareBytes = 0;
+        }
+
+        /**
+         * 当前分享已完整发送，计入下载次数
+         */
+        void countDownload() {
+            if (shareCounter != null) {
+                shareCounter.downloads.increment();
+            }
+        }
+
+        /**
+         * 获取上次采样测得的发送速度
+         *
+         * @return 每秒字节数，尚未采样时返回-1
+         */
+        long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+
+        /**
+         * 预读线程读取了一段文件，可以在任意线程调用
+         *
+         * @param nanos 读取耗时（纳秒）
+         */
+        void onReadAhead(long nanos) {
+            metrics.diskReadNanos.add(nanos);
+        }
+
+        /**
+         * 开始读取文件
+         */
+        void onReadStart() {
+            readStart = metrics.nanoClock.getAsLong();
+        }
+
+        /**
+         * 读取完成，数据即将写入套接字
+         *
+         * @param count 读取的字节数
+         */
+        void onRead(long count) {
+            long now = metrics.nanoClock.getAsLong();
+            metrics.diskReadNanos.add(now - readStart);
+            if (count <= 0) {
+                return;
+            }
+            if (!firstByteRecorded) {
+                firstByteRecorded = true;
+                metrics.recordFirstByte(now - startNanos);
+            }
+            bytes += count;
+            shareBytes += count;
+            metrics.bytesSent.add(count);
+            if (shareCounter != null) {
+                shareCounter.bytes.add(count);
+            }
+        }
+
+        /**
+         * 开始等待发送额度
+         */
+        void onWriteRequested() {
+            writeRequestedSince = metrics.nanoClock.getAsLong();
+        }
+
+        /**
+         * 获得发送额度
+         */
+        void onGranted() {
+            if (writeRequestedSince >= 0) {
+                metrics.schedulerWaitNanos.add(metrics.nanoClock.getAsLong() - writeRequestedSince);
+                writeRequestedSince = -1;
+            }
+        }
+
+        /**
+         * 数据未能全部写入套接字，开始等待可写
+         */
+        void onSocketBlocked() {
+            if (socketBlockedSince < 0) {
+                socketBlockedSince = metrics.nanoClock.getAsLong();
+            }
+        }
+
+        /**
+         * 套接字恢复可写
+         */
+        void onSocketWritable() {
+            if (socketBlockedSince >= 0) {
+                metrics.socketWaitNanos.add(metrics.nanoClock.getAsLong() - socketBlockedSince);
+                socketBlockedSince = -1;
+            }
+        }
+
+        /**
+         * 结束统计，多次调用时只有第一次生效
+         * 成功时当前分享计入下载次数
+         *
+         * @param cause 失败原因，成功时为null
+         */
+        void finish(ErrorCause cause) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            onSocketWritable();
+            if (cause == null) {
+                countDownload();
+            }
+            metrics.onFinished(this, cause);
+        }
+    }
+
+    /**
+     * 单个分享的下载进度
+     */
+    public static final class ShareProgress {
+        private final String shareId;
+        private final long downloadCount;
+        private int activeTransfers;
+        private long bytesSent;
+        private long totalBytes;
+        private long bytesPerSecond;
+
+        ShareProgress(String shareId, long downloadCount) {
+            this.shareId = shareId;
+            this.downloadCount = downloadCount;
+        }
+
+        private void add(long sent, long length, long speed) {
+            activeTransfers++;
+            bytesSent += sent;
+            // 任意一个下载长度未知时总长度未知
+            totalBytes = length < 0 || totalBytes < 0 ? -1 : totalBytes + length;
+            bytesPerSecond += speed;
+        }
+
+        public String getShareId() {
+            return shareId;
+        }
+
+        /**
+         * 获取已完成的下载次数
+         */
+        public long getDownloadCount() {
+            return downloadCount;
+        }
+
+        /**
+         * 获取进行中的下载数
+         */
+        public int getActiveTransfers() {
+            return activeTransfers;
+        }
+
+        /**
+         * 获取进行中的下载已发送的字节数之和
+         */
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        /**
+         * 获取进行中的下载需要发送的字节数之和，未知时为-1
+         */
+        public long getTotalBytes() {
+            return totalBytes;
+        }
+
+        /**
+         * 获取最近一秒的合计速度（字节/秒）
+         */
+        public long getBytesPerSecond() {
+            return bytesPerSecond;
+        }
+    }
+
+    /**
+     * 传输进度监听器接口
+     */
+    public interface OnProgressListener {
+        /**
+         * 进度更新，在服务器线程中执行
+         *
+         * @param progress 有下载进行的分享的进度，按开始顺序排列
+         */
+        void onProgress(List<ShareProgress> progress);
+    }
+}
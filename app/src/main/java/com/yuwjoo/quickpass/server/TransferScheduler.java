@@ -0,0 +1,489 @@
+package com.yuwjoo.quickpass.server;
+
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * 传输调度器
+ * <p>
+ * 准入：同时进行的传输不超过上限，多出的请求排队等待，队列也满时返回503并附带Retry-After；
+ * 排队超过一定时间同样返回503，避免客户端长时间拿不到响应头。出队时小文件优先，其次是进行中传输最少的客户端。
+ * <p>
+ * 带宽：传输不再在套接字可写时直接写出，而是向调度器申请发送额度。调度器按客户端IP做加权差额轮询，
+ * 每轮给有数据待发的客户端分配与权重成正比的额度，客户端内部的多个连接依次使用；
+ * 没有数据待发的客户端不占用额度，空闲带宽自动分给其他客户端。
+ * 可选的全局限速和单连接限速以令牌桶实现。
+ * <p>
+ * 除配置方法外，所有方法都必须在服务器线程中调用
+ */
+class TransferScheduler {
+    static final long SMALL_FILE_SIZE = 1024 * 1024; // 不超过该大小的文件优先调度
+    private static final long QUANTUM = 128 * 1024; // 权重为1的客户端每轮获得的额度
+    private static final long MAX_BYTES_PER_PASS = 4 * 1024 * 1024; // 单次调度最多发出的字节数，之后让出服务器线程
+    private static final long BURST_MILLIS = 100; // 令牌桶最多积累的时长
+    private static final long MIN_GRANT = 16 * 1024; // 限速时至少积累该数量的令牌再分配，避免过于零碎的写入
+    private static final int EXPRESS_SLOTS = 2; // 为小文件额外保留的传输名额
+    private static final long MAX_QUEUE_WAIT_MS = 8000; // 排队超过该时间返回503
+    private static final int MAX_RETRY_AFTER_SECONDS = 30;
+
+    private final EventLoop eventLoop;
+    private final LongSupplier nanoClock;
+    private final int maxActive;
+    private final int maxQueued;
+    private final Map<String, Client> clients = new HashMap<>();
+    private final Map<String, Integer> weights = new HashMap<>();
+    private final ArrayDeque<Client> readyClients = new ArrayDeque<>(); // 有数据待发的客户端，按轮询顺序排列
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final TokenBucket globalBucket = new TokenBucket();
+    private volatile long globalRate; // 全局限速（字节/秒），0表示不限
+    private volatile long connectionRate; // 单连接限速（字节/秒），0表示不限
+    private int active;
+    private long sequence;
+    private boolean dispatching;
+    private boolean dispatchScheduled;
+
+    /**
+     * 构造函数
+     *
+     * @param eventLoop 服务器线程的事件循环
+     * @param nanoClock 纳秒时钟
+     * @param maxActive 同时进行的最大传输数
+     * @param maxQueued 最大排队数
+     */
+    TransferScheduler(EventLoop eventLoop, LongSupplier nanoClock, int maxActive, int maxQueued) {
+        this.eventLoop = eventLoop;
+        this.nanoClock = nanoClock;
+        this.maxActive = Math.max(1, maxActive);
+        this.maxQueued = Math.max(0, maxQueued);
+    }
+
+    /**
+     * 设置限速
+     *
+     * @param globalRate     全局限速（字节/秒），0表示不限
+     * @param connectionRate 单连接限速（字节/秒），0表示不限
+     */
+    void setRateLimits(long globalRate, long connectionRate) {
+        this.globalRate = Math.max(0, globalRate);
+        this.connectionRate = Math.max(0, connectionRate);
+    }
+
+    /**
+     * 设置客户端权重
+     * 权重越大，与其他客户端竞争时分得的带宽越多
+     *
+     * @param clientId 客户端标识，通常是IP地址
+     * @param weight   权重，不小于1
+     */
+    void setClientWeight(String clientId, int weight) {
+        int value = Math.max(1, weight);
+        weights.put(clientId, value);
+        Client client = clients.get(clientId);
+        if (client != null) {
+            client.weight = value;
+        }
+    }
+
+    /**
+     * 提交传输
+     * 有空闲名额时立即调用{@link Transfer#onStart(Ticket)}，否则排队；
+     * 队列已满时立即调用{@link Transfer#onRejected(int)}
+     *
+     * @param clientId 客户端标识
+     * @param size     需要发送的字节数，未知时为负数
+     * @param transfer 传输任务
+     * @return 调度凭据，传输开始后无论成功与否都要调用{@link #finish(Ticket)}
+     */
+    Ticket submit(String clientId, long size, Transfer transfer) {
+        Client client = clients.get(clientId);
+        if (client == null) {
+            client = new Client(clientId, weights.getOrDefault(clientId, 1));
+            clients.put(clientId, client);
+        }
+        Ticket ticket = new Ticket(client, size >= 0 && size <= SMALL_FILE_SIZE, transfer, sequence++);
+        client.tickets++;
+        if ((waiting.isEmpty() || ticket.small) && canStart(ticket)) {
+            start(ticket);
+        } else if (waiting.size() < maxQueued) {
+            waiting.add(ticket);
+            eventLoop.postDelayed(() -> expire(ticket), MAX_QUEUE_WAIT_MS);
+        } else {
+            int retryAfter = getRetryAfterSeconds();
+            finish(ticket);
+            transfer.onRejected(retryAfter);
+        }
+        return ticket;
+    }
+
+    /**
+     * 传输结束、连接关闭或被拒绝后释放名额
+     * 重复调用没有副作用
+     *
+     * @param ticket 调度凭据
+     */
+    void finish(Ticket ticket) {
+        if (ticket.released) {
+            return;
+        }
+        ticket.released = true;
+        Client client = ticket.client;
+        if (ticket.state == Ticket.QUEUED) {
+            waiting.remove(ticket);
+        } else if (ticket.state == Ticket.RUNNING) {
+            active--;
+            client.active--;
+            if (ticket.ready) {
+                client.ready.remove(ticket);
+            }
+        }
+        ticket.state = Ticket.DONE;
+        ticket.ready = false;
+        if (--client.tickets == 0 && !client.scheduled) {
+            clients.remove(client.id);
+        }
+        startWaiting();
+    }
+
+    /**
+     * 传输已写完上一段数据，申请新的发送额度
+     * 额度通过{@link Transfer#onGrant(long)}分配，可能立即分配，也可能在之后的调度中分配
+     *
+     * @param ticket 调度凭据
+     */
+    void requestWrite(Ticket ticket) {
+        if (ticket.state != Ticket.RUNNING || ticket.ready || ticket.throttled) {
+            return;
+        }
+        ticket.ready = true;
+        Client client = ticket.client;
+        client.ready.addLast(ticket);
+        if (!client.scheduled) {
+            client.scheduled = true;
+            readyClients.addLast(client);
+        }
+        dispatch();
+    }
+
+    /**
+     * 获取进行中的传输数
+     */
+    int getActiveCount() {
+        return active;
+    }
+
+    /**
+     * 获取排队中的传输数
+     */
+    int getQueuedCount() {
+        return waiting.size();
+    }
+
+    /**
+     * 估算客户端应在多少秒后重试
+     */
+    int getRetryAfterSeconds() {
+        int rounds = (waiting.size() + maxActive) / maxActive;
+        return Math.min(MAX_RETRY_AFTER_SECONDS, 2 * rounds);
+    }
+
+    /**
+     * 以503响应拒绝请求
+     *
+     * @param response          HTTP响应，尚未发送响应头
+     * @param retryAfterSeconds 建议的重试间隔
+     */
+    static void sendUnavailable(AsyncHttpServerResponse response, int retryAfterSeconds) {
+        response.getHeaders().remove("Content-Type");
+        response.getHeaders().remove("Content-Range");
+        response.getHeaders().remove("Content-Disposition");
+        response.getHeaders().set("Content-Length", "0");
+        response.getHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+        response.code(503);
+        response.end();
+    }
+
+    private boolean canStart(Ticket ticket) {
+        return active < maxActive || ticket.small && active < maxActive + EXPRESS_SLOTS;
+    }
+
+    private void start(Ticket ticket) {
+        ticket.state = Ticket.RUNNING;
+        active++;
+        ticket.client.active++;
+        ticket.transfer.onStart(ticket);
+    }
+
+    /**
+     * 按优先级启动排队中的传输
+     */
+    private void startWaiting() {
+        while (!waiting.isEmpty()) {
+            Ticket next = null;
+            for (Ticket ticket : waiting) {
+                if (next == null || compare(ticket, next) < 0) {
+                    next = ticket;
+                }
+            }
+            if (!canStart(next)) {
+                return;
+            }
+            waiting.remove(next);
+            start(next);
+        }
+    }
+
+    /**
+     * 排队顺序：小文件优先，其次是进行中传输较少的客户端，最后按提交顺序
+     */
+    private static int compare(Ticket a, Ticket b) {
+        if (a.small != b.small) {
+            return a.small ? -1 : 1;
+        }
+        if (a.client.active != b.client.active) {
+            return Integer.compare(a.client.active, b.client.active);
+        }
+        return Long.compare(a.sequence, b.sequence);
+    }
+
+    private void expire(Ticket ticket) {
+        if (ticket.state != Ticket.QUEUED) {
+            return;
+        }
+        int retryAfter = getRetryAfterSeconds();
+        finish(ticket);
+        ticket.transfer.onRejected(retryAfter);
+    }
+
+    /**
+     * 加权差额轮询，向有数据待发的传输分配额度
+     */
+    private void dispatch() {
+        if (dispatching) {
+            return;
+        }
+        dispatching = true;
+        try {
+            long sent = 0;
+            long now = nanoClock.getAsLong();
+            long rate = globalRate;
+            globalBucket.refill(now, rate);
+            while (!readyClients.isEmpty()) {
+                if (rate > 0 && globalBucket.isEmpty()) {
+                    scheduleDispatch(globalBucket.millisUntilRefilled(rate));
+                    return;
+                }
+                if (sent >= MAX_BYTES_PER_PASS) {
+                    scheduleDispatch(0);
+                    return;
+                }
+                Client client = readyClients.pollFirst();
+                if (client.interrupted) {
+                    // 上次因全局令牌耗尽中断，继续使用剩余额度
+                    client.interrupted = false;
+                } else {
+                    client.deficit += QUANTUM * client.weight;
+                }
+                while (client.deficit > 0 && !client.ready.isEmpty()) {
+                    if (rate > 0 && globalBucket.isEmpty()) {
+                        client.interrupted = true;
+                        break;
+                    }
+                    Ticket ticket = client.ready.pollFirst();
+                    ticket.ready = false;
+                    long budget = client.deficit;
+                    long perConnection = connectionRate;
+                    if (perConnection > 0) {
+                        ticket.bucket.refill(now, perConnection);
+                        if (ticket.bucket.isEmpty()) {
+                            throttle(ticket, ticket.bucket.millisUntilRefilled(perConnection));
+                            continue;
+                        }
+                        budget = Math.min(budget, (long) ticket.bucket.tokens);
+                    }
+                    if (rate > 0) {
+                        budget = Math.min(budget, (long) globalBucket.tokens);
+                    }
+                    // 至少扣除1字节，保证本轮一定会结束
+                    long produced = Math.max(1, ticket.transfer.onGrant(budget));
+                    client.deficit -= produced;
+                    sent += produced;
+                    if (perConnection > 0) {
+                        ticket.bucket.tokens -= produced;
+                    }
+                    if (rate > 0) {
+                        globalBucket.tokens -= produced;
+                    }
+                }
+                if (client.ready.isEmpty()) {
+                    // 没有待发数据的客户端不保留差额，避免空闲后突发
+                    client.deficit = 0;
+                    client.interrupted = false;
+                    client.scheduled = false;
+                    if (client.tickets == 0) {
+                        clients.remove(client.id);
+                    }
+                } else if (client.interrupted) {
+                    // 保持轮询位置，令牌补充后从该客户端继续
+                    readyClients.addFirst(client);
+                } else {
+                    readyClients.addLast(client);
+                }
+            }
+        } finally {
+            dispatching = false;
+        }
+    }
+
+    private void scheduleDispatch(long delayMillis) {
+        if (dispatchScheduled) {
+            return;
+        }
+        dispatchScheduled = true;
+        eventLoop.postDelayed(() -> {
+            dispatchScheduled = false;
+            dispatch();
+        }, delayMillis);
+    }
+
+    /**
+     * 单连接超出限速时暂停分配额度
+     */
+    private void throttle(Ticket ticket, long delayMillis) {
+        ticket.throttled = true;
+        eventLoop.postDelayed(() -> {
+            ticket.throttled = false;
+            requestWrite(ticket);
+        }, delayMillis);
+    }
+
+    /**
+     * 服务器线程的事件循环接口
+     */
+    interface EventLoop {
+        /**
+         * 在服务器线程中延迟执行任务
+         *
+         * @param runnable    任务
+         * @param delayMillis 延迟时间（毫秒），0表示下一轮循环
+         */
+        void postDelayed(Runnable runnable, long delayMillis);
+    }
+
+    /**
+     * 被调度的传输任务接口，所有回调都在服务器线程中执行
+     */
+    interface Transfer {
+        /**
+         * 获得传输名额，可以发送响应头并开始申请发送额度
+         *
+         * @param ticket 调度凭据
+         */
+        void onStart(Ticket ticket);
+
+        /**
+         * 获得发送额度
+         *
+         * @param budget 本次最多应发送的字节数，至少为1
+         * @return 实际生成的字节数，可以略多于额度，超出部分从后续额度中扣除
+         */
+        long onGrant(long budget);
+
+        /**
+         * 超出容量或排队超时，传输不会开始
+         *
+         * @param retryAfterSeconds 建议的重试间隔
+         */
+        void onRejected(int retryAfterSeconds);
+    }
+
+    /**
+     * 调度凭据
+     */
+    static final class Ticket {
+        private static final int QUEUED = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+
+        private final Client client;
+        private final boolean small;
+        private final Transfer transfer;
+        private final long sequence;
+        private final TokenBucket bucket = new TokenBucket(); // 单连接令牌桶
+        private int state = QUEUED;
+        private boolean ready; // 是否在等待发送额度
+        private boolean throttled; // 是否因单连接限速暂停
+        private boolean released;
+
+        private Ticket(Client client, boolean small, Transfer transfer, long sequence) {
+            this.client = client;
+            this.small = small;
+            this.transfer = transfer;
+            this.sequence = sequence;
+        }
+
+        /**
+         * 是否正在传输
+         */
+        boolean isRunning() {
+            return state == RUNNING;
+        }
+    }
+
+    /**
+     * 客户端的调度状态
+     */
+    private static final class Client {
+        private final String id;
+        private final ArrayDeque<Ticket> ready = new ArrayDeque<>(); // 等待发送额度的传输
+        private int weight;
+        private long deficit; // 本轮剩余额度
+        private int active; // 进行中的传输数
+        private int tickets; // 尚未释放的凭据数
+        private boolean scheduled; // 是否在轮询队列中
+        private boolean interrupted; // 本轮额度是否因全局令牌耗尽而未用完
+
+        private Client(String id, int weight) {
+            this.id = id;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * 令牌桶
+     * 令牌可以为负数，表示上次发送超出额度的部分
+     */
+    private static final class TokenBucket {
+        private double tokens;
+        private long lastRefill = -1;
+
+        /**
+         * 按经过的时间补充令牌，最多积累{@link #BURST_MILLIS}的量
+         */
+        void refill(long nowNanos, long rate) {
+            double burst = Math.max(QUANTUM, rate * BURST_MILLIS / 1000.0);
+            if (lastRefill < 0) {
+                tokens = burst;
+            } else {
+                tokens = Math.min(burst, tokens + (nowNanos - lastRefill) / 1e9 * rate);
+            }
+            lastRefill = nowNanos;
+        }
+
+        boolean isEmpty() {
+            return tokens < 1;
+        }
+
+        /**
+         * 令牌积累到可以分配的数量需要等待的时间
+         */
+        long millisUntilRefilled(long rate) {
+            return Math.max(1, (long) Math.ceil((MIN_GRANT - tokens) * 1000 / rate));
+        }
+    }
+}
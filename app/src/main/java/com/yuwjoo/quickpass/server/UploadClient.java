@@ -0,0 +1,369 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 上传客户端
+ * 将文件推送到其他QuickPass设备的/upload接口。大小已知的文件先创建上传会话，再按固定长度的分块依次发送；
+ * 连接中断后向对方查询已写入的长度，重新打开文件流跳到该位置继续发送。
+ * 大小未知的文件只能以分块传输编码一次性发送，失败后不能续传
+ */
+public class UploadClient {
+    private static final String TAG = "UploadClient";
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024; // 每个请求发送的最大字节数
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 30000; // 对方写完分块后才响应，留出写入磁盘的时间
+    private static final int MAX_RETRIES = 5; // 最大连续重试次数
+    private static final long RETRY_DELAY_MS = 500;
+    private static final long SAMPLE_INTERVAL_MS = 1000; // 进度回调间隔
+
+    private volatile HttpURLConnection currentConnection;
+    private volatile boolean cancelled;
+
+    /**
+     * 上传文件
+     * 阻塞直到上传完成、失败或取消，必须在后台线程调用
+     *
+     * @param serverAddress 对方的服务器地址，例如 http://192.168.1.5:3400
+     * @param name          文件名
+     * @param size          文件大小，未知时为{@link ShareEntry#UNKNOWN_SIZE}
+     * @param source        文件数据源，续传时会重新打开
+     * @param listener      进度监听器，可以为null
+     * @throws IOException 上传失败或被取消时抛出
+     */
+    public void upload(String serverAddress, String name, long size, StreamSource source,
+                       ProgressListener listener) throws IOException {
+        cancelled = false;
+        String encodedName = URLEncoder.encode(name, StandardCharsets.UTF_8.name());
+        if (size < 0) {
+            uploadStreaming(serverAddress + UploadHandler.UPLOAD_PATH + "?name=" + encodedName, source, listener);
+            return;
+        }
+
+        String session = createSession(serverAddress + UploadHandler.SESSION_PATH + "?name=" + encodedName
+                + "&size=" + size);
+        String uploadUrl = serverAddress + UploadHandler.UPLOAD_PATH + "?session=" + session;
+        long offset = 0;
+        int retries = 0;
+        InputStream inputStream = null;
+        try {
+            while (true) {
+                if (cancelled) {
+                    throw new IOException("Upload cancelled");
+                }
+                long before = offset;
+                try {
+                    if (inputStream == null) {
+                        inputStream = openAt(source, offset);
+                    }
+                    long length = Math.min(CHUNK_SIZE, size - offset);
+                    offset = sendChunk(uploadUrl, inputStream, offset, length, size, listener);
+                    if (offset >= size) {
+                        break;
+                    }
+                } catch (OffsetMismatchException e) {
+                    // 对方实际写入的长度与本地不一致，或上一个分块仍在写入，从对方的长度重新发送
+                    closeQuietly(inputStream);
+                    inputStream = null;
+                    offset = e.offset;
+                    if (offset <= before && ++retries > MAX_RETRIES) {
+                        throw new IOException("Receiver stuck at " + offset, e);
+                    }
+                    sleepBeforeRetry(retries);
+                    continue;
+                } catch (IOException e) {
+                    if (cancelled) {
+                        throw new IOException("Upload cancelled", e);
+                    }
+                    closeQuietly(inputStream);
+                    inputStream = null;
+                    if (++retries > MAX_RETRIES) {
+                        throw new IOException("Upload failed after " + MAX_RETRIES + " retries", e);
+                    }
+                    Log.w(TAG, "Upload interrupted at " + offset + ", retry " + retries + ": " + e.getMessage());
+                    sleepBeforeRetry(retries);
+                    offset = queryOffset(uploadUrl, offset);
+                    continue;
+                }
+                // 有进展的请求重置连续重试次数
+                if (offset > before) {
+                    retries = 0;
+                }
+            }
+        } finally {
+            closeQuietly(inputStream);
+        }
+        if (listener != null) {
+            listener.onProgress(size, size);
+        }
+    }
+
+    /**
+     * 取消上传
+     * 可以在任意线程调用，正在进行的连接会被断开
+     */
+    public void cancel() {
+        cancelled = true;
+        HttpURLConnection connection = currentConnection;
+        if (connection != null) {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 创建上传会话
+     *
+     * @return 会话ID
+     */
+    private String createSession(String url) throws IOException {
+        HttpURLConnection connection = openConnection(url, "POST");
+        try {
+            connection.setFixedLengthStreamingMode(0);
+            connection.setDoOutput(true);
+            connection.getOutputStream().close();
+            int code = connection.getResponseCode();
+            String session = connection.getHeaderField(UploadHandler.HEADER_SESSION);
+            if (code == 507) {
+                throw new IOException("Not enough space on receiver");
+            }
+            if (code != HttpURLConnection.HTTP_CREATED || session == null) {
+                throw new IOException("Unexpected response " + code + " from " + url);
+            }
+            return session;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 发送一个分块
+     *
+     * @return 对方确认写入后的长度
+     */
+    private long sendChunk(String uploadUrl, InputStream inputStream, long offset, long length, long size,
+                           ProgressListener listener) throws IOException {
+        HttpURLConnection connection = openConnection(uploadUrl + "&offset=" + offset, "PUT");
+        try {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(length);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long sent = 0;
+            long lastReport = System.currentTimeMillis();
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                while (sent < length) {
+                    if (cancelled) {
+                        throw new IOException("Upload cancelled");
+                    }
+                    int read = inputStream.read(buffer, 0, (int) Math.min(buffer.length, length - sent));
+                    if (read == -1) {
+                        throw new IOException("File ended at " + (offset + sent) + " of " + size);
+                    }
+                    outputStream.write(buffer, 0, read);
+                    sent += read;
+                    long now = System.currentTimeMillis();
+                    if (listener != null && now - lastReport >= SAMPLE_INTERVAL_MS) {
+                        listener.onProgress(offset + sent, size);
+                        lastReport = now;
+                    }
+                }
+            }
+
+            int code = connection.getResponseCode();
+            long confirmed = parseOffset(connection, -1);
+            if (code == HttpURLConnection.HTTP_CONFLICT && confirmed >= 0) {
+                throw new OffsetMismatchException(confirmed);
+            }
+            if (code / 100 != 2) {
+                throw new IOException("Unexpected response " + code + " from " + uploadUrl);
+            }
+            return confirmed >= 0 ? confirmed : offset + length;
+        } finally {
+            currentConnection = null;
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 查询对方已写入的长度
+     *
+     * @param fallback 查询失败时返回的长度
+     */
+    private long queryOffset(String uploadUrl, long fallback) throws IOException {
+        HttpURLConnection connection = openConnection(uploadUrl, "HEAD");
+        try {
+            int code;
+            try {
+                code = connection.getResponseCode();
+            } catch (IOException e) {
+                if (cancelled) {
+                    throw e;
+                }
+                return fallback;
+            }
+            if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+                throw new IOException("Upload session expired");
+            }
+            return parseOffset(connection, fallback);
+        } finally {
+            currentConnection = null;
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 以分块传输编码一次性发送大小未知的文件
+     */
+    private void uploadStreaming(String url, StreamSource source, ProgressListener listener) throws IOException {
+        HttpURLConnection connection = openConnection(url, "POST");
+        try (InputStream inputStream = source.open()) {
+            connection.setDoOutput(true);
+            connection.setChunkedStreamingMode(BUFFER_SIZE);
+            connection.setRequestProperty("Content-Type", "application/octet-stream");
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long sent = 0;
+            long lastReport = System.currentTimeMillis();
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                int read;
+                while ((read = inputStream.read(buffer)) != -1) {
+                    if (cancelled) {
+                        throw new IOException("Upload cancelled");
+                    }
+                    outputStream.write(buffer, 0, read);
+                    sent += read;
+                    long now = System.currentTimeMillis();
+                    if (listener != null && now - lastReport >= SAMPLE_INTERVAL_MS) {
+                        listener.onProgress(sent, ShareEntry.UNKNOWN_SIZE);
+                        lastReport = now;
+                    }
+                }
+            }
+            int code = connection.getResponseCode();
+            if (code / 100 != 2) {
+                throw new IOException("Unexpected response " + code + " from " + url);
+            }
+            if (listener != null) {
+                listener.onProgress(sent, sent);
+            }
+        } finally {
+            currentConnection = null;
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * 打开文件流并跳到指定位置
+     */
+    private static InputStream openAt(StreamSource source, long offset) throws IOException {
+        InputStream inputStream = source.open();
+        long remaining = offset;
+        try {
+            while (remaining > 0) {
+                long skipped = inputStream.skip(remaining);
+                if (skipped <= 0) {
+                    // skip不保证前进，读取一个字节判断是否已到末尾
+                    if (inputStream.read() == -1) {
+                        throw new IOException("File ended at " + (offset - remaining));
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        } catch (IOException e) {
+            closeQuietly(inputStream);
+            throw e;
+        }
+        return inputStream;
+    }
+
+    private HttpURLConnection openConnection(String url, String method) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        connection.setRequestMethod(method);
+        currentConnection = connection;
+        if (cancelled) {
+            connection.disconnect();
+            throw new IOException("Upload cancelled");
+        }
+        return connection;
+    }
+
+    private static long parseOffset(HttpURLConnection connection, long fallback) {
+        String value = connection.getHeaderField(UploadHandler.HEADER_OFFSET);
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+
+    private static void sleepBeforeRetry(int retries) throws IOException {
+        try {
+            Thread.sleep(RETRY_DELAY_MS * retries);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Upload interrupted", e);
+        }
+    }
+
+    private static void closeQuietly(InputStream inputStream) {
+        if (inputStream != null) {
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing upload source", e);
+            }
+        }
+    }
+
+    /**
+     * 对方已写入的长度与请求的起始位置不一致
+     */
+    private static class OffsetMismatchException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        final long offset;
+
+        OffsetMismatchException(long offset) {
+            super("Receiver is at " + offset);
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * 文件数据源接口
+     */
+    public interface StreamSource {
+        /**
+         * 从头打开文件流
+         * @return 文件流
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * 上传进度监听器接口
+     * 在上传线程中回调
+     */
+    public interface ProgressListener {
+        /**
+         * 上传进度更新
+         * @param sentBytes 对方已接收的字节数
+         * @param totalBytes 文件总字节数，未知时为-1
+         */
+        void onProgress(long sentBytes, long totalBytes);
+    }
+}
@@ -0,0 +1,472 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.http.body.AsyncHttpRequestBody;
+import com.koushikdutta.async.http.body.MultipartFormDataBody;
+import com.koushikdutta.async.http.body.Part;
+import com.koushikdutta.async.http.server.AsyncHttpServerRequest;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+import com.koushikdutta.async.http.server.UnknownRequestBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 上传接口
+ * <ul>
+ * <li>POST /upload?name= 一次性上传，请求体为原始数据或multipart/form-data</li>
+ * <li>POST /upload/session?name=&amp;size= 创建分块上传会话，响应头返回会话ID</li>
+ * <li>PUT /upload?session=&amp;offset= 从指定位置写入一个分块</li>
+ * <li>HEAD /upload?session= 查询会话已写入的长度，用于中断后续传</li>
+ * </ul>
+ * 请求体经{@link UploadSink}写入文件，不会整体缓存在内存中
+ */
+class UploadHandler {
+    private static final String TAG = "UploadHandler";
+    static final String UPLOAD_PATH = "/upload";
+    static final String SESSION_PATH = "/upload/session";
+    static final String HEADER_SESSION = "X-Upload-Session";
+    static final String HEADER_OFFSET = "Upload-Offset";
+    static final String HEADER_COMPLETE = "Upload-Complete";
+    private static final String RAW_CONTENT_TYPE = "application/octet-stream";
+
+    private final UploadStore store;
+    private final ShareRegistry shareRegistry; // 上传计入进行中的传输总数
+    private final TransferMetrics metrics; // 接收字节数和失败次数计入传输指标
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private volatile FileShareHttpServer.OnFileReceivedListener onFileReceivedListener;
+    private KeepAliveHttpServer server; // 上传在后台写入期间保持连接的响应进行中
+
+    /**
+     * 构造函数
+     *
+     * @param store         上传文件存储
+     * @param shareRegistry 分享注册表，用于统计进行中的传输
+     * @param metrics       传输指标
+     */
+    UploadHandler(UploadStore store, ShareRegistry shareRegistry, TransferMetrics metrics) {
+        this.store = store;
+        this.shareRegistry = shareRegistry;
+        this.metrics = metrics;
+    }
+
+    /**
+     * 注册路由
+     *
+     * @param server HTTP服务器
+     */
+    void register(KeepAliveHttpServer server) {
+        this.server = server;
+        server.post(SESSION_PATH, this::handleCreateSession);
+        server.post(UPLOAD_PATH, this::handleUpload);
+        server.addAction("PUT", UPLOAD_PATH, this::handleUploadChunk);
+        server.addAction("HEAD", UPLOAD_PATH, this::handleQueryOffset);
+    }
+
+    /**
+     * 停止写入线程
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 设置文件接收监听器
+     *
+     * @param listener 文件接收监听器
+     */
+    void setOnFileReceivedListener(FileShareHttpServer.OnFileReceivedListener listener) {
+        this.onFileReceivedListener = listener;
+    }
+
+    /**
+     * 创建分块上传会话
+     */
+    private void handleCreateSession(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        long size = parseLong(request.getQuery().getString("size"));
+        if (size < 0) {
+            response.code(400);
+            response.end();
+            return;
+        }
+        if (!hasSpaceFor(size)) {
+            response.code(507);
+            response.end();
+            return;
+        }
+        UploadStore.Session session;
+        try {
+            session = store.createSession(request.getQuery().getString("name"), size);
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating upload session", e);
+            response.code(500);
+            response.end();
+            return;
+        }
+        response.getHeaders().set(HEADER_SESSION, session.getId());
+        response.getHeaders().set(HEADER_OFFSET, "0");
+        response.code(201);
+        response.end();
+    }
+
+    /**
+     * 查询会话已写入的长度
+     */
+    private void handleQueryOffset(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        UploadStore.Session session = store.getSession(request.getQuery().getString("session"));
+        if (session == null) {
+            response.code(404);
+            response.end();
+            return;
+        }
+        response.getHeaders().set(HEADER_OFFSET, String.valueOf(session.getOffset()));
+        response.getHeaders().set("Cache-Control", "no-store");
+        response.end();
+    }
+
+    /**
+     * 写入会话的一个分块
+     * 分块起始位置必须与会话已写入的长度一致，否则返回409和当前长度，发送方据此重新定位
+     */
+    private void handleUploadChunk(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        UploadStore.Session session = store.getSession(request.getQuery().getString("session"));
+        if (session == null) {
+            response.code(404);
+            response.end();
+            return;
+        }
+        DataEmitter body = rawBody(request);
+        if (body == null) {
+            response.code(415);
+            response.end();
+            return;
+        }
+        long offset = parseLong(request.getQuery().getString("offset"));
+        if (!session.tryAcquire()) {
+            // 同一会话的上一个分块仍在写入
+            rejectChunk(response, session);
+            return;
+        }
+        if (offset != session.getOffset()) {
+            session.release();
+            rejectChunk(response, session);
+            return;
+        }
+
+        FileChannel channel;
+        try {
+            channel = new RandomAccessFile(session.getPartFile(), "rw").getChannel();
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening upload file", e);
+            session.release();
+            response.code(500);
+            response.end();
+            return;
+        }
+
+        shareRegistry.beginTransfer();
+        Runnable hold = server.holdConnection(request);
+        UploadSink sink = new UploadSink(body, channel, offset, session.getSize() - offset, new UploadSink.Listener() {
+            @Override
+            public void onWritten(long bytes) {
+                session.advance(bytes);
+                metrics.recordBytesReceived(bytes);
+            }
+
+            @Override
+            public void onFinished(Exception ex, long written) {
+                shareRegistry.endTransfer();
+                File received = null;
+                if (ex == null && session.isComplete()) {
+                    store.removeSession(session);
+                    received = commit(session.getPartFile(), session.getName());
+                }
+                session.release();
+                response.getHeaders().set(HEADER_OFFSET, String.valueOf(session.getOffset()));
+                if (ex != null) {
+                    Log.w(TAG, "Upload chunk interrupted at " + session.getOffset() + ": " + ex.getMessage());
+                    metrics.recordError(TransferMetrics.ErrorCause.UPLOAD_FAILED);
+                    response.code(500);
+                } else if (session.isComplete()) {
+                    response.getHeaders().set(HEADER_COMPLETE, "true");
+                    response.code(received != null ? 201 : 500);
+                } else {
+                    response.code(204);
+                }
+                response.end();
+                hold.run();
+            }
+        });
+        receive(body, sink);
+    }
+
+    /**
+     * 一次性上传
+     * 原始请求体保存为name参数指定的文件；multipart请求体中的每个文件字段分别保存
+     */
+    private void handleUpload(AsyncHttpServerRequest request, AsyncHttpServerResponse response) {
+        AsyncHttpRequestBody<?> body = request.getBody();
+        if (body instanceof MultipartFormDataBody) {
+            receiveMultipart((MultipartFormDataBody) body, response, server.holdConnection(request));
+            return;
+        }
+        DataEmitter emitter = rawBody(request);
+        if (emitter == null) {
+            response.code(415);
+            response.end();
+            return;
+        }
+
+        String declaredLength = request.getHeaders().get("Content-Length");
+        long length = declaredLength != null ? parseLong(declaredLength) : -1;
+        if (length >= 0 && !hasSpaceFor(length)) {
+            response.code(507);
+            response.end();
+            return;
+        }
+        String name = request.getQuery().getString("name");
+        Runnable hold = server.holdConnection(request);
+        UploadSink sink;
+        File part;
+        try {
+            part = store.createPartFile();
+            sink = new UploadSink(emitter, new RandomAccessFile(part, "rw").getChannel(), 0,
+                    length >= 0 ? length : store.getDirectory().getUsableSpace(), new UploadSink.Listener() {
+                @Override
+                public void onWritten(long bytes) {
+                    metrics.recordBytesReceived(bytes);
+                }
+
+                @Override
+                public void onFinished(Exception ex, long written) {
+                    shareRegistry.endTransfer();
+                    File received = ex == null ? commit(part, name) : null;
+                    if (received == null) {
+                        discard(part);
+                        metrics.recordError(TransferMetrics.ErrorCause.UPLOAD_FAILED);
+                    }
+                    response.code(received != null ? 201 : 500);
+                    response.end();
+                    hold.run();
+                }
+            });
+        } catch (IOException e) {
+            Log.e(TAG, "Error creating upload file", e);
+            response.code(500);
+            response.end();
+            hold.run();
+            return;
+        }
+        shareRegistry.beginTransfer();
+        receive(emitter, sink);
+    }
+
+    /**
+     * 接收multipart/form-data请求体
+     * 各部分依次到达，每个文件字段使用独立的写入器；所有文件写入完毕后才响应
+     *
+     * @param hold 响应结束后调用
+     */
+    private void receiveMultipart(MultipartFormDataBody body, AsyncHttpServerResponse response, Runnable hold) {
+        MultipartUpload upload = new MultipartUpload(body, response, hold);
+        body.setMultipartCallback(upload::onPart);
+        CompletedCallback previous = body.getEndCallback();
+        body.setEndCallback(ex -> {
+            upload.onEnd(ex);
+            if (previous != null) {
+                previous.onCompleted(ex);
+            }
+        });
+    }
+
+    /**
+     * 开始接收请求体
+     * 保留服务器原有的结束回调，请求体读完后服务器才能处理同一连接上的下一个请求
+     */
+    private void receive(DataEmitter emitter, UploadSink sink) {
+        CompletedCallback previous = emitter.getEndCallback();
+        emitter.setEndCallback(ex -> {
+            sink.finish(ex);
+            if (previous != null) {
+                previous.onCompleted(ex);
+            }
+        });
+        emitter.setDataCallback(sink);
+        sink.start(executor);
+    }
+
+    /**
+     * 获取原始请求体的数据源
+     *
+     * @return 数据源，请求体不是原始数据时返回null
+     */
+    private DataEmitter rawBody(AsyncHttpServerRequest request) {
+        Object body = request.getBody();
+        if (!(body instanceof UnknownRequestBody)) {
+            return null;
+        }
+        String contentType = request.getHeaders().get("Content-Type");
+        if (contentType != null && !contentType.toLowerCase(Locale.ROOT).startsWith(RAW_CONTENT_TYPE)) {
+            return null;
+        }
+        return ((UnknownRequestBody) body).getEmitter();
+    }
+
+    private File commit(File part, String name) {
+        try {
+            File file = store.commit(part, name);
+            Log.i(TAG, "Received " + file.getName());
+            FileShareHttpServer.OnFileReceivedListener listener = onFileReceivedListener;
+            if (listener != null) {
+                listener.onFileReceived(file);
+            }
+            return file;
+        } catch (IOException e) {
+            Log.e(TAG, "Error saving upload", e);
+            return null;
+        }
+    }
+
+    private void discard(File part) {
+        if (!part.delete()) {
+            Log.w(TAG, "Cannot delete " + part);
+        }
+    }
+
+    private void rejectChunk(AsyncHttpServerResponse response, UploadStore.Session session) {
+        response.getHeaders().set(HEADER_OFFSET, String.valueOf(session.getOffset()));
+        response.code(409);
+        response.end();
+    }
+
+    private boolean hasSpaceFor(long length) {
+        File directory = store.getDirectory();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            return false;
+        }
+        return directory.getUsableSpace() >= length;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 一次multipart上传的状态，只在服务器线程中访问
+     */
+    private class MultipartUpload {
+        private final MultipartFormDataBody body;
+        private final AsyncHttpServerResponse response;
+        private final Runnable hold; // 响应结束后调用
+        private final List<String> received = new ArrayList<>();
+        private UploadSink currentSink; // 当前文件字段的写入器
+        private int pendingSinks; // 尚未写入完毕的文件数
+        private boolean ended; // 请求体是否已读完
+        private Exception failure;
+
+        MultipartUpload(MultipartFormDataBody body, AsyncHttpServerResponse response, Runnable hold) {
+            this.body = body;
+            this.response = response;
+            this.hold = hold;
+        }
+
+        /**
+         * 新的部分开始，上一个部分的数据已全部到达
+         */
+        void onPart(Part part) {
+            finishCurrent(null);
+            if (!part.isFile()) {
+                // 普通表单字段直接丢弃，避免被缓存在内存中
+                body.setDataCallback((emitter, bb) -> bb.recycle());
+                return;
+            }
+            File partFile;
+            FileChannel channel;
+            try {
+                partFile = store.createPartFile();
+                channel = new RandomAccessFile(partFile, "rw").getChannel();
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating upload file", e);
+                failure = e;
+                body.close();
+                return;
+            }
+            String name = part.getFilename();
+            pendingSinks++;
+            shareRegistry.beginTransfer();
+            currentSink = new UploadSink(body, channel, 0, store.getDirectory().getUsableSpace(),
+                    new UploadSink.Listener() {
+                        @Override
+                        public void onWritten(long bytes) {
+                            metrics.recordBytesReceived(bytes);
+                        }
+
+                        @Override
+                        public void onFinished(Exception ex, long written) {
+                            shareRegistry.endTransfer();
+                            File file = ex == null ? commit(partFile, name) : null;
+                            if (file != null) {
+                                received.add(file.getName());
+                            } else {
+                                discard(partFile);
+                                metrics.recordError(TransferMetrics.ErrorCause.UPLOAD_FAILED);
+                                if (failure == null) {
+                                    failure = ex != null ? ex : new IOException("Cannot save " + name);
+                                }
+                            }
+                            pendingSinks--;
+                            respondIfDone();
+                        }
+                    });
+            body.setDataCallback(currentSink);
+            currentSink.start(executor);
+        }
+
+        void onEnd(Exception ex) {
+            if (ex != null && failure == null) {
+                failure = ex;
+            }
+            finishCurrent(ex);
+            ended = true;
+            respondIfDone();
+        }
+
+        private void finishCurrent(Exception ex) {
+            if (currentSink != null) {
+                currentSink.finish(ex);
+                currentSink = null;
+            }
+        }
+
+        private void respondIfDone() {
+            if (!ended || pendingSinks > 0) {
+                return;
+            }
+            if (failure != null || received.isEmpty()) {
+                response.code(failure != null ? 500 : 400);
+                response.end();
+            } else {
+                response.code(201);
+                response.send("text/plain; charset=utf-8", String.join("\n", received));
+            }
+            hold.run();
+        }
+    }
+}
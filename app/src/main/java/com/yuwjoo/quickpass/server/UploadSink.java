@@ -0,0 +1,177 @@
+package com.yuwjoo.quickpass.server;
+
+import android.util.Log;
+
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.DataEmitter;
+import com.koushikdutta.async.callback.DataCallback;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上传数据写入器
+ * 服务器线程收到的请求体数据放入有界队列，由后台线程按位置写入文件，服务器线程不做磁盘IO。
+ * 队列中的数据超过上限时暂停读取连接，写入线程消化到下限以下后再恢复，
+ * 无论上传多大的文件，内存占用都不超过队列上限
+ */
+class UploadSink implements DataCallback {
+    private static final String TAG = "UploadSink";
+    private static final long HIGH_WATER_MARK = 4 * 1024 * 1024; // 队列达到该大小时暂停读取
+    private static final long LOW_WATER_MARK = 1024 * 1024; // 队列低于该大小时恢复读取
+    private static final ByteBuffer END = ByteBuffer.allocate(0); // 队列结束标记
+
+    private final DataEmitter emitter;
+    private final FileChannel channel;
+    private final long limit;
+    private final Listener listener;
+    private final LinkedBlockingQueue<ByteBuffer> queue = new LinkedBlockingQueue<>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private long position; // 下一次写入的文件位置，只在写入线程中访问
+    private long received; // 已收到的字节数，只在服务器线程中访问
+    private volatile boolean paused;
+    private volatile Exception failure; // 连接中断或超出长度限制的原因
+    private boolean finished;
+
+    /**
+     * 构造函数
+     *
+     * @param emitter  请求体数据源
+     * @param channel  目标文件通道，写入结束后由写入器关闭
+     * @param position 开始写入的文件位置
+     * @param limit    允许接收的最大字节数，超出时中止上传
+     * @param listener 写入监听器
+     */
+    UploadSink(DataEmitter emitter, FileChannel channel, long position, long limit, Listener listener) {
+        this.emitter = emitter;
+        this.channel = channel;
+        this.position = position;
+        this.limit = limit;
+        this.listener = listener;
+    }
+
+    /**
+     * 启动写入线程
+     *
+     * @param executor 执行写入任务的线程池
+     */
+    void start(Executor executor) {
+        executor.execute(this::writeLoop);
+    }
+
+    /**
+     * 服务器线程收到请求体数据
+     */
+    @Override
+    public void onDataAvailable(DataEmitter dataEmitter, ByteBufferList bb) {
+        if (finished) {
+            bb.recycle();
+            return;
+        }
+        received += bb.remaining();
+        if (received > limit) {
+            bb.recycle();
+            finish(new IOException("Upload exceeds declared length " + limit));
+            // 不再读取剩余数据
+            emitter.close();
+            return;
+        }
+        for (ByteBuffer buffer : bb.getAllArray()) {
+            queuedBytes.addAndGet(buffer.remaining());
+            queue.add(buffer);
+        }
+        if (queuedBytes.get() >= HIGH_WATER_MARK && !paused) {
+            paused = true;
+            emitter.pause();
+        }
+    }
+
+    /**
+     * 请求体接收结束
+     * 队列中剩余的数据仍会写入文件，之后回调监听器
+     *
+     * @param ex 连接中断的原因，正常结束时为null
+     */
+    void finish(Exception ex) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        failure = ex;
+        queue.add(END);
+    }
+
+    /**
+     * 写入线程的主循环
+     */
+    private void writeLoop() {
+        long written = 0;
+        IOException writeError = null;
+        try {
+            while (true) {
+                ByteBuffer buffer = queue.take();
+                if (buffer == END) {
+                    break;
+                }
+                int length = buffer.remaining();
+                try {
+                    if (writeError == null) {
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+                        written += length;
+                        listener.onWritten(length);
+                    }
+                } catch (IOException e) {
+                    // 写入失败后继续取出队列中的数据，保证连接能恢复并结束
+                    Log.e(TAG, "Error writing upload", e);
+                    writeError = e;
+                    emitter.getServer().post(emitter::close);
+                } finally {
+                    ByteBufferList.reclaim(buffer);
+                }
+                if (queuedBytes.addAndGet(-length) <= LOW_WATER_MARK && paused) {
+                    paused = false;
+                    emitter.getServer().post(emitter::resume);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            writeError = new IOException("Upload writer interrupted");
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing upload file", e);
+            }
+        }
+
+        Exception result = writeError != null ? writeError : failure;
+        long total = written;
+        emitter.getServer().post(() -> listener.onFinished(result, total));
+    }
+
+    /**
+     * 写入监听器接口
+     */
+    interface Listener {
+        /**
+         * 一段数据写入文件后调用，在写入线程中执行
+         *
+         * @param bytes 本次写入的字节数
+         */
+        void onWritten(long bytes);
+
+        /**
+         * 所有数据写入完毕且文件已关闭后调用，在服务器线程中执行
+         *
+         * @param ex      失败原因，成功时为null
+         * @param written 写入的总字节数
+         */
+        void onFinished(Exception ex, long written);
+    }
+}
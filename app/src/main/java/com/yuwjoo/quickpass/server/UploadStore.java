@@ -0,0 +1,228 @@
+package com.yuwjoo.quickpass.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 上传文件存储
+ * 接收中的文件先写入目标目录下的临时文件，接收完整后再改为最终文件名；
+ * 分块上传的会话记录已写入的长度，连接中断后发送方可以从该位置继续
+ */
+class UploadStore {
+    private static final String PART_SUFFIX = ".part";
+    private static final String DEFAULT_NAME = "upload";
+    private static final long SESSION_IDLE_TIMEOUT_MS = 60 * 60 * 1000; // 会话超过该时间没有写入则丢弃
+
+    private final File directory;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * 构造函数
+     *
+     * @param directory 接收文件的保存目录
+     */
+    UploadStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * 获取保存目录
+     *
+     * @return 保存目录
+     */
+    File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * 删除上次运行遗留的临时文件
+     * 会话只保存在内存中，进程重启后无法再续传
+     */
+    void deleteStaleParts() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(PART_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * 创建临时文件
+     *
+     * @return 空的临时文件
+     */
+    File createPartFile() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File part = new File(directory, UUID.randomUUID() + PART_SUFFIX);
+        if (!part.createNewFile()) {
+            throw new IOException("Cannot create " + part);
+        }
+        return part;
+    }
+
+    /**
+     * 将接收完整的临时文件改为最终文件名
+     * 同名文件已存在时在文件名后追加序号
+     *
+     * @param part 临时文件
+     * @param name 发送方提供的文件名
+     * @return 最终文件
+     */
+    synchronized File commit(File part, String name) throws IOException {
+        String safeName = sanitizeName(name);
+        int dot = safeName.lastIndexOf('.');
+        String base = dot > 0 ? safeName.substring(0, dot) : safeName;
+        String extension = dot > 0 ? safeName.substring(dot) : "";
+        File target = new File(directory, safeName);
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, String.format(Locale.ROOT, "%s (%d)%s", base, i, extension));
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Cannot rename " + part + " to " + target);
+        }
+        return target;
+    }
+
+    /**
+     * 创建分块上传会话
+     *
+     * @param name 文件名
+     * @param size 文件总长度
+     * @return 新会话
+     */
+    Session createSession(String name, long size) throws IOException {
+        purgeIdleSessions(System.currentTimeMillis());
+        Session session = new Session(UUID.randomUUID().toString(), name, size, createPartFile());
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    /**
+     * 获取分块上传会话
+     *
+     * @param id 会话ID
+     * @return 会话，不存在时返回null
+     */
+    Session getSession(String id) {
+        return id != null ? sessions.get(id) : null;
+    }
+
+    /**
+     * 结束会话
+     *
+     * @param session 会话
+     */
+    void removeSession(Session session) {
+        sessions.remove(session.id);
+    }
+
+    /**
+     * 丢弃长时间没有写入的会话及其临时文件
+     *
+     * @param now 当前时间（毫秒时间戳）
+     */
+    void purgeIdleSessions(long now) {
+        for (Session session : sessions.values()) {
+            if (now - session.lastActivity > SESSION_IDLE_TIMEOUT_MS && session.tryAcquire()) {
+                sessions.remove(session.id);
+                if (!session.partFile.delete()) {
+                    session.partFile.deleteOnExit();
+                }
+            }
+        }
+    }
+
+    /**
+     * 去掉文件名中的路径，防止写到保存目录之外
+     *
+     * @param name 发送方提供的文件名
+     * @return 安全的文件名
+     */
+    static String sanitizeName(String name) {
+        if (name == null) {
+            return DEFAULT_NAME;
+        }
+        String safeName = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+        safeName = safeName.replaceAll("[\\x00-\\x1f]", "");
+        if (safeName.isEmpty() || safeName.equals(".") || safeName.equals("..") || safeName.endsWith(PART_SUFFIX)) {
+            return DEFAULT_NAME;
+        }
+        return safeName;
+    }
+
+    /**
+     * 分块上传会话
+     */
+    static final class Session {
+        private final String id;
+        private final String name;
+        private final long size;
+        private final File partFile;
+        private final AtomicBoolean busy = new AtomicBoolean(); // 是否有分块正在写入
+        private volatile long offset; // 已写入的长度
+        private volatile long lastActivity = System.currentTimeMillis(); // 最近一次写入的时间
+
+        Session(String id, String name, long size, File partFile) {
+            this.id = id;
+            this.name = name;
+            this.size = size;
+            this.partFile = partFile;
+        }
+
+        String getId() {
+            return id;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        long getSize() {
+            return size;
+        }
+
+        File getPartFile() {
+            return partFile;
+        }
+
+        long getOffset() {
+            return offset;
+        }
+
+        /**
+         * 记录写入的数据，只在写入线程中调用
+         */
+        void advance(long bytes) {
+            offset += bytes;
+            lastActivity = System.currentTimeMillis();
+        }
+
+        /**
+         * 占用会话，同一会话同时只能写入一个分块
+         *
+         * @return 占用成功返回true
+         */
+        boolean tryAcquire() {
+            return busy.compareAndSet(false, true);
+        }
+
+        void release() {
+            busy.set(false);
+        }
+
+        boolean isComplete() {
+            return offset >= size;
+        }
+    }
+}
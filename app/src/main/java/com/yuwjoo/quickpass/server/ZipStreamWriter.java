@@ -0,0 +1,317 @@
+package com.yuwjoo.quickpass.server;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * ZIP流生成器
+ * 生成仅存储（不压缩）格式ZIP的各段结构数据，文件内容由调用方在本地文件头和数据描述符之间写入。
+ * CRC在写出文件内容时计算并放在数据描述符中，因此无需预读文件；
+ * 所有文件大小已知时可以预先算出整个压缩包的长度。超过4GB的文件、偏移或超过65535个条目时使用ZIP64
+ */
+final class ZipStreamWriter {
+    static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+    private static final int MAX_ENTRY_COUNT = 0xFFFF;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAGS = 0x0808; // 使用数据描述符 + 文件名为UTF-8
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_SIZE = 22;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private final List<Entry> entries = new ArrayList<>();
+    private final long zip64Limit;
+    private long offset; // 已写出的字节数
+    private long centralDirectoryOffset;
+    private long centralDirectorySize;
+
+    /**
+     * 构造函数
+     * @param names 条目名称，重名时自动追加序号
+     * @param sizes 文件大小，未知时为负数
+     * @param lastModified 修改时间（毫秒）
+     */
+    ZipStreamWriter(List<String> names, List<Long> sizes, List<Long> lastModified) {
+        this(names, sizes, lastModified, ZIP64_LIMIT);
+    }
+
+    /**
+     * 构造函数
+     * @param zip64Limit 大小或偏移达到该值时使用ZIP64，仅用于测试
+     */
+    ZipStreamWriter(List<String> names, List<Long> sizes, List<Long> lastModified, long zip64Limit) {
+        this.zip64Limit = zip64Limit;
+        Set<String> usedNames = new HashSet<>();
+        for (int i = 0; i < names.size(); i++) {
+            String name = uniqueName(names.get(i), usedNames);
+            entries.add(new Entry(name, sizes.get(i), lastModified.get(i), zip64Limit));
+        }
+    }
+
+    /**
+     * 获取条目数量
+     * @return 条目数量
+     */
+    int getEntryCount() {
+        return entries.size();
+    }
+
+    /**
+     * 计算整个压缩包的长度
+     * @return 压缩包长度，存在大小未知的文件时返回-1
+     */
+    long computeLength() {
+        long localOffset = 0;
+        long centralSize = 0;
+        for (Entry entry : entries) {
+            if (entry.size < 0) {
+                return -1;
+            }
+            boolean zip64 = entry.zip64;
+            boolean zip64Offset = localOffset >= zip64Limit;
+            localOffset += LOCAL_HEADER_SIZE + entry.name.length + (zip64 ? 20 : 0)
+                    + entry.size + (zip64 ? 24 : 16);
+            centralSize += CENTRAL_HEADER_SIZE + entry.name.length + centralExtraLength(zip64, zip64Offset);
+        }
+        return localOffset + centralSize + endLength(localOffset, centralSize);
+    }
+
+    /**
+     * 生成本地文件头
+     * @param index 条目序号
+     * @return 本地文件头数据
+     */
+    ByteBuffer localHeader(int index) {
+        Entry entry = entries.get(index);
+        entry.localHeaderOffset = offset;
+        boolean zip64 = entry.zip64;
+        ByteBuffer buffer = allocate(LOCAL_HEADER_SIZE + entry.name.length + (zip64 ? 20 : 0));
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        buffer.putShort((short) FLAGS);
+        buffer.putShort((short) 0); // 仅存储
+        buffer.putShort((short) entry.dosTime);
+        buffer.putShort((short) entry.dosDate);
+        buffer.putInt(0); // CRC在数据描述符中给出
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : 0);
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : 0);
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) (zip64 ? 20 : 0));
+        buffer.put(entry.name);
+        if (zip64) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) 16);
+            buffer.putLong(0);
+            buffer.putLong(0);
+        }
+        return finish(buffer);
+    }
+
+    /**
+     * 生成数据描述符
+     * @param index 条目序号
+     * @param crc 文件内容的CRC32
+     * @param size 实际写出的文件字节数
+     * @return 数据描述符数据
+     */
+    ByteBuffer dataDescriptor(int index, long crc, long size) {
+        Entry entry = entries.get(index);
+        entry.crc = crc;
+        entry.size = size;
+        offset += size;
+        boolean zip64 = entry.zip64;
+        ByteBuffer buffer = allocate(zip64 ? 24 : 16);
+        buffer.putInt(DATA_DESCRIPTOR_SIGNATURE);
+        buffer.putInt((int) crc);
+        if (zip64) {
+            buffer.putLong(size);
+            buffer.putLong(size);
+        } else {
+            buffer.putInt((int) size);
+            buffer.putInt((int) size);
+        }
+        return finish(buffer);
+    }
+
+    /**
+     * 生成中央目录中的文件头
+     * 必须在所有条目的数据描述符之后按顺序调用
+     * @param index 条目序号
+     * @return 中央目录文件头数据
+     */
+    ByteBuffer centralHeader(int index) {
+        if (index == 0) {
+            centralDirectoryOffset = offset;
+        }
+        Entry entry = entries.get(index);
+        boolean zip64 = entry.zip64;
+        boolean zip64Offset = entry.localHeaderOffset >= zip64Limit;
+        int extraLength = centralExtraLength(zip64, zip64Offset);
+        ByteBuffer buffer = allocate(CENTRAL_HEADER_SIZE + entry.name.length + extraLength);
+        buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+        buffer.putShort((short) VERSION_ZIP64); // 创建版本
+        buffer.putShort((short) (zip64 || zip64Offset ? VERSION_ZIP64 : VERSION_DEFAULT));
+        buffer.putShort((short) FLAGS);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) entry.dosTime);
+        buffer.putShort((short) entry.dosDate);
+        buffer.putInt((int) entry.crc);
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : (int) entry.size);
+        buffer.putInt(zip64 ? (int) ZIP64_LIMIT : (int) entry.size);
+        buffer.putShort((short) entry.name.length);
+        buffer.putShort((short) extraLength);
+        buffer.putShort((short) 0); // 注释长度
+        buffer.putShort((short) 0); // 磁盘号
+        buffer.putShort((short) 0); // 内部属性
+        buffer.putInt(0); // 外部属性
+        buffer.putInt(zip64Offset ? (int) ZIP64_LIMIT : (int) entry.localHeaderOffset);
+        buffer.put(entry.name);
+        if (extraLength > 0) {
+            buffer.putShort((short) ZIP64_EXTRA_ID);
+            buffer.putShort((short) (extraLength - 4));
+            if (zip64) {
+                buffer.putLong(entry.size);
+                buffer.putLong(entry.size);
+            }
+            if (zip64Offset) {
+                buffer.putLong(entry.localHeaderOffset);
+            }
+        }
+        centralDirectorySize += buffer.capacity();
+        return finish(buffer);
+    }
+
+    /**
+     * 生成中央目录结束记录，必要时包含ZIP64结束记录和定位器
+     * @return 结束记录数据
+     */
+    ByteBuffer endRecords() {
+        if (entries.isEmpty()) {
+            centralDirectoryOffset = offset;
+        }
+        int count = entries.size();
+        boolean zip64 = needsZip64End(centralDirectoryOffset, centralDirectorySize);
+        ByteBuffer buffer = allocate(endLength(centralDirectoryOffset, centralDirectorySize));
+        if (zip64) {
+            long zip64EndOffset = centralDirectoryOffset + centralDirectorySize;
+            buffer.putInt(ZIP64_END_SIGNATURE);
+            buffer.putLong(ZIP64_END_SIZE - 12);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putShort((short) VERSION_ZIP64);
+            buffer.putInt(0);
+            buffer.putInt(0);
+            buffer.putLong(count);
+            buffer.putLong(count);
+            buffer.putLong(centralDirectorySize);
+            buffer.putLong(centralDirectoryOffset);
+
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+            buffer.putInt(0);
+            buffer.putLong(zip64EndOffset);
+            buffer.putInt(1);
+        }
+        buffer.putInt(END_SIGNATURE);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) Math.min(count, MAX_ENTRY_COUNT));
+        buffer.putShort((short) Math.min(count, MAX_ENTRY_COUNT));
+        buffer.putInt((int) Math.min(centralDirectorySize, ZIP64_LIMIT));
+        buffer.putInt((int) Math.min(centralDirectoryOffset, ZIP64_LIMIT));
+        buffer.putShort((short) 0);
+        return finish(buffer);
+    }
+
+    private int centralExtraLength(boolean zip64, boolean zip64Offset) {
+        if (!zip64 && !zip64Offset) {
+            return 0;
+        }
+        return 4 + (zip64 ? 16 : 0) + (zip64Offset ? 8 : 0);
+    }
+
+    private int endLength(long centralOffset, long centralSize) {
+        return END_SIZE + (needsZip64End(centralOffset, centralSize) ? ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE : 0);
+    }
+
+    private boolean needsZip64End(long centralOffset, long centralSize) {
+        return entries.size() >= MAX_ENTRY_COUNT || centralOffset >= zip64Limit || centralSize >= zip64Limit;
+    }
+
+    private ByteBuffer allocate(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 准备写出的缓冲区并累计偏移
+     */
+    private ByteBuffer finish(ByteBuffer buffer) {
+        buffer.flip();
+        offset += buffer.remaining();
+        return buffer;
+    }
+
+    /**
+     * 生成不重复的条目名称
+     */
+    private static String uniqueName(String name, Set<String> usedNames) {
+        String candidate = name;
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; !usedNames.add(candidate.toLowerCase(Locale.ROOT)); i++) {
+            candidate = base + " (" + i + ")" + extension;
+        }
+        return candidate;
+    }
+
+    /**
+     * 压缩包条目
+     */
+    private static final class Entry {
+        final byte[] name;
+        final int dosTime;
+        final int dosDate;
+        long size;
+        long crc;
+        long localHeaderOffset;
+        // 由添加时的大小决定，保证本地文件头、数据描述符和中央目录一致；大小未知时按ZIP64处理
+        final boolean zip64;
+
+        Entry(String name, long size, long lastModified, long zip64Limit) {
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.size = size;
+            this.zip64 = size < 0 || size >= zip64Limit;
+            Calendar calendar = Calendar.getInstance();
+            calendar.setTimeInMillis(lastModified);
+            int year = calendar.get(Calendar.YEAR);
+            if (year < 1980) {
+                // DOS时间最早只能表示1980年
+                this.dosDate = (1 << 5) | 1;
+                this.dosTime = 0;
+            } else {
+                this.dosDate = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5)
+                        | calendar.get(Calendar.DAY_OF_MONTH);
+                this.dosTime = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5)
+                        | (calendar.get(Calendar.SECOND) / 2);
+            }
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.yuwjoo.quickpass.server;
+
+import android.content.ContentResolver;
+import android.util.Log;
+
+import com.koushikdutta.async.AsyncServer;
+import com.koushikdutta.async.ByteBufferList;
+import com.koushikdutta.async.callback.CompletedCallback;
+import com.koushikdutta.async.callback.WritableCallback;
+import com.koushikdutta.async.http.server.AsyncHttpServerResponse;
+
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ZIP打包传输任务
+ * 按顺序读取多个分享文件，边读边生成仅存储格式的ZIP写入HTTP响应，
+ * 同一时间只打开一个文件，不在磁盘或内存中暂存文件内容。
+ * 文件流的读取可能因内容提供者阻塞，每个文件都通过{@link ReadAheadPipeline}在预读线程中读取并计算CRC，
+ * 不占用服务器线程。
+ * 每段数据的发送额度由{@link TransferScheduler}分配，每个文件的发送字节数和下载次数计入{@link TransferMetrics}
+ */
+class ZipTransfer implements WritableCallback, CompletedCallback, TransferScheduler.Transfer {
+    private static final String TAG = "ZipTransfer";
+    private static final int CENTRAL_HEADERS_PER_WRITE = 64; // 每次写出的中央目录文件头数量
+
+    private static final int PHASE_NEXT_ENTRY = 0;
+    private static final int PHASE_DATA = 1;
+    private static final int PHASE_CENTRAL_DIRECTORY = 2;
+    private static final int PHASE_DONE = 3;
+
+    private final ContentResolver contentResolver;
+    private final List<ShareEntry> entries;
+    private final ZipStreamWriter writer;
+    private final AsyncHttpServerResponse response;
+    private final ByteBufferList pending = new ByteBufferList();
+    private final CRC32 crc = new CRC32();
+    private int phase = PHASE_NEXT_ENTRY;
+    private int index = -1; // 当前条目序号
+    private int centralIndex; // 下一个要写出的中央目录文件头序号
+    private InputStream current; // 当前条目的文件流
+    private long currentRemaining; // 当前条目剩余字节数，大小未知时为Long.MAX_VALUE
+    private long currentWritten; // 当前条目已写出的字节数
+    private long budget; // 本次发送额度，限制单次读取的文件内容长度
+    private boolean finished;
+    private StreamBuffers buffers; // 缓冲区池
+    private ReadAheadPipeline readAhead; // 当前条目的预读管道，条目读完后为null
+    private boolean waitingForData; // 是否在等待预读线程读入数据
+    private CompletedCallback completedCallback;
+    private TransferScheduler scheduler;
+    private TransferScheduler.Ticket ticket; // 调度凭据，排队中或已开始时不为null
+    private TransferMetrics.Tracker tracker; // 传输统计
+
+    /**
+     * 构造函数
+     *
+     * @param contentResolver 内容解析器
+     * @param entries         要打包的分享条目
+     * @param response        HTTP响应
+     */
+    ZipTransfer(ContentResolver contentResolver, List<ShareEntry> entries, AsyncHttpServerResponse response) {
+        this.contentResolver = contentResolver;
+        this.entries = entries;
+        this.response = response;
+
+        List<String> names = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        for (ShareEntry entry : entries) {
+            FileMetadata metadata = entry.getMetadata();
+            names.add(metadata.getName());
+            sizes.add(metadata.getSize());
+            times.add(metadata.getLastModified());
+        }
+        this.writer = new ZipStreamWriter(names, sizes, times);
+    }
+
+    /**
+     * 计算压缩包长度
+     * @return 压缩包长度，存在大小未知的文件时返回-1
+     */
+    long computeLength() {
+        return writer.computeLength();
+    }
+
+    /**
+     * 设置传输结束回调
+     * 无论成功、出错还是连接被关闭，都只回调一次
+     *
+     * @param completedCallback 传输结束回调，成功时参数为null
+     */
+    void setCompletedCallback(CompletedCallback completedCallback) {
+        this.completedCallback = completedCallback;
+    }
+
+    /**
+     * 提交给调度器，获得名额后开始传输
+     * 必须在服务器线程中调用
+     *
+     * @param scheduler 传输调度器
+     * @param metrics   传输指标
+     * @param buffers   缓冲区池
+     * @param clientId  客户端标识
+     * @param length    压缩包长度，未知时为-1
+     */
+    void schedule(TransferScheduler scheduler, TransferMetrics metrics, StreamBuffers buffers,
+                  String clientId, long length) {
+        this.scheduler = scheduler;
+        this.buffers = buffers;
+        this.tracker = metrics.begin(null, length);
+        // 排队期间客户端断开时释放名额
+        response.setClosedCallback(this);
+        TransferScheduler.Ticket submitted = scheduler.submit(clientId, length, this);
+        if (ticket == null && !finished) {
+            ticket = submitted;
+        }
+    }
+
+    @Override
+    public void onStart(TransferScheduler.Ticket ticket) {
+        this.ticket = ticket;
+        response.setWriteableCallback(this);
+        onWriteable();
+    }
+
+    /**
+     * 预读线程读入新数据后，在服务器线程中继续发送
+     */
+    private void onReadable() {
+        if (finished || !waitingForData) {
+            return;
+        }
+        waitingForData = false;
+        requestWrite();
+    }
+
+    @Override
+    public void onRejected(int retryAfterSeconds) {
+        if (finished) {
+            return;
+        }
+        tracker.finish(TransferMetrics.ErrorCause.BUSY);
+        finish(new IOException("Server busy"));
+        TransferScheduler.sendUnavailable(response, retryAfterSeconds);
+    }
+
+    /**
+     * 响应可写时写出剩余数据，全部写出后申请新的发送额度
+     */
+    @Override
+    public void onWriteable() {
+        if (finished || ticket == null || !ticket.isRunning()) {
+            return;
+        }
+        tracker.onSocketWritable();
+        if (pending.hasRemaining()) {
+            response.write(pending);
+        }
+        if (hasUnsentData()) {
+            tracker.onSocketBlocked();
+            return;
+        }
+        if (phase == PHASE_DONE) {
+            complete();
+            return;
+        }
+        requestWrite();
+    }
+
+    /**
+     * 是否还有数据未写入套接字
+     * 分块传输编码时响应会暂存交给它的缓冲区，要等响应写完后回调可写才能复用缓冲区
+     */
+    private boolean hasUnsentData() {
+        return pending.hasRemaining() || (readAhead != null && readAhead.isSending());
+    }
+
+    /**
+     * 申请下一段数据的发送额度
+     */
+    private void requestWrite() {
+        tracker.onWriteRequested();
+        scheduler.requestWrite(ticket);
+    }
+
+    /**
+     * 获得发送额度后生成并写出下一段数据
+     */
+    @Override
+    public long onGrant(long budget) {
+        if (finished) {
+            return 0;
+        }
+        this.budget = budget;
+        tracker.onGranted();
+        try {
+            tracker.onReadStart();
+            if (!fill()) {
+                complete();
+                return 0;
+            }
+            if (waitingForData) {
+                // 预读的数据已发完，等待预读线程
+                tracker.onRead(0);
+                return 0;
+            }
+            long produced = pending.remaining();
+            tracker.onRead(produced);
+            response.write(pending);
+            if (hasUnsentData()) {
+                tracker.onSocketBlocked();
+            } else if (phase == PHASE_DONE) {
+                complete();
+            } else {
+                requestWrite();
+            }
+            return produced;
+        } catch (IOException e) {
+            Log.e(TAG, "Error streaming zip entry " + index, e);
+            tracker.finish(TransferMetrics.ErrorCause.READ_ERROR);
+            finish(e);
+            // 响应头已发出，只能关闭连接让客户端感知传输中断
+            response.getSocket().close();
+            return 0;
+        }
+    }
+
+    /**
+     * 全部数据写出后结束响应
+     */
+    private void complete() {
+        tracker.finish(null);
+        finish(null);
+        response.end();
+    }
+
+    /**
+     * 生成下一段数据
+     *
+     * @return 全部数据已生成时返回false
+     */
+    private boolean fill() throws IOException {
+        while (true) {
+            switch (phase) {
+                case PHASE_NEXT_ENTRY:
+                    index++;
+                    if (index >= entries.size()) {
+                        phase = PHASE_CENTRAL_DIRECTORY;
+                        continue;
+                    }
+                    openEntry(entries.get(index));
+                    pending.add(writer.localHeader(index));
+                    phase = PHASE_DATA;
+                    return true;
+                case PHASE_DATA:
+                    long taken = readAhead.take(Math.max(1, budget), pending);
+                    if (taken == 0) {
+                        waitingForData = true;
+                        return true;
+                    }
+                    if (taken > 0) {
+                        currentWritten += taken;
+                        return true;
+                    }
+                    readAhead.close();
+                    readAhead = null;
+                    closeCurrent();
+                    pending.add(writer.dataDescriptor(index, crc.getValue(), currentWritten));
+                    tracker.countDownload();
+                    tracker.switchShare(null, -1);
+                    phase = PHASE_NEXT_ENTRY;
+                    return true;
+                case PHASE_CENTRAL_DIRECTORY:
+                    int count = writer.getEntryCount();
+                    int last = Math.min(count, centralIndex + CENTRAL_HEADERS_PER_WRITE);
+                    for (; centralIndex < last; centralIndex++) {
+                        pending.add(writer.centralHeader(centralIndex));
+                    }
+                    if (centralIndex >= count) {
+                        pending.add(writer.endRecords());
+                        phase = PHASE_DONE;
+                    }
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * 打开条目对应的文件
+     */
+    private void openEntry(ShareEntry entry) throws IOException {
+        current = contentResolver.openInputStream(entry.getUri());
+        if (current == null) {
+            throw new FileNotFoundException("Cannot open " + entry.getUri());
+        }
+        long size = entry.getMetadata().getSize();
+        tracker.switchShare(entry.getId(), size);
+        currentRemaining = size >= 0 ? size : Long.MAX_VALUE;
+        currentWritten = 0;
+        crc.reset();
+        // 预读线程持有文件流的引用，服务器线程关闭文件流时读取线程随之结束
+        InputStream stream = current;
+        AsyncServer server = response.getSocket().getServer();
+        readAhead = buffers.openReadAhead((target, scratch) -> readAheadChunk(stream, target, scratch),
+                tracker::getBytesPerSecond, () -> server.post(this::onReadable));
+    }
+
+    /**
+     * 预读线程读取当前条目的下一段内容并计算CRC
+     * 预读期间条目的剩余字节数和CRC只在预读线程中访问，取完全部数据后才由服务器线程读取
+     *
+     * @param stream  当前条目的文件流
+     * @param target  目标缓冲区
+     * @param scratch 预读线程的临时数组
+     * @return 读取的字节数，当前条目已读完时返回-1
+     */
+    private int readAheadChunk(InputStream stream, ByteBuffer target, byte[] scratch) throws IOException {
+        if (currentRemaining == 0) {
+            return -1;
+        }
+        int toRead = (int) Math.min(Math.min(scratch.length, target.remaining()), currentRemaining);
+        long start = System.nanoTime();
+        int read = stream.read(scratch, 0, toRead);
+        tracker.onReadAhead(System.nanoTime() - start);
+        if (read < 0) {
+            if (currentRemaining != Long.MAX_VALUE) {
+                throw new EOFException("File shrank while zipping: " + entries.get(index).getId());
+            }
+            return -1;
+        }
+        crc.update(scratch, 0, read);
+        target.put(scratch, 0, read);
+        if (currentRemaining != Long.MAX_VALUE) {
+            currentRemaining -= read;
+        }
+        return read;
+    }
+
+    private void closeCurrent() {
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing file", e);
+            }
+            current = null;
+        }
+    }
+
+    /**
+     * 连接关闭时释放资源
+     */
+    @Override
+    public void onCompleted(Exception ex) {
+        if (ex != null) {
+            Log.i(TAG, "Zip transfer interrupted at entry " + index + ": " + ex.getMessage());
+        }
+        tracker.finish(TransferMetrics.ErrorCause.CLIENT_CLOSED);
+        finish(ex);
+    }
+
+    /**
+     * 结束传输并关闭文件
+     *
+     * @param ex 传输异常，成功时为null
+     */
+    private void finish(Exception ex) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        response.setWriteableCallback(null);
+        response.setClosedCallback(null);
+        pending.recycle();
+        if (readAhead != null) {
+            readAhead.close();
+            readAhead = null;
+        }
+        closeCurrent();
+        if (ticket != null) {
+            scheduler.finish(ticket);
+        }
+        if (completedCallback != null) {
+            completedCallback.onCompleted(ex);
+        }
+    }
+}
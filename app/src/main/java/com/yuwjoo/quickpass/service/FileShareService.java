@@ -0,0 +1,406 @@
+package com.yuwjoo.quickpass.service;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ServiceInfo;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.util.Log;
+import android.widget.Toast;
+
+import androidx.core.app.NotificationCompat;
+import androidx.core.app.ServiceCompat;
+import androidx.core.content.ContextCompat;
+
+import com.yuwjoo.quickpass.MainActivity;
+import com.yuwjoo.quickpass.R;
+import com.yuwjoo.quickpass.server.FileShareHttpServer;
+import com.yuwjoo.quickpass.server.ShareEntry;
+import com.yuwjoo.quickpass.server.TransferMetrics;
+import com.yuwjoo.quickpass.server.UploadClient;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 文件分享前台服务
+ * 在整个应用中只持有一个FileShareHttpServer，活动通过绑定获取服务器，
+ * 旋转屏幕或切换活动不会中断进行中的传输。
+ * 只有存在进行中的传输时才持有唤醒锁和Wi-Fi高性能锁，熄屏或后台时传输保持全速
+ */
+public class FileShareService extends Service {
+    private static final String TAG = "FileShareService";
+    private static final String CHANNEL_ID = "file_share";
+    private static final int NOTIFICATION_ID = 1;
+    private static final int RECEIVED_NOTIFICATION_ID = 2;
+    private static final String ACTION_STOP = "com.yuwjoo.quickpass.action.STOP_SHARING";
+    private static final String ACTION_RECEIVE = "com.yuwjoo.quickpass.action.RECEIVE_FILE";
+    // 唤醒锁每次只持有这么久，远大于连接的读超时和持久连接的空闲超时；
+    // 进行中的传输在这段时间内一定会有数据流动或因超时结束
+    private static final long WAKE_LOCK_TIMEOUT_MS = 60_000;
+    private static final long WAKE_LOCK_RENEW_MS = WAKE_LOCK_TIMEOUT_MS / 2; // 续期间隔，在超时前重新获取
+
+    private final LocalBinder binder = new LocalBinder();
+    private final ExecutorService sendExecutor = Executors.newSingleThreadExecutor(); // 依次发送文件，避免抢占带宽
+    private final ExecutorService receiveExecutor = Executors.newSingleThreadExecutor(); // 依次下载其他设备分享的文件
+    private final AtomicInteger clientTransfers = new AtomicInteger(); // 本机发起的进行中的发送和下载任务数
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable renewLocks = this::renewLocks;
+    private FileShareHttpServer fileShareHttpServer;
+    private PowerManager.WakeLock wakeLock;
+    private WifiManager.WifiLock wifiLock;
+    private boolean transferActive; // 当前是否持有锁
+    private long lastTransferredBytes; // 上次获取锁时服务器已传输的字节数
+    private boolean foreground; // 是否处于前台状态，用户停止分享后为false
+
+    /**
+     * 启动服务
+     * 服务启动后一直运行，直到用户在通知中停止分享
+     * @param context 上下文
+     */
+    public static void start(Context context) {
+        ContextCompat.startForegroundService(context, new Intent(context, FileShareService.class));
+    }
+
+    /**
+     * 启动服务并通过其他设备的分享链接下载文件
+     * 下载由服务执行，发起下载的活动结束后继续进行；调用方需先确认链接指向局域网地址并征得用户同意
+     * @param context 上下文
+     * @param url 分享链接，例如 http://192.168.1.5:3400/downloadFile?id=xxx
+     */
+    public static void receive(Context context, String url) {
+        ContextCompat.startForegroundService(context, new Intent(context, FileShareService.class)
+                .setAction(ACTION_RECEIVE).putExtra(Intent.EXTRA_TEXT, url));
+    }
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        createLocks();
+        fileShareHttpServer = new FileShareHttpServer(this);
+        fileShareHttpServer.setOnTransferActivityListener(activeTransfers -> updateTransferState());
+        fileShareHttpServer.setOnFileReceivedListener(this::notifyFileReceived);
+        fileShareHttpServer.start();
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        synchronized (this) {
+            if (intent != null && ACTION_STOP.equals(intent.getAction())) {
+                // 仍有活动绑定时服务会在解绑后销毁
+                Log.i(TAG, "Stop requested from notification");
+                foreground = false;
+                ServiceCompat.stopForeground(this, ServiceCompat.STOP_FOREGROUND_REMOVE);
+                stopSelf();
+            } else {
+                // 每次通过startForegroundService启动都需要调用startForeground
+                foreground = true;
+                startForegroundCompat(buildNotification(transferActive));
+                if (intent != null && ACTION_RECEIVE.equals(intent.getAction())) {
+                    receiveFile(intent.getStringExtra(Intent.EXTRA_TEXT));
+                }
+            }
+        }
+        // 分享列表已持久化，进程被系统杀死后由系统重新启动服务，重新创建时恢复分享，
+        // 已发出的链接无需用户重新打开应用即可继续使用；重启时intent为null，按普通启动处理
+        return START_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        sendExecutor.shutdownNow();
+        receiveExecutor.shutdownNow();
+        fileShareHttpServer.setOnTransferActivityListener(null);
+        fileShareHttpServer.setOnFileReceivedListener(null);
+        fileShareHttpServer.stop();
+        setLocksHeld(false);
+    }
+
+    /**
+     * 将文件发送到其他设备
+     * 文件在后台依次上传，发送期间同样持有唤醒锁和Wi-Fi锁
+     * @param serverAddress 对方的服务器地址，例如 http://192.168.1.5:3400
+     * @param entries 要发送的分享条目
+     * @param callback 全部发送结束后在主线程回调，可以为null
+     */
+    public void sendFiles(String serverAddress, List<ShareEntry> entries, SendCallback callback) {
+        List<ShareEntry> pending = new ArrayList<>(entries);
+        if (clientTransfers.incrementAndGet() == 1) {
+            updateTransferState();
+        }
+        sendExecutor.execute(() -> {
+            int sent = 0;
+            try {
+                for (ShareEntry entry : pending) {
+                    if (sendFile(serverAddress, entry)) {
+                        sent++;
+                    }
+                }
+            } finally {
+                if (clientTransfers.decrementAndGet() == 0) {
+                    updateTransferState();
+                }
+            }
+            int succeeded = sent;
+            if (callback != null) {
+                mainHandler.post(() -> callback.onSendFinished(succeeded, pending.size() - succeeded));
+            }
+        });
+    }
+
+    /**
+     * 通过其他设备的分享链接下载文件
+     * 文件保存到接收目录，完成后通知用户；下载期间同样持有唤醒锁和Wi-Fi锁
+     * @param url 分享链接
+     */
+    private void receiveFile(String url) {
+        if (url == null) {
+            return;
+        }
+        if (clientTransfers.incrementAndGet() == 1) {
+            updateTransferState();
+        }
+        receiveExecutor.execute(() -> {
+            try {
+                notifyFileReceived(fileShareHttpServer.downloadFromPeer(url));
+            } catch (IOException e) {
+                Log.e(TAG, "Error downloading " + url, e);
+                mainHandler.post(() -> Toast.makeText(this, R.string.receive_failed, Toast.LENGTH_SHORT).show());
+            } finally {
+                if (clientTransfers.decrementAndGet() == 0) {
+                    updateTransferState();
+                }
+            }
+        });
+    }
+
+    /**
+     * 上传单个文件
+     * @return 上传成功返回true
+     */
+    private boolean sendFile(String serverAddress, ShareEntry entry) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        UploadClient client = new UploadClient();
+        try {
+            client.upload(serverAddress, entry.getMetadata().getName(), entry.getSize(),
+                    () -> openSource(entry), null);
+            Log.i(TAG, "Sent " + entry.getMetadata().getName() + " to " + serverAddress);
+            return true;
+        } catch (IOException e) {
+            Log.e(TAG, "Error sending " + entry.getUri() + " to " + serverAddress, e);
+            return false;
+        }
+    }
+
+    private InputStream openSource(ShareEntry entry) throws IOException {
+        InputStream inputStream = getContentResolver().openInputStream(entry.getUri());
+        if (inputStream == null) {
+            throw new FileNotFoundException("Cannot open " + entry.getUri());
+        }
+        return inputStream;
+    }
+
+    /**
+     * 通知用户收到了文件
+     * @param file 保存的文件
+     */
+    private void notifyFileReceived(File file) {
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        if (notificationManager == null) {
+            return;
+        }
+        notificationManager.notify(RECEIVED_NOTIFICATION_ID, new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_notification_share)
+                .setContentTitle(getString(R.string.notification_received))
+                .setContentText(file.getName())
+                .setAutoCancel(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build());
+    }
+
+    /**
+     * 根据传输数量获取或释放锁，并更新通知
+     * 可能在服务器线程、发送线程或下载线程中调用
+     */
+    private synchronized void updateTransferState() {
+        setTransferActive(fileShareHttpServer.getActiveTransferCount() > 0 || clientTransfers.get() > 0);
+    }
+
+    /**
+     * 续期唤醒锁
+     * 本机发起的传输有超时保护，进行中时一直续期；服务器的传输只有在上个周期内有数据流动时才续期，
+     * 计数因异常没有归零或漏掉了状态更新时停止续期并释放锁，下次传输数变化时重新计算
+     */
+    private synchronized void renewLocks() {
+        if (!transferActive) {
+            return;
+        }
+        boolean progressed = getTransferredBytes() != lastTransferredBytes;
+        if (clientTransfers.get() > 0 || (fileShareHttpServer.getActiveTransferCount() > 0 && progressed)) {
+            setLocksHeld(true);
+        } else {
+            Log.w(TAG, "No transfer progress in " + WAKE_LOCK_RENEW_MS + " ms, releasing wake locks");
+            setTransferActive(false);
+        }
+    }
+
+    private long getTransferredBytes() {
+        TransferMetrics metrics = fileShareHttpServer.getMetrics();
+        return metrics.getBytesSent() + metrics.getBytesReceived();
+    }
+
+    /**
+     * 切换传输状态，获取或释放锁并更新通知
+     * @param active 是否有进行中的传输
+     */
+    private void setTransferActive(boolean active) {
+        if (active == transferActive) {
+            return;
+        }
+        transferActive = active;
+        setLocksHeld(active);
+        NotificationManager notificationManager = getSystemService(NotificationManager.class);
+        if (foreground && notificationManager != null) {
+            notificationManager.notify(NOTIFICATION_ID, buildNotification(active));
+        }
+        Log.i(TAG, active ? "Transfers started, holding wake locks" : "Transfers idle, released wake locks");
+    }
+
+    /**
+     * 创建唤醒锁和Wi-Fi锁，二者都不计数，重复获取或释放没有副作用
+     */
+    @SuppressWarnings("deprecation")
+    private void createLocks() {
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        if (powerManager != null) {
+            wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "QuickPass:transfer");
+            wakeLock.setReferenceCounted(false);
+        }
+        WifiManager wifiManager = (WifiManager) getApplicationContext().getSystemService(Context.WIFI_SERVICE);
+        if (wifiManager != null) {
+            wifiLock = wifiManager.createWifiLock(WifiManager.WIFI_MODE_FULL_HIGH_PERF, "QuickPass:transfer");
+            wifiLock.setReferenceCounted(false);
+        }
+    }
+
+    /**
+     * 获取或释放锁
+     * 唤醒锁带超时获取，持有期间定时续期，即使之后没有释放也不会让设备一直保持唤醒
+     * @param held 是否持有
+     */
+    private synchronized void setLocksHeld(boolean held) {
+        mainHandler.removeCallbacks(renewLocks);
+        if (held) {
+            lastTransferredBytes = getTransferredBytes();
+            mainHandler.postDelayed(renewLocks, WAKE_LOCK_RENEW_MS);
+        }
+        if (wakeLock != null) {
+            if (held) {
+                wakeLock.acquire(WAKE_LOCK_TIMEOUT_MS);
+            } else if (wakeLock.isHeld()) {
+                wakeLock.release();
+            }
+        }
+        if (wifiLock != null) {
+            if (held) {
+                wifiLock.acquire();
+            } else if (wifiLock.isHeld()) {
+                wifiLock.release();
+            }
+        }
+    }
+
+    private void startForegroundCompat(Notification notification) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            startForeground(NOTIFICATION_ID, notification, ServiceInfo.FOREGROUND_SERVICE_TYPE_CONNECTED_DEVICE);
+        } else {
+            startForeground(NOTIFICATION_ID, notification);
+        }
+    }
+
+    /**
+     * 生成前台服务通知
+     * @param transferring 是否有进行中的传输
+     * @return 通知
+     */
+    private Notification buildNotification(boolean transferring) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            NotificationChannel channel = new NotificationChannel(CHANNEL_ID,
+                    getString(R.string.notification_channel_share), NotificationManager.IMPORTANCE_LOW);
+            getSystemService(NotificationManager.class).createNotificationChannel(channel);
+        }
+        PendingIntent contentIntent = PendingIntent.getActivity(this, 0,
+                new Intent(this, MainActivity.class), PendingIntent.FLAG_IMMUTABLE);
+        PendingIntent stopIntent = PendingIntent.getService(this, 0,
+                new Intent(this, FileShareService.class).setAction(ACTION_STOP), PendingIntent.FLAG_IMMUTABLE);
+        return new NotificationCompat.Builder(this, CHANNEL_ID)
+                .setSmallIcon(R.drawable.ic_notification_share)
+                .setContentTitle(getString(R.string.app_name))
+                .setContentText(getString(transferring ? R.string.notification_transferring
+                        : R.string.notification_sharing))
+                .setContentIntent(contentIntent)
+                .addAction(0, getString(R.string.stop_sharing), stopIntent)
+                .setOngoing(true)
+                .setOnlyAlertOnce(true)
+                .setPriority(NotificationCompat.PRIORITY_LOW)
+                .build();
+    }
+
+    /**
+     * 本地绑定接口
+     */
+    public class LocalBinder extends Binder {
+        /**
+         * 获取服务持有的文件分享服务器
+         * @return 文件分享服务器
+         */
+        public FileShareHttpServer getServer() {
+            return fileShareHttpServer;
+        }
+
+        /**
+         * 获取服务实例
+         * @return 文件分享服务
+         */
+        public FileShareService getService() {
+            return FileShareService.this;
+        }
+    }
+
+    /**
+     * 发送结果回调接口
+     */
+    public interface SendCallback {
+        /**
+         * 全部文件发送结束
+         * @param sent 发送成功的文件数
+         * @param failed 发送失败的文件数
+         */
+        void onSendFinished(int sent, int failed);
+    }
+}
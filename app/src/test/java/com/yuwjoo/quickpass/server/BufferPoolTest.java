@@ -0,0 +1,56 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 缓冲区池测试
+ */
+public class BufferPoolTest {
+    private static final int KB = 1024;
+
+    @Test
+    public void classSize_roundsUpToPowerOfTwoWithinBounds() {
+        assertEquals(16 * KB, BufferPool.classSize(1));
+        assertEquals(16 * KB, BufferPool.classSize(16 * KB));
+        assertEquals(32 * KB, BufferPool.classSize(16 * KB + 1));
+        assertEquals(256 * KB, BufferPool.classSize(200 * KB));
+        assertEquals(1024 * KB, BufferPool.classSize(5000 * KB));
+    }
+
+    @Test
+    public void acquire_reusesReleasedBufferOfSameClass() {
+        BufferPool pool = new BufferPool(true, 4 * 1024 * KB);
+        ByteBuffer first = pool.acquire(100 * KB);
+        assertTrue(first.isDirect());
+        assertEquals(128 * KB, first.capacity());
+        first.put((byte) 1);
+        pool.release(first);
+
+        ByteBuffer second = pool.acquire(70 * KB);
+        assertSame(first, second);
+        assertEquals(0, second.position());
+        assertEquals(second.capacity(), second.limit());
+        assertNotSame(second, pool.acquire(20 * KB));
+        assertEquals(2, pool.getAllocations());
+        assertEquals(1, pool.getReuses());
+    }
+
+    @Test
+    public void release_dropsBuffersBeyondLimitOrFromElsewhere() {
+        BufferPool pool = new BufferPool(false, 48 * KB);
+        pool.release(ByteBuffer.allocate(32 * KB));
+        pool.release(ByteBuffer.allocate(32 * KB)); // 超出上限
+        pool.release(ByteBuffer.allocate(10 * KB)); // 不是池中的容量
+        pool.release(ByteBuffer.allocateDirect(16 * KB)); // 类型不符
+        pool.release(null);
+        assertEquals(32 * KB, pool.getPooledBytes());
+
+        pool.acquire(32 * KB);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(0, pool.getAllocations());
+    }
+}
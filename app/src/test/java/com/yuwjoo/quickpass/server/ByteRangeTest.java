@@ -0,0 +1,61 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Range请求头解析测试
+ */
+public class ByteRangeTest {
+    @Test
+    public void parse_openEndedRange() {
+        ByteRange range = ByteRange.parse("bytes=100-", 1000);
+        assertEquals(100, range.getStart());
+        assertEquals(999, range.getEnd());
+        assertEquals(900, range.getLength());
+        assertEquals("bytes 100-999/1000", range.toContentRange(1000));
+    }
+
+    @Test
+    public void parse_suffixRange() {
+        ByteRange range = ByteRange.parse("bytes=-200", 1000);
+        assertEquals(800, range.getStart());
+        assertEquals(999, range.getEnd());
+    }
+
+    @Test
+    public void parse_clampsEndToFileLength() {
+        ByteRange range = ByteRange.parse("bytes=0-5000", 1000);
+        assertEquals(0, range.getStart());
+        assertEquals(999, range.getEnd());
+    }
+
+    @Test
+    public void parse_rejectsUnsatisfiableAndMultiRange() {
+        assertSame(ByteRange.NOT_SATISFIABLE, ByteRange.parse("bytes=1000-", 1000));
+        assertSame(ByteRange.NOT_SATISFIABLE, ByteRange.parse("bytes=0-1,5-9", 1000));
+        assertSame(ByteRange.NOT_SATISFIABLE, ByteRange.parse("bytes=-0", 1000));
+    }
+
+    @Test
+    public void parse_ignoresMissingOrMalformedHeader() {
+        assertNull(ByteRange.parse(null, 1000));
+        assertNull(ByteRange.parse("items=0-1", 1000));
+        assertNull(ByteRange.parse("bytes=abc-", 1000));
+        assertNull(ByteRange.parse("bytes=9-3", 1000));
+    }
+
+    @Test
+    public void startsNewDownload_countsOnlyDownloadsFromTheStart() {
+        assertTrue(ByteRange.startsNewDownload(null));
+        assertTrue(ByteRange.startsNewDownload("bytes=0-"));
+        assertTrue(ByteRange.startsNewDownload("bytes=0-1048575"));
+        assertTrue(ByteRange.startsNewDownload("items=0-1"));
+        // 探测长度的请求、后续分段和后缀区间不算新下载
+        assertFalse(ByteRange.startsNewDownload("bytes=0-0"));
+        assertFalse(ByteRange.startsNewDownload("bytes=1048576-2097151"));
+        assertFalse(ByteRange.startsNewDownload("bytes=-200"));
+        assertFalse(ByteRange.startsNewDownload("bytes=0-1,5-9"));
+    }
+}
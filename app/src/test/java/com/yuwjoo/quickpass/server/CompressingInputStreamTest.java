@@ -0,0 +1,97 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * 边读边压缩的文件流测试
+ */
+public class CompressingInputStreamTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * 生成类似日志的文本
+     */
+    private static byte[] logText(int lines) {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines; i++) {
+            text.append("2024-05-01 12:00:").append(i % 60).append(" INFO worker-").append(i % 7)
+                    .append(" processed request ").append(i).append('\n');
+        }
+        return text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 用较小且不规则的读取长度读完整个流
+     */
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[7000];
+        int read;
+        int round = 0;
+        while ((read = in.read(buffer, 0, 1 + (round++ * 997) % buffer.length)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void gzip_roundTripsAndShrinksText() throws IOException {
+        byte[] original = logText(50_000);
+        byte[] compressed = readAll(new CompressingInputStream(
+                new ByteArrayInputStream(original), ContentEncoding.GZIP, null));
+
+        assertTrue(compressed.length * 5 < original.length);
+        assertArrayEquals(original, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void deflate_usesZlibFormat() throws IOException {
+        byte[] original = logText(1000);
+        byte[] compressed = readAll(new CompressingInputStream(
+                new ByteArrayInputStream(original), ContentEncoding.DEFLATE, null));
+
+        assertArrayEquals(original, readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))));
+    }
+
+    @Test
+    public void emptyInput_producesValidGzip() throws IOException {
+        byte[] compressed = readAll(new CompressingInputStream(
+                new ByteArrayInputStream(new byte[0]), ContentEncoding.GZIP, null));
+        assertEquals(0, readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))).length);
+    }
+
+    @Test
+    public void cacheWriter_receivesCompressedCopyOnlyWhenComplete() throws IOException {
+        CompressionCache cache = new CompressionCache(folder.getRoot(), 10 * 1024 * 1024);
+        String key = CompressionCache.key("id", "\"1-2\"", ContentEncoding.GZIP);
+        cache.get(key);
+        cache.get(key);
+
+        // 中途关闭的流不写入缓存
+        CompressingInputStream aborted = new CompressingInputStream(
+                new ByteArrayInputStream(logText(10_000)), ContentEncoding.GZIP, cache.openWriter(key));
+        aborted.read(new byte[100]);
+        aborted.close();
+        assertNull(cache.get(key));
+
+        CompressingInputStream complete = new CompressingInputStream(
+                new ByteArrayInputStream(logText(10_000)), ContentEncoding.GZIP, cache.openWriter(key));
+        byte[] sent = readAll(complete);
+        complete.close();
+        assertArrayEquals(sent, Files.readAllBytes(cache.get(key).toPath()));
+    }
+}
@@ -0,0 +1,88 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+/**
+ * 压缩结果缓存测试
+ */
+public class CompressionCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void store(CompressionCache cache, String key, int length) {
+        CompressionCache.Writer writer = cache.openWriter(key);
+        assertNotNull(writer);
+        writer.write(new byte[length], 0, length);
+        writer.commit();
+    }
+
+    @Test
+    public void key_isSafeFileName() {
+        assertEquals("abc-5f-10.gzip", CompressionCache.key("abc", "\"5f-10\"", "gzip"));
+    }
+
+    @Test
+    public void openWriter_admitsOnlyRepeatedRequests() {
+        CompressionCache cache = new CompressionCache(folder.getRoot(), 1000);
+        assertNull(cache.get("a"));
+        assertNull(cache.openWriter("a"));
+        assertNull(cache.get("a"));
+        CompressionCache.Writer writer = cache.openWriter("a");
+        assertNotNull(writer);
+        // 同一个键同时只写入一份
+        assertNull(cache.openWriter("a"));
+
+        writer.write(new byte[10], 0, 10);
+        writer.commit();
+        File file = cache.get("a");
+        assertNotNull(file);
+        assertEquals(10, file.length());
+        assertNull(cache.openWriter("a"));
+    }
+
+    @Test
+    public void abort_discardsPartialResult() {
+        CompressionCache cache = new CompressionCache(folder.getRoot(), 1000);
+        cache.get("a");
+        cache.get("a");
+        CompressionCache.Writer writer = cache.openWriter("a");
+        writer.write(new byte[10], 0, 10);
+        writer.abort();
+        writer.commit();
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getTotalBytes());
+        assertEquals(0, folder.getRoot().list().length);
+    }
+
+    @Test
+    public void commit_evictsLeastRecentlyUsed() {
+        CompressionCache cache = new CompressionCache(folder.getRoot(), 250);
+        for (String key : new String[]{"a", "b", "c"}) {
+            cache.get(key);
+            cache.get(key);
+        }
+        store(cache, "a", 100);
+        store(cache, "b", 100);
+        cache.get("a"); // a比b更近使用
+        store(cache, "c", 100);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(200, cache.getTotalBytes());
+    }
+
+    @Test
+    public void constructor_removesLeftoversFromPreviousRun() throws Exception {
+        assertTrue(new File(folder.getRoot(), "old.gzip.tmp").createNewFile());
+        new CompressionCache(folder.getRoot(), 1000);
+        assertEquals(0, folder.getRoot().list().length);
+    }
+}
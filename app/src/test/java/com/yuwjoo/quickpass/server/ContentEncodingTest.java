@@ -0,0 +1,36 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内容编码协商测试
+ */
+public class ContentEncodingTest {
+    @Test
+    public void negotiate_prefersGzipAndHonoursQValues() {
+        assertEquals("gzip", ContentEncoding.negotiate("gzip, deflate, br"));
+        assertEquals("gzip", ContentEncoding.negotiate("x-gzip"));
+        assertEquals("deflate", ContentEncoding.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", ContentEncoding.negotiate("gzip;q=0, *"));
+        assertEquals("gzip", ContentEncoding.negotiate("*"));
+        assertNull(ContentEncoding.negotiate("identity"));
+        assertNull(ContentEncoding.negotiate("br, *;q=0"));
+        assertNull(ContentEncoding.negotiate("gzip;q=abc"));
+        assertNull(ContentEncoding.negotiate(null));
+    }
+
+    @Test
+    public void isCompressible_acceptsTextAndSkipsCompressedFormats() {
+        assertTrue(ContentEncoding.isCompressible("text/plain", "app.log", 10_000));
+        assertTrue(ContentEncoding.isCompressible("text/csv; charset=utf-8", "export.csv", -1));
+        assertTrue(ContentEncoding.isCompressible("application/vnd.api+json", "a", 10_000));
+        assertTrue(ContentEncoding.isCompressible("application/octet-stream", "bundle.log", 10_000));
+        assertFalse(ContentEncoding.isCompressible("application/octet-stream", "firmware.bin", 10_000));
+        assertFalse(ContentEncoding.isCompressible("image/jpeg", "photo.jpg", 10_000));
+        assertFalse(ContentEncoding.isCompressible("application/zip", "logs.zip", 10_000));
+        assertFalse(ContentEncoding.isCompressible("text/plain", "logs.txt.gz", 10_000));
+        assertFalse(ContentEncoding.isCompressible("text/plain", "small.txt", 100));
+    }
+}
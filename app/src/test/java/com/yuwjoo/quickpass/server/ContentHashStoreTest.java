@@ -0,0 +1,77 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.*;
+
+/**
+ * 内容哈希存储测试
+ */
+public class ContentHashStoreTest {
+    private static final String ABC_SHA256 = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sha256_matchesKnownVector() throws IOException {
+        byte[] data = "abc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(ABC_SHA256, ContentHashStore.sha256(new ByteArrayInputStream(data), new byte[2]));
+        assertEquals(ABC_SHA256, ContentHashStore.toHex(ContentHashStore.fromHex(ABC_SHA256)));
+    }
+
+    @Test
+    public void key_changesWithSizeAndModificationTime() {
+        String key = ContentHashStore.key("content://a/1", 10, 1000);
+        assertNotEquals(key, ContentHashStore.key("content://a/1", 11, 1000));
+        assertNotEquals(key, ContentHashStore.key("content://a/1", 10, 2000));
+        assertNotEquals(key, ContentHashStore.key("content://a/2", 10, 1000));
+    }
+
+    @Test
+    public void put_persistsAcrossInstances() {
+        File file = new File(folder.getRoot(), "hashes");
+        ContentHashStore store = new ContentHashStore(file, 10);
+        String key = ContentHashStore.key("content://a/1", 3, 1000);
+        assertNull(store.get(key));
+        store.put(key, ABC_SHA256);
+
+        assertEquals(ABC_SHA256, new ContentHashStore(file, 10).get(key));
+    }
+
+    @Test
+    public void put_evictsLeastRecentlyUsed() {
+        File file = new File(folder.getRoot(), "hashes");
+        ContentHashStore store = new ContentHashStore(file, 2);
+        store.put("a", "1");
+        store.put("b", "2");
+        store.get("a"); // a比b更近使用
+        store.put("c", "3");
+
+        ContentHashStore reloaded = new ContentHashStore(file, 2);
+        assertEquals("1", reloaded.get("a"));
+        assertNull(reloaded.get("b"));
+        assertEquals("3", reloaded.get("c"));
+    }
+
+    @Test
+    public void toBase64_matchesStandardEncoding() {
+        for (int length = 0; length < 8; length++) {
+            byte[] bytes = new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = (byte) (0xf0 + i * 37);
+            }
+            assertEquals(Base64.getEncoder().encodeToString(bytes), ContentHashStore.toBase64(bytes));
+        }
+        assertEquals("ungWv48Bz+pBQUDeXa4iI7ADYaOWF3qctBD/YfIAFa0=",
+                ContentHashStore.toBase64(ContentHashStore.fromHex(ABC_SHA256)));
+    }
+}
@@ -0,0 +1,96 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * 局域网发现协议编解码测试
+ */
+public class DiscoveryProtocolTest {
+    @Test
+    public void query_isRecognized() {
+        byte[] query = DiscoveryProtocol.encodeQuery();
+        assertTrue(DiscoveryProtocol.isQuery(query, query.length));
+        assertNull(DiscoveryProtocol.decodeAnnouncement(query, query.length));
+    }
+
+    @Test
+    public void announcement_roundTrip() {
+        DiscoveryProtocol.Announcement announcement = new DiscoveryProtocol.Announcement(
+                "device-1", "Pixel 7", "1.0", 3400, Arrays.asList("range", "zip"), 3);
+        byte[] data = DiscoveryProtocol.encodeAnnouncement(announcement);
+        assertFalse(DiscoveryProtocol.isQuery(data, data.length));
+
+        DiscoveryProtocol.Announcement decoded = DiscoveryProtocol.decodeAnnouncement(data, data.length);
+        assertNotNull(decoded);
+        assertEquals("device-1", decoded.getId());
+        assertEquals("Pixel 7", decoded.getName());
+        assertEquals("1.0", decoded.getVersion());
+        assertEquals(3400, decoded.getPort());
+        assertEquals(Arrays.asList("range", "zip"), decoded.getCapabilities());
+        assertEquals(3, decoded.getShareCount());
+    }
+
+    @Test
+    public void announcement_nameCannotInjectFields() {
+        DiscoveryProtocol.Announcement announcement = new DiscoveryProtocol.Announcement(
+                "device-1", "evil\nport=1", "1.0", 3400, Arrays.asList("range"), 0);
+        byte[] data = DiscoveryProtocol.encodeAnnouncement(announcement);
+        DiscoveryProtocol.Announcement decoded = DiscoveryProtocol.decodeAnnouncement(data, data.length);
+        assertEquals(3400, decoded.getPort());
+        assertEquals("evil port=1", decoded.getName());
+    }
+
+    @Test
+    public void decode_ignoresUnknownFieldsAndRejectsBadPort() {
+        byte[] data = "QUICKPASS/1 ANNOUNCE\nname=a\nport=3400\nfuture=x\n".getBytes(StandardCharsets.UTF_8);
+        DiscoveryProtocol.Announcement decoded = DiscoveryProtocol.decodeAnnouncement(data, data.length);
+        assertNotNull(decoded);
+        assertTrue(decoded.getCapabilities().isEmpty());
+        assertEquals("", decoded.getId());
+
+        byte[] bad = "QUICKPASS/1 ANNOUNCE\nport=abc\n".getBytes(StandardCharsets.UTF_8);
+        assertNull(DiscoveryProtocol.decodeAnnouncement(bad, bad.length));
+        byte[] missing = "QUICKPASS/1 ANNOUNCE\nname=a\n".getBytes(StandardCharsets.UTF_8);
+        assertNull(DiscoveryProtocol.decodeAnnouncement(missing, missing.length));
+    }
+
+    @Test
+    public void decode_respectsPacketLength() {
+        byte[] query = DiscoveryProtocol.encodeQuery();
+        byte[] buffer = new byte[DiscoveryProtocol.MAX_PACKET_SIZE];
+        System.arraycopy(query, 0, buffer, 0, query.length);
+        assertTrue(DiscoveryProtocol.isQuery(buffer, query.length));
+    }
+
+    @Test
+    public void identityResponse_parsesBodyOfOkResponse() {
+        byte[] body = DiscoveryProtocol.encodeAnnouncement(new DiscoveryProtocol.Announcement(
+                "device-2", "Tablet", "1.0", 3400, Arrays.asList("range"), 1));
+        byte[] head = ("HTTP/1.1 200 OK\r\nContent-Type: text/plain\r\nContent-Length: " + body.length
+                + "\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        byte[] response = new byte[head.length + body.length];
+        System.arraycopy(head, 0, response, 0, head.length);
+        System.arraycopy(body, 0, response, head.length, body.length);
+
+        DiscoveryProtocol.Announcement decoded = DiscoveryProtocol.decodeIdentityResponse(response, response.length);
+        assertNotNull(decoded);
+        assertEquals("device-2", decoded.getId());
+        assertEquals("Tablet", decoded.getName());
+    }
+
+    @Test
+    public void identityResponse_rejectsOtherServices() {
+        byte[] notFound = "HTTP/1.1 404 Not Found\r\n\r\nQUICKPASS/1 ANNOUNCE\nport=3400\n"
+                .getBytes(StandardCharsets.US_ASCII);
+        assertNull(DiscoveryProtocol.decodeIdentityResponse(notFound, notFound.length));
+        byte[] other = "HTTP/1.1 200 OK\r\n\r\n<html></html>".getBytes(StandardCharsets.US_ASCII);
+        assertNull(DiscoveryProtocol.decodeIdentityResponse(other, other.length));
+        byte[] truncated = "HTTP/1.1 200 OK\r\nContent-".getBytes(StandardCharsets.US_ASCII);
+        assertNull(DiscoveryProtocol.decodeIdentityResponse(truncated, truncated.length));
+    }
+}
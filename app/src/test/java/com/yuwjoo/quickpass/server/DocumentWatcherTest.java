@@ -0,0 +1,27 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 文档变化监听器测试
+ */
+public class DocumentWatcherTest {
+    private static final String DOCUMENT = "content://com.example.docs/document/primary%3ADownload%2Fa.txt";
+
+    @Test
+    public void affects_matchesSameUriAndAncestors() {
+        assertTrue(DocumentWatcher.affects(null, DOCUMENT));
+        assertTrue(DocumentWatcher.affects(DOCUMENT, DOCUMENT));
+        assertTrue(DocumentWatcher.affects("content://com.example.docs/document", DOCUMENT));
+        assertTrue(DocumentWatcher.affects("content://com.example.docs/", DOCUMENT));
+    }
+
+    @Test
+    public void affects_ignoresSiblingsAndOtherProviders() {
+        assertFalse(DocumentWatcher.affects("content://com.example.docs/document/primary%3ADownload%2Fab.txt", DOCUMENT));
+        assertFalse(DocumentWatcher.affects("content://com.example.docs/document/primary%3ADownload%2Fa.tx", DOCUMENT));
+        assertFalse(DocumentWatcher.affects("content://com.example.other/document", DOCUMENT));
+    }
+}
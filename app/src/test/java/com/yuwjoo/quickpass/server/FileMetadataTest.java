@@ -0,0 +1,53 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 文件元数据测试
+ */
+public class FileMetadataTest {
+    private static final String HASH = "ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad";
+
+    @Test
+    public void etag_usesContentHashOnceKnown() {
+        FileMetadata metadata = new FileMetadata("a.txt", 0x10, "text/plain", 0x5f);
+        assertEquals("\"5f-10\"", metadata.getEtag());
+        assertNull(metadata.getContentHash());
+
+        FileMetadata hashed = metadata.withContentHash(HASH);
+        assertEquals("\"" + HASH + "\"", hashed.getEtag());
+        // 哈希算出之前发出的ETag仍指向同一版本
+        assertTrue(hashed.isCurrentEtag("\"5f-10\""));
+        assertTrue(hashed.isCurrentEtag("\"" + HASH + "\""));
+        assertFalse(hashed.withStat(0x11, 0x5f).isCurrentEtag("\"" + HASH + "\""));
+    }
+
+    @Test
+    public void matchesIfNoneMatch_handlesListsWeakTagsAndWildcard() {
+        FileMetadata metadata = new FileMetadata("a.txt", 0x10, "text/plain", 0x5f).withContentHash(HASH);
+        assertTrue(metadata.matchesIfNoneMatch("\"x\", W/\"" + HASH + "\""));
+        assertTrue(metadata.matchesIfNoneMatch("\"5f-10\""));
+        assertTrue(metadata.matchesIfNoneMatch("*"));
+        assertFalse(metadata.matchesIfNoneMatch("\"5f-11\""));
+        assertFalse(metadata.matchesIfNoneMatch(null));
+    }
+
+    @Test
+    public void fileHeaders_arePrecomputedPerVersion() {
+        FileMetadata metadata = new FileMetadata("a.txt", 0x10, "text/plain", 0x5f);
+        assertArrayEquals(new String[]{"Accept-Ranges", "bytes", "ETag", "\"5f-10\"",
+                "Last-Modified", metadata.getLastModifiedHeader()}, metadata.getFileHeaders());
+        assertSame(metadata.getFileHeaders(), metadata.getFileHeaders());
+
+        String[] hashed = metadata.withContentHash(HASH).getFileHeaders();
+        assertEquals(10, hashed.length);
+        assertEquals("Digest", hashed[6]);
+        assertTrue(hashed[7].startsWith("sha-256=") && hashed[7].endsWith("="));
+        assertEquals("sha-256=:" + hashed[7].substring(8) + ":", hashed[9]);
+
+        // 修改时间未知时不发送Last-Modified
+        assertEquals(4, new FileMetadata("a.txt", 1, "text/plain", FileMetadata.UNKNOWN_TIME).getFileHeaders().length);
+    }
+}
@@ -0,0 +1,53 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * IPv4子网计算测试
+ */
+public class Ipv4SubnetTest {
+    private static Inet4Address address(String text) throws Exception {
+        return (Inet4Address) InetAddress.getByName(text);
+    }
+
+    @Test
+    public void hosts_excludeNetworkAndBroadcast() throws Exception {
+        List<InetAddress> hosts = new Ipv4Subnet(address("192.168.1.77"), 24).hosts();
+        assertEquals(254, hosts.size());
+        assertEquals(address("192.168.1.1"), hosts.get(0));
+        assertEquals(address("192.168.1.254"), hosts.get(253));
+    }
+
+    @Test
+    public void hosts_useRealPrefixLength() throws Exception {
+        List<InetAddress> hosts = new Ipv4Subnet(address("10.0.5.9"), 22).hosts();
+        assertEquals(1022, hosts.size());
+        assertEquals(address("10.0.4.1"), hosts.get(0));
+        assertEquals(address("10.0.7.254"), hosts.get(1021));
+    }
+
+    @Test
+    public void hosts_pointToPointSubnets() throws Exception {
+        assertEquals(2, new Ipv4Subnet(address("10.0.0.1"), 31).hosts().size());
+        assertEquals(1, new Ipv4Subnet(address("10.0.0.1"), 32).hosts().size());
+    }
+
+    @Test
+    public void narrowTo_limitsLargeSubnets() throws Exception {
+        Inet4Address self = address("10.20.30.40");
+        Ipv4Subnet subnet = new Ipv4Subnet(self, 8).narrowTo(self, 20);
+        assertEquals(20, subnet.getPrefixLength());
+        List<InetAddress> hosts = subnet.hosts();
+        assertEquals(4094, hosts.size());
+        assertTrue(hosts.contains(self));
+
+        Ipv4Subnet small = new Ipv4Subnet(self, 24);
+        assertSame(small, small.narrowTo(self, 20));
+    }
+}
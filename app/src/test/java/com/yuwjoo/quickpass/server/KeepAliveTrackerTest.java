@@ -0,0 +1,91 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * 持久连接跟踪器测试
+ */
+public class KeepAliveTrackerTest {
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void onRequest_countsDownRemainingRequestsPerConnection() {
+        KeepAliveTracker tracker = new KeepAliveTracker(3, 15);
+        Object first = new Object();
+        Object second = new Object();
+
+        assertEquals(2, tracker.onRequest(first, 0));
+        assertFalse(tracker.onResponseEnd(first, 0));
+        assertEquals(1, tracker.onRequest(first, 0));
+        assertFalse(tracker.onResponseEnd(first, 0));
+        assertEquals(2, tracker.onRequest(second, 0));
+        // 最后一个请求的响应结束后应关闭连接，之后的请求不再响应
+        assertEquals(0, tracker.onRequest(first, 0));
+        assertEquals(KeepAliveTracker.OVER_LIMIT, tracker.onRequest(first, 0));
+        assertTrue(tracker.onResponseEnd(first, 0));
+        assertEquals("timeout=15, max=2", tracker.keepAliveHeader(2));
+    }
+
+    @Test
+    public void removeIdle_closesOnlyConnectionsPastTimeout() {
+        KeepAliveTracker tracker = new KeepAliveTracker(100, 5);
+        Object idle = new Object();
+        Object active = new Object();
+        tracker.onRequest(idle, 0);
+        tracker.onResponseEnd(idle, 0);
+        tracker.onRequest(active, 0);
+        tracker.onResponseEnd(active, 0);
+        tracker.onRequest(active, 4 * SECOND);
+        tracker.onResponseEnd(active, 4 * SECOND);
+
+        assertEquals(Collections.emptyList(), tracker.removeIdle(4 * SECOND));
+        assertEquals(Collections.singletonList(idle), tracker.removeIdle(5 * SECOND));
+        assertEquals(1, tracker.size());
+
+        // 移除后再次请求按新连接计数
+        assertEquals(99, tracker.onRequest(idle, 6 * SECOND));
+        tracker.remove(active);
+        assertEquals(1, tracker.size());
+    }
+
+    @Test
+    public void removeIdle_skipsConnectionsWithResponseInFlight() {
+        KeepAliveTracker tracker = new KeepAliveTracker(100, 5);
+        Object downloading = new Object();
+        Object idle = new Object();
+        tracker.onRequest(downloading, 0);
+        tracker.onRequest(idle, 0);
+        tracker.onResponseEnd(idle, 0);
+
+        // 其他连接上的长时间下载不影响空闲连接的关闭
+        assertEquals(Collections.singletonList(idle), tracker.removeIdle(60 * SECOND));
+        assertTrue(tracker.contains(downloading));
+
+        // 响应结束后重新开始计算空闲时间
+        tracker.onResponseEnd(downloading, 60 * SECOND);
+        assertEquals(Collections.emptyList(), tracker.removeIdle(64 * SECOND));
+        assertEquals(Collections.singletonList(downloading), tracker.removeIdle(65 * SECOND));
+    }
+
+    @Test
+    public void removeIf_dropsClosedConnections() {
+        KeepAliveTracker tracker = new KeepAliveTracker(100, 5);
+        Object open = new Object();
+        Object closed = new Object();
+        tracker.onRequest(open, 0);
+        tracker.onRequest(closed, 0);
+
+        tracker.removeIf(connection -> connection == closed);
+        assertTrue(tracker.contains(open));
+        assertFalse(tracker.contains(closed));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void constructor_rejectsZeroTimeout() {
+        new KeepAliveTracker(10, 0);
+    }
+}
@@ -0,0 +1,33 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 局域网地址判断测试
+ */
+public class LanAddressTest {
+
+    @Test
+    public void isLocal_acceptsPrivateAndLoopbackAddresses() {
+        assertTrue(LanAddress.isLocal("192.168.1.5"));
+        assertTrue(LanAddress.isLocal("10.0.0.2"));
+        assertTrue(LanAddress.isLocal("172.20.3.4"));
+        assertTrue(LanAddress.isLocal("169.254.10.1"));
+        assertTrue(LanAddress.isLocal("127.0.0.1"));
+        assertTrue(LanAddress.isLocal("[fe80::1]"));
+        assertTrue(LanAddress.isLocal("fd12:3456::1"));
+    }
+
+    @Test
+    public void isLocal_rejectsPublicAddressesAndHostNames() {
+        assertFalse(LanAddress.isLocal("8.8.8.8"));
+        assertFalse(LanAddress.isLocal("172.32.0.1"));
+        assertFalse(LanAddress.isLocal("[2001:db8::1]"));
+        assertFalse(LanAddress.isLocal("localhost"));
+        assertFalse(LanAddress.isLocal("192.168.1.5.example.com"));
+        assertFalse(LanAddress.isLocal(""));
+        assertFalse(LanAddress.isLocal(null));
+    }
+}
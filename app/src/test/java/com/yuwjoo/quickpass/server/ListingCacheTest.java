@@ -0,0 +1,62 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 目录列表缓存测试
+ */
+public class ListingCacheTest {
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    public void get_reusesListingUntilIdleTimeout() throws IOException {
+        ListingCache cache = new ListingCache(clock::get, 100, 4);
+        ListingPageTest.ArrayListing first = new ListingPageTest.ArrayListing();
+        ListingPageTest.ArrayListing second = new ListingPageTest.ArrayListing();
+
+        assertSame(first, cache.get("a", () -> first));
+        clock.set(90);
+        assertSame(first, cache.get("a", () -> second));
+        // 访问后重新计时
+        clock.set(180);
+        assertSame(first, cache.get("a", () -> second));
+        assertFalse(first.closed);
+
+        clock.set(300);
+        assertSame(second, cache.get("a", () -> second));
+        assertTrue(first.closed);
+    }
+
+    @Test
+    public void get_closesLeastRecentlyUsedBeyondLimit() throws IOException {
+        ListingCache cache = new ListingCache(clock::get, 1000, 2);
+        ListingPageTest.ArrayListing a = new ListingPageTest.ArrayListing();
+        ListingPageTest.ArrayListing b = new ListingPageTest.ArrayListing();
+        ListingPageTest.ArrayListing c = new ListingPageTest.ArrayListing();
+        cache.get("a", () -> a);
+        cache.get("b", () -> b);
+        cache.get("a", () -> a); // a比b更近使用
+        cache.get("c", () -> c);
+
+        assertTrue(b.closed);
+        assertFalse(a.closed);
+        assertEquals(2, cache.size());
+
+        cache.clear();
+        assertTrue(a.closed);
+        assertTrue(c.closed);
+        assertEquals(0, cache.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void get_propagatesLoadFailure() throws IOException {
+        new ListingCache(clock::get, 100, 2).get("a", () -> {
+            throw new IOException("denied");
+        });
+    }
+}
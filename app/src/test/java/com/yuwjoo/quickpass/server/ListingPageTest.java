@@ -0,0 +1,130 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 目录列表分页测试
+ */
+public class ListingPageTest {
+    /**
+     * 以数组实现的目录列表，记录读取过的位置
+     */
+    static final class ArrayListing implements DirectoryListing {
+        final String[][] rows; // 文档ID、名称、MIME类型
+        final List<Integer> visited = new ArrayList<>();
+        boolean closed;
+        private int position = -1;
+
+        ArrayListing(String[]... rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public int getCount() {
+            return rows.length;
+        }
+
+        @Override
+        public boolean moveTo(int position) {
+            this.position = position;
+            visited.add(position);
+            return position >= 0 && position < rows.length;
+        }
+
+        @Override
+        public String getDocumentId() {
+            return rows[position][0];
+        }
+
+        @Override
+        public String getName() {
+            return rows[position][1];
+        }
+
+        @Override
+        public String getMimeType() {
+            return rows[position][2];
+        }
+
+        @Override
+        public long getSize() {
+            return 100 + position;
+        }
+
+        @Override
+        public long getLastModified() {
+            return 1000;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    private static String page(DirectoryListing listing, int offset, int limit) {
+        StringBuilder out = new StringBuilder();
+        ListingPage.write(listing, "s1", "root", offset, limit, out::append);
+        return out.toString();
+    }
+
+    @Test
+    public void write_readsOnlyRequestedRowsAndLinksNextPage() {
+        ArrayListing listing = new ArrayListing(
+                new String[]{"root/a", "a.txt", "text/plain"},
+                new String[]{"root/dir", "dir", ListingPage.DIRECTORY_MIME_TYPE},
+                new String[]{"root/c", "c.jpg", "image/jpeg"});
+
+        String first = page(listing, 0, 2);
+        assertEquals("{\"id\":\"s1\",\"doc\":\"root\",\"total\":3,\"entries\":["
+                + "{\"name\":\"a.txt\",\"doc\":\"root/a\",\"dir\":false,\"size\":100,\"type\":\"text/plain\","
+                + "\"modified\":1000,\"href\":\"/downloadFile?id=s1&doc=root%2Fa\"},"
+                + "{\"name\":\"dir\",\"doc\":\"root/dir\",\"dir\":true,\"modified\":1000,"
+                + "\"href\":\"/list?id=s1&doc=root%2Fdir\"}],\"next\":\"2\"}", first);
+        assertEquals(2, listing.visited.size());
+
+        String last = page(listing, ListingPage.parseCursor("2"), 2);
+        assertTrue(last.contains("\"name\":\"c.jpg\""));
+        assertTrue(last.endsWith("],\"next\":null}"));
+        assertEquals("{\"id\":\"s1\",\"doc\":\"root\",\"total\":3,\"entries\":[],\"next\":null}",
+                page(listing, 10, 2));
+    }
+
+    @Test
+    public void write_flushesLargePagesInSeveralChunks() {
+        String[][] rows = new String[1000][];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new String[]{"doc" + i, "photo_" + i + ".jpg", "image/jpeg"};
+        }
+        List<String> chunks = new ArrayList<>();
+        ListingPage.write(new ArrayListing(rows), "s1", "root", 0, ListingPage.MAX_LIMIT, chunks::add);
+
+        assertTrue(chunks.size() > 1);
+        String json = String.join("", chunks);
+        assertTrue(json.contains("\"name\":\"photo_999.jpg\""));
+        assertTrue(json.endsWith("\"next\":null}"));
+    }
+
+    @Test
+    public void appendString_escapesControlCharacters() {
+        StringBuilder out = new StringBuilder();
+        ListingPage.appendString(out, "a\"b\\c\nd\u0001");
+        assertEquals("\"a\\\"b\\\\c\\nd\\u0001\"", out.toString());
+    }
+
+    @Test
+    public void parseCursorAndLimit_rejectOrClampBadValues() {
+        assertEquals(0, ListingPage.parseCursor(null));
+        assertEquals(200, ListingPage.parseCursor("200"));
+        assertEquals(-1, ListingPage.parseCursor("-5"));
+        assertEquals(-1, ListingPage.parseCursor("abc"));
+        assertEquals(ListingPage.DEFAULT_LIMIT, ListingPage.parseLimit(null));
+        assertEquals(ListingPage.MAX_LIMIT, ListingPage.parseLimit("100000"));
+        assertEquals(1, ListingPage.parseLimit("0"));
+    }
+}
@@ -0,0 +1,137 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 非阻塞TCP探测引擎测试
+ */
+public class NioProbeEngineTest {
+    @Test
+    public void probe_reportsReachableAndFinishesEveryTarget() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            List<InetAddress> targets = Arrays.asList(
+                    InetAddress.getByName("127.0.0.1"),
+                    InetAddress.getByName("127.0.0.2"), // 没有监听，连接被拒绝
+                    InetAddress.getByName("192.0.2.1")); // 文档保留地址，超时或不可达
+            List<InetAddress> reachable = new ArrayList<>();
+            int[] lastFinished = new int[1];
+
+            long startTime = System.currentTimeMillis();
+            new NioProbeEngine(server.getLocalPort(), 300, 2).probe(targets, new NioProbeEngine.ProbeListener() {
+                @Override
+                public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                    assertNull(response);
+                    reachable.add(address);
+                }
+
+                @Override
+                public void onProbeFinished(int finished, int total) {
+                    assertEquals(3, total);
+                    assertEquals(lastFinished[0] + 1, finished);
+                    lastFinished[0] = finished;
+                }
+            });
+            long elapsed = System.currentTimeMillis() - startTime;
+
+            assertEquals(3, lastFinished[0]);
+            assertEquals(Arrays.asList(InetAddress.getByName("127.0.0.1")), reachable);
+            // 所有探测在一个超时周期内并发完成
+            assertTrue("elapsed " + elapsed, elapsed < 1000);
+        }
+    }
+
+    @Test
+    public void probe_windowLargerThanTargets() throws Exception {
+        List<InetAddress> targets = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            targets.add(InetAddress.getByName("127.0.1." + i));
+        }
+        int[] count = new int[1];
+        new NioProbeEngine(1, 300, 64).probe(targets, new NioProbeEngine.ProbeListener() {
+            @Override
+            public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                fail("Nothing listens on port 1");
+            }
+
+            @Override
+            public void onProbeFinished(int finished, int total) {
+                count[0] = finished;
+            }
+        });
+        assertEquals(20, count[0]);
+    }
+
+    @Test
+    public void probe_sendsRequestAndReadsResponseUntilClose() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            Thread responder = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    InputStream in = socket.getInputStream();
+                    byte[] request = new byte[4];
+                    int read = 0;
+                    while (read < request.length) {
+                        read += in.read(request, read, request.length - read);
+                    }
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("echo:" + new String(request, StandardCharsets.US_ASCII))
+                            .getBytes(StandardCharsets.US_ASCII));
+                } catch (Exception ignored) {
+                    // 测试线程会因为没有收到响应而失败
+                }
+            });
+            responder.start();
+
+            byte[][] received = new byte[1][];
+            new NioProbeEngine(server.getLocalPort(), 2000, 4,
+                    address -> "ping".getBytes(StandardCharsets.US_ASCII))
+                    .probe(Arrays.asList(InetAddress.getByName("127.0.0.1")), new NioProbeEngine.ProbeListener() {
+                        @Override
+                        public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                            assertTrue(rttMillis >= 0);
+                            received[0] = response;
+                        }
+
+                        @Override
+                        public void onProbeFinished(int finished, int total) {
+                        }
+                    });
+            responder.join();
+            assertNotNull(received[0]);
+            assertEquals("echo:ping", new String(received[0], StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void probe_silentServerTimesOut() throws Exception {
+        try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"))) {
+            // 连接可以建立，但服务端从不响应
+            int[] finished = new int[1];
+            new NioProbeEngine(server.getLocalPort(), 200, 4,
+                    address -> "ping".getBytes(StandardCharsets.US_ASCII))
+                    .probe(Arrays.asList(InetAddress.getByName("127.0.0.1")), new NioProbeEngine.ProbeListener() {
+                        @Override
+                        public void onReachable(InetAddress address, long rttMillis, byte[] response) {
+                            fail("Server never answered");
+                        }
+
+                        @Override
+                        public void onProbeFinished(int count, int total) {
+                            finished[0] = count;
+                        }
+                    });
+            assertEquals(1, finished[0]);
+        }
+    }
+}
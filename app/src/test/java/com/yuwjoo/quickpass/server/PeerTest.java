@@ -0,0 +1,30 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * 对端设备持久化格式测试
+ */
+public class PeerTest {
+    @Test
+    public void encode_roundTrip() {
+        Peer peer = new Peer("device-1", "192.168.1.20", 3400, "My\tPhone", "1.0", 1700000000000L, 12);
+        Peer decoded = Peer.decode("device-1", peer.encode());
+        assertNotNull(decoded);
+        assertEquals("device-1", decoded.getId());
+        assertEquals("192.168.1.20", decoded.getAddress());
+        assertEquals(3400, decoded.getPort());
+        assertEquals("My Phone", decoded.getName());
+        assertEquals("1.0", decoded.getVersion());
+        assertEquals(1700000000000L, decoded.getLastSeen());
+        assertEquals(12, decoded.getRttMillis());
+    }
+
+    @Test
+    public void decode_rejectsMalformedValues() {
+        assertNull(Peer.decode("id", "192.168.1.20\t3400"));
+        assertNull(Peer.decode("id", "192.168.1.20\tx\tname\t1.0\t0\t0"));
+    }
+}
@@ -0,0 +1,70 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 持久化权限配额测试
+ */
+public class PersistedGrantsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void acquire_stopsAtCapacity() {
+        PersistedGrants grants = new PersistedGrants(2, Collections.singletonList("content://docs/a"));
+        assertTrue(grants.acquire("content://docs/a"));
+        assertEquals(1, grants.size());
+        assertTrue(grants.acquire("content://docs/b"));
+        assertFalse(grants.acquire("content://docs/c"));
+        // 已保留的Uri不占用新的配额
+        assertTrue(grants.acquire("content://docs/b"));
+
+        grants.release("content://docs/a");
+        assertFalse(grants.contains("content://docs/a"));
+        assertTrue(grants.acquire("content://docs/c"));
+        assertEquals(2, grants.size());
+    }
+
+    @Test
+    public void moreSharesThanCapacity_restoresOnlyGrantedShares() {
+        int capacity = 4;
+        File file = new File(folder.getRoot(), "shares.log");
+        PersistedGrants grants = new PersistedGrants(capacity, Collections.emptyList());
+        ShareStore store = new ShareStore(file);
+        int sessionOnly = 0;
+        for (int i = 0; i < capacity + 3; i++) {
+            String uri = "content://docs/" + i;
+            if (grants.acquire(uri)) {
+                store.put(new ShareStore.Record("id" + i, uri, new FileMetadata(i + ".txt", 1, "text/plain", 1),
+                        SharePolicy.UNLIMITED, 0, 0));
+            } else {
+                sessionOnly++;
+            }
+        }
+        store.close();
+        assertEquals(3, sessionOnly);
+
+        // 重启后系统仍保留的权限与保存的分享一一对应
+        List<String> held = new ArrayList<>();
+        for (int i = 0; i < capacity; i++) {
+            held.add("content://docs/" + i);
+        }
+        PersistedGrants restored = new PersistedGrants(capacity, held);
+        List<ShareStore.Record> records = new ShareStore(file).load();
+        assertEquals(capacity, records.size());
+        for (ShareStore.Record record : records) {
+            assertTrue(record.getUri(), restored.contains(record.getUri()));
+        }
+        assertEquals("id0", records.get(0).getId());
+        assertEquals("id" + (capacity - 1), records.get(capacity - 1).getId());
+    }
+}
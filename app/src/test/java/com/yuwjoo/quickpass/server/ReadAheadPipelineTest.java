@@ -0,0 +1,150 @@
+package com.yuwjoo.quickpass.server;
+
+import com.koushikdutta.async.ByteBufferList;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * 预读管道测试
+ * 读取线程使用真实线程，测试线程扮演服务器线程，取出的数据立即全部"写入套接字"
+ */
+public class ReadAheadPipelineTest {
+    private static final int KB = 1024;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final StreamBuffers buffers = new StreamBuffers(executor);
+    private final Semaphore readable = new Semaphore(0);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    private ReadAheadPipeline open(ReadAheadPipeline.Source source, int depth) {
+        buffers.setReadAheadDepth(depth);
+        return buffers.openReadAhead(source, () -> -1, readable::release);
+    }
+
+    /**
+     * 生成长度为length的数据，每次最多读取chunk字节
+     */
+    private static ReadAheadPipeline.Source patternSource(long length, int chunk, AtomicLong position) {
+        return (target, scratch) -> {
+            long remaining = length - position.get();
+            if (remaining <= 0) {
+                return -1;
+            }
+            int count = (int) Math.min(Math.min(chunk, target.remaining()), remaining);
+            for (int i = 0; i < count; i++) {
+                target.put((byte) (position.getAndIncrement() % 251));
+            }
+            return count;
+        };
+    }
+
+    /**
+     * 按额度取出全部数据，每次取出后立即读空pending
+     */
+    private byte[] drain(ReadAheadPipeline pipeline, long budget) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteBufferList pending = new ByteBufferList();
+        while (true) {
+            long taken = pipeline.take(budget, pending);
+            if (taken < 0) {
+                return out.toByteArray();
+            }
+            if (taken == 0) {
+                assertTrue(readable.tryAcquire(5, TimeUnit.SECONDS));
+                continue;
+            }
+            assertTrue(taken <= budget);
+            byte[] chunk = new byte[pending.remaining()];
+            pending.get(chunk);
+            out.write(chunk);
+            assertFalse(pipeline.isSending());
+        }
+    }
+
+    @Test
+    public void take_deliversAllDataInOrderWithinBudget() throws Exception {
+        long length = 3 * 1024 * KB + 123;
+        ReadAheadPipeline pipeline = open(patternSource(length, 10 * KB, new AtomicLong()), 3);
+        byte[] data = drain(pipeline, 100 * KB);
+        pipeline.close();
+
+        assertEquals(length, data.length);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals((byte) (i % 251), data[i]);
+        }
+    }
+
+    @Test
+    public void reader_stopsWhenRingIsFullAndResumesAfterTake() throws Exception {
+        AtomicLong position = new AtomicLong();
+        ReadAheadPipeline pipeline = open(patternSource(64 * 1024 * KB, 64 * KB, position), 2);
+        long ring = 2L * StreamBuffers.INITIAL_WRITE_SIZE;
+        waitFor(() -> position.get() == ring);
+        Thread.sleep(100);
+        assertEquals(ring, position.get());
+
+        // 发完一个缓冲区后读取线程继续填充
+        ByteBufferList pending = new ByteBufferList();
+        pipeline.take(Long.MAX_VALUE, pending);
+        pending.get(new byte[pending.remaining()]);
+        pipeline.take(1, pending);
+        waitFor(() -> position.get() == ring + StreamBuffers.INITIAL_WRITE_SIZE);
+        pipeline.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void take_rethrowsReadFailure() throws Exception {
+        AtomicLong position = new AtomicLong();
+        ReadAheadPipeline.Source source = (target, scratch) -> {
+            if (position.get() >= 300 * KB) {
+                throw new IOException("Storage removed");
+            }
+            return patternSource(Long.MAX_VALUE, 16 * KB, position).read(target, scratch);
+        };
+        drain(open(source, 2), 64 * KB);
+    }
+
+    @Test
+    public void close_returnsBuffersToPool() throws Exception {
+        AtomicLong position = new AtomicLong();
+        ReadAheadPipeline pipeline = open(patternSource(64 * 1024 * KB, 64 * KB, position), 2);
+        waitFor(() -> position.get() == 2L * StreamBuffers.INITIAL_WRITE_SIZE);
+        pipeline.close();
+
+        StringBuilder out = new StringBuilder();
+        waitFor(() -> {
+            out.setLength(0);
+            buffers.writePrometheus(out);
+            return out.indexOf("quickpass_buffer_pooled_bytes{pool=\"direct\"} "
+                    + 2 * StreamBuffers.INITIAL_WRITE_SIZE + "\n") >= 0;
+        });
+    }
+
+    private static void waitFor(Condition condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.check()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private interface Condition {
+        boolean check() throws Exception;
+    }
+}
@@ -0,0 +1,190 @@
+package com.yuwjoo.quickpass.server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分段下载器测试
+ * 使用本地HTTP服务器模拟支持Range请求的对端设备
+ */
+public class SegmentedDownloaderTest {
+    private static final int FILE_SIZE = 6 * 1024 * 1024 + 123;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private byte[] content;
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final AtomicInteger failuresToInject = new AtomicInteger();
+    private final AtomicInteger busyResponsesToInject = new AtomicInteger();
+    private volatile boolean supportRanges = true;
+    private volatile int maxDownloads; // 与分享服务器相同的下载次数限制，0表示不限制
+    private final AtomicInteger downloads = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        content = new byte[FILE_SIZE];
+        new Random(42).nextBytes(content);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/downloadFile", this::handle);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/downloadFile?id=test";
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        if (busyResponsesToInject.getAndDecrement() > 0) {
+            exchange.getResponseHeaders().set("Retry-After", "0");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+            return;
+        }
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (maxDownloads > 0 && ByteRange.startsNewDownload(range) && downloads.incrementAndGet() > maxDownloads) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+        exchange.getResponseHeaders().set("ETag", "\"v1\"");
+        exchange.getResponseHeaders().set("Content-Disposition", new FileMetadata("报告 v1.pdf", content.length,
+                "application/pdf", 1000).getContentDisposition());
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+            return;
+        }
+        if (range == null || !supportRanges) {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+            return;
+        }
+        rangeRequests.incrementAndGet();
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        int start = Integer.parseInt(bounds[0]);
+        int end = Integer.parseInt(bounds[1]);
+        int length = end - start + 1;
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        exchange.sendResponseHeaders(206, length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            if (length > 1 && failuresToInject.getAndDecrement() > 0) {
+                // 只发送一半后断开，模拟Wi-Fi抖动
+                out.write(content, start, length / 2);
+                out.flush();
+                exchange.close();
+                return;
+            }
+            out.write(content, start, length);
+        }
+    }
+
+    @Test
+    public void download_segmentsAndReassemblesFile() throws Exception {
+        File destination = temporaryFolder.newFile("segmented.bin");
+        SegmentedDownloader downloader = new SegmentedDownloader(4);
+        downloader.download(url(), destination, null);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals("报告 v1.pdf", downloader.getFileName());
+        // 探测请求 + 至少两个分段
+        assertTrue(rangeRequests.get() >= 3);
+    }
+
+    @Test
+    public void download_resumesInterruptedSegments() throws Exception {
+        failuresToInject.set(2);
+        File destination = temporaryFolder.newFile("resumed.bin");
+        new SegmentedDownloader(2).download(url(), destination, null);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_fallsBackToSingleStreamWithoutRanges() throws Exception {
+        supportRanges = false;
+        File destination = temporaryFolder.newFile("sequential.bin");
+        new SegmentedDownloader(4).download(url(), destination, null);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    public void download_waitsWhileServerBusy() throws Exception {
+        busyResponsesToInject.set(3);
+        File destination = temporaryFolder.newFile("busy.bin");
+        new SegmentedDownloader(4).download(url(), destination, null);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+    }
+
+    @Test
+    public void download_countsOnceAgainstDownloadLimit() throws Exception {
+        maxDownloads = 1;
+        File destination = temporaryFolder.newFile("limited.bin");
+        new SegmentedDownloader(4).download(url(), destination, null);
+
+        assertArrayEquals(content, Files.readAllBytes(destination.toPath()));
+        assertEquals(1, downloads.get());
+
+        // 次数用完后新的下载被拒绝
+        try {
+            new SegmentedDownloader(4).download(url(), temporaryFolder.newFile("again.bin"), null);
+            fail("Download limit was not enforced");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void queryFileName_readsContentDisposition() throws Exception {
+        assertEquals("报告 v1.pdf", SegmentedDownloader.queryFileName(url()));
+        assertEquals(0, rangeRequests.get());
+    }
+
+    @Test
+    public void download_rejectsAddressesOutsideLocalNetwork() throws Exception {
+        File destination = temporaryFolder.newFile("public.bin");
+        try {
+            new SegmentedDownloader().download("http://8.8.8.8/downloadFile?id=test", destination, null);
+            fail("Public address accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void parseFileName_prefersEncodedName() {
+        assertEquals("a b+c.txt", SegmentedDownloader.parseFileName("attachment; filename*=UTF-8''a%20b%2Bc.txt"));
+        assertEquals("中文.txt", SegmentedDownloader.parseFileName(
+                "attachment; filename=\"fallback.txt\"; filename*=utf-8'zh'%E4%B8%AD%E6%96%87.txt"));
+        assertEquals("plain.txt", SegmentedDownloader.parseFileName("attachment; filename=\"plain.txt\""));
+        assertNull(SegmentedDownloader.parseFileName("attachment"));
+        assertNull(SegmentedDownloader.parseFileName(null));
+    }
+}
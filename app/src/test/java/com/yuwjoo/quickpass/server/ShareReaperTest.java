@@ -0,0 +1,107 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * 过期分享回收器测试
+ */
+public class ShareReaperTest {
+    private final ShareRegistry registry = new ShareRegistry();
+    private final BlockingQueue<ShareEntry> expired = new LinkedBlockingQueue<>();
+    private final ShareReaper reaper = new ShareReaper(System::currentTimeMillis, entry -> {
+        registry.remove(entry.getId());
+        expired.add(entry);
+    });
+
+    private static ShareEntry newEntry(String id, SharePolicy policy, long createdTime) {
+        return new ShareEntry(id, null, new FileMetadata(id, 1024, "application/octet-stream", 1000),
+                policy, createdTime, 0);
+    }
+
+    private ShareEntry add(String id, SharePolicy policy) {
+        ShareEntry entry = newEntry(id, policy, System.currentTimeMillis());
+        registry.add(entry);
+        reaper.schedule(entry);
+        return entry;
+    }
+
+    @Before
+    public void setUp() {
+        reaper.start();
+    }
+
+    @After
+    public void tearDown() {
+        reaper.stop();
+    }
+
+    @Test
+    public void expiryTime_takesEarliestLimit() {
+        ShareEntry entry = newEntry("a", new SharePolicy(10_000, 0, 3_000), 1_000);
+        entry.touch(2_000);
+        assertEquals(5_000, entry.getExpiryTime(2_500));
+        entry.touch(9_000);
+        assertEquals(11_000, entry.getExpiryTime(9_000));
+
+        assertEquals(Long.MAX_VALUE, newEntry("b", SharePolicy.UNLIMITED, 0).getExpiryTime(1_000));
+    }
+
+    @Test
+    public void downloadQuota_keepsShareForInProgressTransfers() {
+        ShareEntry entry = newEntry("a", new SharePolicy(0, 2, 0), 0);
+        entry.touch(100);
+        assertTrue(entry.tryCountDownload());
+        assertFalse(entry.isDownloadQuotaExhausted());
+        assertEquals(Long.MAX_VALUE, entry.getExpiryTime(100));
+        assertTrue(entry.tryCountDownload());
+        assertFalse(entry.tryCountDownload());
+        assertEquals(2, entry.getDownloads());
+        assertEquals(100 + ShareEntry.EXHAUSTED_GRACE_MILLIS, entry.getExpiryTime(100));
+
+        // 后续分段的请求推迟过期
+        entry.touch(5_000);
+        assertEquals(5_000 + ShareEntry.EXHAUSTED_GRACE_MILLIS, entry.getExpiryTime(5_000));
+    }
+
+    @Test
+    public void ttl_removesShareWhenDue() throws InterruptedException {
+        ShareEntry entry = add("a", new SharePolicy(50, 0, 0));
+        add("forever", SharePolicy.UNLIMITED);
+
+        assertSame(entry, expired.poll(5, TimeUnit.SECONDS));
+        assertNull(registry.get("a"));
+        assertNotNull(registry.get("forever"));
+        assertEquals(0, reaper.size());
+    }
+
+    @Test
+    public void activeTransfer_postponesIdleTimeout() throws InterruptedException {
+        ShareEntry entry = add("a", new SharePolicy(0, 0, 50));
+        assertSame(entry, registry.acquire("a"));
+
+        assertNull(expired.poll(300, TimeUnit.MILLISECONDS));
+        assertSame(entry, registry.get("a"));
+
+        registry.release(entry);
+        assertSame(entry, expired.poll(5, TimeUnit.SECONDS));
+        assertNull(registry.get("a"));
+    }
+
+    @Test
+    public void removedShare_isNotReportedAgain() throws InterruptedException {
+        ShareEntry entry = add("a", new SharePolicy(50, 0, 0));
+        reaper.schedule(entry);
+        reaper.schedule(entry);
+
+        assertSame(entry, expired.poll(5, TimeUnit.SECONDS));
+        assertNull(expired.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
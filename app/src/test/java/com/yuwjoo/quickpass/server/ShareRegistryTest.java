@@ -0,0 +1,196 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分享注册表并发测试
+ */
+public class ShareRegistryTest {
+
+    private static ShareEntry newEntry(String id) {
+        return new ShareEntry(id, null, new FileMetadata(id, 1024, "application/octet-stream", 1000));
+    }
+
+    @Test
+    public void removedShareRejectsNewRequestsAndDrainsInFlight() {
+        ShareRegistry registry = new ShareRegistry();
+        List<ShareEntry> drained = new ArrayList<>();
+        registry.setOnShareDrainedListener(drained::add);
+        registry.add(newEntry("a"));
+
+        ShareEntry first = registry.acquire("a");
+        ShareEntry second = registry.acquire("a");
+        assertNotNull(first);
+        assertEquals(2, first.getActiveTransfers());
+
+        registry.remove("a");
+        assertTrue(first.isRemoved());
+        assertNull(registry.acquire("a"));
+        assertTrue(drained.isEmpty());
+
+        registry.release(first);
+        assertTrue(drained.isEmpty());
+        registry.release(second);
+        assertEquals(1, drained.size());
+        assertEquals(0, first.getActiveTransfers());
+    }
+
+    @Test
+    public void transferActivityReportsIdleAndBusyTransitions() {
+        ShareRegistry registry = new ShareRegistry();
+        List<Integer> changes = new ArrayList<>();
+        registry.setOnTransferActivityListener(changes::add);
+        registry.add(newEntry("a"));
+        registry.add(newEntry("b"));
+
+        ShareEntry first = registry.acquire("a");
+        ShareEntry second = registry.acquire("b");
+        assertNull(registry.acquire("missing"));
+        assertEquals(2, registry.getActiveTransfers());
+        registry.release(first);
+        registry.release(second);
+
+        // 只在0和非0之间变化时回调
+        assertEquals(2, changes.size());
+        assertEquals(1, (int) changes.get(0));
+        assertEquals(0, (int) changes.get(1));
+    }
+
+    @Test
+    public void snapshotKeepsInsertionOrder() {
+        ShareRegistry registry = new ShareRegistry();
+        for (int i = 0; i < 50; i++) {
+            registry.add(newEntry("id-" + i));
+        }
+        List<ShareEntry> snapshot = registry.snapshot();
+        for (int i = 0; i < 50; i++) {
+            assertEquals("id-" + i, snapshot.get(i).getId());
+        }
+    }
+
+    @Test
+    public void removingIdleShareDrainsImmediately() {
+        ShareRegistry registry = new ShareRegistry();
+        AtomicInteger drained = new AtomicInteger();
+        registry.setOnShareDrainedListener(entry -> drained.incrementAndGet());
+        registry.add(newEntry("a"));
+
+        registry.remove("a");
+        assertEquals(1, drained.get());
+        assertNull(registry.remove("a"));
+        assertEquals(1, drained.get());
+    }
+
+    @Test
+    public void concurrentAddRemoveAndDownloadsStayConsistent() throws Exception {
+        final int shareCount = 200;
+        final int readerThreads = 8;
+        final int iterations = 20000;
+        ShareRegistry registry = new ShareRegistry();
+        AtomicInteger drained = new AtomicInteger();
+        AtomicInteger acquiredAfterRemoval = new AtomicInteger();
+        registry.setOnShareDrainedListener(entry -> drained.incrementAndGet());
+
+        ExecutorService executor = Executors.newFixedThreadPool(readerThreads + 2);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        List<ShareEntry> added = new ArrayList<>();
+        for (int i = 0; i < shareCount; i++) {
+            added.add(newEntry("id-" + i));
+        }
+
+        // 添加线程，模拟界面线程不断添加分享
+        futures.add(executor.submit(() -> {
+            start.await();
+            for (ShareEntry entry : added) {
+                registry.add(entry);
+                Thread.yield();
+            }
+            return null;
+        }));
+        // 移除线程，移除偶数编号的分享
+        futures.add(executor.submit(() -> {
+            start.await();
+            for (int i = 0; i < shareCount; i += 2) {
+                while (registry.remove("id-" + i) == null) {
+                    Thread.yield();
+                }
+            }
+            return null;
+        }));
+        // 下载线程，模拟服务器线程并发读取
+        for (int t = 0; t < readerThreads; t++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < iterations; i++) {
+                    ShareEntry entry = registry.acquire("id-" + random.nextInt(shareCount));
+                    if (entry != null) {
+                        if (entry.isRemoved() && entry.getActiveTransfers() <= 0) {
+                            acquiredAfterRemoval.incrementAndGet();
+                        }
+                        registry.release(entry);
+                    }
+                    // 迭代快照不能抛出并发修改异常
+                    if (i % 500 == 0) {
+                        for (ShareEntry snapshotEntry : registry.snapshot()) {
+                            assertNotNull(snapshotEntry.getMetadata());
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        assertEquals(0, acquiredAfterRemoval.get());
+        assertEquals(shareCount / 2, registry.size());
+        assertEquals(shareCount / 2, drained.get());
+        for (ShareEntry entry : added) {
+            assertEquals(0, entry.getActiveTransfers());
+            assertNull(entry.isRemoved() ? registry.acquire(entry.getId()) : null);
+        }
+    }
+
+    @Test
+    public void restoringDoesNotBlockLookupsOrAdds() {
+        ShareRegistry registry = new ShareRegistry();
+        registry.beginRestoring();
+        assertTrue(registry.isRestoring());
+
+        // 已恢复的分享立即可查，尚未恢复的查不到但不等待
+        registry.add(newEntry("a"));
+        assertEquals("a", registry.get("a").getId());
+        assertNull(registry.get("b"));
+
+        // 恢复期间新添加的分享同样不等待
+        registry.add(newEntry("c"));
+        registry.add(newEntry("b"));
+        registry.finishRestoring();
+        assertFalse(registry.isRestoring());
+
+        List<ShareEntry> snapshot = registry.snapshot();
+        assertEquals(3, snapshot.size());
+        assertEquals("a", snapshot.get(0).getId());
+        assertEquals("c", snapshot.get(1).getId());
+        assertEquals("b", snapshot.get(2).getId());
+    }
+}
@@ -0,0 +1,134 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 分享持久化存储测试
+ */
+public class ShareStoreTest {
+    private static final String HASH = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ShareStore.Record newRecord(String id, String hash) {
+        return new ShareStore.Record(id, "content://docs/" + id,
+                new FileMetadata(id + ".txt", 1024, "text/plain", 1000, hash), SharePolicy.UNLIMITED, 5000, 0);
+    }
+
+    private static int lineCount(File file) throws IOException {
+        return Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size();
+    }
+
+    @Test
+    public void records_surviveReopenInOrder() {
+        File file = new File(folder.getRoot(), "shares.log");
+        ShareStore store = new ShareStore(file);
+        store.put(newRecord("b", null));
+        store.put(newRecord("a", HASH));
+        store.put(newRecord("c", null));
+        store.remove("c");
+        store.close();
+
+        List<ShareStore.Record> records = new ShareStore(file).load();
+        assertEquals(2, records.size());
+        assertEquals("b", records.get(0).getId());
+        assertEquals("content://docs/b", records.get(0).getUri());
+        assertNull(records.get(0).getMetadata().getContentHash());
+        assertEquals("a", records.get(1).getId());
+        assertEquals("a.txt", records.get(1).getMetadata().getName());
+        assertEquals(1024, records.get(1).getMetadata().getSize());
+        assertEquals(HASH, records.get(1).getMetadata().getContentHash());
+    }
+
+    @Test
+    public void policyAndDownloads_surviveReopen() {
+        File file = new File(folder.getRoot(), "shares.log");
+        ShareStore store = new ShareStore(file);
+        store.put(new ShareStore.Record("a", "content://docs/a", new FileMetadata("a.txt", 1, "text/plain", 2, null),
+                new SharePolicy(60_000, 3, 10_000), 123_456, 2));
+        store.close();
+
+        ShareStore.Record record = new ShareStore(file).load().get(0);
+        assertEquals(60_000, record.getPolicy().getTtlMillis());
+        assertEquals(3, record.getPolicy().getMaxDownloads());
+        assertEquals(10_000, record.getPolicy().getIdleTimeoutMillis());
+        assertEquals(123_456, record.getCreatedTime());
+        assertEquals(2, record.getDownloads());
+    }
+
+    @Test
+    public void update_replacesPreviousRecord() {
+        File file = new File(folder.getRoot(), "shares.log");
+        ShareStore store = new ShareStore(file);
+        store.put(newRecord("a", null));
+        store.put(newRecord("a", HASH));
+        store.close();
+
+        List<ShareStore.Record> records = new ShareStore(file).load();
+        assertEquals(1, records.size());
+        assertEquals(HASH, records.get(0).getMetadata().getContentHash());
+    }
+
+    @Test
+    public void compaction_keepsLogProportionalToShares() throws IOException {
+        File file = new File(folder.getRoot(), "shares.log");
+        ShareStore store = new ShareStore(file);
+        store.put(newRecord("kept", null));
+        for (int i = 0; i < 1000; i++) {
+            store.put(newRecord("temp" + i, null));
+            store.remove("temp" + i);
+        }
+        store.close();
+
+        assertTrue(lineCount(file) < 200);
+        List<ShareStore.Record> records = new ShareStore(file).load();
+        assertEquals(1, records.size());
+        assertEquals("kept", records.get(0).getId());
+    }
+
+    @Test
+    public void truncatedLastLine_isIgnoredAndRewritten() throws IOException {
+        File file = new File(folder.getRoot(), "shares.log");
+        ShareStore store = new ShareStore(file);
+        store.put(newRecord("a", HASH));
+        store.close();
+        // 模拟写入中途进程被杀死
+        String partial = newRecord("b", HASH).encode();
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(partial.substring(0, partial.length() - 10).getBytes(StandardCharsets.UTF_8));
+        }
+
+        ShareStore reopened = new ShareStore(file);
+        assertEquals(1, reopened.load().size());
+        reopened.put(newRecord("c", null));
+        reopened.close();
+
+        List<ShareStore.Record> records = new ShareStore(file).load();
+        assertEquals(2, records.size());
+        assertEquals("c", records.get(1).getId());
+    }
+
+    @Test
+    public void decode_rejectsMalformedLines() {
+        assertNull(ShareStore.Record.decode(""));
+        assertNull(ShareStore.Record.decode("+\ta\turi\tname\tnot-a-number\ttext/plain\t1000\t\t0\t0\t0\t0\t0"));
+        assertNull(ShareStore.Record.decode("+\ta\turi\tname\t1\ttext/plain\t1000\tabc\t0\t0\t0\t0\t0"));
+        assertNull(ShareStore.Record.decode("+\ta\turi\tname\t1\ttext/plain\t1000\t\t0\t-1\t0\t0\t0"));
+
+        ShareStore.Record record = new ShareStore.Record("a", "content://x",
+                new FileMetadata("tab\tname", 1, "text/plain", 2, null), SharePolicy.UNLIMITED, 0, 0);
+        assertEquals("tab name", ShareStore.Record.decode(record.encode()).getMetadata().getName());
+    }
+}
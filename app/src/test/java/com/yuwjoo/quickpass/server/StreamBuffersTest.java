@@ -0,0 +1,40 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * 响应流缓冲区测试
+ */
+public class StreamBuffersTest {
+    private static final int KB = 1024;
+    private static final long MB = 1024 * 1024;
+
+    @Test
+    public void writeSize_followsLinkSpeedWithinBounds() {
+        StreamBuffers buffers = new StreamBuffers(Runnable::run);
+        assertEquals(StreamBuffers.INITIAL_WRITE_SIZE, buffers.writeSize(-1));
+        assertEquals(StreamBuffers.DEFAULT_MIN_WRITE_SIZE, buffers.writeSize(100 * KB));
+        assertEquals(10 * MB * StreamBuffers.TARGET_WRITE_MILLIS / 1000, buffers.writeSize(10 * MB));
+        assertEquals(StreamBuffers.DEFAULT_MAX_WRITE_SIZE, buffers.writeSize(500 * MB));
+    }
+
+    @Test
+    public void setSizes_appliesToReadAndWriteSizes() {
+        StreamBuffers buffers = new StreamBuffers(Runnable::run);
+        buffers.setSizes(32 * KB, 64 * KB, 128 * KB);
+        assertEquals(64 * KB, buffers.writeSize(0));
+        assertEquals(128 * KB, buffers.writeSize(-1));
+        ByteBuffer heap = buffers.acquireHeap();
+        assertFalse(heap.isDirect());
+        assertEquals(32 * KB, heap.capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void setSizes_rejectsInvertedRange() {
+        new StreamBuffers(Runnable::run).setSizes(64 * KB, 256 * KB, 128 * KB);
+    }
+}
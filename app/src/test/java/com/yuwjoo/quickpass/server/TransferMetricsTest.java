@@ -0,0 +1,147 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * 传输指标测试
+ * 使用手动推进的时钟，采样任务保存后手动执行
+ */
+public class TransferMetricsTest {
+    private static final long MILLIS = 1_000_000L;
+
+    private long now; // 当前时间（纳秒）
+    private final List<Runnable> tasks = new ArrayList<>();
+    private final List<List<TransferMetrics.ShareProgress>> updates = new ArrayList<>();
+
+    private TransferMetrics newMetrics() {
+        TransferMetrics metrics = new TransferMetrics((runnable, delayMillis) -> tasks.add(runnable),
+                () -> now, () -> 2_500_000_000L);
+        metrics.setOnProgressListener(updates::add);
+        return metrics;
+    }
+
+    private void runTasks() {
+        List<Runnable> due = new ArrayList<>(tasks);
+        tasks.clear();
+        for (Runnable task : due) {
+            task.run();
+        }
+    }
+
+    private static void send(TransferMetrics.Tracker tracker, long bytes) {
+        tracker.onReadStart();
+        tracker.onRead(bytes);
+    }
+
+    @Test
+    public void tracker_countsBytesDownloadsAndErrors() {
+        TransferMetrics metrics = newMetrics();
+        TransferMetrics.Tracker ok = metrics.begin("a", 100);
+        TransferMetrics.Tracker closed = metrics.begin("a", 100);
+        send(ok, 100);
+        send(closed, 40);
+        ok.finish(null);
+        closed.finish(TransferMetrics.ErrorCause.CLIENT_CLOSED);
+        closed.finish(null);
+        metrics.recordError(TransferMetrics.ErrorCause.NOT_FOUND);
+
+        assertEquals(140, metrics.getBytesSent());
+        assertEquals(1, metrics.getDownloadCount("a"));
+        assertEquals(1, metrics.getErrorCount(TransferMetrics.ErrorCause.CLIENT_CLOSED));
+        assertEquals(1, metrics.getErrorCount(TransferMetrics.ErrorCause.NOT_FOUND));
+    }
+
+    @Test
+    public void zipTransfer_countsEachCompletedEntry() {
+        TransferMetrics metrics = newMetrics();
+        TransferMetrics.Tracker zip = metrics.begin(null, -1);
+        zip.switchShare("a", 10);
+        send(zip, 10);
+        zip.countDownload();
+        zip.switchShare("b", 10);
+        send(zip, 5);
+        zip.finish(TransferMetrics.ErrorCause.CLIENT_CLOSED);
+
+        assertEquals(1, metrics.getDownloadCount("a"));
+        assertEquals(0, metrics.getDownloadCount("b"));
+    }
+
+    @Test
+    public void sample_reportsSpeedPerShareAndStopsWhenIdle() {
+        TransferMetrics metrics = newMetrics();
+        TransferMetrics.Tracker first = metrics.begin("a", 4000);
+        TransferMetrics.Tracker second = metrics.begin("a", 4000);
+        TransferMetrics.Tracker zip = metrics.begin(null, 4000); // 打包下载不按分享报告
+        now = 500 * MILLIS;
+        send(first, 1000);
+        send(second, 1000);
+        now = 1000 * MILLIS;
+        runTasks();
+
+        assertEquals(1, updates.size());
+        assertEquals(1, updates.get(0).size());
+        TransferMetrics.ShareProgress progress = updates.get(0).get(0);
+        assertEquals("a", progress.getShareId());
+        assertEquals(2, progress.getActiveTransfers());
+        assertEquals(2000, progress.getBytesSent());
+        assertEquals(8000, progress.getTotalBytes());
+        assertEquals(2000, progress.getBytesPerSecond());
+        assertEquals(2000, metrics.getThroughput());
+        assertEquals(1, tasks.size());
+
+        // 全部结束后再报告一次空列表，之后不再采样
+        first.finish(null);
+        second.finish(null);
+        zip.finish(null);
+        now = 2000 * MILLIS;
+        runTasks();
+        assertEquals(2, updates.size());
+        assertTrue(updates.get(1).isEmpty());
+        assertTrue(tasks.isEmpty());
+    }
+
+    @Test
+    public void averageThroughput_ignoresIdleTime() {
+        TransferMetrics metrics = newMetrics();
+        TransferMetrics.Tracker tracker = metrics.begin("a", 2000);
+        now = 1000 * MILLIS;
+        send(tracker, 2000);
+        tracker.finish(null);
+        now = 10_000 * MILLIS;
+
+        assertEquals(2000, metrics.getAverageThroughput());
+    }
+
+    @Test
+    public void writePrometheus_exportsCountersHistogramAndEscapedLabels() {
+        TransferMetrics metrics = newMetrics();
+        TransferMetrics.Tracker tracker = metrics.begin("a\"b", 10);
+        now = 30 * MILLIS;
+        send(tracker, 10);
+        tracker.finish(null);
+        metrics.recordBytesReceived(7);
+        metrics.recordError(TransferMetrics.ErrorCause.BUSY);
+
+        StringBuilder out = new StringBuilder();
+        metrics.writePrometheus(out, 3, 1);
+        String text = out.toString();
+        assertTrue(text.contains("# TYPE quickpass_bytes_sent_total counter\n"));
+        assertTrue(text.contains("quickpass_bytes_sent_total 10\n"));
+        assertTrue(text.contains("quickpass_bytes_received_total 7\n"));
+        assertTrue(text.contains("quickpass_transfer_errors_total{cause=\"busy\"} 1\n"));
+        assertTrue(text.contains("quickpass_active_transfers 3\n"));
+        assertTrue(text.contains("quickpass_queued_transfers 1\n"));
+        // 30毫秒落在0.05秒的桶中，之前的桶为0
+        assertTrue(text.contains("quickpass_time_to_first_byte_seconds_bucket{le=\"0.025\"} 0\n"));
+        assertTrue(text.contains("quickpass_time_to_first_byte_seconds_bucket{le=\"0.05\"} 1\n"));
+        assertTrue(text.contains("quickpass_time_to_first_byte_seconds_bucket{le=\"+Inf\"} 1\n"));
+        assertTrue(text.contains("quickpass_time_to_first_byte_seconds_sum 0.03\n"));
+        assertTrue(text.contains("quickpass_server_thread_cpu_seconds_total 2.5\n"));
+        assertTrue(text.contains("quickpass_share_downloads_total{share=\"a\\\"b\"} 1\n"));
+    }
+}
@@ -0,0 +1,247 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import static org.junit.Assert.*;
+
+/**
+ * 传输调度器测试
+ * 使用手动推进的时钟和事件循环模拟服务器线程
+ */
+public class TransferSchedulerTest {
+    private static final long MB = 1024 * 1024;
+
+    private long now; // 当前时间（纳秒）
+    private long taskSequence;
+    private final PriorityQueue<long[]> taskOrder = new PriorityQueue<>((a, b) ->
+            a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+    private final List<Runnable> tasks = new ArrayList<>();
+
+    private TransferScheduler newScheduler(int maxActive, int maxQueued) {
+        return new TransferScheduler((runnable, delayMillis) -> {
+            tasks.add(runnable);
+            taskOrder.add(new long[]{now + delayMillis * 1_000_000L, taskSequence++, tasks.size() - 1});
+        }, () -> now, maxActive, maxQueued);
+    }
+
+    /**
+     * 按时间顺序执行到期的任务
+     */
+    private void runUntil(long nanos) {
+        while (!taskOrder.isEmpty() && taskOrder.peek()[0] <= nanos) {
+            long[] task = taskOrder.poll();
+            now = Math.max(now, task[0]);
+            tasks.get((int) task[2]).run();
+        }
+        now = nanos;
+    }
+
+    @Test
+    public void submit_queuesOverCapacityAndRejectsWhenQueueIsFull() {
+        TransferScheduler scheduler = newScheduler(2, 1);
+        FakeTransfer a = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer b = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer c = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer d = new FakeTransfer(scheduler, 10 * MB, false);
+        a.submit("10.0.0.1");
+        b.submit("10.0.0.2");
+        c.submit("10.0.0.3");
+        d.submit("10.0.0.4");
+
+        assertTrue(a.started && b.started);
+        assertFalse(c.started);
+        assertTrue(d.retryAfter > 0);
+        assertEquals(2, scheduler.getActiveCount());
+        assertEquals(1, scheduler.getQueuedCount());
+
+        scheduler.finish(a.ticket);
+        assertTrue(c.started);
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void submit_rejectsQueuedTransfersAfterTimeout() {
+        TransferScheduler scheduler = newScheduler(1, 4);
+        FakeTransfer a = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer b = new FakeTransfer(scheduler, 10 * MB, false);
+        a.submit("10.0.0.1");
+        b.submit("10.0.0.2");
+
+        runUntil(60_000_000_000L);
+        assertFalse(b.started);
+        assertTrue(b.retryAfter > 0);
+        assertEquals(0, scheduler.getQueuedCount());
+    }
+
+    @Test
+    public void smallFiles_skipTheQueue() {
+        TransferScheduler scheduler = newScheduler(1, 8);
+        FakeTransfer large = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer waitingLarge = new FakeTransfer(scheduler, 10 * MB, false);
+        FakeTransfer small = new FakeTransfer(scheduler, 1000, false);
+        large.submit("10.0.0.1");
+        waitingLarge.submit("10.0.0.2");
+        small.submit("10.0.0.3");
+
+        // 小文件使用保留名额立即开始，大文件继续排队
+        assertTrue(small.started);
+        assertFalse(waitingLarge.started);
+    }
+
+    @Test
+    public void bandwidth_isSharedByClientNotByConnection() {
+        TransferScheduler scheduler = newScheduler(8, 8);
+        scheduler.setRateLimits(8 * MB, 0);
+        List<FakeTransfer> greedy = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            FakeTransfer transfer = new FakeTransfer(scheduler, 1000 * MB, true);
+            greedy.add(transfer);
+            transfer.submit("10.0.0.1");
+        }
+        FakeTransfer single = new FakeTransfer(scheduler, 1000 * MB, true);
+        single.submit("10.0.0.2");
+        long greedyBefore = sum(greedy);
+        long singleBefore = single.sent;
+        runUntil(2_000_000_000L);
+
+        // 同一客户端的四个连接合计与另一个客户端的单个连接相当
+        assertEquals(1.0, (double) (sum(greedy) - greedyBefore) / (single.sent - singleBefore), 0.1);
+    }
+
+    @Test
+    public void bandwidth_followsClientWeights() {
+        TransferScheduler scheduler = newScheduler(8, 8);
+        scheduler.setRateLimits(8 * MB, 0);
+        scheduler.setClientWeight("10.0.0.2", 3);
+        FakeTransfer normal = new FakeTransfer(scheduler, 1000 * MB, true);
+        FakeTransfer weighted = new FakeTransfer(scheduler, 1000 * MB, true);
+        normal.submit("10.0.0.1");
+        weighted.submit("10.0.0.2");
+        long normalBefore = normal.sent;
+        long weightedBefore = weighted.sent;
+        runUntil(2_000_000_000L);
+
+        assertEquals(3.0, (double) (weighted.sent - weightedBefore) / (normal.sent - normalBefore), 0.3);
+    }
+
+    @Test
+    public void bandwidth_isWorkConservingWithoutLimits() {
+        TransferScheduler scheduler = newScheduler(8, 8);
+        FakeTransfer transfer = new FakeTransfer(scheduler, 20 * MB, true);
+        transfer.submit("10.0.0.1");
+        runUntil(1_000_000L);
+
+        // 不限速时单个传输可以连续发送，只按批次让出服务器线程
+        assertEquals(20 * MB, transfer.sent);
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    @Test
+    public void globalRateLimit_capsThroughput() {
+        TransferScheduler scheduler = newScheduler(8, 8);
+        scheduler.setRateLimits(2 * MB, 0);
+        FakeTransfer a = new FakeTransfer(scheduler, 1000 * MB, true);
+        FakeTransfer b = new FakeTransfer(scheduler, 1000 * MB, true);
+        a.submit("10.0.0.1");
+        b.submit("10.0.0.2");
+        runUntil(3_000_000_000L);
+
+        long total = a.sent + b.sent;
+        // 3秒内约6MB，允许一个突发量的误差
+        assertEquals(6.0 * MB, total, 0.5 * MB);
+        assertEquals(1.0, (double) a.sent / b.sent, 0.1);
+    }
+
+    @Test
+    public void connectionRateLimit_capsEachTransfer() {
+        TransferScheduler scheduler = newScheduler(8, 8);
+        scheduler.setRateLimits(0, MB);
+        FakeTransfer transfer = new FakeTransfer(scheduler, 1000 * MB, true);
+        transfer.submit("10.0.0.1");
+        runUntil(4_000_000_000L);
+
+        assertEquals(4.0 * MB, transfer.sent, 0.3 * MB);
+    }
+
+    @Test
+    public void finishedTransfer_releasesSlotOnce() {
+        TransferScheduler scheduler = newScheduler(1, 4);
+        FakeTransfer a = new FakeTransfer(scheduler, 3 * MB, true);
+        FakeTransfer b = new FakeTransfer(scheduler, 10 * MB, false);
+        b.submit("10.0.0.2");
+        a.submit("10.0.0.1");
+        assertEquals(1, scheduler.getQueuedCount());
+
+        scheduler.finish(b.ticket);
+        scheduler.finish(b.ticket);
+        runUntil(1_000_000L);
+        // a发送完毕后自行结束
+        assertEquals(3 * MB, a.sent);
+        assertEquals(0, scheduler.getActiveCount());
+    }
+
+    private static long sum(List<FakeTransfer> transfers) {
+        long total = 0;
+        for (FakeTransfer transfer : transfers) {
+            total += transfer.sent;
+        }
+        return total;
+    }
+
+    /**
+     * 模拟的传输任务，套接字总是可写
+     */
+    private static class FakeTransfer implements TransferScheduler.Transfer {
+        private final TransferScheduler scheduler;
+        private final long size;
+        private final boolean writes; // 开始后是否申请发送额度
+        TransferScheduler.Ticket ticket;
+        boolean started;
+        int retryAfter;
+        long sent;
+
+        FakeTransfer(TransferScheduler scheduler, long size, boolean writes) {
+            this.scheduler = scheduler;
+            this.size = size;
+            this.writes = writes;
+        }
+
+        void submit(String clientId) {
+            TransferScheduler.Ticket submitted = scheduler.submit(clientId, size, this);
+            if (ticket == null) {
+                ticket = submitted;
+            }
+        }
+
+        @Override
+        public void onStart(TransferScheduler.Ticket ticket) {
+            this.ticket = ticket;
+            started = true;
+            if (writes) {
+                scheduler.requestWrite(ticket);
+            }
+        }
+
+        @Override
+        public long onGrant(long budget) {
+            assertTrue(budget >= 1);
+            long produced = Math.min(Math.min(budget, 64 * 1024), size - sent);
+            sent += produced;
+            if (sent >= size) {
+                scheduler.finish(ticket);
+            } else {
+                scheduler.requestWrite(ticket);
+            }
+            return produced;
+        }
+
+        @Override
+        public void onRejected(int retryAfterSeconds) {
+            retryAfter = retryAfterSeconds;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * 上传文件存储测试
+ */
+public class UploadStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sanitizeName_stripsPaths() {
+        assertEquals("passwd", UploadStore.sanitizeName("../../etc/passwd"));
+        assertEquals("a.txt", UploadStore.sanitizeName("C:\\Users\\me\\a.txt"));
+        assertEquals("upload", UploadStore.sanitizeName(".."));
+        assertEquals("upload", UploadStore.sanitizeName("dir/"));
+        assertEquals("upload", UploadStore.sanitizeName(null));
+        assertEquals("upload", UploadStore.sanitizeName("x.part"));
+        assertEquals("ab", UploadStore.sanitizeName("a\nb"));
+    }
+
+    @Test
+    public void commit_appendsNumberForExistingNames() throws IOException {
+        UploadStore store = new UploadStore(new File(folder.getRoot(), "received"));
+        File first = store.commit(store.createPartFile(), "photo.jpg");
+        File second = store.commit(store.createPartFile(), "photo.jpg");
+        File third = store.commit(store.createPartFile(), "photo.jpg");
+
+        assertEquals("photo.jpg", first.getName());
+        assertEquals("photo (1).jpg", second.getName());
+        assertEquals("photo (2).jpg", third.getName());
+        assertTrue(third.isFile());
+    }
+
+    @Test
+    public void deleteStaleParts_keepsReceivedFiles() throws IOException {
+        UploadStore store = new UploadStore(folder.getRoot());
+        File part = store.createPartFile();
+        File received = store.commit(store.createPartFile(), "done.bin");
+
+        store.deleteStaleParts();
+        assertFalse(part.exists());
+        assertTrue(received.exists());
+    }
+
+    @Test
+    public void session_tracksOffsetAndExpiresWhenIdle() throws IOException {
+        UploadStore store = new UploadStore(folder.getRoot());
+        UploadStore.Session session = store.createSession("big.bin", 10);
+        assertSame(session, store.getSession(session.getId()));
+
+        session.advance(4);
+        assertEquals(4, session.getOffset());
+        assertFalse(session.isComplete());
+        assertTrue(session.tryAcquire());
+        assertFalse(session.tryAcquire());
+        session.release();
+
+        store.purgeIdleSessions(System.currentTimeMillis());
+        assertNotNull(store.getSession(session.getId()));
+        store.purgeIdleSessions(System.currentTimeMillis() + 2 * 60 * 60 * 1000);
+        assertNull(store.getSession(session.getId()));
+        assertFalse(session.getPartFile().exists());
+    }
+}
@@ -0,0 +1,111 @@
+package com.yuwjoo.quickpass.server;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * ZIP流生成器测试
+ * 生成的压缩包用java.util.zip.ZipFile读取校验
+ */
+public class ZipStreamWriterTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void write_producesReadableArchiveWithPrecomputedLength() throws IOException {
+        assertArchive(ZipStreamWriter.ZIP64_LIMIT);
+    }
+
+    @Test
+    public void write_zip64RecordsAreReadable() throws IOException {
+        // 降低阈值以便在小文件上覆盖ZIP64文件头、偏移和结束记录
+        assertArchive(3000);
+    }
+
+    @Test
+    public void constructor_renamesDuplicateEntries() throws IOException {
+        List<byte[]> contents = Arrays.asList(new byte[]{1}, new byte[]{2}, new byte[]{3});
+        File file = writeArchive(Arrays.asList("a.txt", "A.txt", "a.txt"), contents, ZipStreamWriter.ZIP64_LIMIT);
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertNotNull(zipFile.getEntry("a.txt"));
+            assertNotNull(zipFile.getEntry("A (1).txt"));
+            assertNotNull(zipFile.getEntry("a (2).txt"));
+        }
+    }
+
+    private void assertArchive(long zip64Limit) throws IOException {
+        Random random = new Random(7);
+        List<String> names = new ArrayList<>();
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            names.add("照片_" + i + ".jpg");
+            byte[] content = new byte[random.nextInt(5000)];
+            random.nextBytes(content);
+            contents.add(content);
+        }
+        File file = writeArchive(names, contents, zip64Limit);
+
+        try (ZipFile zipFile = new ZipFile(file)) {
+            assertEquals(names.size(), zipFile.size());
+            for (int i = 0; i < names.size(); i++) {
+                ZipEntry entry = zipFile.getEntry(names.get(i));
+                assertNotNull(entry);
+                assertEquals(ZipEntry.STORED, entry.getMethod());
+                assertEquals(contents.get(i).length, entry.getSize());
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    assertArrayEquals(contents.get(i), inputStream.readAllBytes());
+                }
+            }
+        }
+    }
+
+    private File writeArchive(List<String> names, List<byte[]> contents, long zip64Limit) throws IOException {
+        List<Long> sizes = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        for (byte[] content : contents) {
+            sizes.add((long) content.length);
+            times.add(1700000000000L);
+        }
+        ZipStreamWriter writer = new ZipStreamWriter(names, sizes, times, zip64Limit);
+        long expectedLength = writer.computeLength();
+
+        File file = temporaryFolder.newFile();
+        try (OutputStream out = new FileOutputStream(file)) {
+            for (int i = 0; i < contents.size(); i++) {
+                write(out, writer.localHeader(i));
+                out.write(contents.get(i));
+                CRC32 crc = new CRC32();
+                crc.update(contents.get(i));
+                write(out, writer.dataDescriptor(i, crc.getValue(), contents.get(i).length));
+            }
+            for (int i = 0; i < contents.size(); i++) {
+                write(out, writer.centralHeader(i));
+            }
+            write(out, writer.endRecords());
+        }
+        assertEquals(expectedLength, file.length());
+        return file;
+    }
+
+    private static void write(OutputStream out, ByteBuffer buffer) throws IOException {
+        out.write(buffer.array(), buffer.position(), buffer.remaining());
+    }
+}